@@ -162,8 +162,9 @@ public final class MainActivity extends AppCompatActivity implements SurfaceHold
 //                        }
 
                             Frame frame = decoder.feed(sample);
-                            if(frame != null){
+                            while(frame != null){
                                 buffer.receive(frame);
+                                frame = decoder.poll();
                             }
 
                     }
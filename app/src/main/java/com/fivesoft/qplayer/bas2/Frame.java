@@ -1,7 +1,9 @@
 package com.fivesoft.qplayer.bas2;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
 import com.fivesoft.qplayer.track.Track;
 
 public class Frame extends Sample {
@@ -12,16 +14,139 @@ public class Frame extends Sample {
 
     public static final byte CONFIG_FRAME = 0x03;
 
+    /**
+     * Flag set when the frame carries codec configuration data (e.g. SPS/PPS)
+     * next to the picture data. Frames of {@link #CONFIG_FRAME} type always have this flag set.
+     */
+
+    public static final int FLAG_HAS_CONFIG = 0x01;
+
+    /**
+     * Flag set when the frame contains picture data, which is known not to be used for reference
+     * by any other frame (e.g. H264 slices with nal_ref_idc equal to 0).<br>
+     * Such frame may be dropped without corrupting decoding of the following frames,
+     * see {@link #isDisposable()}. Frames without this flag should be assumed to be reference frames.
+     */
+
+    public static final int FLAG_NON_REFERENCE = 0x02;
+
+    /**
+     * Flag set when the frame begins a new picture, i.e. contains the first slice of a picture.<br>
+     * Frames consisting of a single slice (see access unit mode of RTP frame builders) without this flag
+     * continue the picture of the previous frame.
+     */
+
+    public static final int FLAG_NEW_PICTURE = 0x04;
+
+    /**
+     * Flag set when data preceding the frame has been lost or dropped as damaged (e.g. lost RTP packets),
+     * so frames referenced by this one may be missing. Decoders should not decode non-sync frames
+     * marked with this flag and wait for a sync frame or a {@link #FLAG_RECOVERY_POINT recovery point}.
+     */
+
+    public static final int FLAG_DISCONTINUITY = 0x08;
+
+    /**
+     * Flag set when the frame carries a recovery point (e.g. H264 / H265 recovery point SEI),
+     * decoding can be started from, even though it's not a sync frame. (gradual decoder refresh)
+     */
+
+    public static final int FLAG_RECOVERY_POINT = 0x10;
+
     public volatile byte frameType;
 
-    public Frame(@NonNull byte[] data, int off, int len, long timestamp, @NonNull Track track, byte frameType) {
+    /**
+     * Additional frame flags. (see FLAG_* constants)
+     */
+
+    public volatile int flags;
+
+    @Nullable
+    private final PooledByteArray memory;
+
+    /**
+     * Creates a frame backed by pooled memory. The frame takes over the reference of the caller,
+     * so the memory goes back to its pool when the frame is released with {@link #release()}.
+     */
+
+    public Frame(@NonNull PooledByteArray memory, int off, int len, long timestamp, @NonNull Track track, byte frameType, int flags) {
+        super(memory.array(), off, len, timestamp, track);
+        this.frameType = frameType;
+        this.flags = flags;
+        this.memory = memory;
+    }
+
+    public Frame(@NonNull byte[] data, int off, int len, long timestamp, @NonNull Track track, byte frameType, int flags) {
         super(data, off, len, timestamp, track);
         this.frameType = frameType;
+        this.flags = flags;
+        this.memory = null;
+    }
+
+    public Frame(@NonNull byte[] data, int off, int len, long timestamp, @NonNull Track track, byte frameType) {
+        this(data, off, len, timestamp, track, frameType, frameType == CONFIG_FRAME ? FLAG_HAS_CONFIG : 0);
     }
 
     public Frame(@NonNull byte[] data, long timestamp, @NonNull Track track, byte frameType) {
-        super(data, timestamp, track);
-        this.frameType = frameType;
+        this(data, 0, data.length, timestamp, track, frameType);
+    }
+
+    /**
+     * Checks if the frame has all specified flags set.
+     * @param flag flag or flags to check (see FLAG_* constants)
+     * @return true if all specified flags are set, false otherwise
+     */
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) == flag;
+    }
+
+    /**
+     * Checks if the frame may be dropped (e.g. when decoder can't keep up with the stream)
+     * without corrupting decoding of the following frames.<br>
+     * True for non-sync frames marked with {@link #FLAG_NON_REFERENCE}, which carry no configuration data.
+     * @return true if the frame may be safely dropped, false otherwise
+     */
+
+    public boolean isDisposable() {
+        return frameType == NON_SYNC_FRAME && (flags & (FLAG_NON_REFERENCE | FLAG_HAS_CONFIG)) == FLAG_NON_REFERENCE;
+    }
+
+    /**
+     * Returns size of the pooled memory backing this frame, which may be bigger than the frame itself.
+     * @return size of the pooled array in bytes or 0 if the frame is not backed by pooled memory
+     */
+
+    public int getPooledMemorySize() {
+        return memory != null ? memory.size() : 0;
+    }
+
+    /**
+     * Adds a reference to the memory backing this frame, so it stays valid till matching {@link #release()}.<br>
+     * Has no effect for frames which are not backed by pooled memory.
+     * @return this frame
+     * @throws IllegalStateException if the frame has already been released
+     */
+
+    @NonNull
+    public Frame retain() {
+        if (memory != null) {
+            memory.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Releases a reference to the memory backing this frame. After the last reference is released,
+     * frame data must not be accessed anymore.<br>
+     * Frame consumers (e.g. decoders) call this method when they don't need frame data anymore.
+     * Has no effect for frames which are not backed by pooled memory.
+     */
+
+    public void release() {
+        if (memory != null) {
+            memory.release();
+        }
     }
 
 }
@@ -2,6 +2,7 @@ package com.fivesoft.qplayer.bas2;
 
 import androidx.annotation.Nullable;
 
+import com.fivesoft.qplayer.bas2.core.LoadSheddingPolicy;
 import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
 import com.fivesoft.qplayer.track.Track;
 import com.fivesoft.qplayer.track.Tracks;
@@ -10,6 +11,12 @@ import java.net.URI;
 
 public interface QPlayer<VideoRendererType, AudioRendererType, SubtitleRenderType> {
 
+    /**
+     * Error code indicating that the buffer latency or its limits are invalid.
+     */
+
+    int ERROR_INVALID_LATENCY = -8001;
+
     /**
      * Sets media source to be played with specified track selector.<br>
      * @param uri Media source to be played or null to release current source.
@@ -89,13 +96,46 @@ public interface QPlayer<VideoRendererType, AudioRendererType, SubtitleRenderTyp
      * Sets the buffer latency in milliseconds.<br>
      * <b>Note that</b>, exact latency will be greater than the specified value.<br>
      * This is because exact latency is typically equal to:
-     * <code>HDMI_latency + encoder_latency + transport_latency + <b>buffer_latency</b> + decoding_latency + rendering_latency</code>
-     * @param latency The buffer latency in milliseconds.
+     * <code>HDMI_latency + encoder_latency + transport_latency + <b>buffer_latency</b> + decoding_latency + rendering_latency</code><br>
+     * The player adapts the latency to the jitter of the network within the limits
+     * (see {@link #setBufferLatencyLimits(long, long)}), this is the latency it starts with.
+     * Pass the latency learned for the same source before (see {@link #getBufferLatency()}) to start with it.
+     * @param latency The buffer latency in milliseconds, clamped to the limits.
      * @return 0 if the latency was set successfully, otherwise error code.
      */
 
     int setBufferLatency(long latency);
 
+    /**
+     * Sets limits of the buffer latency in milliseconds.<br>
+     * The latency is learned from the arrival of data: it grows as soon as data comes late
+     * and shrinks slowly when the network calms down. Equal limits make the latency fixed.
+     * @param min The min latency in milliseconds.
+     * @param max The max latency in milliseconds.
+     * @return 0 if the limits were set successfully, {@link #ERROR_INVALID_LATENCY} if min is negative or greater than max.
+     */
+
+    int setBufferLatencyLimits(long min, long max);
+
+    /**
+     * Returns the current buffer latency in milliseconds, as learned from the jitter of the network.<br>
+     * While audio is playing, the audio output buffers it within its own limits
+     * (see {@link com.fivesoft.qplayer.bas2.decoder.AudioSink#setPlayoutDelayUs(long)}).<br>
+     * Store it per source to start with it next time, see {@link #setBufferLatency(long)}.
+     * @return The buffer latency in milliseconds.
+     */
+
+    long getBufferLatency();
+
+    /**
+     * Sets policy of dropping frames, when decoders can't keep up with the stream.<br>
+     * Use {@link LoadSheddingPolicy#LIVE_LOW_LATENCY} for live playback
+     * or {@link LoadSheddingPolicy#NEVER_DROP} for recording.
+     * @param policy The policy or null to use {@link LoadSheddingPolicy#LIVE_LOW_LATENCY}.
+     */
+
+    void setLoadSheddingPolicy(@Nullable LoadSheddingPolicy policy);
+
      /**
      * Sets {@link TrackSelector} to be used for selecting tracks.<br>
      * @param selector The track selector or null to use default track selector.
@@ -8,10 +8,32 @@ import com.fivesoft.qplayer.track.Track;
 
 public class Sample extends ByteArray implements Bufferable {
 
+    /**
+     * Value of {@link #sequenceNumber} when the sequence number is unknown.
+     */
+
+    public static final int UNKNOWN_SEQUENCE_NUMBER = -1;
+
     public long timestamp;
     @NonNull
     public Track track;
 
+    /**
+     * Marker bit of the transport packet the sample was read from. (e.g. RTP marker bit)<br>
+     * For video streams it's typically set on the last packet of an access unit.
+     * Extractors, which don't know such information, leave it false.
+     */
+
+    public boolean marker;
+
+    /**
+     * Sequence number of the transport packet the sample was read from. (e.g. 16-bit RTP sequence number)<br>
+     * Used to detect lost packets. Extractors, which don't know such information,
+     * leave it {@link #UNKNOWN_SEQUENCE_NUMBER}.
+     */
+
+    public int sequenceNumber = UNKNOWN_SEQUENCE_NUMBER;
+
     public Sample(@NonNull byte[] data, int off, int len, long timestamp, @NonNull Track track) {
         super(data, off, len);
         this.timestamp = timestamp;
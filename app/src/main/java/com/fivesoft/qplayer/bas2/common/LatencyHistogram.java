@@ -0,0 +1,281 @@
+package com.fivesoft.qplayer.bas2.common;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies or intervals with fixed memory, e.g. frame intervals or decode times.<br>
+ * <p>
+ *     Buckets are log-linear: values below {@code 2^SUB_BUCKET_BITS} have a bucket each,
+ *     every following power of two is split into {@code 2^(SUB_BUCKET_BITS - 1)} equal buckets.
+ *     So percentiles are reported with relative error under {@code 2^-(SUB_BUCKET_BITS - 1)} (about 3%),
+ *     whatever the magnitude of the values. Values above the max value are counted in the last bucket.
+ * </p>
+ * <p>
+ *     {@link #record(long)} may be called from any number of threads, it never blocks and allocates nothing.
+ *     Statistics are read from a {@link Snapshot}, which can be merged with snapshots of other histograms
+ *     of the same max value (e.g. of all cameras). Values have no unit, this library records microseconds.
+ * </p>
+ */
+
+public final class LatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 6;
+
+    /**
+     * Default max value: one minute in microseconds.
+     */
+
+    public static final long DEFAULT_MAX_VALUE = 60_000_000L;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final long maxValue;
+    @NonNull
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Creates histogram.
+     * @param maxValue max value tracked exactly, greater values are counted as this one
+     * @throws IllegalArgumentException if max value is not positive
+     */
+
+    public LatencyHistogram(long maxValue) {
+        if (maxValue <= 0)
+            throw new IllegalArgumentException("Invalid max value: " + maxValue);
+        this.maxValue = maxValue;
+        this.counts = new AtomicLongArray(indexOf(maxValue) + 1);
+    }
+
+    /**
+     * Creates histogram of values up to {@link #DEFAULT_MAX_VALUE}.
+     */
+
+    public LatencyHistogram() {
+        this(DEFAULT_MAX_VALUE);
+    }
+
+    /**
+     * Records a value. May be called from any thread.
+     * @param value the value, negative values are recorded as 0
+     */
+
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(Math.min(v, maxValue)));
+        sum.addAndGet(v);
+
+        long m;
+        while (v < (m = min.get()) && !min.compareAndSet(m, v));
+        while (v > (m = max.get()) && !max.compareAndSet(m, v));
+    }
+
+    /**
+     * Returns statistics of the recorded values. Values recorded meanwhile may or may not be included.
+     * @return snapshot of the histogram
+     */
+
+    @NonNull
+    public Snapshot snapshot() {
+        long[] c = new long[counts.length()];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counts.get(i);
+        }
+        return new Snapshot(maxValue, c, sum.get(), min.get(), max.get());
+    }
+
+    /**
+     * Returns statistics of the recorded values and starts recording from scratch, e.g. for periodic reports.
+     * No value recorded meanwhile is lost, it's counted either in this snapshot or in the next one.
+     * @return snapshot of the histogram
+     */
+
+    @NonNull
+    public Snapshot snapshotAndReset() {
+        long[] c = new long[counts.length()];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counts.getAndSet(i, 0);
+        }
+        return new Snapshot(maxValue, c, sum.getAndSet(0),
+                min.getAndSet(Long.MAX_VALUE), max.getAndSet(Long.MIN_VALUE));
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+
+    public void reset() {
+        snapshotAndReset();
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        //Keep top SUB_BUCKET_BITS bits of the value, the highest one is always set
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + top - SUB_BUCKET_HALF;
+    }
+
+    static long lowestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        int i = index - SUB_BUCKET_COUNT;
+        int shift = i / SUB_BUCKET_HALF + 1;
+        return (long) (i % SUB_BUCKET_HALF + SUB_BUCKET_HALF) << shift;
+    }
+
+    static long highestValueAt(int index) {
+        return lowestValueAt(index + 1) - 1;
+    }
+
+    /**
+     * Immutable statistics of a {@link LatencyHistogram}.
+     */
+
+    public static final class Snapshot {
+
+        private final long maxValue;
+        @NonNull
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        private Snapshot(long maxValue, @NonNull long[] counts, long sum, long min, long max) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.maxValue = maxValue;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = count == 0 ? Constants.UNKNOWN_VALUE : min;
+            this.max = count == 0 ? Constants.UNKNOWN_VALUE : max;
+        }
+
+        /**
+         * Returns number of recorded values.
+         * @return number of values
+         */
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the lowest recorded value.
+         * @return the lowest value or {@link Constants#UNKNOWN_VALUE} if nothing has been recorded
+         */
+
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * Returns the highest recorded value, exactly, even if it's above the max value of the histogram.
+         * @return the highest value or {@link Constants#UNKNOWN_VALUE} if nothing has been recorded
+         */
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns mean of recorded values.
+         * @return the mean or {@link Constants#UNKNOWN_VALUE} if nothing has been recorded
+         */
+
+        public double getMean() {
+            return count == 0 ? Constants.UNKNOWN_VALUE : (double) sum / count;
+        }
+
+        /**
+         * Returns value, which the given percentage of recorded values doesn't exceed.
+         * It's the highest value of the bucket, limited to the highest recorded value.
+         * @param percentile percentile, from 0 to 100, e.g. 99 for p99
+         * @return the value or {@link Constants#UNKNOWN_VALUE} if nothing has been recorded
+         * @throws IllegalArgumentException if the percentile is not in range 0 - 100
+         */
+
+        public long getValueAtPercentile(double percentile) {
+            if (!(percentile >= 0 && percentile <= 100))
+                throw new IllegalArgumentException("Invalid percentile: " + percentile);
+            if (count == 0)
+                return Constants.UNKNOWN_VALUE;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.max(min, Math.min(max, highestValueAt(i)));
+            }
+            return max;
+        }
+
+        /**
+         * Returns number of recorded values greater than the given one, e.g. of frames over 50 ms.
+         * Values in the bucket of the given one are counted as not greater,
+         * so the threshold is effectively rounded up to the end of its bucket.
+         * @param value the value
+         * @return number of values
+         */
+
+        public long countAbove(long value) {
+            if (value < 0)
+                return count;
+            if (value >= max)
+                return 0;
+            long above = 0;
+            for (int i = indexOf(Math.min(value, maxValue)) + 1; i < counts.length; i++) {
+                above += counts[i];
+            }
+            return above;
+        }
+
+        /**
+         * Merges this snapshot with another one.
+         * @param other snapshot of a histogram with the same max value
+         * @return new snapshot of values of both snapshots
+         * @throws IllegalArgumentException if histograms have different max values
+         */
+
+        @NonNull
+        public Snapshot merge(@NonNull Snapshot other) {
+            if (other.maxValue != maxValue)
+                throw new IllegalArgumentException("Different max values: " + maxValue + ", " + other.maxValue);
+            long[] c = new long[counts.length];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = counts[i] + other.counts[i];
+            }
+            //Min and max of an empty snapshot are unknown
+            long mn = count == 0 ? other.min : other.count == 0 ? min : Math.min(min, other.min);
+            long mx = count == 0 ? other.max : other.count == 0 ? max : Math.max(max, other.max);
+            return new Snapshot(maxValue, c, sum + other.sum, mn, mx);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                    count, getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                    getValueAtPercentile(99), max);
+        }
+
+    }
+
+}
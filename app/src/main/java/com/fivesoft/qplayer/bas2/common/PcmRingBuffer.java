@@ -0,0 +1,177 @@
+package com.fivesoft.qplayer.bas2.common;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, lock-free buffer of interleaved 16-bit PCM for exactly one producer thread (decoder)
+ * and one consumer thread (audio output).<br>
+ * <p>
+ *     Samples are kept in a fixed array, indexed by two ever increasing counters:
+ *     the producer only writes the tail, the consumer only writes the head. Neither side ever blocks:
+ *     {@link #write(short[], int, int)} drops samples which don't fit, {@link #read(short[], int, int)}
+ *     returns what's available. The capacity bounds the audio latency added by the buffer,
+ *     see {@link #getCapacity(int, int, int)}.
+ * </p>
+ * <p>
+ *     Only whole frames (one sample of every channel) are written and read, so channels never get swapped.
+ * </p>
+ */
+
+public final class PcmRingBuffer {
+
+    @NonNull
+    private final short[] samples;
+    private final int channels;
+
+    //Index of the next sample to read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    //Index of the next sample to write, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    //Written by the producer only
+    private volatile long droppedSamples;
+
+    /**
+     * Creates an empty buffer.
+     * @param capacity max number of samples (of all channels), rounded down to whole frames
+     * @param channels number of interleaved channels
+     * @throws IllegalArgumentException if the capacity can't hold a single frame or channels are not positive
+     */
+
+    public PcmRingBuffer(int capacity, int channels) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("Invalid number of channels: " + channels);
+        if (capacity < channels)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.samples = new short[capacity - capacity % channels];
+        this.channels = channels;
+    }
+
+    /**
+     * Returns capacity holding the given duration of audio.
+     * @param sampleRate sample rate in Hz
+     * @param channels number of channels
+     * @param latencyMs duration in milliseconds
+     * @return number of samples (of all channels)
+     */
+
+    public static int getCapacity(int sampleRate, int channels, int latencyMs) {
+        return (int) Math.max(1, (long) sampleRate * latencyMs / 1000) * channels;
+    }
+
+    /**
+     * Writes whole frames of the given samples, as many as fit. Producer thread only.
+     * @param src array of interleaved samples
+     * @param off offset of the first sample
+     * @param len number of samples
+     * @return number of samples written, the rest has been dropped
+     */
+
+    public int write(@NonNull short[] src, int off, int len) {
+        long t = tail.get();
+        int free = samples.length - (int) (t - head.get());
+        int n = Math.min(len, free);
+        n -= n % channels;
+
+        if (n > 0) {
+            int index = (int) (t % samples.length);
+            int first = Math.min(n, samples.length - index);
+            System.arraycopy(src, off, samples, index, first);
+            System.arraycopy(src, off + first, samples, 0, n - first);
+            //Volatile write publishes the samples
+            tail.set(t + n);
+        }
+        if (n < len) {
+            //noinspection NonAtomicOperationOnVolatileField
+            droppedSamples += len - n;
+        }
+        return n;
+    }
+
+    /**
+     * Reads whole frames of available samples. Consumer thread only.
+     * @param dst array receiving interleaved samples
+     * @param off offset of the first sample in the array
+     * @param len max number of samples to read
+     * @return number of samples read, 0 if the buffer is empty
+     */
+
+    public int read(@NonNull short[] dst, int off, int len) {
+        long h = head.get();
+        int n = Math.min(len, (int) (tail.get() - h));
+        n -= n % channels;
+
+        if (n > 0) {
+            int index = (int) (h % samples.length);
+            int first = Math.min(n, samples.length - index);
+            System.arraycopy(samples, index, dst, off, first);
+            System.arraycopy(samples, 0, dst, off + first, n - first);
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    /**
+     * Discards all samples. Consumer thread only.
+     */
+
+    public void clear() {
+        head.set(tail.get());
+    }
+
+    /**
+     * Returns number of samples waiting to be read. May be called from any thread.
+     * @return number of samples
+     */
+
+    public int available() {
+        //Read head first, so the difference is never negative
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(samples.length, t - h));
+    }
+
+    /**
+     * Returns max number of samples the buffer can hold.
+     * @return capacity of the buffer
+     */
+
+    public int capacity() {
+        return samples.length;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns number of samples written since the buffer has been created (not counting dropped ones).
+     * It's the index the next written sample gets, so it maps samples to the timestamps they were written with.
+     * @return number of samples
+     */
+
+    public long getWrittenSamples() {
+        return tail.get();
+    }
+
+    /**
+     * Returns number of samples read since the buffer has been created.
+     * @return number of samples
+     */
+
+    public long getReadSamples() {
+        return head.get();
+    }
+
+    /**
+     * Returns number of samples dropped by {@link #write(short[], int, int)}, because the buffer was full.
+     * @return number of samples
+     */
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.fivesoft.qplayer.bas2.common;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free queue for exactly one producer thread and one consumer thread.<br>
+ * <p>
+ *     Elements are kept in a fixed array (capacity is rounded up to a power of two), indexed by two
+ *     ever increasing counters: the producer only writes the tail, the consumer only writes the head.
+ *     {@link #offer(Object)} never blocks - it returns false when the buffer is full, so the producer
+ *     (e.g. a network thread) is never stalled by a slow consumer.
+ * </p>
+ * <p>
+ *     The consumer may wait for elements with {@link #poll(long, TimeUnit)}, it's parked
+ *     and woken up by the next {@link #offer(Object)}.
+ * </p>
+ * <p>
+ *     Calling producer methods from more than one thread, or consumer methods from more than one thread,
+ *     breaks the buffer. {@link #size()} may be called from any thread.
+ * </p>
+ * @param <E> type of the elements
+ */
+
+public final class SpscRingBuffer<E> {
+
+    @NonNull
+    private final Object[] elements;
+    private final int mask;
+
+    //Index of the next element to read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    //Index of the next element to write, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    //Consumer parked in poll(long, TimeUnit), if any
+    @Nullable
+    private volatile Thread waiter;
+
+    /**
+     * Creates an empty buffer.
+     * @param capacity min capacity of the buffer, rounded up to a power of two
+     * @throws IllegalArgumentException if capacity is not positive or too big
+     */
+
+    public SpscRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.elements = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds element at the end of the buffer. Producer thread only.
+     * @param element element to add, cannot be null
+     * @return true if the element has been added, false if the buffer is full
+     */
+
+    public boolean offer(@NonNull E element) {
+        Objects.requireNonNull(element);
+        long t = tail.get();
+        if (t - head.get() >= elements.length)
+            return false;
+
+        elements[(int) t & mask] = element;
+        //Volatile write publishes the element and orders it before reading the waiter below
+        tail.set(t + 1);
+
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the first element. Consumer thread only.
+     * @return the first element or null if the buffer is empty
+     */
+
+    @Nullable
+    public E poll() {
+        long h = head.get();
+        if (h >= tail.get())
+            return null;
+
+        int index = (int) h & mask;
+        //noinspection unchecked
+        E element = (E) elements[index];
+        elements[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Removes and returns the first element, waiting for it if the buffer is empty. Consumer thread only.
+     * @param timeout max time to wait
+     * @param unit unit of the timeout
+     * @return the first element or null if no element has been added within the timeout
+     * @throws InterruptedException if the thread has been interrupted while waiting
+     */
+
+    @Nullable
+    public E poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null)
+            return element;
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            //Check again after publishing the waiter, the producer might have missed it
+            while ((element = poll()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            waiter = null;
+        }
+        return element;
+    }
+
+    /**
+     * Removes all elements. Consumer thread only.
+     */
+
+    public void clear() {
+        //noinspection StatementWithEmptyBody
+        while (poll() != null);
+    }
+
+    /**
+     * Returns number of elements in the buffer. May be called from any thread,
+     * the result is only a snapshot if the buffer is in use.
+     * @return number of elements
+     */
+
+    public int size() {
+        //Read head first, so the difference is never negative
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(elements.length, t - h));
+    }
+
+    /**
+     * Returns true if the buffer is empty.
+     * @return true if the buffer is empty
+     */
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns max number of elements the buffer can hold.
+     * @return capacity of the buffer
+     */
+
+    public int capacity() {
+        return elements.length;
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.fivesoft.qplayer.bas2.common;
+
+import androidx.annotation.NonNull;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free handoff of the newest value from exactly one producer thread to exactly one consumer thread.<br>
+ * <p>
+ *     The buffer owns three slots: the back one is written by the producer, the front one is read
+ *     by the consumer and the middle one holds the last published value. {@link #publish()} swaps
+ *     the back slot with the middle one, {@link #update()} swaps the middle slot with the front one
+ *     if something new has been published. Both swaps are a single atomic operation, so neither
+ *     side ever waits for the other: the producer always has a free slot to write to
+ *     (an unread value is simply overwritten) and the consumer always gets the newest complete value.
+ * </p>
+ * <p>
+ *     Slots are reused, they're typically mutable holders (e.g. of a frame and its size).
+ *     Calling producer methods from more than one thread, or consumer methods from more than one thread,
+ *     breaks the buffer.
+ * </p>
+ * @param <T> type of the slots
+ */
+
+public final class TripleBuffer<T> {
+
+    //Set in the middle index if the middle slot has been published and not taken yet
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    @NonNull
+    private final Object[] slots;
+
+    //Index of the middle slot, with FRESH flag
+    private final AtomicInteger middle = new AtomicInteger(1);
+    //Owned by the producer
+    private int back = 0;
+    //Owned by the consumer
+    private int front = 2;
+
+    /**
+     * Creates buffer of the three slots. The third one is the initial front slot.
+     * @param first first slot
+     * @param second second slot
+     * @param third third slot
+     */
+
+    public TripleBuffer(@NonNull T first, @NonNull T second, @NonNull T third) {
+        this.slots = new Object[]{
+                Objects.requireNonNull(first),
+                Objects.requireNonNull(second),
+                Objects.requireNonNull(third)
+        };
+    }
+
+    /**
+     * Returns slot the producer writes to. Producer thread only.
+     * @return the back slot
+     */
+
+    @NonNull
+    public T getBack() {
+        //noinspection unchecked
+        return (T) slots[back];
+    }
+
+    /**
+     * Publishes the back slot and gives the producer another one. Producer thread only.
+     * @return true if the previously published value hasn't been taken by the consumer and has been discarded
+     */
+
+    public boolean publish() {
+        //Volatile write publishes the contents of the slot
+        int previous = middle.getAndSet(back | FRESH);
+        back = previous & INDEX_MASK;
+        return (previous & FRESH) != 0;
+    }
+
+    /**
+     * Takes the newest published value, if there's any. Consumer thread only.
+     * @return true if the front slot has been replaced with a newly published one,
+     * false if nothing has been published since the last update
+     */
+
+    public boolean update() {
+        //Only the producer may change the middle slot meanwhile, it would stay fresh
+        if ((middle.get() & FRESH) == 0)
+            return false;
+        front = middle.getAndSet(front) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Returns slot the consumer reads from. Consumer thread only.
+     * @return the front slot
+     */
+
+    @NonNull
+    public T getFront() {
+        //noinspection unchecked
+        return (T) slots[front];
+    }
+
+    /**
+     * Returns true if a value has been published and not taken by the consumer yet. May be called from any thread.
+     * @return true if {@link #update()} would take a new value
+     */
+
+    public boolean hasUpdate() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+}
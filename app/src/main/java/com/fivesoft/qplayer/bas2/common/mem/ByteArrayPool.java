@@ -0,0 +1,154 @@
+package com.fivesoft.qplayer.bas2.common.mem;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte arrays grouped in power-of-two size classes.<br>
+ * Arrays are obtained with {@link #obtain(int)} and go back to the pool when
+ * {@link PooledByteArray#release()} is called for the last time.<br>
+ * Each size class keeps at most {@link #getMaxArraysPerClass()} free arrays, extra ones are left for GC.
+ * <p>
+ *     The pool is thread-safe.
+ * </p>
+ */
+
+public class ByteArrayPool {
+
+    /**
+     * Smallest size class. (1 KB)
+     */
+
+    public static final int MIN_CLASS_SIZE = 1024;
+
+    /**
+     * Default number of free arrays kept per size class.
+     */
+
+    public static final int DEFAULT_MAX_ARRAYS_PER_CLASS = 4;
+
+    private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+
+    //Classes up to 1 GB
+    private static final int CLASS_COUNT = 31 - MIN_CLASS_SHIFT;
+
+    private static final ByteArrayPool DEFAULT = new ByteArrayPool(DEFAULT_MAX_ARRAYS_PER_CLASS);
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<PooledByteArray>[] classes = new ArrayDeque[CLASS_COUNT];
+    private final int maxArraysPerClass;
+
+    /**
+     * Creates a new pool.
+     * @param maxArraysPerClass maximum number of free arrays kept in each size class
+     * @throws IllegalArgumentException if maxArraysPerClass is negative
+     */
+
+    public ByteArrayPool(int maxArraysPerClass) {
+        if (maxArraysPerClass < 0)
+            throw new IllegalArgumentException("maxArraysPerClass must be >= 0");
+
+        this.maxArraysPerClass = maxArraysPerClass;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns pool shared by all components of the library.
+     * @return the default pool
+     */
+
+    @NonNull
+    public static ByteArrayPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Obtains an array which is at least minSize bytes long.<br>
+     * Returned array has exactly one reference and may contain data of its previous user.
+     * @param minSize minimum size of the array
+     * @return the array
+     * @throws IllegalArgumentException if minSize is negative or too big
+     */
+
+    @NonNull
+    public PooledByteArray obtain(int minSize) {
+        int index = getClassIndex(minSize);
+        ArrayDeque<PooledByteArray> free = classes[index];
+
+        PooledByteArray array;
+        synchronized (free) {
+            array = free.pollFirst();
+        }
+
+        if (array == null) {
+            return new PooledByteArray(MIN_CLASS_SIZE << index, this);
+        }
+
+        array.recycle();
+        return array;
+    }
+
+    /**
+     * Returns size of arrays obtained by {@link #obtain(int)} for the given minimum size.
+     * @param minSize minimum size of the array
+     * @return size of the array, which would be obtained
+     * @throws IllegalArgumentException if minSize is negative or too big
+     */
+
+    public static int getClassSize(int minSize) {
+        return MIN_CLASS_SIZE << getClassIndex(minSize);
+    }
+
+    /**
+     * Returns maximum number of free arrays kept in each size class.
+     * @return maximum number of free arrays per size class
+     */
+
+    public int getMaxArraysPerClass() {
+        return maxArraysPerClass;
+    }
+
+    /**
+     * Removes all free arrays from the pool.
+     */
+
+    public void trim() {
+        for (ArrayDeque<PooledByteArray> free : classes) {
+            synchronized (free) {
+                free.clear();
+            }
+        }
+    }
+
+    void offer(@NonNull PooledByteArray array) {
+        int size = array.size();
+        //Only arrays of exact class size could come from this pool
+        if (Integer.bitCount(size) != 1 || size < MIN_CLASS_SIZE)
+            return;
+
+        ArrayDeque<PooledByteArray> free = classes[Integer.numberOfTrailingZeros(size) - MIN_CLASS_SHIFT];
+        synchronized (free) {
+            if (free.size() < maxArraysPerClass) {
+                free.offerFirst(array);
+            }
+        }
+    }
+
+    private static int getClassIndex(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Size must be >= 0");
+
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+
+        int index = 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+        if (index >= CLASS_COUNT)
+            throw new IllegalArgumentException("Size too big: " + size);
+
+        return index;
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.fivesoft.qplayer.bas2.common.mem;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Byte array obtained from {@link ByteArrayPool}.<br>
+ * <p>
+ *     The array is reference counted. It's obtained with one reference, each {@link #retain()}
+ *     adds one and each {@link #release()} removes one. When the last reference is released,
+ *     the array goes back to its pool and must not be used anymore.
+ * </p>
+ * <p>
+ *     Releasing is optional - arrays which are never released are simply garbage collected.
+ * </p>
+ */
+
+public final class PooledByteArray implements Reusable {
+
+    @NonNull
+    private final byte[] array;
+    @Nullable
+    private final ByteArrayPool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    PooledByteArray(int size, @Nullable ByteArrayPool pool) {
+        this.array = new byte[size];
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the backing array.
+     * @return the backing array
+     */
+
+    @NonNull
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * Adds one reference to the array, so it won't be returned to the pool till matching {@link #release()}.
+     * @return this array
+     * @throws IllegalStateException if the array has already been released
+     */
+
+    @NonNull
+    public PooledByteArray retain() {
+        int refs;
+        do {
+            refs = references.get();
+            if (refs <= 0)
+                throw new IllegalStateException("Array already released");
+        } while (!references.compareAndSet(refs, refs + 1));
+        return this;
+    }
+
+    /**
+     * Removes one reference from the array. When it was the last one, the array goes back to the pool.
+     * @return true if the array was returned to the pool, false otherwise
+     */
+
+    public boolean release() {
+        int refs;
+        do {
+            refs = references.get();
+            if (refs <= 0)
+                return false; //Already released
+        } while (!references.compareAndSet(refs, refs - 1));
+
+        if (refs == 1) {
+            if (pool != null) {
+                pool.offer(this);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return array.length;
+    }
+
+    @Override
+    public void recycle() {
+        references.set(1);
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Runs a row kernel over all rows of a picture, split into slices processed in parallel on a fork/join pool.
+ * Small pictures are processed on the calling thread. Tasks are reused, so running allocates nothing
+ * once the slices for the pool's parallelism exist. Not thread-safe, one picture at a time.
+ */
+
+final class ParallelRows {
+
+    interface Kernel {
+
+        //Processes rows in range [from, to)
+        void processRows(int from, int to);
+
+    }
+
+    //Slices per thread of the pool, so threads finishing early take more work
+    private static final int SLICES_PER_THREAD = 2;
+    //Smaller slices don't pay off the task overhead
+    private static final int MIN_ROWS_PER_SLICE = 16;
+
+    @Nullable
+    private final ForkJoinPool pool;
+    private final long threshold;
+
+    private Slice[] slices = new Slice[0];
+    private final Root root = new Root();
+
+    ParallelRows(@Nullable ForkJoinPool pool, long threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /*
+     * Runs the kernel over rows [0, rows). Pictures with less than threshold pixels aren't split.
+     */
+    void run(@NonNull Kernel kernel, int rows, long pixels) {
+        ForkJoinPool pool = this.pool;
+        int count = pool != null && pixels >= threshold
+                ? Math.min(pool.getParallelism() * SLICES_PER_THREAD, rows / MIN_ROWS_PER_SLICE)
+                : 1;
+        if (count < 2) {
+            kernel.processRows(0, rows);
+            return;
+        }
+
+        if (slices.length < count) {
+            Slice[] s = new Slice[count];
+            for (int i = 0; i < count; i++) {
+                s[i] = i < slices.length ? slices[i] : new Slice();
+            }
+            slices = s;
+        }
+        for (int i = 0; i < count; i++) {
+            slices[i].set(kernel, (int) ((long) i * rows / count), (int) ((long) (i + 1) * rows / count));
+        }
+        root.reinitialize();
+        root.count = count;
+        pool.invoke(root);
+    }
+
+    private static final class Slice extends RecursiveAction {
+
+        private Kernel kernel;
+        private int from, to;
+
+        void set(Kernel kernel, int from, int to) {
+            reinitialize();
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            kernel.processRows(from, to);
+        }
+
+    }
+
+    //Forks all slices but the first one, which it computes itself
+    private final class Root extends RecursiveAction {
+
+        private int count;
+
+        @Override
+        protected void compute() {
+            for (int i = 1; i < count; i++) {
+                slices[i].fork();
+            }
+            RuntimeException error = null;
+            try {
+                slices[0].compute();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            //All slices are joined, they're reused for the next picture
+            for (int i = count - 1; i > 0; i--) {
+                try {
+                    slices[i].join();
+                } catch (RuntimeException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+
+    }
+
+}
@@ -0,0 +1,261 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts YUV 4:2:0 pictures (I420, NV12, NV21) to ARGB pixels in pure Java.<br>
+ * <p>
+ *     Colors are converted with BT.601 coefficients, for video (limited) or full range YUV,
+ *     in 16.16 fixed point using lookup tables, so a pixel takes just table lookups and additions.
+ *     A part of the picture can be converted (crop).
+ * </p>
+ * <p>
+ *     Pictures are tightly packed: Y plane ({@code width * height} bytes) followed by chroma,
+ *     which has half of the resolution rounded up. I420 has U and V planes one after another,
+ *     NV12 and NV21 a single plane of interleaved U, V (NV12) or V, U (NV21) samples.
+ * </p>
+ * <p>
+ *     Pictures of at least {@code parallelThreshold} pixels are converted by rows in parallel on a fork/join pool.
+ *     Conversion allocates nothing. The converter is not thread-safe, it should convert one picture at a time.
+ * </p>
+ */
+
+public final class YuvConverter {
+
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_NV12 = 1;
+    public static final int FORMAT_NV21 = 2;
+
+    /**
+     * Default number of pixels from which pictures are converted in parallel.
+     */
+
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1280 * 720;
+
+    private static final int SHIFT = 16;
+    private static final int HALF = 1 << (SHIFT - 1);
+
+    //Converted values fall in range -277 - 534, they're clamped with a table
+    private static final int CLAMP_OFFSET = 384;
+    private static final int[] CLAMP = new int[1024];
+    //Added to chroma terms in fixed point, so table indexes are never negative
+    private static final int CLAMP_OFFSET_FIXED = CLAMP_OFFSET << SHIFT;
+
+    private static final int[][] LIMITED_RANGE_TABLES = createTables(255.0 / 219.0, 16, 255.0 / 224.0);
+    private static final int[][] FULL_RANGE_TABLES = createTables(1.0, 0, 1.0);
+
+    static {
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    @NonNull
+    private final int[] yTable, rvTable, guTable, gvTable, buTable;
+    @NonNull
+    private final ParallelRows parallelRows;
+    @NonNull
+    private final ParallelRows.Kernel kernel = this::convertRows;
+
+    //Picture being converted
+    private byte[] src;
+    private int yOffset, uOffset, vOffset;
+    private int width, chromaStride, chromaPixelStride;
+    private int cropX, cropY, cropWidth;
+    private int[] dst;
+    private int dstOffset, dstStride;
+
+    /**
+     * Creates converter.
+     * @param fullRange true if Y, U, V values use full range (0 - 255, e.g. JPEG),
+     *                  false for video range (Y 16 - 235, U, V 16 - 240)
+     * @param pool pool to convert big pictures on or null to convert on the calling thread only
+     * @param parallelThreshold number of pixels from which pictures are converted in parallel
+     */
+
+    public YuvConverter(boolean fullRange, @Nullable ForkJoinPool pool, int parallelThreshold) {
+        int[][] tables = fullRange ? FULL_RANGE_TABLES : LIMITED_RANGE_TABLES;
+        this.yTable = tables[0];
+        this.rvTable = tables[1];
+        this.guTable = tables[2];
+        this.gvTable = tables[3];
+        this.buTable = tables[4];
+        this.parallelRows = new ParallelRows(pool, parallelThreshold);
+    }
+
+    /**
+     * Creates converter of video range YUV, which converts big pictures on {@link ForkJoinPool#commonPool()}.
+     */
+
+    public YuvConverter() {
+        this(false, ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Returns size of a picture in any of the supported formats.
+     * @param width width of the picture
+     * @param height height of the picture
+     * @return size in bytes
+     */
+
+    public static int getSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Converts the whole picture.
+     * @param src the picture
+     * @param srcOffset offset of the picture in the array
+     * @param format format of the picture ({@link #FORMAT_I420}, {@link #FORMAT_NV12} or {@link #FORMAT_NV21})
+     * @param width width of the picture
+     * @param height height of the picture
+     * @param dst array receiving ARGB pixels
+     * @param dstOffset offset of the first pixel in the array
+     * @param dstStride number of pixels between starts of two rows in the array
+     * @throws IllegalArgumentException if the format is unknown or arrays are too small
+     */
+
+    public void toArgb(@NonNull byte[] src, int srcOffset, int format, int width, int height,
+                       @NonNull int[] dst, int dstOffset, int dstStride) {
+        toArgb(src, srcOffset, format, width, height, 0, 0, width, height, dst, dstOffset, dstStride);
+    }
+
+    /**
+     * Converts a part of the picture.
+     * @param src the picture
+     * @param srcOffset offset of the picture in the array
+     * @param format format of the picture ({@link #FORMAT_I420}, {@link #FORMAT_NV12} or {@link #FORMAT_NV21})
+     * @param width width of the picture
+     * @param height height of the picture
+     * @param cropX x of the converted part
+     * @param cropY y of the converted part
+     * @param cropWidth width of the converted part
+     * @param cropHeight height of the converted part
+     * @param dst array receiving ARGB pixels of the part
+     * @param dstOffset offset of the first pixel in the array
+     * @param dstStride number of pixels between starts of two rows in the array
+     * @throws IllegalArgumentException if the format is unknown, the part exceeds the picture or arrays are too small
+     */
+
+    public void toArgb(@NonNull byte[] src, int srcOffset, int format, int width, int height,
+                       int cropX, int cropY, int cropWidth, int cropHeight,
+                       @NonNull int[] dst, int dstOffset, int dstStride) {
+        Objects.requireNonNull(src);
+        Objects.requireNonNull(dst);
+        checkPicture(src, srcOffset, width, height, cropX, cropY, cropWidth, cropHeight);
+        if (dstOffset < 0 || dstStride < cropWidth
+                || dstOffset + (long) (cropHeight - 1) * dstStride + cropWidth > dst.length)
+            throw new IllegalArgumentException("Destination array too small");
+
+        int chromaWidth = (width + 1) / 2;
+        int chroma = srcOffset + width * height;
+        switch (format) {
+            case FORMAT_I420:
+                uOffset = chroma;
+                vOffset = chroma + chromaWidth * ((height + 1) / 2);
+                chromaStride = chromaWidth;
+                chromaPixelStride = 1;
+                break;
+            case FORMAT_NV12:
+                uOffset = chroma;
+                vOffset = chroma + 1;
+                chromaStride = chromaWidth * 2;
+                chromaPixelStride = 2;
+                break;
+            case FORMAT_NV21:
+                vOffset = chroma;
+                uOffset = chroma + 1;
+                chromaStride = chromaWidth * 2;
+                chromaPixelStride = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+
+        this.src = src;
+        this.yOffset = srcOffset;
+        this.width = width;
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.cropWidth = cropWidth;
+        this.dst = dst;
+        this.dstOffset = dstOffset;
+        this.dstStride = dstStride;
+        try {
+            parallelRows.run(kernel, cropHeight, (long) cropWidth * cropHeight);
+        } finally {
+            this.src = null;
+            this.dst = null;
+        }
+    }
+
+    static void checkPicture(byte[] src, int srcOffset, int width, int height,
+                             int cropX, int cropY, int cropWidth, int cropHeight) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        if (srcOffset < 0 || srcOffset + (long) getSize(width, height) > src.length)
+            throw new IllegalArgumentException("Source array too small");
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > width || cropY + cropHeight > height)
+            throw new IllegalArgumentException("Invalid crop: " + cropX + ", " + cropY + ", "
+                    + cropWidth + "x" + cropHeight);
+    }
+
+    private void convertRows(int from, int to) {
+        byte[] src = this.src;
+        int[] dst = this.dst;
+        int[] yTable = this.yTable, rvTable = this.rvTable, guTable = this.guTable,
+                gvTable = this.gvTable, buTable = this.buTable;
+        int[] clamp = CLAMP;
+        int end = cropX + cropWidth;
+
+        for (int row = from; row < to; row++) {
+            int y = cropY + row;
+            int yIndex = yOffset + y * width + cropX;
+            int chromaRow = (y >> 1) * chromaStride;
+            int out = dstOffset + row * dstStride;
+
+            int x = cropX;
+            while (x < end) {
+                //Two pixels of a row share chroma
+                int c = chromaRow + (x >> 1) * chromaPixelStride;
+                int u = src[uOffset + c] & 0xFF;
+                int v = src[vOffset + c] & 0xFF;
+                int r = rvTable[v] + CLAMP_OFFSET_FIXED;
+                int g = guTable[u] + gvTable[v] + CLAMP_OFFSET_FIXED;
+                int b = buTable[u] + CLAMP_OFFSET_FIXED;
+
+                for (int pairEnd = Math.min((x | 1) + 1, end); x < pairEnd; x++) {
+                    int l = yTable[src[yIndex++] & 0xFF];
+                    dst[out++] = 0xFF000000
+                            | clamp[(l + r) >> SHIFT] << 16
+                            | clamp[(l + g) >> SHIFT] << 8
+                            | clamp[(l + b) >> SHIFT];
+                }
+            }
+        }
+    }
+
+    /*
+     * Creates tables of Y, R(V), G(U), G(V), B(U) terms in fixed point.
+     * Y table includes rounding, Y and chroma values are scaled to full range first.
+     */
+    private static int[][] createTables(double yScale, int yOffset, double chromaScale) {
+        int[][] tables = new int[5][256];
+        for (int i = 0; i < 256; i++) {
+            double y = (i - yOffset) * yScale;
+            double c = (i - 128) * chromaScale;
+            tables[0][i] = (int) Math.round(y * (1 << SHIFT)) + HALF;
+            tables[1][i] = (int) Math.round(1.402 * c * (1 << SHIFT));
+            tables[2][i] = (int) Math.round(-0.344136 * c * (1 << SHIFT));
+            tables[3][i] = (int) Math.round(-0.714136 * c * (1 << SHIFT));
+            tables[4][i] = (int) Math.round(1.772 * c * (1 << SHIFT));
+        }
+        return tables;
+    }
+
+}
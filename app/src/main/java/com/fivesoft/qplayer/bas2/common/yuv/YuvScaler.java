@@ -0,0 +1,306 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scales and crops YUV 4:2:0 pictures (I420, NV12, NV21) in pure Java.<br>
+ * <p>
+ *     Each plane is scaled separately with one of the filters:
+ *     <ul>
+ *         <li>{@link #FILTER_BILINEAR} - interpolates the 4 nearest source samples, with 8 bit fixed point weights.
+ *         Good for upscaling and downscaling down to half of the size, smaller pictures alias.</li>
+ *         <li>{@link #FILTER_BOX} - averages all source samples an output sample covers.
+ *         Good for downscaling by any factor (e.g. thumbnails), upscales by repeating samples.</li>
+ *     </ul>
+ * </p>
+ * <p>
+ *     The output picture has the format of the source and is tightly packed, see {@link YuvConverter}.
+ *     Column positions are computed when the geometry changes, so scaling pictures of the same size
+ *     allocates nothing. Big pictures are scaled by rows in parallel on a fork/join pool.
+ *     The scaler is not thread-safe, it should scale one picture at a time.
+ * </p>
+ */
+
+public final class YuvScaler {
+
+    public static final int FILTER_BILINEAR = 0;
+    public static final int FILTER_BOX = 1;
+
+    private final int filter;
+    @NonNull
+    private final ParallelRows parallelRows;
+    @NonNull
+    private final ParallelRows.Kernel kernel = this::scaleRows;
+
+    @NonNull
+    private final Plane luma, chroma1, chroma2;
+
+    //Picture being scaled
+    private byte[] src, dst;
+    private int dstHeight, dstChromaHeight;
+
+    /**
+     * Creates scaler.
+     * @param filter {@link #FILTER_BILINEAR} or {@link #FILTER_BOX}
+     * @param pool pool to scale big pictures on or null to scale on the calling thread only
+     * @param parallelThreshold number of output pixels from which pictures are scaled in parallel
+     */
+
+    public YuvScaler(int filter, @Nullable ForkJoinPool pool, int parallelThreshold) {
+        if (filter != FILTER_BILINEAR && filter != FILTER_BOX)
+            throw new IllegalArgumentException("Unknown filter: " + filter);
+        this.filter = filter;
+        this.parallelRows = new ParallelRows(pool, parallelThreshold);
+        this.luma = new Plane(filter == FILTER_BOX);
+        this.chroma1 = new Plane(filter == FILTER_BOX);
+        this.chroma2 = new Plane(filter == FILTER_BOX);
+    }
+
+    /**
+     * Creates scaler, which scales big pictures on {@link ForkJoinPool#commonPool()}.
+     * @param filter {@link #FILTER_BILINEAR} or {@link #FILTER_BOX}
+     */
+
+    public YuvScaler(int filter) {
+        this(filter, ForkJoinPool.commonPool(), YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Scales the whole picture.
+     * @see #scale(byte[], int, int, int, int, int, int, int, int, byte[], int, int, int)
+     */
+
+    public void scale(@NonNull byte[] src, int srcOffset, int format, int width, int height,
+                      @NonNull byte[] dst, int dstOffset, int dstWidth, int dstHeight) {
+        scale(src, srcOffset, format, width, height, 0, 0, width, height, dst, dstOffset, dstWidth, dstHeight);
+    }
+
+    /**
+     * Scales a part of the picture.
+     * @param src the picture
+     * @param srcOffset offset of the picture in the array
+     * @param format format of the picture (YuvConverter.FORMAT_* constants), the output has the same format
+     * @param width width of the picture
+     * @param height height of the picture
+     * @param cropX x of the scaled part
+     * @param cropY y of the scaled part
+     * @param cropWidth width of the scaled part
+     * @param cropHeight height of the scaled part
+     * @param dst array receiving the output picture, {@link YuvConverter#getSize(int, int)} bytes
+     * @param dstOffset offset of the output picture in the array
+     * @param dstWidth width of the output picture
+     * @param dstHeight height of the output picture
+     * @throws IllegalArgumentException if the format is unknown, the part exceeds the picture or arrays are too small
+     */
+
+    public void scale(@NonNull byte[] src, int srcOffset, int format, int width, int height,
+                      int cropX, int cropY, int cropWidth, int cropHeight,
+                      @NonNull byte[] dst, int dstOffset, int dstWidth, int dstHeight) {
+        Objects.requireNonNull(src);
+        Objects.requireNonNull(dst);
+        YuvConverter.checkPicture(src, srcOffset, width, height, cropX, cropY, cropWidth, cropHeight);
+        if (dstWidth <= 0 || dstHeight <= 0)
+            throw new IllegalArgumentException("Invalid output size: " + dstWidth + "x" + dstHeight);
+        if (dstOffset < 0 || dstOffset + (long) YuvConverter.getSize(dstWidth, dstHeight) > dst.length)
+            throw new IllegalArgumentException("Destination array too small");
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int dstChromaWidth = (dstWidth + 1) / 2;
+        int dstChromaHeight = (dstHeight + 1) / 2;
+        //Chroma samples covering the cropped part
+        int chromaX = cropX >> 1;
+        int chromaY = cropY >> 1;
+        int chromaCropWidth = ((cropX + cropWidth + 1) >> 1) - chromaX;
+        int chromaCropHeight = ((cropY + cropHeight + 1) >> 1) - chromaY;
+        int srcChroma = srcOffset + width * height;
+        int dstChroma = dstOffset + dstWidth * dstHeight;
+
+        luma.set(srcOffset, width, 1, cropX, cropY, cropWidth, cropHeight,
+                dstOffset, dstWidth, 1, dstWidth, dstHeight);
+        switch (format) {
+            case YuvConverter.FORMAT_I420:
+                chroma1.set(srcChroma, chromaWidth, 1, chromaX, chromaY, chromaCropWidth, chromaCropHeight,
+                        dstChroma, dstChromaWidth, 1, dstChromaWidth, dstChromaHeight);
+                chroma2.set(srcChroma + chromaWidth * chromaHeight, chromaWidth, 1,
+                        chromaX, chromaY, chromaCropWidth, chromaCropHeight,
+                        dstChroma + dstChromaWidth * dstChromaHeight, dstChromaWidth, 1,
+                        dstChromaWidth, dstChromaHeight);
+                break;
+            case YuvConverter.FORMAT_NV12:
+            case YuvConverter.FORMAT_NV21:
+                //Interleaved samples are scaled as two planes with pixel stride 2
+                chroma1.set(srcChroma, chromaWidth * 2, 2, chromaX, chromaY, chromaCropWidth, chromaCropHeight,
+                        dstChroma, dstChromaWidth * 2, 2, dstChromaWidth, dstChromaHeight);
+                chroma2.set(srcChroma + 1, chromaWidth * 2, 2, chromaX, chromaY, chromaCropWidth, chromaCropHeight,
+                        dstChroma + 1, dstChromaWidth * 2, 2, dstChromaWidth, dstChromaHeight);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+
+        this.src = src;
+        this.dst = dst;
+        this.dstHeight = dstHeight;
+        this.dstChromaHeight = dstChromaHeight;
+        try {
+            parallelRows.run(kernel, dstHeight, (long) dstWidth * dstHeight);
+        } finally {
+            this.src = null;
+            this.dst = null;
+        }
+    }
+
+    //Scales luma rows [from, to) and the chroma rows at the same position, so slices get even work
+    private void scaleRows(int from, int to) {
+        int chromaFrom = (int) ((long) from * dstChromaHeight / dstHeight);
+        int chromaTo = (int) ((long) to * dstChromaHeight / dstHeight);
+        if (filter == FILTER_BILINEAR) {
+            for (int row = from; row < to; row++) {
+                luma.bilinearRow(src, dst, row);
+            }
+            for (int row = chromaFrom; row < chromaTo; row++) {
+                chroma1.bilinearRow(src, dst, row);
+                chroma2.bilinearRow(src, dst, row);
+            }
+        } else {
+            for (int row = from; row < to; row++) {
+                luma.boxRow(src, dst, row);
+            }
+            for (int row = chromaFrom; row < chromaTo; row++) {
+                chroma1.boxRow(src, dst, row);
+                chroma2.boxRow(src, dst, row);
+            }
+        }
+    }
+
+    /*
+     * Geometry of one plane (or one channel of an interleaved plane) and its column positions.
+     */
+
+    private static final class Plane {
+
+        private final boolean box;
+
+        private int srcOffset, srcStride, srcPixelStride;
+        private int x, y, width, height;
+        private int dstOffset, dstStride, dstPixelStride;
+        private int dstWidth, dstHeight;
+
+        //Column positions for the geometry, computed by prepare()
+        private int[] columns0 = new int[0];
+        private int[] columns1 = new int[0];
+        private int[] weights = new int[0];
+        private int preparedX = -1, preparedWidth = -1, preparedDstWidth = -1, preparedPixelStride = -1;
+
+        Plane(boolean box) {
+            this.box = box;
+        }
+
+        void set(int srcOffset, int srcStride, int srcPixelStride, int x, int y, int width, int height,
+                 int dstOffset, int dstStride, int dstPixelStride, int dstWidth, int dstHeight) {
+            this.srcOffset = srcOffset;
+            this.srcStride = srcStride;
+            this.srcPixelStride = srcPixelStride;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.dstOffset = dstOffset;
+            this.dstStride = dstStride;
+            this.dstPixelStride = dstPixelStride;
+            this.dstWidth = dstWidth;
+            this.dstHeight = dstHeight;
+            prepare();
+        }
+
+        /*
+         * Bilinear: columns0, columns1 - offsets of the two source samples in a row, weights - weight of the second one.
+         * Box: columns0 - offset of the first covered sample, columns1 - number of covered samples.
+         */
+        private void prepare() {
+            if (preparedX == x && preparedWidth == width && preparedDstWidth == dstWidth
+                    && preparedPixelStride == srcPixelStride)
+                return;
+
+            if (columns0.length < dstWidth) {
+                columns0 = new int[dstWidth];
+                columns1 = new int[dstWidth];
+                weights = new int[dstWidth];
+            }
+            for (int dx = 0; dx < dstWidth; dx++) {
+                if (box) {
+                    //Samples from the start of this output sample to the start of the next one
+                    int x0 = (int) ((long) dx * width / dstWidth);
+                    int x1 = Math.max(x0 + 1, (int) ((long) (dx + 1) * width / dstWidth));
+                    columns0[dx] = (x + x0) * srcPixelStride;
+                    columns1[dx] = x1 - x0;
+                } else {
+                    //Center of the output sample mapped to the source, in 8 bit fixed point
+                    int sx = clamp((int) (((2L * dx + 1) * width * 256) / (2L * dstWidth)) - 128, (width - 1) * 256);
+                    int x0 = sx >> 8;
+                    columns0[dx] = (x + x0) * srcPixelStride;
+                    columns1[dx] = (x + Math.min(x0 + 1, width - 1)) * srcPixelStride;
+                    weights[dx] = sx & 0xFF;
+                }
+            }
+            preparedX = x;
+            preparedWidth = width;
+            preparedDstWidth = dstWidth;
+            preparedPixelStride = srcPixelStride;
+        }
+
+        void bilinearRow(byte[] src, byte[] dst, int dy) {
+            int sy = clamp((int) (((2L * dy + 1) * height * 256) / (2L * dstHeight)) - 128, (height - 1) * 256);
+            int y0 = sy >> 8;
+            int y1 = Math.min(y0 + 1, height - 1);
+            int fy = sy & 0xFF;
+            int row0 = srcOffset + (y + y0) * srcStride;
+            int row1 = srcOffset + (y + y1) * srcStride;
+            int out = dstOffset + dy * dstStride;
+
+            int[] columns0 = this.columns0, columns1 = this.columns1, weights = this.weights;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int c0 = columns0[dx];
+                int c1 = columns1[dx];
+                int fx = weights[dx];
+                int top = (src[row0 + c0] & 0xFF) * (256 - fx) + (src[row0 + c1] & 0xFF) * fx;
+                int bottom = (src[row1 + c0] & 0xFF) * (256 - fx) + (src[row1 + c1] & 0xFF) * fx;
+                dst[out] = (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+                out += dstPixelStride;
+            }
+        }
+
+        void boxRow(byte[] src, byte[] dst, int dy) {
+            int y0 = (int) ((long) dy * height / dstHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (dy + 1) * height / dstHeight));
+            int out = dstOffset + dy * dstStride;
+            int pixelStride = srcPixelStride;
+
+            int[] columns0 = this.columns0, columns1 = this.columns1;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int count = columns1[dx];
+                int sum = 0;
+                for (int row = srcOffset + (y + y0) * srcStride + columns0[dx], rowEnd = row + (y1 - y0) * srcStride;
+                     row < rowEnd; row += srcStride) {
+                    for (int s = row, end = row + count * pixelStride; s < end; s += pixelStride) {
+                        sum += src[s] & 0xFF;
+                    }
+                }
+                count *= y1 - y0;
+                dst[out] = (byte) ((sum + count / 2) / count);
+                out += dstPixelStride;
+            }
+        }
+
+        private static int clamp(int value, int max) {
+            return value < 0 ? 0 : Math.min(value, max);
+        }
+
+    }
+
+}
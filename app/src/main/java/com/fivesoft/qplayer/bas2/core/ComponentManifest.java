@@ -2,11 +2,16 @@ package com.fivesoft.qplayer.bas2.core;
 
 import com.fivesoft.qplayer.bas2.DataSource;
 import com.fivesoft.qplayer.bas2.MediaExtractor;
+import com.fivesoft.qplayer.bas2.core.resolvers.AudioDecoderResolver;
 import com.fivesoft.qplayer.bas2.core.resolvers.DataSourceResolver;
 import com.fivesoft.qplayer.bas2.core.resolvers.MediaExtractorResolver;
 import com.fivesoft.qplayer.bas2.core.resolvers.VideoDecoderResolver;
 import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.audio.aac.AacDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.audio.g711.G711Decoder;
 import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.H264Decoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.SoftwareH264Decoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h265.H265Decoder;
 import com.fivesoft.qplayer.bas2.impl.extractor.rtsp.RtspMediaExtractor;
 import com.fivesoft.qplayer.bas2.impl.source.FileDataSource;
 import com.fivesoft.qplayer.bas2.impl.source.SocketDataSource;
@@ -42,7 +47,12 @@ class ComponentManifest {
 
         //Register decoders
         VideoDecoderResolver.getInstance()
-                .register(H264Decoder.CREATOR);
+                .registerCreator(H264Decoder.CREATOR)
+                .registerCreator(H265Decoder.CREATOR)
+                .registerCreator(SoftwareH264Decoder.CREATOR);
+        AudioDecoderResolver.getInstance()
+                .registerCreator(AacDecoder.CREATOR)
+                .registerCreator(G711Decoder.CREATOR);
     }
 
     public static void main(String[] args) {
@@ -70,6 +70,19 @@ public abstract class FrameBuilder {
     @Nullable
     public abstract Frame pull(@NonNull Sample sample) throws BufferOverflowException;
 
+    /**
+     * Returns next frame completed by the last {@link #pull(Sample)} call.<br>
+     * Single sample may complete more than one frame (e.g. when the end of a frame is detected
+     * only after next frame has arrived). {@link #pull(Sample)} returns the first one and the rest
+     * can be obtained by calling this method until it returns null.
+     * @return next ready frame or null if there is no more ready frames
+     */
+
+    @Nullable
+    public Frame poll() {
+        return null;
+    }
+
     /**
      * Returns current size of the buffer (total length of all samples).
      * @return current size of the buffer
@@ -0,0 +1,265 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent group of pictures (GOP) of a stream: frames from the last sync frame on
+ * and the last parameter sets, which are needed if the sync frame doesn't carry them.<br>
+ * <p>
+ *     A decoder attached to a running stream (e.g. after switching cameras or recreating the output)
+ *     would show nothing till the next sync frame, which may take a few seconds. With the cache it can
+ *     decode the current GOP at full speed and show its last frame immediately,
+ *     see {@code MediaCodecVideoDecoder#catchUp(List)}.
+ * </p>
+ * <p>
+ *     Frames are kept in pooled memory: pooled frames are retained without copying (unless their array
+ *     is much bigger than the frame), other frames are copied. Disposable frames are not kept,
+ *     other frames don't depend on them. Memory is limited per cache and globally for all caches.
+ *     When adding a frame would exceed a limit, the GOP is dropped and the cache stays empty till the next
+ *     sync frame.
+ * </p>
+ * <p>
+ *     The cache is thread-safe. Frames should be added in decoding order, before they're passed to the decoder
+ *     (which releases them).
+ * </p>
+ */
+
+public class GopCache {
+
+    /**
+     * Default memory limit of a single cache.
+     */
+
+    public static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024; // 8MB
+
+    /**
+     * Default memory limit of all caches together.
+     */
+
+    public static final long DEFAULT_MAX_TOTAL_SIZE = 32 * 1024 * 1024; // 32MB
+
+    //Standalone parameter sets are kept, but not too many
+    private static final int MAX_CONFIG_FRAMES = 4;
+
+    private static final AtomicLong totalSize = new AtomicLong();
+    private static volatile long maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+
+    private final long maxSize;
+    @NonNull
+    private final ByteArrayPool pool;
+
+    private final ArrayList<Frame> frames = new ArrayList<>();
+    //Last config frames, they precede GOPs starting with sync frames without parameter sets
+    private final ArrayList<Frame> config = new ArrayList<>();
+    private boolean hasSyncFrame;
+    private long size;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache with the specified memory limit.
+     * @param maxSize Max size of memory held by the cache in bytes.
+     * @param pool Pool to obtain memory for copied frames from.
+     */
+
+    public GopCache(long maxSize, @NonNull ByteArrayPool pool) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Max size must be positive");
+
+        this.maxSize = maxSize;
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    /**
+     * Creates a cache with {@link #DEFAULT_MAX_SIZE} limit, which uses {@link ByteArrayPool#getDefault()} pool.
+     */
+
+    public GopCache() {
+        this(DEFAULT_MAX_SIZE, ByteArrayPool.getDefault());
+    }
+
+    /**
+     * Sets memory limit of all caches together. (by default {@link #DEFAULT_MAX_TOTAL_SIZE})
+     * @param maxSize Max size of memory held by all caches in bytes.
+     */
+
+    public static void setMaxTotalSize(long maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Max size must be positive");
+
+        maxTotalSize = maxSize;
+    }
+
+    /**
+     * Returns size of memory held by all caches.
+     * @return size in bytes
+     */
+
+    public static long getTotalSize() {
+        return totalSize.get();
+    }
+
+    /**
+     * Adds a frame to the cache. Sync frame starts a new GOP. The frame is not released by the cache,
+     * it stays owned by the caller.
+     * @param frame frame to add
+     */
+
+    public synchronized void add(@NonNull Frame frame) {
+        Objects.requireNonNull(frame);
+
+        if (frame.frameType == Frame.CONFIG_FRAME) {
+            //Kept aside as well, the next GOP may come without parameter sets
+            if (config.size() >= MAX_CONFIG_FRAMES) {
+                release(config.remove(0));
+            }
+            Frame copy = keep(frame);
+            if (copy != null) {
+                config.add(copy);
+            }
+            if (!hasSyncFrame) {
+                return;
+            }
+        } else if (frame.frameType == Frame.SYNC_FRAME) {
+            releaseFrames(frames);
+            hasSyncFrame = true;
+        } else if (!hasSyncFrame || frame.isDisposable()) {
+            //Can't be decoded without the sync frame or nothing depends on it
+            return;
+        }
+
+        Frame copy = keep(frame);
+        if (copy == null) {
+            //Limit exceeded, wait for the next GOP
+            releaseFrames(frames);
+            hasSyncFrame = false;
+            return;
+        }
+        frames.add(copy);
+    }
+
+    /**
+     * Returns frames of the current GOP in decoding order. Frames are retained,
+     * the caller has to release each of them (passing them to a decoder does that).<br>
+     * Calls are counted as hits or misses (see {@link #getHits()}, {@link #getMisses()}).
+     * @return frames of the current GOP or empty list if no complete GOP is cached
+     */
+
+    @NonNull
+    public synchronized List<Frame> snapshot() {
+        if (!hasSyncFrame || frames.isEmpty()) {
+            misses++;
+            return new ArrayList<>(0);
+        }
+
+        hits++;
+        ArrayList<Frame> snapshot = new ArrayList<>(config.size() + frames.size());
+        if (!frames.get(0).hasFlag(Frame.FLAG_HAS_CONFIG)) {
+            for (Frame frame : config) {
+                snapshot.add(frame.retain());
+            }
+        }
+        for (Frame frame : frames) {
+            snapshot.add(frame.retain());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Removes all frames (including parameter sets) from the cache. The cache stays empty till the next sync frame.
+     */
+
+    public synchronized void clear() {
+        releaseFrames(frames);
+        releaseFrames(config);
+        hasSyncFrame = false;
+    }
+
+    /**
+     * Returns number of cached frames.
+     * @return number of frames of the current GOP
+     */
+
+    public synchronized int getFrameCount() {
+        return hasSyncFrame ? frames.size() : 0;
+    }
+
+    /**
+     * Returns size of memory held by this cache.
+     * @return size in bytes
+     */
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns number of {@link #snapshot()} calls, which returned a GOP.
+     * @return number of hits
+     */
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns number of {@link #snapshot()} calls, which returned nothing.
+     * @return number of misses
+     */
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //Returns frame sharing or copying memory of the given one, null if memory limit would be exceeded
+    private Frame keep(Frame frame) {
+        int length = frame.getLength();
+        int pooled = frame.getPooledMemorySize();
+        //Frames assembled in big arrays are copied, so small frames don't hold big arrays
+        boolean share = pooled > 0 && pooled <= length * 2L;
+        long memory = share ? pooled : ByteArrayPool.getClassSize(length);
+
+        if (size + memory > maxSize || totalSize.get() + memory > maxTotalSize)
+            return null;
+
+        Frame kept;
+        if (share) {
+            kept = frame.retain();
+        } else {
+            PooledByteArray copy = pool.obtain(length);
+            memory = copy.size();
+            System.arraycopy(frame.getArray(), frame.getOffset(), copy.array(), 0, length);
+            kept = new Frame(copy, 0, length, frame.timestamp, frame.track, frame.frameType, frame.flags);
+            kept.marker = frame.marker;
+        }
+
+        size += memory;
+        totalSize.addAndGet(memory);
+        return kept;
+    }
+
+    private void release(Frame frame) {
+        int pooled = frame.getPooledMemorySize();
+        size -= pooled;
+        totalSize.addAndGet(-pooled);
+        frame.release();
+    }
+
+    private void releaseFrames(List<Frame> frames) {
+        for (Frame frame : frames) {
+            release(frame);
+        }
+        frames.clear();
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.common.LatencyHistogram;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stage in front of a decoder, which drops frames when the decoder can't keep up.<br>
+ * <p>
+ *     Before each frame is decoded, the {@link LoadSheddingPolicy} evaluates the pressure from the depth
+ *     of the decoder queue and the average decode latency (reported with {@link #onDecoded(long)}).
+ *     Under pressure non-reference frames are dropped first. When a reference frame has to be dropped,
+ *     all frames are dropped till the next key frame, as they couldn't be decoded correctly anyway.
+ * </p>
+ * <p>
+ *     Frames carrying codec configuration (e.g. SPS/PPS), sync frames and recovery points are never dropped.
+ *     The first frame passed after a dropped reference frame gets {@link Frame#FLAG_DISCONTINUITY},
+ *     so the decoder knows its references are missing.
+ * </p>
+ * <p>
+ *     {@link #accept(Frame, int, int)} and {@link #onDecoded(long)} must be called from the decoding thread,
+ *     {@link #onRejected(Frame)} from the thread queueing frames. Counters may be read from any thread.
+ * </p>
+ */
+
+public class LoadShedder {
+
+    @NonNull
+    private volatile LoadSheddingPolicy policy;
+
+    //Decoding thread state
+    private boolean skipping;
+    private boolean discontinuity;
+    private long latencyUs = -1;
+
+    //Set by the queueing thread when a reference frame didn't fit in the queue
+    private final AtomicBoolean referenceRejected = new AtomicBoolean();
+
+    //Each counter has a single writer
+    private volatile int level;
+    private volatile long decodeLatencyUs;
+    private volatile long acceptedFrames;
+    private volatile long droppedNonReference;
+    private volatile long droppedSkipping;
+    private volatile long keyFrameSkips;
+    private volatile long rejectedFrames;
+
+    //Decode time of each frame in microseconds
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+
+    /**
+     * Creates shedder.
+     * @param policy the policy
+     */
+
+    public LoadShedder(@NonNull LoadSheddingPolicy policy) {
+        this.policy = Objects.requireNonNull(policy);
+    }
+
+    /**
+     * Changes the policy. May be called from any thread.
+     * @param policy the policy
+     */
+
+    public void setPolicy(@NonNull LoadSheddingPolicy policy) {
+        this.policy = Objects.requireNonNull(policy);
+    }
+
+    @NonNull
+    public LoadSheddingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Decides if the frame should be decoded. Dropped frames are not released,
+     * it's up to the caller.
+     * @param frame the frame, about to be decoded
+     * @param queueDepth number of items waiting for the decoder
+     * @param queueCapacity max number of items waiting for the decoder
+     * @return true if the frame should be decoded, false if it should be dropped
+     */
+
+    public boolean accept(@NonNull Frame frame, int queueDepth, int queueCapacity) {
+        if (referenceRejected.getAndSet(false)) {
+            startSkipping();
+        }
+
+        int level = policy.getLevel(queueDepth, queueCapacity, Math.max(0, latencyUs));
+        this.level = level;
+
+        boolean critical = frame.frameType == Frame.CONFIG_FRAME || frame.hasFlag(Frame.FLAG_HAS_CONFIG);
+        boolean keyFrame = frame.frameType == Frame.SYNC_FRAME || frame.hasFlag(Frame.FLAG_RECOVERY_POINT);
+
+        if (keyFrame) {
+            if (skipping) {
+                //Codec has drained while skipping, latency measured before doesn't apply anymore
+                skipping = false;
+                latencyUs = -1;
+            }
+        } else if (!critical) {
+            if (!skipping && level >= LoadSheddingPolicy.LEVEL_SKIP_TO_KEY_FRAME && !frame.isDisposable()) {
+                startSkipping();
+            }
+
+            if (skipping) {
+                //noinspection NonAtomicOperationOnVolatileField
+                droppedSkipping++;
+                return false;
+            }
+
+            if (level >= LoadSheddingPolicy.LEVEL_DROP_NON_REFERENCE && frame.isDisposable()) {
+                //noinspection NonAtomicOperationOnVolatileField
+                droppedNonReference++;
+                return false;
+            }
+        }
+
+        if (discontinuity || skipping) {
+            //Configuration passed while skipping must not be decoded as a picture either
+            discontinuity = false;
+            frame.flags |= Frame.FLAG_DISCONTINUITY;
+        }
+
+        //noinspection NonAtomicOperationOnVolatileField
+        acceptedFrames++;
+        return true;
+    }
+
+    /**
+     * Reports time the decoder took to accept the last frame passed by {@link #accept(Frame, int, int)}.
+     * @param decodeTimeNanos decode time in nanoseconds
+     */
+
+    public void onDecoded(long decodeTimeNanos) {
+        long us = TimeUnit.NANOSECONDS.toMicros(Math.max(0, decodeTimeNanos));
+        //Exponential moving average
+        latencyUs = latencyUs < 0 ? us : latencyUs + (us - latencyUs) / 8;
+        decodeLatencyUs = latencyUs;
+        decodeTimes.record(us);
+    }
+
+    /**
+     * Reports frame, which couldn't be queued for the decoder, because the queue was full.
+     * If it was a reference frame, following frames are dropped till the next key frame.
+     * @param frame the frame
+     */
+
+    public void onRejected(@NonNull Frame frame) {
+        //noinspection NonAtomicOperationOnVolatileField
+        rejectedFrames++;
+        if (!frame.isDisposable() && frame.frameType != Frame.CONFIG_FRAME) {
+            referenceRejected.set(true);
+        }
+    }
+
+    private void startSkipping() {
+        if (!skipping) {
+            skipping = true;
+            //noinspection NonAtomicOperationOnVolatileField
+            keyFrameSkips++;
+        }
+        discontinuity = true;
+    }
+
+    /**
+     * Returns shedding level evaluated for the last frame.
+     * @return one of {@link LoadSheddingPolicy} LEVEL_* constants
+     */
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns average time the decoder takes to accept a frame.
+     * @return latency in microseconds
+     */
+
+    public long getDecodeLatencyUs() {
+        return decodeLatencyUs;
+    }
+
+    /**
+     * Returns histogram of times the decoder took to accept each frame, in microseconds.
+     * Unlike {@link #getDecodeLatencyUs()} it shows outliers, e.g. p99 decode time.
+     * @return snapshot of the decode times
+     */
+
+    @NonNull
+    public LatencyHistogram.Snapshot getDecodeTimes() {
+        return decodeTimes.snapshot();
+    }
+
+    /**
+     * Returns number of frames passed to the decoder.
+     * @return number of frames
+     */
+
+    public long getAcceptedFrames() {
+        return acceptedFrames;
+    }
+
+    /**
+     * Returns number of non-reference frames dropped under pressure.
+     * @return number of frames
+     */
+
+    public long getDroppedNonReference() {
+        return droppedNonReference;
+    }
+
+    /**
+     * Returns number of frames dropped while skipping to the next key frame.
+     * @return number of frames
+     */
+
+    public long getDroppedSkipping() {
+        return droppedSkipping;
+    }
+
+    /**
+     * Returns number of times frames have been skipped to the next key frame.
+     * @return number of skips
+     */
+
+    public long getKeyFrameSkips() {
+        return keyFrameSkips;
+    }
+
+    /**
+     * Returns number of frames lost, because the decoder queue was full.
+     * @return number of frames
+     */
+
+    public long getRejectedFrames() {
+        return rejectedFrames;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how hard frames waiting for a decoder should be shed, when the decoder can't keep up.<br>
+ * <p>
+ *     The policy only evaluates the pressure, frames are dropped by {@link LoadShedder}, which never drops
+ *     codec configuration (e.g. SPS/PPS), sync frames and recovery points, whatever the level.
+ * </p>
+ * <p>
+ *     Implementations must be thread-safe and fast, they are called before each decoded frame.
+ * </p>
+ * @see ThresholdLoadSheddingPolicy
+ */
+
+public interface LoadSheddingPolicy {
+
+    /**
+     * All frames are decoded.
+     */
+
+    int LEVEL_NONE = 0;
+
+    /**
+     * Frames no other frame refers to (see {@link com.fivesoft.qplayer.bas2.Frame#isDisposable()}) are dropped.
+     */
+
+    int LEVEL_DROP_NON_REFERENCE = 1;
+
+    /**
+     * All frames are dropped till the next key frame.
+     */
+
+    int LEVEL_SKIP_TO_KEY_FRAME = 2;
+
+    /**
+     * Policy for live streams: sheds non-reference frames when a quarter of the queue is filled
+     * or decoding slows down, skips to the next key frame when half of the queue is filled
+     * or the codec is heavily behind.
+     */
+
+    LoadSheddingPolicy LIVE_LOW_LATENCY = new ThresholdLoadSheddingPolicy(0.25f, 0.5f,
+            TimeUnit.MILLISECONDS.toMicros(20), TimeUnit.MILLISECONDS.toMicros(80));
+
+    /**
+     * Policy which never drops frames, e.g. for recording. Frames are still lost
+     * if the queue of the decoder overflows.
+     */
+
+    LoadSheddingPolicy NEVER_DROP = (queueDepth, queueCapacity, decodeLatencyUs) -> LEVEL_NONE;
+
+    /**
+     * Returns shedding level for the current state of the decoder.
+     * @param queueDepth number of items waiting for the decoder
+     * @param queueCapacity max number of items waiting for the decoder
+     * @param decodeLatencyUs average time the decoder takes to accept a frame in microseconds
+     * @return one of LEVEL_* constants
+     */
+
+    int getLevel(int queueDepth, int queueCapacity, long decodeLatencyUs);
+
+}
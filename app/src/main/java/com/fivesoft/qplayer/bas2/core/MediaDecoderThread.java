@@ -3,29 +3,56 @@ package com.fivesoft.qplayer.bas2.core;
 import androidx.annotation.NonNull;
 
 import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.common.SpscRingBuffer;
 import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
 
-import java.io.InterruptedIOException;
 import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread decoding frames passed with {@link #feed(Frame)}.<br>
+ * Frames are queued in a bounded {@link SpscRingBuffer}, so {@link #feed(Frame)} must be called
+ * from one thread only. It never blocks, if the decoder can't keep up, the frame is rejected.
+ * Before the queue overflows, frames are shed by {@link LoadShedder} according to its policy.
+ */
 
 public abstract class MediaDecoderThread extends Thread {
 
-    private final BlockingQueue<Frame> frameQueue = new ArrayBlockingQueue<>(10);
+    private static final int QUEUE_CAPACITY = 16;
+
+    private final SpscRingBuffer<Frame> frameQueue = new SpscRingBuffer<>(QUEUE_CAPACITY);
 
     private final MediaDecoder<?, ?> decoder;
 
+    @NonNull
+    private final LoadShedder loadShedder;
+
     public MediaDecoderThread(@NonNull MediaDecoder<?, ?> decoder) {
+        this(decoder, LoadSheddingPolicy.LIVE_LOW_LATENCY);
+    }
+
+    public MediaDecoderThread(@NonNull MediaDecoder<?, ?> decoder, @NonNull LoadSheddingPolicy policy) {
         this.decoder = Objects.requireNonNull(decoder);
+        this.loadShedder = new LoadShedder(policy);
     }
 
     @Override
     public void run() {
 
+        Frame frame;
         while (!isInterrupted()) {
             try {
-                decoder.decode(frameQueue.take());
+                frame = frameQueue.poll(1, TimeUnit.SECONDS);
+                if (frame == null)
+                    continue;
+
+                if (loadShedder.accept(frame, frameQueue.size(), frameQueue.capacity())) {
+                    long start = System.nanoTime();
+                    decoder.decode(frame);
+                    loadShedder.onDecoded(System.nanoTime() - start);
+                } else {
+                    frame.release();
+                }
             } catch (InterruptedException e) {
                 onThreadInterrupted(decoder);
                 break;
@@ -37,8 +64,27 @@ public abstract class MediaDecoderThread extends Thread {
 
     }
 
+    /**
+     * Queues the frame for decoding. Must be called from one thread only.
+     * @param frame frame to decode
+     * @return true if the frame has been queued, false if the queue is full
+     */
+
     public boolean feed(@NonNull Frame frame) {
-        return frameQueue.offer(frame);
+        if (frameQueue.offer(frame))
+            return true;
+        loadShedder.onRejected(frame);
+        return false;
+    }
+
+    /**
+     * Returns the stage shedding frames of this thread, with its statistics.
+     * @return the load shedder
+     */
+
+    @NonNull
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
     }
 
     public abstract void onThreadInterrupted(@NonNull MediaDecoder<?, ?> decoder);
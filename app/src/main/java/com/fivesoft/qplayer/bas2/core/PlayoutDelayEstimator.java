@@ -0,0 +1,273 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns how long samples of a live stream have to be delayed, so late ones still come in time.<br>
+ * <p>
+ *     Each arrival is compared with its timestamp: the transit time (arrival minus timestamp, with an unknown
+ *     constant offset) grows when a sample is held up by the network. Relative to the fastest sample of the last
+ *     {@link #WINDOW_NANOS}, it's the delay the sample needed. The target delay is the configured percentile
+ *     of these delays plus a margin (e.g. for decoding time), so that share of samples is in time.
+ *     Until the window has enough samples, the percentile is estimated from the variance of the frame
+ *     intervals (arrival interval minus timestamp interval), assuming it's normal. The interarrival jitter
+ *     of RFC 3550 (section 6.4.1) is estimated as well, for statistics.
+ * </p>
+ * <p>
+ *     The delay follows a growing target right away, late samples would be lost otherwise. It follows a falling
+ *     target slowly, at most {@link #SHRINK_US_PER_SECOND} per second, so playback catches up unnoticeably
+ *     when the network calms down. It stays within the limits ({@link #setLimits(long, long)}).
+ * </p>
+ * <p>
+ *     Samples with equal timestamps (parts of one frame) count once. A jump of timestamps (source restart)
+ *     starts the statistics over, the learned delay is kept. The estimator is not thread-safe.
+ * </p>
+ */
+
+public final class PlayoutDelayEstimator {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final long DEFAULT_MARGIN_US = TimeUnit.MILLISECONDS.toMicros(20);
+    public static final long DEFAULT_MIN_DELAY_US = StreamPresentationClock.DEFAULT_DELAY_US;
+    public static final long DEFAULT_MAX_DELAY_US = TimeUnit.SECONDS.toMicros(1);
+
+    /**
+     * Transit times are compared over this period.
+     */
+
+    public static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Max rate the delay falls at.
+     */
+
+    public static final long SHRINK_US_PER_SECOND = TimeUnit.MILLISECONDS.toMicros(20);
+
+    //Max number of samples in the window, older ones are forgotten earlier at high frame rates
+    private static final int MAX_SAMPLES = 1024;
+    //Below this number of samples in the window the percentile is estimated from the variance
+    private static final int MIN_SAMPLES = 32;
+    //The target is computed at most this often, the delay falls in steps of this period
+    private static final long UPDATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    //Timestamp differences bigger than this are treated as discontinuities
+    private static final long MAX_TIMESTAMP_JUMP_US = TimeUnit.SECONDS.toMicros(5);
+    //Weight of a new value in the jitter and variance estimates is 1 / SMOOTHING, as in RFC 3550
+    private static final int SMOOTHING = 16;
+
+    private final double percentile;
+    private final double percentileZ;
+    private final long marginUs;
+    private long minDelayUs = DEFAULT_MIN_DELAY_US;
+    private long maxDelayUs = DEFAULT_MAX_DELAY_US;
+    private long delayUs = DEFAULT_MIN_DELAY_US;
+
+    //Window of transit times with their arrival times, a ring
+    private final long[] transits = new long[MAX_SAMPLES];
+    private final long[] arrivals = new long[MAX_SAMPLES];
+    private final long[] sorted = new long[MAX_SAMPLES];
+    private int head;
+    private int count;
+
+    private boolean started;
+    private long lastTimeUs;
+    private long lastTransitUs;
+    //Jitter scaled by SMOOTHING, as computed in RFC 3550 appendix A.8
+    private long scaledJitterUs;
+    //Variance of the frame intervals around the timestamp intervals, in microseconds squared
+    private double intervalVariance;
+    private long lastUpdateNanos;
+
+    /**
+     * Creates estimator with {@link #DEFAULT_PERCENTILE} and {@link #DEFAULT_MARGIN_US}.
+     */
+
+    public PlayoutDelayEstimator() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MARGIN_US);
+    }
+
+    /**
+     * Creates estimator.
+     * @param percentile percentage of samples which should come in time, 50 - 99.9
+     * @param marginUs delay added to the percentile in microseconds
+     * @throws IllegalArgumentException if the percentile is out of range or the margin is negative
+     */
+
+    public PlayoutDelayEstimator(double percentile, long marginUs) {
+        if (!(percentile >= 50 && percentile <= 99.9))
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        if (marginUs < 0)
+            throw new IllegalArgumentException("Invalid margin: " + marginUs);
+        this.percentile = percentile;
+        this.percentileZ = inverseNormal(percentile / 100);
+        this.marginUs = marginUs;
+    }
+
+    /**
+     * Sets the limits of the delay. The delay is clamped to them right away.
+     * Equal limits make the delay fixed.
+     * @param minDelayUs min delay in microseconds
+     * @param maxDelayUs max delay in microseconds
+     * @throws IllegalArgumentException if min is negative or greater than max
+     */
+
+    public void setLimits(long minDelayUs, long maxDelayUs) {
+        if (minDelayUs < 0 || minDelayUs > maxDelayUs)
+            throw new IllegalArgumentException("Invalid limits: " + minDelayUs + " - " + maxDelayUs);
+        this.minDelayUs = minDelayUs;
+        this.maxDelayUs = maxDelayUs;
+        this.delayUs = clamp(delayUs);
+    }
+
+    public long getMinDelayUs() {
+        return minDelayUs;
+    }
+
+    public long getMaxDelayUs() {
+        return maxDelayUs;
+    }
+
+    /**
+     * Sets the delay, e.g. learned before for the same source, to start with.
+     * @param delayUs delay in microseconds, clamped to the limits
+     */
+
+    public void setDelayUs(long delayUs) {
+        this.delayUs = clamp(delayUs);
+    }
+
+    /**
+     * Returns the delay samples should be played with.
+     * @return delay in microseconds
+     */
+
+    public long getDelayUs() {
+        return delayUs;
+    }
+
+    /**
+     * Returns the interarrival jitter as defined by RFC 3550.
+     * @return mean deviation of the transit times of consecutive samples in microseconds
+     */
+
+    public long getJitterUs() {
+        return scaledJitterUs / SMOOTHING;
+    }
+
+    /**
+     * Returns the standard deviation of the frame intervals (arrival interval minus timestamp interval).
+     * @return deviation in microseconds
+     */
+
+    public long getIntervalDeviationUs() {
+        return (long) Math.sqrt(intervalVariance);
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public long getMarginUs() {
+        return marginUs;
+    }
+
+    /**
+     * Adds arrival of a sample and updates the delay.
+     * @param presentationTimeUs timestamp of the sample in microseconds
+     * @param arrivalNanos time the sample has arrived at in nanoseconds
+     */
+
+    public void onArrival(long presentationTimeUs, long arrivalNanos) {
+        long transitUs = TimeUnit.NANOSECONDS.toMicros(arrivalNanos) - presentationTimeUs;
+        if (!started || Math.abs(presentationTimeUs - lastTimeUs) > MAX_TIMESTAMP_JUMP_US) {
+            //Transit times of the old timestamps can't be compared with the new ones
+            reset();
+            started = true;
+            lastTimeUs = presentationTimeUs;
+            lastTransitUs = transitUs;
+            lastUpdateNanos = arrivalNanos;
+            add(transitUs, arrivalNanos);
+            return;
+        }
+        if (presentationTimeUs == lastTimeUs)
+            return;
+
+        //Frame interval minus timestamp interval, D(i-1, i) of RFC 3550
+        long d = transitUs - lastTransitUs;
+        lastTimeUs = presentationTimeUs;
+        lastTransitUs = transitUs;
+        scaledJitterUs += Math.abs(d) - (scaledJitterUs + SMOOTHING / 2) / SMOOTHING;
+        intervalVariance += ((double) d * d - intervalVariance) / SMOOTHING;
+        add(transitUs, arrivalNanos);
+
+        long elapsed = arrivalNanos - lastUpdateNanos;
+        if (elapsed < UPDATE_INTERVAL_NANOS)
+            return;
+        lastUpdateNanos = arrivalNanos;
+
+        long targetUs = clamp(estimatePercentileUs(arrivalNanos) + marginUs);
+        if (targetUs >= delayUs) {
+            delayUs = targetUs;
+        } else {
+            long shrinkUs = TimeUnit.NANOSECONDS.toMicros(elapsed) * SHRINK_US_PER_SECOND / TimeUnit.SECONDS.toMicros(1);
+            delayUs = Math.max(targetUs, delayUs - Math.max(1, shrinkUs));
+        }
+    }
+
+    /**
+     * Forgets the statistics, the delay is kept.
+     */
+
+    public void reset() {
+        started = false;
+        head = 0;
+        count = 0;
+        scaledJitterUs = 0;
+        intervalVariance = 0;
+    }
+
+    private void add(long transitUs, long arrivalNanos) {
+        transits[head] = transitUs;
+        arrivals[head] = arrivalNanos;
+        head = (head + 1) % MAX_SAMPLES;
+        if (count < MAX_SAMPLES) {
+            count++;
+        }
+    }
+
+    //Percentile of the transit times of the window, relative to the smallest one
+    private long estimatePercentileUs(long now) {
+        int n = 0;
+        for (int i = 0, index = head; i < count; i++) {
+            index = (index == 0 ? MAX_SAMPLES : index) - 1;
+            if (now - arrivals[index] > WINDOW_NANOS)
+                break;
+            sorted[n++] = transits[index];
+        }
+
+        if (n < MIN_SAMPLES) {
+            //Transit times deviate by 1 / sqrt(2) of their differences, the smallest one is about
+            //2 deviations below the mean
+            double deviation = Math.sqrt(intervalVariance / 2);
+            return (long) ((percentileZ + 2) * deviation);
+        }
+
+        Arrays.sort(sorted, 0, n);
+        int index = (int) Math.ceil(percentile / 100 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))] - sorted[0];
+    }
+
+    private long clamp(long delayUs) {
+        return Math.max(minDelayUs, Math.min(maxDelayUs, delayUs));
+    }
+
+    //Quantile of the standard normal distribution, Abramowitz and Stegun 26.2.23 (error below 0.00045)
+    private static double inverseNormal(double p) {
+        double q = p < 0.5 ? p : 1 - p;
+        double t = Math.sqrt(-2 * Math.log(q));
+        double z = t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+                / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+        return p < 0.5 ? -z : z;
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps presentation timestamps of a stream to times frames should be shown at.<br>
+ * Times are in the {@link System#nanoTime()} time base (as expected by
+ * {@link android.media.MediaCodec#releaseOutputBuffer(int, long)}), unless the clock is virtual,
+ * e.g. in tests, where {@link #nanoTime()} may return any time and advance at will.
+ * @see StreamPresentationClock
+ * @see SyncClock#getPresentationClock(com.fivesoft.qplayer.track.Track)
+ */
+
+public interface PresentationClock {
+
+    /**
+     * Default of {@link #getMaxLatenessNanos()}.
+     */
+
+    long DEFAULT_MAX_LATENESS_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Returns current time of the clock.
+     * @return current time in nanoseconds
+     */
+
+    long nanoTime();
+
+    /**
+     * Returns time a frame with the given presentation timestamp should be shown at.
+     * The result may be in the past if the frame is late.
+     * @param presentationTimeUs presentation timestamp of the frame in microseconds
+     * @return time in nanoseconds, in the time base of {@link #nanoTime()}
+     */
+
+    long getRenderTimeNanos(long presentationTimeUs);
+
+    /**
+     * Returns how late a frame may be to be still shown, later frames are dropped.
+     * @return max lateness in nanoseconds
+     */
+
+    default long getMaxLatenessNanos() {
+        return DEFAULT_MAX_LATENESS_NANOS;
+    }
+
+    /**
+     * Forgets the mapping of timestamps, the next frame is scheduled as if it was the first one.
+     * Called after seeking, flushing or any other discontinuity.
+     */
+
+    void reset();
+
+}
@@ -0,0 +1,107 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link PresentationClock} following the timestamps of a live stream.<br>
+ * <p>
+ *     The first frame is anchored to the current time plus a small delay, which absorbs jitter
+ *     of decoding time. The following frames are shown at the anchor time plus the difference
+ *     of their timestamps, so pacing follows the stream time, not the arrival of data.
+ * </p>
+ * <p>
+ *     Frames with timestamps not greater than the previous one are shown immediately.
+ *     The clock re-anchors (starts over from the current frame) when the timestamps jump
+ *     (wrap-around, source restart), when a frame is scheduled too far ahead or when frames
+ *     come too late, e.g. after a network stall, so a lasting delay is not accumulated.
+ * </p>
+ * <p>
+ *     Time is read from the given source, {@link System#nanoTime()} by default.
+ *     A virtual source makes pacing testable without waiting. The clock is thread-safe.
+ * </p>
+ */
+
+public class StreamPresentationClock implements PresentationClock {
+
+    /**
+     * Default delay of the first frame after anchoring.
+     */
+
+    public static final long DEFAULT_DELAY_US = TimeUnit.MILLISECONDS.toMicros(30);
+
+    //Timestamp differences bigger than this are treated as discontinuities
+    private static final long MAX_TIMESTAMP_JUMP_US = TimeUnit.SECONDS.toMicros(5);
+    //Frames scheduled further ahead than this mean the stream runs faster than real time
+    private static final long MAX_EARLY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    //Frames later than this mean the stream has stalled, continue from now
+    private static final long MAX_LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @NonNull
+    private final LongSupplier timeSource;
+    private final long delayNanos;
+
+    private boolean anchored;
+    private long anchorNanos;
+    private long anchorTimeUs;
+    private long lastTimeUs;
+
+    /**
+     * Creates a clock reading time from the given source.
+     * @param timeSource source of current time in nanoseconds
+     * @param delayUs delay of the first frame after anchoring in microseconds
+     */
+
+    public StreamPresentationClock(@NonNull LongSupplier timeSource, long delayUs) {
+        this.timeSource = Objects.requireNonNull(timeSource);
+        this.delayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, delayUs));
+    }
+
+    /**
+     * Creates a clock based on {@link System#nanoTime()} with {@link #DEFAULT_DELAY_US} delay.
+     */
+
+    public StreamPresentationClock() {
+        this(System::nanoTime, DEFAULT_DELAY_US);
+    }
+
+    @Override
+    public long nanoTime() {
+        return timeSource.getAsLong();
+    }
+
+    @Override
+    public synchronized long getRenderTimeNanos(long presentationTimeUs) {
+        long now = timeSource.getAsLong();
+
+        if (!anchored || Math.abs(presentationTimeUs - lastTimeUs) > MAX_TIMESTAMP_JUMP_US) {
+            anchor(now, presentationTimeUs);
+        } else if (presentationTimeUs <= lastTimeUs) {
+            //Frames come in presentation order, not increasing timestamp carries no timing, show it now
+            return now;
+        }
+        lastTimeUs = presentationTimeUs;
+
+        long renderTime = anchorNanos + TimeUnit.MICROSECONDS.toNanos(presentationTimeUs - anchorTimeUs);
+        if (renderTime - now > MAX_EARLY_NANOS || now - renderTime > MAX_LATE_NANOS) {
+            anchor(now, presentationTimeUs);
+            renderTime = anchorNanos;
+        }
+        return renderTime;
+    }
+
+    @Override
+    public synchronized void reset() {
+        anchored = false;
+    }
+
+    private void anchor(long now, long presentationTimeUs) {
+        anchored = true;
+        anchorNanos = now + delayNanos;
+        anchorTimeUs = presentationTimeUs;
+    }
+
+}
@@ -0,0 +1,632 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+import com.fivesoft.qplayer.track.Track;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Common clock of all tracks of a stream, which keeps audio and video in sync.<br>
+ * <p>
+ *     Timestamps of every track have their own arbitrary origin. They are mapped to a common timeline:
+ *     by RTCP sender reports, which pair timestamps of a track with the wall clock of the sender
+ *     ({@link #onSenderReport(Track, long, long)}), when the reference track (the first one seen)
+ *     and the mapped track both have one. Otherwise by first-packet alignment: the first sample of a track
+ *     is placed on the timeline at the time it has arrived ({@link #onSample(Track, long)}).
+ * </p>
+ * <p>
+ *     The current time of the timeline is the playback position of the audio output, while audio is playing
+ *     (see {@link #setAudioOutput(Track, AudioSink)}). Otherwise it runs with the time source, continuing from
+ *     the last audio position, or anchored to the first video frame, like {@link StreamPresentationClock}.
+ * </p>
+ * <p>
+ *     Then the timeline runs behind the arrival of samples by the playout delay, which absorbs network jitter.
+ *     It's learned from the arrivals of each track by a {@link PlayoutDelayEstimator} within the limits
+ *     ({@link #setPlayoutDelayLimits(long, long)}), the longest one of all tracks is used. A growing delay
+ *     holds video back at once, a falling one makes the timeline run slightly faster till it's caught up.
+ *     While audio is the master, the audio output buffers the delay within its own limits
+ *     (see {@link AudioSink#setPlayoutDelayUs(long)}): it pauses to buffer a growing one and plays faster
+ *     till a falling one is caught up, by drift correction.
+ * </p>
+ * <p>
+ *     Video follows the master through {@link #getPresentationClock(Track)}: frames are shown at the time
+ *     the master reaches their timestamps, frames late by more than {@link #MAX_VIDEO_OFFSET_NANOS}
+ *     are dropped. If video stays late (it arrives or decodes later than audio) or is far off,
+ *     its presentation slips: the track is shifted so its current frame is shown now.
+ * </p>
+ * <p>
+ *     Audio isn't moved at all, jumps would be audible. Instead slow drift between the clock of the sender
+ *     and the audio device (which shows as growing or shrinking audio latency) is corrected by playing
+ *     up to {@link #MAX_RATE_ADJUSTMENT_PPM} faster or slower, see {@link AudioSink#setPlaybackRateAdjustment(int)}.
+ * </p>
+ * <p>
+ *     Time is read from the given source, {@link System#nanoTime()} by default. A virtual source
+ *     (and sink reporting virtual positions) makes synchronization testable without waiting.
+ *     The clock is thread-safe.
+ * </p>
+ */
+
+public class SyncClock {
+
+    /**
+     * Video frames are shown at most this late, later ones are dropped.
+     */
+
+    public static final long MAX_VIDEO_OFFSET_NANOS = TimeUnit.MILLISECONDS.toNanos(40);
+
+    /**
+     * Max adjustment of the audio playback rate, about 3.5 cents of pitch, which isn't audible.
+     */
+
+    public static final int MAX_RATE_ADJUSTMENT_PPM = 2000;
+
+    //Returned by the internal methods when there's no master time yet
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    //Timestamp differences bigger than this are treated as discontinuities (wrap-around, source restart)
+    private static final long MAX_TIMESTAMP_JUMP_US = TimeUnit.SECONDS.toMicros(5);
+    //Video scheduled further ahead or later than these slips right away
+    private static final long MAX_EARLY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    //Video dropping frames for this long slips, being in sync isn't worth showing nothing
+    private static final long MAX_DROPPING_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    //Audio latency is measured this long after playback has started, the target of drift correction
+    private static final long DRIFT_SETTLE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long DRIFT_UPDATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    //Weight of a new latency measurement is 1 / DRIFT_SMOOTHING, it averages out arrival jitter
+    private static final int DRIFT_SMOOTHING = 32;
+    //Rate adjustment per millisecond of latency error
+    private static final int PPM_PER_MS = 100;
+    //Changes of the playout delay smaller than this aren't passed to the audio output
+    private static final long AUDIO_DELAY_STEP_US = TimeUnit.MILLISECONDS.toMicros(10);
+
+    @NonNull
+    private final LongSupplier timeSource;
+
+    //All fields below are guarded by this
+
+    //Playout delay, the longest one learned by the tracks, and the limits of new estimators
+    private long delayUs;
+    private long minDelayUs;
+    private long maxDelayUs;
+
+    @NonNull
+    private final Map<Track, Timeline> timelines = new HashMap<>();
+    //Track whose timestamps define the timeline, the first one seen
+    @Nullable
+    private Timeline reference;
+    //Time the first sample of the reference track has arrived at, time 0 of the timeline
+    private long originNanos;
+
+    //Master time, when audio isn't playing: anchorTimeUs at anchorNanos
+    private boolean anchored;
+    private long anchorNanos;
+    private long anchorTimeUs;
+    //Playout delay at the anchor, changes of the delay move the master time
+    private long anchorDelayUs;
+
+    @Nullable
+    private Track audioTrack;
+    @Nullable
+    private AudioSink audioSink;
+    //Playout delay passed to the audio output and the one it has applied
+    private long requestedAudioDelayUs;
+    private long audioDelayUs;
+
+    //Drift correction
+    private long audioPlayingSinceNanos = NO_TIME;
+    private long smoothedLatencyUs;
+    private boolean targetLatencySet;
+    private long targetLatencyUs;
+    private long lastDriftUpdateNanos;
+    private int rateAdjustmentPpm;
+
+    //Number of times video has been shifted to follow audio
+    private long videoSlips;
+
+    /**
+     * Creates a clock reading time from the given source.
+     * @param timeSource source of current time in nanoseconds
+     * @param delayUs fixed playout delay, when there's no audio to follow, in microseconds
+     */
+
+    public SyncClock(@NonNull LongSupplier timeSource, long delayUs) {
+        this.timeSource = Objects.requireNonNull(timeSource);
+        this.delayUs = Math.max(0, delayUs);
+        this.minDelayUs = this.delayUs;
+        this.maxDelayUs = this.delayUs;
+    }
+
+    /**
+     * Creates a clock based on {@link System#nanoTime()}, learning the playout delay within
+     * {@link PlayoutDelayEstimator#DEFAULT_MIN_DELAY_US} - {@link PlayoutDelayEstimator#DEFAULT_MAX_DELAY_US}.
+     */
+
+    public SyncClock() {
+        this(System::nanoTime, PlayoutDelayEstimator.DEFAULT_MIN_DELAY_US);
+        this.maxDelayUs = PlayoutDelayEstimator.DEFAULT_MAX_DELAY_US;
+    }
+
+    public long nanoTime() {
+        return timeSource.getAsLong();
+    }
+
+    /**
+     * Notifies the clock a sample has arrived. Aligns the track with the others on its first sample
+     * (or after its timestamps have jumped) and measures audio latency for drift correction.
+     * @param track track of the sample
+     * @param presentationTimeUs timestamp of the sample in microseconds
+     */
+
+    public synchronized void onSample(@NonNull Track track, long presentationTimeUs) {
+        long now = timeSource.getAsLong();
+        Timeline t = timelines.get(track);
+        if (t == null) {
+            t = addTimeline(track, presentationTimeUs, now);
+        } else if (Math.abs(presentationTimeUs - t.lastSampleTimeUs) > MAX_TIMESTAMP_JUMP_US) {
+            align(t, presentationTimeUs, now);
+            if (track.equals(audioTrack)) {
+                resetDriftCorrection();
+            }
+        }
+        t.lastSampleTimeUs = presentationTimeUs;
+
+        t.delayEstimator.onArrival(presentationTimeUs, now);
+        updateDelay();
+
+        if (track.equals(audioTrack)) {
+            updateDriftCorrection(presentationTimeUs, now);
+        }
+    }
+
+    /**
+     * Sets the limits of the playout delay. Equal limits make the delay fixed.
+     * @param minDelayUs min delay in microseconds
+     * @param maxDelayUs max delay in microseconds
+     * @throws IllegalArgumentException if min is negative or greater than max
+     */
+
+    public synchronized void setPlayoutDelayLimits(long minDelayUs, long maxDelayUs) {
+        if (minDelayUs < 0 || minDelayUs > maxDelayUs)
+            throw new IllegalArgumentException("Invalid limits: " + minDelayUs + " - " + maxDelayUs);
+        this.minDelayUs = minDelayUs;
+        this.maxDelayUs = maxDelayUs;
+        for (Timeline t : timelines.values()) {
+            t.delayEstimator.setLimits(minDelayUs, maxDelayUs);
+        }
+        setPlayoutDelayUs(delayUs);
+    }
+
+    /**
+     * Sets the playout delay, e.g. the one learned before for the same source, which is adapted from then on.
+     * @param delayUs delay in microseconds, clamped to the limits
+     */
+
+    public synchronized void setPlayoutDelayUs(long delayUs) {
+        long d = Math.max(minDelayUs, Math.min(maxDelayUs, delayUs));
+        for (Timeline t : timelines.values()) {
+            t.delayEstimator.setDelayUs(d);
+        }
+        this.delayUs = d;
+        updateAudioDelay();
+    }
+
+    /**
+     * Returns the current playout delay.
+     * @return delay in microseconds
+     */
+
+    public synchronized long getPlayoutDelayUs() {
+        return delayUs;
+    }
+
+    /**
+     * Returns the interarrival jitter of the track, as defined by RFC 3550.
+     * @param track the track
+     * @return jitter in microseconds or {@link Long#MIN_VALUE} if no sample of the track has been seen
+     */
+
+    public synchronized long getJitterUs(@NonNull Track track) {
+        Timeline t = timelines.get(track);
+        return t != null ? t.delayEstimator.getJitterUs() : NO_TIME;
+    }
+
+    /**
+     * Returns how many times presentation of video has slipped, i.e. video tracks have been shifted
+     * to follow audio, because they were late or far off.
+     * @return number of slips of all video tracks
+     */
+
+    public synchronized long getVideoSlips() {
+        return videoSlips;
+    }
+
+    /**
+     * Maps timestamps of the track to the wall clock of the sender, by an RTCP sender report.
+     * @param track track the report belongs to
+     * @param ntpTimeUs NTP time of the report in microseconds
+     * @param presentationTimeUs timestamp of the report (RTP timestamp converted like timestamps
+     *                           of the samples) in microseconds
+     */
+
+    public synchronized void onSenderReport(@NonNull Track track, long ntpTimeUs, long presentationTimeUs) {
+        Timeline t = timelines.get(track);
+        if (t == null) {
+            //Alignment is still needed until the reference has a report too
+            t = addTimeline(track, presentationTimeUs, timeSource.getAsLong());
+        }
+        t.senderReport = true;
+        t.senderOffsetUs = ntpTimeUs - presentationTimeUs;
+        //Slipping made up for the unknown offset, start over with the exact one
+        t.slipUs = 0;
+    }
+
+    /**
+     * Sets the audio output which is the master of the timeline, while it's playing.
+     * @param track the audio track
+     * @param sink sink playing the track or null to run by the time source only
+     */
+
+    public synchronized void setAudioOutput(@Nullable Track track, @Nullable AudioSink sink) {
+        AudioSink previous = audioSink;
+        if (previous != null && previous != sink) {
+            previous.setPlaybackRateAdjustment(0);
+        }
+        audioTrack = sink != null ? track : null;
+        audioSink = track != null ? sink : null;
+        resetDriftCorrection();
+        requestedAudioDelayUs = delayUs;
+        audioDelayUs = audioSink != null ? audioSink.setPlayoutDelayUs(delayUs) : 0;
+    }
+
+    /**
+     * Returns the audio output which is the master of the timeline, see {@link #setAudioOutput(Track, AudioSink)}.
+     * @return the sink or null if there's no audio output
+     */
+
+    @Nullable
+    public synchronized AudioSink getAudioOutput() {
+        return audioSink;
+    }
+
+    /**
+     * Returns whether an audio output has been set, see {@link #setAudioOutput(Track, AudioSink)}.
+     * @return true if there's an audio output, even if it's not playing
+     */
+
+    public synchronized boolean hasAudioOutput() {
+        return audioSink != null;
+    }
+
+    /**
+     * Returns clock scheduling frames of a video track by the master time.
+     * Its {@link PresentationClock#reset()} affects only scheduling of the next frame of the track.
+     * @param track the video track
+     * @return new clock
+     */
+
+    @NonNull
+    public PresentationClock getPresentationClock(@NonNull Track track) {
+        return new TrackClock(Objects.requireNonNull(track));
+    }
+
+    /**
+     * Returns current time of the common timeline.
+     * @return time in microseconds or {@link Long#MIN_VALUE} if the timeline hasn't started yet
+     */
+
+    public synchronized long getTimeUs() {
+        return getMasterTimeUs(timeSource.getAsLong());
+    }
+
+    /**
+     * Maps timestamp of a track to the common timeline.
+     * @param track the track
+     * @param presentationTimeUs timestamp in microseconds
+     * @return time in microseconds or {@link Long#MIN_VALUE} if no sample of the track has been seen
+     */
+
+    public synchronized long toTimelineUs(@NonNull Track track, long presentationTimeUs) {
+        Timeline t = timelines.get(track);
+        return t != null ? toTimelineUs(t, presentationTimeUs) : NO_TIME;
+    }
+
+    /**
+     * Returns whether the audio output is the master now.
+     * @return true if audio is playing
+     */
+
+    public synchronized boolean isAudioMaster() {
+        return getAudioTimeUs() != NO_TIME;
+    }
+
+    /**
+     * Returns the current adjustment of the audio playback rate.
+     * @return adjustment in parts per million
+     */
+
+    public synchronized int getRateAdjustmentPpm() {
+        return rateAdjustmentPpm;
+    }
+
+    /**
+     * Forgets all tracks and mappings, e.g. when the stream restarts. The audio output is kept.
+     */
+
+    public synchronized void reset() {
+        timelines.clear();
+        reference = null;
+        anchored = false;
+        resetDriftCorrection();
+    }
+
+    @NonNull
+    private Timeline addTimeline(@NonNull Track track, long presentationTimeUs, long now) {
+        Timeline t = new Timeline();
+        t.delayEstimator.setLimits(minDelayUs, maxDelayUs);
+        t.delayEstimator.setDelayUs(delayUs);
+        if (reference == null) {
+            reference = t;
+            originNanos = now;
+        }
+        align(t, presentationTimeUs, now);
+        t.lastSampleTimeUs = presentationTimeUs;
+        timelines.put(track, t);
+        return t;
+    }
+
+    //Places the timestamp at the time it has arrived at
+    private void align(@NonNull Timeline t, long presentationTimeUs, long now) {
+        t.alignOffsetUs = TimeUnit.NANOSECONDS.toMicros(now - originNanos) - presentationTimeUs;
+        t.senderReport = false;
+        t.slipUs = 0;
+        t.rendered = false;
+    }
+
+    private long toTimelineUs(@NonNull Timeline t, long presentationTimeUs) {
+        Timeline ref = reference;
+        long offsetUs = t.alignOffsetUs;
+        if (ref != null && ref != t && ref.senderReport && t.senderReport) {
+            //Same sender time on both tracks is the same time on the timeline
+            offsetUs = ref.alignOffsetUs + t.senderOffsetUs - ref.senderOffsetUs;
+        }
+        return presentationTimeUs + offsetUs + t.slipUs;
+    }
+
+    //Position of the audio output on the timeline
+    private long getAudioTimeUs() {
+        AudioSink sink = audioSink;
+        Timeline t = audioTrack != null ? timelines.get(audioTrack) : null;
+        if (sink == null || t == null)
+            return NO_TIME;
+        long positionUs = sink.getPlaybackPositionUs();
+        return positionUs != AudioSink.UNKNOWN_POSITION ? toTimelineUs(t, positionUs) : NO_TIME;
+    }
+
+    private long getMasterTimeUs(long now) {
+        long audioTimeUs = getAudioTimeUs();
+        if (audioTimeUs != NO_TIME) {
+            //Time continues from the last audio position when audio stops
+            anchor(now, audioTimeUs);
+            return audioTimeUs;
+        }
+        if (!anchored)
+            return NO_TIME;
+        return anchorTimeUs + TimeUnit.NANOSECONDS.toMicros(now - anchorNanos) - (delayUs - anchorDelayUs);
+    }
+
+    private void anchor(long nanos, long timeUs) {
+        anchored = true;
+        anchorNanos = nanos;
+        anchorTimeUs = timeUs;
+        anchorDelayUs = delayUs;
+    }
+
+    //The longest delay of the tracks is the playout delay, so each of them has its samples in time
+    private void updateDelay() {
+        long d = minDelayUs;
+        for (Timeline t : timelines.values()) {
+            d = Math.max(d, t.delayEstimator.getDelayUs());
+        }
+        delayUs = d;
+        updateAudioDelay();
+    }
+
+    //Passes the playout delay to the audio output, latency of audio changes with the delay it applies
+    private void updateAudioDelay() {
+        AudioSink sink = audioSink;
+        if (sink == null || Math.abs(delayUs - requestedAudioDelayUs) < AUDIO_DELAY_STEP_US)
+            return;
+        requestedAudioDelayUs = delayUs;
+        long appliedUs = sink.setPlayoutDelayUs(delayUs);
+        if (appliedUs != audioDelayUs && targetLatencySet) {
+            //Drift correction plays faster (or slower) till the new latency is reached
+            targetLatencyUs += appliedUs - audioDelayUs;
+        }
+        audioDelayUs = appliedUs;
+    }
+
+    private synchronized long getRenderTimeNanos(@NonNull Track track, long presentationTimeUs) {
+        long now = timeSource.getAsLong();
+        Timeline t = timelines.get(track);
+        if (t == null) {
+            t = addTimeline(track, presentationTimeUs, now);
+        }
+
+        boolean first = !t.rendered;
+        if (!first && presentationTimeUs <= t.lastRenderTimeUs) {
+            //Frames come in presentation order, not increasing timestamp carries no timing, show it now
+            return now;
+        }
+        t.rendered = true;
+        t.lastRenderTimeUs = presentationTimeUs;
+
+        long timeUs = toTimelineUs(t, presentationTimeUs);
+        long masterUs = getMasterTimeUs(now);
+        long delayNanos = TimeUnit.MICROSECONDS.toNanos(delayUs);
+        if (masterUs == NO_TIME) {
+            //Nothing to follow, the timeline starts with this frame
+            anchor(now + delayNanos, timeUs);
+            t.droppingSinceNanos = NO_TIME;
+            return now + delayNanos;
+        }
+
+        long renderTime = now + TimeUnit.MICROSECONDS.toNanos(timeUs - masterUs);
+        long lateness = now - renderTime;
+        boolean slip = lateness > MAX_LATE_NANOS || -lateness > MAX_EARLY_NANOS + delayNanos;
+        if (lateness > MAX_VIDEO_OFFSET_NANOS) {
+            if (first) {
+                //The first frame (or the first after reset) is shown
+                slip = true;
+            } else if (t.droppingSinceNanos == NO_TIME) {
+                t.droppingSinceNanos = now;
+            } else if (now - t.droppingSinceNanos > MAX_DROPPING_NANOS) {
+                slip = true;
+            }
+        } else {
+            t.droppingSinceNanos = NO_TIME;
+        }
+
+        if (!slip)
+            return renderTime;
+
+        t.droppingSinceNanos = NO_TIME;
+        if (getAudioTimeUs() != NO_TIME) {
+            //Audio can't move, the video track is shifted to show this frame now
+            t.slipUs += masterUs - timeUs;
+            videoSlips++;
+            return now;
+        }
+        anchor(now + delayNanos, timeUs);
+        return now + delayNanos;
+    }
+
+    private synchronized void resetTrack(@NonNull Track track) {
+        Timeline t = timelines.get(track);
+        if (t != null) {
+            t.rendered = false;
+            t.droppingSinceNanos = NO_TIME;
+        }
+        if (getAudioTimeUs() == NO_TIME) {
+            anchored = false;
+        }
+    }
+
+    //Adjusts audio playback rate, so audio latency stays where it has settled after start
+    private void updateDriftCorrection(long presentationTimeUs, long now) {
+        AudioSink sink = audioSink;
+        long positionUs = sink != null ? sink.getPlaybackPositionUs() : AudioSink.UNKNOWN_POSITION;
+        if (sink == null || positionUs == AudioSink.UNKNOWN_POSITION) {
+            //Not playing, the target is kept for when it plays again
+            audioPlayingSinceNanos = NO_TIME;
+            return;
+        }
+
+        //Time from arrival to playback, grows if the sender's clock is faster than the device's
+        long latencyUs = presentationTimeUs - positionUs;
+        if (audioPlayingSinceNanos == NO_TIME) {
+            audioPlayingSinceNanos = now;
+            smoothedLatencyUs = latencyUs;
+            return;
+        }
+        smoothedLatencyUs += (latencyUs - smoothedLatencyUs) / DRIFT_SMOOTHING;
+
+        if (now - audioPlayingSinceNanos < DRIFT_SETTLE_NANOS)
+            return;
+        if (!targetLatencySet) {
+            targetLatencySet = true;
+            targetLatencyUs = smoothedLatencyUs;
+            lastDriftUpdateNanos = now;
+            return;
+        }
+        if (now - lastDriftUpdateNanos < DRIFT_UPDATE_INTERVAL_NANOS)
+            return;
+        lastDriftUpdateNanos = now;
+
+        long errorUs = smoothedLatencyUs - targetLatencyUs;
+        int ppm = (int) Math.max(-MAX_RATE_ADJUSTMENT_PPM, Math.min(MAX_RATE_ADJUSTMENT_PPM, errorUs * PPM_PER_MS / 1000));
+        if (ppm != rateAdjustmentPpm) {
+            rateAdjustmentPpm = ppm;
+            sink.setPlaybackRateAdjustment(ppm);
+        }
+    }
+
+    private void resetDriftCorrection() {
+        audioPlayingSinceNanos = NO_TIME;
+        targetLatencySet = false;
+        if (rateAdjustmentPpm != 0) {
+            rateAdjustmentPpm = 0;
+            AudioSink sink = audioSink;
+            if (sink != null) {
+                sink.setPlaybackRateAdjustment(0);
+            }
+        }
+    }
+
+    /*
+     * Mapping of one track to the timeline.
+     */
+
+    private static final class Timeline {
+
+        //Timeline time of a timestamp by first-packet alignment
+        long alignOffsetUs;
+        //Sender time of a timestamp, if there has been a sender report
+        boolean senderReport;
+        long senderOffsetUs;
+        //Shift of video which couldn't keep up with the master
+        long slipUs;
+        long lastSampleTimeUs;
+        @NonNull
+        final PlayoutDelayEstimator delayEstimator = new PlayoutDelayEstimator();
+
+        boolean rendered;
+        long lastRenderTimeUs;
+        long droppingSinceNanos = NO_TIME;
+
+    }
+
+    /*
+     * Presentation clock of one video track.
+     */
+
+    private final class TrackClock implements PresentationClock {
+
+        @NonNull
+        private final Track track;
+
+        TrackClock(@NonNull Track track) {
+            this.track = track;
+        }
+
+        @Override
+        public long nanoTime() {
+            return timeSource.getAsLong();
+        }
+
+        @Override
+        public long getRenderTimeNanos(long presentationTimeUs) {
+            return SyncClock.this.getRenderTimeNanos(track, presentationTimeUs);
+        }
+
+        @Override
+        public long getMaxLatenessNanos() {
+            return MAX_VIDEO_OFFSET_NANOS;
+        }
+
+        @Override
+        public void reset() {
+            resetTrack(track);
+        }
+
+    }
+
+}
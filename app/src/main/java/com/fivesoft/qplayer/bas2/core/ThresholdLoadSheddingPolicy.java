@@ -0,0 +1,49 @@
+package com.fivesoft.qplayer.bas2.core;
+
+/**
+ * {@link LoadSheddingPolicy} comparing fill of the decoder queue and decode latency with fixed thresholds.<br>
+ * The level is raised when any of the thresholds of the level is reached.
+ */
+
+public class ThresholdLoadSheddingPolicy implements LoadSheddingPolicy {
+
+    private final float nonReferenceQueueFill;
+    private final float keyFrameQueueFill;
+    private final long nonReferenceLatencyUs;
+    private final long keyFrameLatencyUs;
+
+    /**
+     * Creates policy.
+     * @param nonReferenceQueueFill queue fill (0 - 1) from which non-reference frames are dropped
+     * @param keyFrameQueueFill queue fill (0 - 1) from which frames are skipped till the next key frame
+     * @param nonReferenceLatencyUs decode latency from which non-reference frames are dropped, in microseconds
+     * @param keyFrameLatencyUs decode latency from which frames are skipped till the next key frame, in microseconds
+     * @throws IllegalArgumentException if thresholds of {@link #LEVEL_SKIP_TO_KEY_FRAME} are lower
+     * than thresholds of {@link #LEVEL_DROP_NON_REFERENCE}
+     */
+
+    public ThresholdLoadSheddingPolicy(float nonReferenceQueueFill, float keyFrameQueueFill,
+                                       long nonReferenceLatencyUs, long keyFrameLatencyUs) {
+        if (keyFrameQueueFill < nonReferenceQueueFill || keyFrameLatencyUs < nonReferenceLatencyUs)
+            throw new IllegalArgumentException("Key frame thresholds must not be lower than non-reference ones");
+
+        this.nonReferenceQueueFill = nonReferenceQueueFill;
+        this.keyFrameQueueFill = keyFrameQueueFill;
+        this.nonReferenceLatencyUs = nonReferenceLatencyUs;
+        this.keyFrameLatencyUs = keyFrameLatencyUs;
+    }
+
+    @Override
+    public int getLevel(int queueDepth, int queueCapacity, long decodeLatencyUs) {
+        float fill = queueCapacity > 0 ? (float) queueDepth / queueCapacity : 0;
+
+        if (fill >= keyFrameQueueFill || decodeLatencyUs >= keyFrameLatencyUs)
+            return LEVEL_SKIP_TO_KEY_FRAME;
+
+        if (fill >= nonReferenceQueueFill || decodeLatencyUs >= nonReferenceLatencyUs)
+            return LEVEL_DROP_NON_REFERENCE;
+
+        return LEVEL_NONE;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.fivesoft.qplayer.bas2.core.resolvers;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.decoder.AudioDecoder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.resolver.Creator;
+import com.fivesoft.qplayer.bas2.resolver.Resolver;
+
+public class AudioDecoderResolver extends Resolver<MediaDecoder.Descriptor, AudioDecoder> {
+
+    private final static AudioDecoderResolver instance = new AudioDecoderResolver();
+
+    private AudioDecoderResolver() {
+        //Prevent instantiation
+    }
+
+    public static AudioDecoderResolver getInstance() {
+        return instance;
+    }
+
+    public AudioDecoderResolver registerCreator(@NonNull Creator<MediaDecoder.Descriptor, AudioDecoder> creator) {
+        register(creator);
+        return this;
+    }
+
+    public static AudioDecoder resolveDecoder(@NonNull MediaDecoder.Descriptor descriptor) {
+        return getInstance().resolve(descriptor);
+    }
+
+}
@@ -1,4 +1,55 @@
 package com.fivesoft.qplayer.bas2.decoder;
 
-public class AudioDecoder {
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.track.AudioTrack;
+
+public abstract class AudioDecoder extends MediaDecoder<AudioTrack, AudioSink> {
+
+    @Nullable
+    private volatile AudioSink sink;
+
+    /**
+     * Creates a new media decoder for the specified audio track.
+     * @param track The track that the decoder decodes. Cannot be null.
+     */
+
+    public AudioDecoder(@NonNull AudioTrack track, int sampleFormat, int maxEncodedFrameSize) {
+        super(track, sampleFormat, maxEncodedFrameSize);
+    }
+
+    @Override
+    public void setOutput(@Nullable MediaDecoderOutput<AudioSink> output) throws IllegalStateException {
+        checkReleased();
+        this.sink = output == null ? null : output.getRenderer();
+    }
+
+    /**
+     * Returns the sink decoded PCM is written to.
+     * @return the sink or null if decoded audio is dropped
+     */
+
+    @Nullable
+    public AudioSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Returns the sample rate of the decoded audio.<br>
+     * The value is available when the decoder has been configured (from CSD or the first frame).
+     * @return The sample rate in Hz or {@link Constants#UNKNOWN_VALUE} if the sample rate is unknown.
+     */
+
+    public abstract int getSampleRate();
+
+    /**
+     * Returns the number of channels of the decoded audio.<br>
+     * The value is available when the decoder has been configured (from CSD or the first frame).
+     * @return The number of channels or {@link Constants#UNKNOWN_VALUE} if the number of channels is unknown.
+     */
+
+    public abstract int getChannelCount();
+
 }
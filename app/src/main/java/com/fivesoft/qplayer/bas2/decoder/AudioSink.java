@@ -0,0 +1,95 @@
+package com.fivesoft.qplayer.bas2.decoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Output of {@link AudioDecoder}s, which receives decoded 16-bit PCM.<br>
+ * <p>
+ *     Methods are called from the decoding thread, so they must never block:
+ *     PCM which doesn't fit in the sink (e.g. its buffer is full, because the device plays slower)
+ *     is dropped. Audio decoding thus never holds up decoding of other tracks.
+ * </p>
+ */
+
+public interface AudioSink {
+
+    /**
+     * Returned by {@link #getPlaybackPositionUs()} when nothing is playing.
+     * It's not {@link com.fivesoft.qplayer.bas2.common.Constants#UNKNOWN_VALUE}, because timestamps may be negative.
+     */
+
+    long UNKNOWN_POSITION = Long.MIN_VALUE;
+
+    /**
+     * Sets format of the following PCM. Called before the first {@link #write(short[], int, int, long)}
+     * and whenever the format changes.
+     * @param sampleRate sample rate in Hz
+     * @param channelCount number of interleaved channels
+     */
+
+    void configure(int sampleRate, int channelCount);
+
+    /**
+     * Writes decoded PCM.
+     * @param pcm array of interleaved 16-bit samples
+     * @param off offset of the first sample
+     * @param len number of samples (of all channels)
+     * @param timestampUs presentation time of the first sample in microseconds
+     * @return number of samples accepted, the rest has been dropped
+     */
+
+    int write(@NonNull short[] pcm, int off, int len, long timestampUs);
+
+    /**
+     * Discards PCM written and not played yet, e.g. after a seek or when the stream restarts.
+     */
+
+    void flush();
+
+    /**
+     * Returns presentation time of the PCM being heard right now, which makes the sink a clock
+     * other tracks can be synchronized with. May be called from any thread.
+     * @return timestamp in microseconds (in the time base of {@link #write(short[], int, int, long)})
+     * or {@link #UNKNOWN_POSITION} if nothing is playing (e.g. the sink is still buffering)
+     */
+
+    default long getPlaybackPositionUs() {
+        return UNKNOWN_POSITION;
+    }
+
+    /**
+     * Plays slightly faster or slower than the sample rate by resampling,
+     * so the sink follows the clock of the source without dropping PCM or running empty.
+     * May be called from any thread.
+     * @param ppm speed-up in parts per million, negative values slow down, 0 plays at the sample rate
+     */
+
+    default void setPlaybackRateAdjustment(int ppm) {
+        //Plays at the sample rate
+    }
+
+    /**
+     * Sets how much PCM is buffered before playback starts (and resumes after the sink has run empty),
+     * so PCM written up to that late still plays in time. A longer delay is buffered up right away,
+     * a shorter one is caught up with by playing faster (see {@link #setPlaybackRateAdjustment(int)}),
+     * buffered PCM isn't skipped. May be called from any thread.
+     * @param delayUs delay in microseconds
+     * @return delay applied (clamped to the limits of the sink) in microseconds,
+     * 0 if the sink doesn't buffer PCM of its own
+     */
+
+    default long setPlayoutDelayUs(long delayUs) {
+        //Nothing is buffered
+        return 0;
+    }
+
+    /**
+     * Releases resources of the sink (e.g. the audio device). Called by the owner of the sink,
+     * when no decoder writes to it anymore. The sink can't be used afterwards.
+     */
+
+    default void release() {
+        //Nothing to release
+    }
+
+}
@@ -48,6 +48,14 @@ public abstract class MediaDecoder<TrackType extends Track, RendererType> {
     public static final int ACTION_END_OF_STREAM_REACHED = 5;
     public static final int ACTION_NONE = 6;
 
+    /**
+     * Frame has not been decoded, because the decoder couldn't keep up with the stream.
+     * Only disposable frames (see {@link Frame#isDisposable()}) are dropped this way,
+     * so decoding of the following frames is not affected.
+     */
+
+    public static final int ACTION_DROP_FRAME_NON_REFERENCE = 7;
+
     public static final int FORMAT_RAW = 0;
     public static final int FORMAT_ANNEX_B = 10;
     public static final int FORMAT_AVCC = 20;
@@ -188,9 +196,25 @@ public abstract class MediaDecoder<TrackType extends Track, RendererType> {
     public abstract Frame feed(@NonNull Sample sample) throws IllegalStateException,
             UnsupportedSampleException, NullPointerException;
 
+    /**
+     * Returns next encoded frame completed by the last {@link #feed(Sample)} call.<br>
+     * Single sample may complete more than one frame, so after {@link #feed(Sample)}
+     * this method should be called until it returns null.
+     *
+     * @return Next full encoded frame or null if there is no more ready frames.
+     * @throws IllegalStateException If the decoder is released.
+     */
+
+    @Nullable
+    public Frame poll() throws IllegalStateException {
+        return null;
+    }
+
     /**
      * Decodes the media sample and plays the decoded frame on output.<br>
-     * The frame playback may be asynchronous, so the method may return before the frame is played.
+     * The frame playback may be asynchronous, so the method may return before the frame is played.<br>
+     * The decoder releases the frame ({@link Frame#release()}) when it doesn't need its data anymore,
+     * so callers which keep the frame for later use have to {@link Frame#retain()} it before.
      *
      * @param sample Sample to decode, returned by {@link #feed(Sample)} method. Cannot be null.
      * @throws IllegalStateException      If the decoder is released.
@@ -3,12 +3,16 @@ package com.fivesoft.qplayer.bas2.decoder;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.fivesoft.qplayer.bas2.common.Constants;
 import com.fivesoft.qplayer.track.VideoTrack;
 
 public abstract class VideoDecoder extends MediaDecoder<VideoTrack, Surface> {
 
+    @Nullable
+    private volatile KeyFrameRequestListener keyFrameRequestListener;
+
     /**
      * Creates a new media decoder for the specified video track.
      * @param track The track that the decoder decodes. Cannot be null.
@@ -41,4 +45,43 @@ public abstract class VideoDecoder extends MediaDecoder<VideoTrack, Surface> {
 
     public abstract float getVideoFrameRate();
 
+    /**
+     * Sets listener notified when the decoder can't continue decoding without a new key frame,
+     * e.g. after packet loss. The listener may ask the source for a key frame (e.g. RTCP PLI / FIR),
+     * so the decoder doesn't have to wait for the next one in the stream.<br>
+     * The listener is called from the decoding thread, it shouldn't block.
+     * @param listener listener to set or null to remove it
+     */
+
+    public void setKeyFrameRequestListener(@Nullable KeyFrameRequestListener listener) {
+        this.keyFrameRequestListener = listener;
+    }
+
+    /**
+     * Notifies {@link KeyFrameRequestListener} set with {@link #setKeyFrameRequestListener(KeyFrameRequestListener)}.
+     * Called by subclasses when decoding has been suspended till the next key frame.
+     */
+
+    protected void requestKeyFrame() {
+        KeyFrameRequestListener listener = keyFrameRequestListener;
+        if (listener != null) {
+            listener.onKeyFrameRequest(this);
+        }
+    }
+
+    /**
+     * Listener notified when a video decoder needs a new key frame to continue decoding.
+     */
+
+    public interface KeyFrameRequestListener {
+
+        /**
+         * Called when the decoder has suspended decoding till the next key frame (or recovery point).
+         * @param decoder the decoder which needs a key frame
+         */
+
+        void onKeyFrameRequest(@NonNull VideoDecoder decoder);
+
+    }
+
 }
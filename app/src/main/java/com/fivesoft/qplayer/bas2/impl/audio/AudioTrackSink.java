@@ -0,0 +1,486 @@
+package com.fivesoft.qplayer.bas2.impl.audio;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.common.PcmRingBuffer;
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link AudioSink} playing PCM on an Android {@link AudioTrack}.<br>
+ * <p>
+ *     Decoded PCM is written to a {@link PcmRingBuffer}, which never blocks the decoder: if the device
+ *     plays slower, newest PCM is dropped once twice the playout delay is buffered.
+ *     A dedicated output thread moves PCM from the buffer to the {@link AudioTrack} in small chunks,
+ *     it's the only thread waiting for the device.
+ * </p>
+ * <p>
+ *     Playback starts (and resumes after the buffer has run empty) once the playout delay is buffered,
+ *     so delivery jitter doesn't cause repeated underruns. It's half of the configured latency (40 - 80 ms)
+ *     at first, then the master clock sets the delay learned from the jitter of the network
+ *     ({@link #setPlayoutDelayUs(long)}), up to {@link #MAX_PLAYOUT_DELAY_US}.
+ * </p>
+ * <p>
+ *     The sink reports the timestamp of the PCM being heard ({@link #getPlaybackPositionUs()}),
+ *     computed from the timestamps PCM was written with, the PCM still buffered and the playback head
+ *     of the device, so it can be the master clock of other tracks. It follows a source running on
+ *     a slightly different clock by adjusting the playback rate of the device, i.e. its resampling,
+ *     see {@link #setPlaybackRateAdjustment(int)}.
+ * </p>
+ */
+
+public class AudioTrackSink implements AudioSink {
+
+    public static final int MIN_LATENCY_MS = 40;
+    public static final int MAX_LATENCY_MS = 80;
+    public static final int DEFAULT_LATENCY_MS = 60;
+
+    /**
+     * Limits of the playout delay, see {@link #setPlayoutDelayUs(long)}.
+     */
+
+    public static final long MIN_PLAYOUT_DELAY_US = TimeUnit.MILLISECONDS.toMicros(MIN_LATENCY_MS / 2);
+    public static final long MAX_PLAYOUT_DELAY_US = TimeUnit.SECONDS.toMicros(1);
+
+    private static final String TAG = "AudioTrackSink";
+
+    //PCM is moved to the device in chunks of this duration
+    private static final int CHUNK_MS = 10;
+    //The buffer holds up to twice the longest delay, PCM may come in bursts
+    private static final int BUFFER_MS = (int) TimeUnit.MICROSECONDS.toMillis(2 * MAX_PLAYOUT_DELAY_US);
+    private static final long OUTPUT_JOIN_TIMEOUT_MS = 500;
+    //Position differences bigger than this are discontinuities, smaller ones are smoothed out
+    private static final long MAX_POSITION_ERROR_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int POSITION_SMOOTHING = 16;
+
+    private final int latencyMs;
+
+    //Format of the PCM and its buffer, replaced when the format changes
+    @Nullable
+    private volatile Stream stream;
+    private volatile boolean flushRequested;
+    private volatile boolean released;
+    private volatile int rateAdjustmentPpm;
+    private volatile long playoutDelayUs;
+
+    @NonNull
+    private final OutputThread outputThread = new OutputThread();
+
+    //Written by the output thread only
+    private volatile long underruns;
+    private volatile long droppedSamples;
+    //Position of playback, valid while playing: time (System.nanoTime()) timestamp 0 is played at
+    private volatile boolean playing;
+    private volatile long playbackOriginNanos;
+
+    /**
+     * Creates sink buffering at most the given duration of PCM, till a playout delay is set.
+     * @param latencyMs max duration of buffered PCM in milliseconds,
+     *                  limited to {@link #MIN_LATENCY_MS} - {@link #MAX_LATENCY_MS}
+     */
+
+    public AudioTrackSink(int latencyMs) {
+        this.latencyMs = Math.max(MIN_LATENCY_MS, Math.min(MAX_LATENCY_MS, latencyMs));
+        this.playoutDelayUs = TimeUnit.MILLISECONDS.toMicros(this.latencyMs) / 2;
+        outputThread.start();
+    }
+
+    /**
+     * Creates sink buffering at most {@link #DEFAULT_LATENCY_MS} of PCM.
+     */
+
+    public AudioTrackSink() {
+        this(DEFAULT_LATENCY_MS);
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        if (sampleRate <= 0 || channelCount <= 0)
+            throw new IllegalArgumentException("Invalid format: " + sampleRate + " Hz, " + channelCount + " channels");
+
+        Stream current = stream;
+        if (current != null && current.sampleRate == sampleRate && current.channels == channelCount)
+            return;
+
+        Stream s = new Stream(sampleRate, channelCount,
+                new PcmRingBuffer(PcmRingBuffer.getCapacity(sampleRate, channelCount, BUFFER_MS), channelCount));
+        s.limitSamples = s.getSamples(2 * playoutDelayUs);
+        stream = s;
+        LockSupport.unpark(outputThread);
+    }
+
+    @Override
+    public int write(@NonNull short[] pcm, int off, int len, long timestampUs) {
+        Stream s = stream;
+        if (s == null || released)
+            return 0;
+
+        //PCM beyond the limit is dropped, latency stays bounded if the device plays slower
+        int n = Math.max(0, Math.min(len, s.limitSamples - s.buffer.available()));
+        if (n < len) {
+            //noinspection NonAtomicOperationOnVolatileField
+            s.droppedSamples += len - n;
+        }
+
+        long index = s.buffer.getWrittenSamples();
+        int written = n > 0 ? s.buffer.write(pcm, off, n) : 0;
+        if (written > 0) {
+            //Contiguous PCM keeps the origin, it moves only if PCM is missing or has been dropped
+            s.originUs = timestampUs - s.getDurationUs(index);
+        }
+        if (outputThread.waiting) {
+            LockSupport.unpark(outputThread);
+        }
+        return written;
+    }
+
+    @Override
+    public void flush() {
+        flushRequested = true;
+        LockSupport.unpark(outputThread);
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * The position is updated after each chunk of PCM moved to the device and extrapolated in between
+     * at the nominal rate, so it may be off by a few microseconds while the rate is adjusted.
+     */
+
+    @Override
+    public long getPlaybackPositionUs() {
+        if (!playing || released)
+            return UNKNOWN_POSITION;
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - playbackOriginNanos);
+    }
+
+    @Override
+    public void setPlaybackRateAdjustment(int ppm) {
+        rateAdjustmentPpm = ppm;
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * The delay is limited to {@link #MIN_PLAYOUT_DELAY_US} - {@link #MAX_PLAYOUT_DELAY_US}.
+     */
+
+    @Override
+    public long setPlayoutDelayUs(long delayUs) {
+        long d = Math.max(MIN_PLAYOUT_DELAY_US, Math.min(MAX_PLAYOUT_DELAY_US, delayUs));
+        if (d != playoutDelayUs) {
+            playoutDelayUs = d;
+            LockSupport.unpark(outputThread);
+        }
+        return d;
+    }
+
+    public long getPlayoutDelayUs() {
+        return playoutDelayUs;
+    }
+
+    /**
+     * Stops playback and releases the {@link AudioTrack}. The sink can't be used afterwards.
+     */
+
+    @Override
+    public void release() {
+        released = true;
+        outputThread.interrupt();
+        try {
+            outputThread.join(OUTPUT_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    public int getLatencyMs() {
+        return latencyMs;
+    }
+
+    /**
+     * Returns number of times the device has run out of PCM, because the decoder didn't deliver it in time.
+     * @return number of underruns
+     */
+
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Returns number of samples dropped, because the buffer was full (the device plays slower than PCM comes)
+     * or there was no device to play them on.
+     * @return number of samples
+     */
+
+    public long getDroppedSamples() {
+        Stream s = stream;
+        return droppedSamples + (s != null ? s.droppedSamples + s.buffer.getDroppedSamples() : 0);
+    }
+
+    /*
+     * Format of PCM and the buffer holding it.
+     */
+
+    private static final class Stream {
+
+        final int sampleRate;
+        final int channels;
+        @NonNull
+        final PcmRingBuffer buffer;
+        //Timestamp of the first sample ever written to the buffer, written by the producer only
+        volatile long originUs;
+        //Samples dropped above the limit, written by the producer only
+        volatile long droppedSamples;
+        //Max number of buffered samples, written by the output thread only (once set up)
+        volatile int limitSamples;
+
+        Stream(int sampleRate, int channels, @NonNull PcmRingBuffer buffer) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.buffer = buffer;
+        }
+
+        //Duration of the given number of samples (of all channels)
+        long getDurationUs(long samples) {
+            return samples / channels * 1_000_000 / sampleRate;
+        }
+
+        //Number of samples (of all channels) of the given duration
+        int getSamples(long durationUs) {
+            long frames = Math.max(1, durationUs * sampleRate / 1_000_000);
+            return (int) Math.min(buffer.capacity(), frames * channels);
+        }
+
+    }
+
+    /*
+     * Moves PCM from the buffer of the current stream to the device.
+     */
+
+    private final class OutputThread extends Thread {
+
+        //Set while the thread waits for PCM, so writers know they have to wake it up
+        volatile boolean waiting;
+
+        OutputThread() {
+            super("AudioOutput");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            Stream current = null;
+            AudioTrack device = null;
+            short[] chunk = new short[0];
+            boolean priming = true;
+            //Frames written to the device since it was created or flushed
+            long framesWritten = 0;
+            int appliedPpm = 0;
+            int playbackRate = 0;
+            long appliedDelayUs = 0;
+            int primeSamples = 0;
+
+            try {
+                while (!isInterrupted()) {
+                    Stream s = stream;
+                    if (s == null) {
+                        playing = false;
+                        await(-1);
+                        continue;
+                    }
+
+                    if (s != current) {
+                        //Format has changed, PCM of the old one is dropped with its buffer
+                        releaseQuietly(device);
+                        device = createAudioTrack(s, latencyMs);
+                        current = s;
+                        chunk = new short[PcmRingBuffer.getCapacity(s.sampleRate, s.channels, CHUNK_MS)];
+                        priming = true;
+                        framesWritten = 0;
+                        appliedPpm = 0;
+                        playbackRate = s.sampleRate;
+                        appliedDelayUs = 0;
+                    }
+
+                    if (flushRequested) {
+                        flushRequested = false;
+                        s.buffer.clear();
+                        flushQuietly(device);
+                        priming = true;
+                        framesWritten = 0;
+                    }
+
+                    int ppm = rateAdjustmentPpm;
+                    if (device != null && ppm != appliedPpm) {
+                        appliedPpm = ppm;
+                        int rate = s.sampleRate + (int) Math.round(s.sampleRate * ppm / 1e6);
+                        if (setPlaybackRateQuietly(device, rate)) {
+                            playbackRate = rate;
+                        }
+                    }
+
+                    long delayUs = playoutDelayUs;
+                    if (delayUs != appliedDelayUs) {
+                        boolean longer = delayUs > appliedDelayUs;
+                        appliedDelayUs = delayUs;
+                        primeSamples = s.getSamples(delayUs);
+                        //PCM buffered for a longer delay is kept, it's played faster till the shorter one is reached
+                        s.limitSamples = Math.min(s.buffer.capacity(),
+                                Math.max(2 * primeSamples, s.buffer.available() + primeSamples));
+                        if (longer && s.buffer.available() < primeSamples) {
+                            //Playback pauses till the longer delay is buffered
+                            priming = true;
+                        }
+                    }
+
+                    if (priming && s.buffer.available() < primeSamples) {
+                        playing = false;
+                        await(TimeUnit.MILLISECONDS.toNanos(CHUNK_MS) / 2);
+                        continue;
+                    }
+                    priming = false;
+
+                    int n = s.buffer.read(chunk, 0, chunk.length);
+                    if (n == 0) {
+                        //noinspection NonAtomicOperationOnVolatileField
+                        underruns++;
+                        priming = true;
+                        continue;
+                    }
+
+                    if (device == null || device.write(chunk, 0, n) < 0) {
+                        //noinspection NonAtomicOperationOnVolatileField
+                        droppedSamples += n;
+                        playing = false;
+                        continue;
+                    }
+
+                    framesWritten += n / s.channels;
+                    updatePosition(s, device, framesWritten, playbackRate);
+                }
+            } finally {
+                playing = false;
+                releaseQuietly(device);
+            }
+        }
+
+        //Publishes position of playback: timestamp of the next PCM to read minus PCM queued in the device
+        private void updatePosition(@NonNull Stream s, @NonNull AudioTrack device, long framesWritten, int playbackRate) {
+            long played = device.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            long now = System.nanoTime();
+            long queuedUs = Math.max(0, framesWritten - played) * 1_000_000 / playbackRate;
+            long positionUs = s.originUs + s.getDurationUs(s.buffer.getReadSamples()) - queuedUs;
+            long origin = now - TimeUnit.MICROSECONDS.toNanos(positionUs);
+
+            //The playback head moves in steps of the device period, averaging hides them
+            long current = playbackOriginNanos;
+            if (!playing || Math.abs(origin - current) > MAX_POSITION_ERROR_NANOS) {
+                playbackOriginNanos = origin;
+            } else {
+                playbackOriginNanos = current + (origin - current) / POSITION_SMOOTHING;
+            }
+            playing = true;
+        }
+
+        //Waits for PCM or a change, negative timeout waits indefinitely
+        private void await(long timeoutNanos) {
+            waiting = true;
+            try {
+                if (timeoutNanos < 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, timeoutNanos);
+                }
+            } finally {
+                waiting = false;
+            }
+        }
+
+    }
+
+    @Nullable
+    private static AudioTrack createAudioTrack(@NonNull Stream s, int latencyMs) {
+        int channelMask;
+        if (s.channels == 1) {
+            channelMask = AudioFormat.CHANNEL_OUT_MONO;
+        } else if (s.channels == 2) {
+            channelMask = AudioFormat.CHANNEL_OUT_STEREO;
+        } else {
+            Log.println(Log.ASSERT, TAG, "Unsupported number of channels: " + s.channels);
+            return null;
+        }
+
+        try {
+            int minBufferSize = AudioTrack.getMinBufferSize(s.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+            AudioTrack.Builder builder = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_MOVIE)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(s.sampleRate)
+                            .setChannelMask(channelMask)
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .build())
+                    //Latency is held by the ring buffer, the device buffer is kept minimal
+                    .setBufferSizeInBytes(Math.max(minBufferSize, PcmRingBuffer.getCapacity(s.sampleRate, s.channels, latencyMs) * 2 / 4))
+                    .setTransferMode(AudioTrack.MODE_STREAM);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+            }
+            AudioTrack track = builder.build();
+            track.play();
+            return track;
+        } catch (Exception e) {
+            Log.println(Log.ASSERT, TAG, "Failed to create AudioTrack: " + e);
+            return null;
+        }
+    }
+
+    private static boolean setPlaybackRateQuietly(@NonNull AudioTrack track, int rate) {
+        try {
+            return track.setPlaybackRate(rate) == AudioTrack.SUCCESS;
+        } catch (Exception e) {
+            //Played at the current rate
+            return false;
+        }
+    }
+
+    private static void flushQuietly(@Nullable AudioTrack track) {
+        if (track == null)
+            return;
+        try {
+            track.pause();
+            track.flush();
+            track.play();
+        } catch (Exception e) {
+            //The track is recreated with the next format change
+        }
+    }
+
+    private static void releaseQuietly(@Nullable AudioTrack track) {
+        if (track == null)
+            return;
+        try {
+            track.stop();
+        } catch (Exception e) {
+            //Not playing
+        }
+        track.release();
+    }
+
+}
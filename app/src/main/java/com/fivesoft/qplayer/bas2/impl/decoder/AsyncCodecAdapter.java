@@ -0,0 +1,285 @@
+package com.fivesoft.qplayer.bas2.impl.decoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CodecAdapter} running {@link MediaCodec} in asynchronous mode.<br>
+ * <p>
+ *     The codec reports available input buffers and decoded output buffers with {@link MediaCodec.Callback}
+ *     on a dedicated thread, as soon as they're ready. Their indices are queued and handed out
+ *     by {@link #dequeueInputBuffer(long)} and {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)},
+ *     which wait for a buffer up to the given timeout, instead of polling the codec.
+ *     So no input buffer freed by the codec is missed and all decoded pictures can be drained at once.
+ * </p>
+ * <p>
+ *     Codec errors are reported by the next dequeue call.
+ * </p>
+ */
+
+public class AsyncCodecAdapter implements CodecAdapter {
+
+    @NonNull
+    private final MediaCodec codec;
+    @NonNull
+    private final HandlerThread callbackThread;
+    @NonNull
+    private final Handler callbackHandler;
+
+    private final Object lock = new Object();
+
+    //Indices of input buffers ready to be filled
+    private final ArrayDeque<Integer> inputs = new ArrayDeque<>();
+    //Indices of decoded output buffers (or INFO_OUTPUT_FORMAT_CHANGED) and their infos
+    private final ArrayDeque<Integer> outputs = new ArrayDeque<>();
+    private final ArrayDeque<MediaCodec.BufferInfo> outputInfos = new ArrayDeque<>();
+    //Infos of returned buffers, reused to avoid allocation per frame
+    private final ArrayDeque<MediaCodec.BufferInfo> freeInfos = new ArrayDeque<>();
+
+    //Number of flushes not completed on the callback thread yet, buffers are not handed out meanwhile
+    private int pendingFlushes;
+    @Nullable
+    private IllegalStateException error;
+    private boolean released;
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            synchronized (lock) {
+                inputs.add(index);
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            synchronized (lock) {
+                MediaCodec.BufferInfo copy = freeInfos.poll();
+                if (copy == null) {
+                    copy = new MediaCodec.BufferInfo();
+                }
+                copy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                outputs.add(index);
+                outputInfos.add(copy);
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            synchronized (lock) {
+                error = e;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            synchronized (lock) {
+                MediaCodec.BufferInfo info = freeInfos.poll();
+                outputs.add(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+                outputInfos.add(info != null ? info : new MediaCodec.BufferInfo());
+                lock.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Creates adapter of the given codec, which must not be configured yet.
+     * @param codec the codec
+     */
+
+    public AsyncCodecAdapter(@NonNull MediaCodec codec) {
+        this.codec = Objects.requireNonNull(codec);
+        this.callbackThread = new HandlerThread("CodecCallbacks");
+        callbackThread.start();
+        this.callbackHandler = new Handler(callbackThread.getLooper());
+        //Callback must be set before configure()
+        codec.setCallback(callback, callbackHandler);
+    }
+
+    @Override
+    public void configure(@Nullable MediaFormat format, @Nullable Surface surface) {
+        codec.configure(format, surface, null, 0);
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (lock) {
+            if (!await(inputs, timeoutUs))
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            return inputs.poll();
+        }
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        synchronized (lock) {
+            if (!await(outputs, timeoutUs))
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+
+            int index = outputs.poll();
+            MediaCodec.BufferInfo stored = outputInfos.poll();
+            if (index >= 0) {
+                info.set(stored.offset, stored.size, stored.presentationTimeUs, stored.flags);
+            }
+            freeInfos.add(stored);
+            return index;
+        }
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Nullable
+    @Override
+    public MediaFormat getOutputFormat() {
+        return codec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        codec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimeNs) {
+        codec.releaseOutputBuffer(index, renderTimeNs);
+    }
+
+    @Override
+    public void setOutputSurface(@Nullable Surface surface) {
+        codec.setOutputSurface(surface);
+    }
+
+    @Override
+    public void setParameters(@NonNull Bundle params) {
+        codec.setParameters(params);
+    }
+
+    @Nullable
+    @Override
+    public MediaCodecInfo.VideoCapabilities getVideoCapabilities(@NonNull String mime) {
+        return codec.getCodecInfo().getCapabilitiesForType(mime).getVideoCapabilities();
+    }
+
+    @Override
+    public int getMaxSupportedInstances(@NonNull String mime) {
+        return codec.getCodecInfo().getCapabilitiesForType(mime).getMaxSupportedInstances();
+    }
+
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            pendingFlushes++;
+            clearBuffers();
+        }
+
+        codec.flush();
+
+        //Callbacks posted before the flush carry stale indices, drop them on the callback thread,
+        //after they've been delivered, and resume the codec (flush stops it in asynchronous mode)
+        callbackHandler.post(() -> {
+            synchronized (lock) {
+                clearBuffers();
+            }
+            try {
+                codec.start();
+            } catch (IllegalStateException e) {
+                synchronized (lock) {
+                    error = e;
+                }
+            } finally {
+                synchronized (lock) {
+                    pendingFlushes--;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        try {
+            codec.release();
+        } finally {
+            callbackThread.quitSafely();
+            synchronized (lock) {
+                released = true;
+                clearBuffers();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    //Waits till the queue is not empty, must be called holding the lock
+    private boolean await(ArrayDeque<?> queue, long timeoutUs) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(Math.max(0, timeoutUs));
+        while (true) {
+            if (released)
+                throw new IllegalStateException("Codec released");
+            if (error != null)
+                throw error;
+            if (pendingFlushes == 0 && !queue.isEmpty())
+                return true;
+
+            long remaining = deadline - System.nanoTime();
+            if (timeoutUs >= 0 && remaining <= 0)
+                return false;
+
+            try {
+                if (timeoutUs < 0) {
+                    lock.wait();
+                } else {
+                    lock.wait(TimeUnit.NANOSECONDS.toMillis(remaining), (int) (remaining % 1_000_000));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void clearBuffers() {
+        inputs.clear();
+        outputs.clear();
+        MediaCodec.BufferInfo info;
+        while ((info = outputInfos.poll()) != null) {
+            freeInfos.add(info);
+        }
+    }
+
+}
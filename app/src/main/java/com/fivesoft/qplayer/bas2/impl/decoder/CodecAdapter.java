@@ -0,0 +1,180 @@
+package com.fivesoft.qplayer.bas2.impl.decoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Subset of {@link MediaCodec} API used by
+ * {@link com.fivesoft.qplayer.bas2.impl.decoder.video.MediaCodecVideoDecoder} and audio decoders.<br>
+ * <p>
+ *     Methods follow the synchronous {@link MediaCodec} API: buffer indices are obtained with
+ *     {@link #dequeueInputBuffer(long)} and {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)},
+ *     which return {@link MediaCodec#INFO_TRY_AGAIN_LATER} if no buffer is available within the timeout.
+ *     Implementations may run the codec in any mode (see {@link AsyncCodecAdapter}),
+ *     tests may replace the codec with a fake implementation.
+ * </p>
+ * <p>
+ *     The decoder feeds input on one thread and drains output on another one, so implementations
+ *     must allow input and output methods to be called concurrently.
+ * </p>
+ */
+
+public interface CodecAdapter {
+
+    /**
+     * Configures the codec. Must be called once, before {@link #start()}.
+     * @param format format of the input data, may be null (e.g. in tests)
+     * @param surface surface to render output to, null to render nothing
+     * @see MediaCodec#configure(MediaFormat, Surface, android.media.MediaCrypto, int)
+     */
+
+    void configure(@Nullable MediaFormat format, @Nullable Surface surface);
+
+    /**
+     * Starts the codec after configuration.
+     * @see MediaCodec#start()
+     */
+
+    void start();
+
+    /**
+     * Returns index of an input buffer ready to be filled.
+     * @param timeoutUs max time to wait for a buffer in microseconds, negative to wait indefinitely
+     * @return index of the buffer or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none is available
+     * @throws IllegalStateException if the codec is not running or it has failed
+     * @see MediaCodec#dequeueInputBuffer(long)
+     */
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * Returns input buffer with the given index, obtained with {@link #dequeueInputBuffer(long)}.
+     * @param index index of the buffer
+     * @return the buffer or null if the index is not valid
+     * @see MediaCodec#getInputBuffer(int)
+     */
+
+    @Nullable
+    ByteBuffer getInputBuffer(int index);
+
+    /**
+     * Submits filled input buffer to the codec.
+     * @param index index of the buffer
+     * @param offset offset of the data in the buffer
+     * @param size size of the data
+     * @param presentationTimeUs presentation time of the data, returned with matching output buffer
+     * @param flags buffer flags, e.g. {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM}
+     * @see MediaCodec#queueInputBuffer(int, int, int, long, int)
+     */
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * Returns index of the next decoded output buffer.
+     * @param info receives offset, size, presentation time and flags of the buffer
+     * @param timeoutUs max time to wait for a buffer in microseconds, negative to wait indefinitely
+     * @return index of the buffer, {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none is available
+     * or {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} if output format has changed
+     * @throws IllegalStateException if the codec is not running or it has failed
+     * @see MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)
+     */
+
+    int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs);
+
+    /**
+     * Returns output buffer with the given index, obtained with
+     * {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)}, to read decoded data (e.g. PCM of audio codecs).
+     * @param index index of the buffer
+     * @return the buffer or null if the index is not valid or the codec renders to a surface
+     * @see MediaCodec#getOutputBuffer(int)
+     */
+
+    @Nullable
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Returns format of the decoded data, after {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} has been dequeued.
+     * @return the format or null if not known
+     * @see MediaCodec#getOutputFormat()
+     */
+
+    @Nullable
+    MediaFormat getOutputFormat();
+
+    /**
+     * Returns output buffer to the codec, optionally rendering it on the output surface.
+     * @param index index of the buffer obtained with {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)}
+     * @param render true to render the buffer
+     * @see MediaCodec#releaseOutputBuffer(int, boolean)
+     */
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Returns output buffer to the codec, rendering it on the output surface at the given time.
+     * @param index index of the buffer obtained with {@link #dequeueOutputBuffer(MediaCodec.BufferInfo, long)}
+     * @param renderTimeNs time to show the buffer at, in the {@link System#nanoTime()} time base
+     * @see MediaCodec#releaseOutputBuffer(int, long)
+     */
+
+    void releaseOutputBuffer(int index, long renderTimeNs);
+
+    /**
+     * Changes the output surface of a running codec.
+     * @param surface the new surface
+     * @throws IllegalArgumentException if the surface can't be used by the codec
+     * @see MediaCodec#setOutputSurface(Surface)
+     */
+
+    void setOutputSurface(@Nullable Surface surface);
+
+    /**
+     * Passes additional parameters to the codec.
+     * @param params parameters
+     * @see MediaCodec#setParameters(Bundle)
+     */
+
+    void setParameters(@NonNull Bundle params);
+
+    /**
+     * Returns video capabilities of the codec for the given mime type.
+     * @param mime mime type
+     * @return capabilities or null if not known
+     */
+
+    @Nullable
+    MediaCodecInfo.VideoCapabilities getVideoCapabilities(@NonNull String mime);
+
+    /**
+     * Returns max number of instances of the codec, which may exist at once.
+     * @param mime mime type
+     * @return max number of instances, 0 if not known
+     * @see MediaCodecInfo.CodecCapabilities#getMaxSupportedInstances()
+     */
+
+    int getMaxSupportedInstances(@NonNull String mime);
+
+    /**
+     * Discards all input and output buffers. The codec keeps running,
+     * input buffers become available again afterwards.
+     * @see MediaCodec#flush()
+     */
+
+    void flush();
+
+    /**
+     * Releases the codec and its resources. The adapter can't be used afterwards.
+     * @see MediaCodec#release()
+     */
+
+    void release();
+
+}
@@ -0,0 +1,438 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.audio.aac;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.UnsupportedSampleException;
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.AudioDecoder;
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.AsyncCodecAdapter;
+import com.fivesoft.qplayer.bas2.impl.decoder.CodecAdapter;
+import com.fivesoft.qplayer.bas2.resolver.Creator;
+import com.fivesoft.qplayer.track.AudioTrack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AAC decoder backed by {@link MediaCodec}, writing decoded PCM to an {@link AudioSink}.<br>
+ * <p>
+ *     RTP samples are depacketized by {@link RtpAacFrameBuilder} (RFC 3640, {@code mpeg4-generic}),
+ *     raw samples are expected to be single access units, optionally with ADTS headers.
+ *     The codec is configured from the AudioSpecificConfig of the track ({@code config} fmtp parameter,
+ *     csd index 0) or from the first ADTS header.
+ * </p>
+ * <p>
+ *     Decoding never waits: if the codec has no free input buffer, the access unit is dropped
+ *     (a short gap in audio is better than audio falling behind), decoded PCM is drained right away
+ *     and written to the sink, which doesn't block either. The codec is accessed through
+ *     {@link CodecAdapter} (see {@link #createCodecAdapter()}), so tests may run the decoder on a fake codec.
+ * </p>
+ */
+
+public class AacDecoder extends AudioDecoder {
+
+    public static final List<Integer> SUPPORTED_SAMPLE_FORMATS =
+            new ArrayList<>(Arrays.asList(MediaDecoder.FORMAT_RTP, MediaDecoder.FORMAT_RAW));
+
+    public static final Creator<Descriptor, AudioDecoder> CREATOR =
+            new Creator<Descriptor, AudioDecoder>() {
+
+        @Override
+        public int accept(Descriptor t) {
+            if (t == null || !(t.track instanceof AudioTrack))
+                return 0;
+
+            if (!SUPPORTED_SAMPLE_FORMATS.contains(t.sampleFormat))
+                return 0;
+
+            String format = t.track.getFormat();
+            if (format == null)
+                return 0;
+
+            format = format.toLowerCase()
+                    .replace(" ", "");
+
+            if (format.equals("mpeg4-generic")) {
+                //The payload format carries other MPEG-4 streams too, e.g. CELP
+                String mode = ((AudioTrack) t.track).getMode();
+                return mode == null || mode.toLowerCase().startsWith("aac") ? 1 : 0;
+            }
+
+            if (t.sampleFormat == MediaDecoder.FORMAT_RAW && (format.equals("aac") ||
+                    format.equals("audio/aac") || format.equals(MIME)))
+                return 1;
+
+            return 0;
+        }
+
+        @Nullable
+        @Override
+        public AacDecoder create(Descriptor t) {
+            if (accept(t) > 0)
+                return new AacDecoder((AudioTrack) t.track, t.sampleFormat, t.maxEncodedFrameSize);
+
+            return null;
+        }
+    };
+
+    public static final String MIME = "audio/mp4a-latm";
+
+    private static final String TAG = "AacDecoder";
+
+    private static final long DEQUEUE_INPUT_TIMEOUT_US = 0;
+    //Output of the queued access unit is usually ready within this time, so it's not left for the next one
+    private static final long DEQUEUE_OUTPUT_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(2);
+
+    @NonNull
+    private final FrameBuilder frameBuilder;
+
+    private volatile CodecAdapter codec;
+    //Config the codec has been configured with
+    private AudioSpecificConfig codecConfig;
+    //Config from csd, or from ADTS headers
+    @Nullable
+    private volatile AudioSpecificConfig config;
+    private volatile boolean released = false;
+
+    private volatile int sampleRate = Constants.UNKNOWN_VALUE;
+    private volatile int channelCount = Constants.UNKNOWN_VALUE;
+
+    //Sink and format it has been configured with
+    private AudioSink configuredSink;
+    private int configuredSampleRate, configuredChannelCount;
+
+    @NonNull
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    //Decoded PCM, reused
+    @NonNull
+    private short[] pcm = new short[2048];
+
+    private volatile long decodedFrames;
+    private volatile long droppedFrames;
+
+    /**
+     * Creates a new AAC decoder for the specified audio track.
+     *
+     * @param track               The track that the decoder decodes. Cannot be null.
+     * @param sampleFormat        The sample format, {@link MediaDecoder#FORMAT_RTP} or {@link MediaDecoder#FORMAT_RAW}.
+     * @param maxEncodedFrameSize Max size of encoded access unit.
+     * @throws UnsupportedSampleFormatException If the specified sample format is not supported.
+     */
+
+    public AacDecoder(@NonNull AudioTrack track, int sampleFormat, int maxEncodedFrameSize) throws UnsupportedSampleFormatException {
+        super(track, sampleFormat, maxEncodedFrameSize);
+        this.frameBuilder = createFrameBuilder(sampleFormat, maxEncodedFrameSize);
+    }
+
+    @NonNull
+    static FrameBuilder createFrameBuilder(int sampleFormat, int maxEncodedFrameSize) throws UnsupportedSampleFormatException {
+        if (sampleFormat == MediaDecoder.FORMAT_RAW) {
+            return FrameBuilder.RAW_FRAME_BUILDER;
+        } else if (sampleFormat == MediaDecoder.FORMAT_RTP) {
+            return new RtpAacFrameBuilder(maxEncodedFrameSize);
+        } else {
+            throw new UnsupportedSampleFormatException("Unsupported sample format: " + sampleFormat);
+        }
+    }
+
+    @Override
+    public void setCsd(@Nullable Csd csd) throws IllegalStateException {
+        byte[] bytes = csd == null ? null : csd.getCsd(0);
+        if (bytes == null || bytes.length == 0)
+            return;
+
+        AudioSpecificConfig parsed = AudioSpecificConfig.parse(bytes);
+        if (parsed == null) {
+            Log.println(Log.ASSERT, TAG, "Invalid AudioSpecificConfig: " + Arrays.toString(bytes));
+            return;
+        }
+        this.config = parsed;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Frame feed(@NonNull Sample sample) throws IllegalStateException, UnsupportedSampleException, NullPointerException {
+        checkReleased();
+        return frameBuilder.pull(sample);
+    }
+
+    @Nullable
+    @Override
+    public synchronized Frame poll() throws IllegalStateException {
+        checkReleased();
+        return frameBuilder.poll();
+    }
+
+    @Override
+    public synchronized int decode(@NonNull Frame frame)
+            throws IllegalStateException, UnsupportedSampleException, MediaDecoderException, NullPointerException {
+        checkReleased();
+
+        try {
+            byte[] data = frame.getArray();
+            int off = frame.getOffset();
+            int len = frame.getLength();
+
+            int adtsHeaderSize = AudioSpecificConfig.getAdtsHeaderSize(data, off, len);
+            if (adtsHeaderSize > 0) {
+                if (config == null) {
+                    config = AudioSpecificConfig.fromAdtsHeader(data, off, len);
+                }
+                //Codec is configured for raw access units
+                off += adtsHeaderSize;
+                len -= adtsHeaderSize;
+            }
+
+            AudioSpecificConfig config = this.config;
+            if (config == null)
+                return MediaDecoder.ACTION_NOT_CONFIGURED;
+
+            CodecAdapter codec = ensureMediaCodec(config);
+
+            //Free input buffers held by decoded output
+            int written = drainOutput(codec, 0);
+
+            int inIndex = codec.dequeueInputBuffer(DEQUEUE_INPUT_TIMEOUT_US);
+            if (inIndex < 0) {
+                //noinspection NonAtomicOperationOnVolatileField
+                droppedFrames++;
+                return MediaDecoder.ACTION_DROP_FRAME_NON_REFERENCE;
+            }
+
+            ByteBuffer bb = codec.getInputBuffer(inIndex);
+            if (bb == null || bb.capacity() < len) {
+                codec.queueInputBuffer(inIndex, 0, 0, 0, 0);
+                throw new UnsupportedSampleException("Access unit too big: " + len);
+            }
+            bb.clear();
+            bb.put(data, off, len);
+            codec.queueInputBuffer(inIndex, 0, len, TimeUnit.MILLISECONDS.toMicros(frame.timestamp), 0);
+            //noinspection NonAtomicOperationOnVolatileField
+            decodedFrames++;
+
+            written += drainOutput(codec, DEQUEUE_OUTPUT_TIMEOUT_US);
+            return written > 0 ? MediaDecoder.ACTION_RENDER_SYNC_FRAME : MediaDecoder.ACTION_NONE;
+        } catch (UnsupportedSampleException e) {
+            throw e;
+        } catch (Exception e) {
+            if (!isReleased()) {
+                destroyMediaCodec();
+                throw new MediaDecoderException(e);
+            }
+        } finally {
+            //Frame data has been copied to the codec (or dropped), its memory may be reused
+            frame.release();
+            if (isReleased()) {
+                destroyMediaCodec();
+            }
+        }
+        return MediaDecoder.ACTION_NONE;
+    }
+
+    @Override
+    public synchronized void flush() {
+        CodecAdapter codec = this.codec;
+        if (codec != null) {
+            try {
+                codec.flush();
+            } catch (Exception e) {
+                //Codec is recreated with the next frame
+                destroyMediaCodec();
+            }
+        }
+        AudioSink sink = getSink();
+        if (sink != null) {
+            sink.flush();
+        }
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        //Waits for decode() in progress
+        synchronized (this) {
+            destroyMediaCodec();
+            frameBuilder.clear();
+        }
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Returns number of access units queued to the codec.
+     * @return number of decoded access units
+     */
+
+    public long getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    /**
+     * Returns number of access units dropped, because the codec had no free input buffer.
+     * @return number of dropped access units
+     */
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Creates the codec adapter used to decode access units, called each time the codec is (re)created.<br>
+     * By default creates {@link AsyncCodecAdapter} of an AAC decoder,
+     * tests may override it to run the decoder on a fake codec.
+     * @return new, not configured adapter
+     * @throws IOException if the codec can't be created
+     */
+
+    @NonNull
+    protected CodecAdapter createCodecAdapter() throws IOException {
+        return new AsyncCodecAdapter(MediaCodec.createDecoderByType(MIME));
+    }
+
+    @NonNull
+    private CodecAdapter ensureMediaCodec(@NonNull AudioSpecificConfig config) throws IOException {
+        CodecAdapter codec = this.codec;
+        if (codec != null && config == codecConfig)
+            return codec;
+
+        destroyMediaCodec();
+
+        int channels = getConfigChannelCount(config);
+        MediaFormat format = MediaFormat.createAudioFormat(MIME, config.sampleRate, channels > 0 ? channels : 2);
+        format.setInteger(MediaFormat.KEY_IS_ADTS, 0);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(config.getBytes()));
+
+        codec = createCodecAdapter();
+        try {
+            codec.configure(format, null);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+
+        this.codec = codec;
+        this.codecConfig = config;
+        //Codec reports the actual format with INFO_OUTPUT_FORMAT_CHANGED, until then the config is trusted
+        sampleRate = config.sampleRate;
+        channelCount = channels;
+        return codec;
+    }
+
+    private int getConfigChannelCount(@NonNull AudioSpecificConfig config) {
+        if (config.channelCount > 0)
+            return config.channelCount;
+        //Channels of program config element, the track may know them from SDP
+        int channels = track.getChannels();
+        return channels > 0 ? channels : Constants.UNKNOWN_VALUE;
+    }
+
+    private void destroyMediaCodec() {
+        CodecAdapter codec = this.codec;
+        this.codec = null;
+        this.codecConfig = null;
+        if (codec != null) {
+            try {
+                codec.release();
+            } catch (Exception e) {
+                //Already released
+            }
+        }
+    }
+
+    //Writes all decoded PCM to the sink, waits up to the timeout for the first output buffer.
+    //Returns number of samples written.
+    private int drainOutput(@NonNull CodecAdapter codec, long firstTimeoutUs) {
+        int written = 0;
+        long timeoutUs = firstTimeoutUs;
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, timeoutUs);
+            timeoutUs = 0;
+
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormatChanged(codec.getOutputFormat());
+                continue;
+            }
+            if (index < 0)
+                return written;
+
+            try {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null && info.size > 0) {
+                    written += writePcm(buffer, info.offset, info.size, info.presentationTimeUs);
+                }
+            } finally {
+                codec.releaseOutputBuffer(index, false);
+            }
+        }
+    }
+
+    private void onOutputFormatChanged(@Nullable MediaFormat format) {
+        if (format == null)
+            return;
+        if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        }
+        if (format.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
+            channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+    }
+
+    private int writePcm(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs) {
+        AudioSink sink = getSink();
+        int rate = sampleRate;
+        int channels = channelCount;
+        if (sink == null || rate <= 0 || channels <= 0)
+            return 0;
+
+        if (sink != configuredSink || rate != configuredSampleRate || channels != configuredChannelCount) {
+            sink.configure(rate, channels);
+            configuredSink = sink;
+            configuredSampleRate = rate;
+            configuredChannelCount = channels;
+        }
+
+        buffer.position(offset);
+        buffer.limit(offset + size);
+        //Codec writes 16-bit PCM in native byte order
+        ShortBuffer samples = buffer.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+        int n = samples.remaining();
+        if (pcm.length < n) {
+            pcm = new short[n];
+        }
+        samples.get(pcm, 0, n);
+        return sink.write(pcm, 0, n, presentationTimeUs);
+    }
+
+}
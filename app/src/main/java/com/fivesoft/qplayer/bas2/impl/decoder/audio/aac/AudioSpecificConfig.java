@@ -0,0 +1,230 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.audio.aac;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.common.Constants;
+
+import java.util.Locale;
+
+/**
+ * Parsed MPEG-4 AudioSpecificConfig (ISO/IEC 14496-3, 1.6.2.1), the codec specific data of AAC streams.<br>
+ * <p>
+ *     RTSP cameras send it hex encoded in the {@code config} parameter of the fmtp attribute,
+ *     ADTS streams carry the same information in the header of every frame
+ *     (see {@link #fromAdtsHeader(byte[], int, int)}). Only the fields needed to set up decoding
+ *     and audio output are parsed: object type, sample rate and channel count.
+ * </p>
+ */
+
+public final class AudioSpecificConfig {
+
+    public static final int OBJECT_TYPE_AAC_LC = 2;
+    public static final int OBJECT_TYPE_SBR = 5;
+    public static final int OBJECT_TYPE_PS = 29;
+
+    /**
+     * Length of ADTS header without CRC.
+     */
+
+    public static final int ADTS_HEADER_SIZE = 7;
+
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    //Index of a sample rate coded explicitly in 24 bits
+    private static final int EXPLICIT_SAMPLE_RATE = 15;
+
+    public final int objectType;
+    public final int sampleRate;
+    public final int channelCount;
+    @NonNull
+    private final byte[] bytes;
+
+    private AudioSpecificConfig(int objectType, int sampleRate, int channelCount, @NonNull byte[] bytes) {
+        this.objectType = objectType;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Parses AudioSpecificConfig.<br>
+     * For HE-AAC (SBR, PS) the sample rate is the extension (output) sample rate.
+     * @param data array containing the config
+     * @param off offset of the config
+     * @param len length of the config
+     * @return the config or null if it's truncated or has a reserved sample rate index
+     */
+
+    @Nullable
+    public static AudioSpecificConfig parse(@NonNull byte[] data, int off, int len) {
+        BitReader reader = new BitReader(data, off, len);
+        try {
+            int objectType = readObjectType(reader);
+            int sampleRate = readSampleRate(reader);
+            int channelConfig = reader.read(4);
+
+            if (objectType == OBJECT_TYPE_SBR || objectType == OBJECT_TYPE_PS) {
+                //Explicit hierarchical signaling, the core runs at half the output rate
+                sampleRate = readSampleRate(reader);
+                objectType = readObjectType(reader);
+            }
+
+            if (sampleRate <= 0)
+                return null;
+
+            byte[] bytes = new byte[len];
+            System.arraycopy(data, off, bytes, 0, len);
+            return new AudioSpecificConfig(objectType, sampleRate, getChannelCount(channelConfig), bytes);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses AudioSpecificConfig.
+     * @param data the config
+     * @return the config or null if it's not valid
+     * @see #parse(byte[], int, int)
+     */
+
+    @Nullable
+    public static AudioSpecificConfig parse(@NonNull byte[] data) {
+        return parse(data, 0, data.length);
+    }
+
+    /**
+     * Creates config from an ADTS header.
+     * @param data array containing the header
+     * @param off offset of the header
+     * @param len length of available data
+     * @return the config or null if data doesn't start with a valid ADTS header
+     */
+
+    @Nullable
+    public static AudioSpecificConfig fromAdtsHeader(@NonNull byte[] data, int off, int len) {
+        if (getAdtsHeaderSize(data, off, len) == 0)
+            return null;
+
+        int objectType = ((data[off + 2] & 0xC0) >> 6) + 1;
+        int sampleRateIndex = (data[off + 2] & 0x3C) >> 2;
+        int channelConfig = ((data[off + 2] & 0x01) << 2) | ((data[off + 3] & 0xC0) >> 6);
+        if (sampleRateIndex >= SAMPLE_RATES.length)
+            return null;
+
+        //AudioSpecificConfig equivalent to the header: 5 bits object type, 4 bits rate index, 4 bits channels
+        byte[] bytes = {
+                (byte) ((objectType << 3) | (sampleRateIndex >> 1)),
+                (byte) (((sampleRateIndex & 0x01) << 7) | (channelConfig << 3))
+        };
+        return new AudioSpecificConfig(objectType, SAMPLE_RATES[sampleRateIndex], getChannelCount(channelConfig), bytes);
+    }
+
+    /**
+     * Returns size of ADTS header at the given offset.
+     * @param data array containing the frame
+     * @param off offset of the frame
+     * @param len length of the frame
+     * @return size of the header (7 or 9 bytes with CRC) or 0 if the frame doesn't start with an ADTS header
+     */
+
+    public static int getAdtsHeaderSize(@NonNull byte[] data, int off, int len) {
+        if (len < ADTS_HEADER_SIZE || (data[off] & 0xFF) != 0xFF || (data[off + 1] & 0xF6) != 0xF0)
+            return 0;
+        //protection_absent is 0 if the header is followed by CRC
+        int size = (data[off + 1] & 0x01) != 0 ? ADTS_HEADER_SIZE : ADTS_HEADER_SIZE + 2;
+        return len >= size ? size : 0;
+    }
+
+    /**
+     * Returns the raw config, e.g. for csd-0 of {@link android.media.MediaFormat}.
+     * @return copy of the config bytes
+     */
+
+    @NonNull
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "AudioSpecificConfig{objectType=%d, sampleRate=%d, channelCount=%d}",
+                objectType, sampleRate, channelCount);
+    }
+
+    private static int readObjectType(@NonNull BitReader reader) {
+        int objectType = reader.read(5);
+        return objectType == 31 ? 32 + reader.read(6) : objectType;
+    }
+
+    //Returns sample rate or 0 if the index is reserved
+    private static int readSampleRate(@NonNull BitReader reader) {
+        int index = reader.read(4);
+        if (index == EXPLICIT_SAMPLE_RATE)
+            return reader.read(24);
+        return index < SAMPLE_RATES.length ? SAMPLE_RATES[index] : 0;
+    }
+
+    private static int getChannelCount(int channelConfig) {
+        if (channelConfig == 0) {
+            //Defined by program config element, which isn't parsed
+            return Constants.UNKNOWN_VALUE;
+        }
+        return channelConfig == 7 ? 8 : channelConfig < 7 ? channelConfig : Constants.UNKNOWN_VALUE;
+    }
+
+    /*
+     * MSB first reader of bit fields.
+     */
+
+    static final class BitReader {
+
+        private byte[] data;
+        private int end;
+        private long start;
+        private long bitPos;
+
+        BitReader() {
+            this(new byte[0], 0, 0);
+        }
+
+        BitReader(@NonNull byte[] data, int off, int len) {
+            reset(data, off, len);
+        }
+
+        //Starts reading the given data, so the reader can be reused
+        void reset(@NonNull byte[] data, int off, int len) {
+            this.data = data;
+            this.end = off + len;
+            this.start = (long) off * 8;
+            this.bitPos = start;
+        }
+
+        //Reads up to 32 bits, throws IndexOutOfBoundsException past the end
+        int read(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                int index = (int) (bitPos >>> 3);
+                if (index >= end)
+                    throw new IndexOutOfBoundsException("Read past the end");
+                value = (value << 1) | ((data[index] >> (7 - (int) (bitPos & 7))) & 1);
+                bitPos++;
+            }
+            return value;
+        }
+
+        void skip(int bits) {
+            bitPos += bits;
+        }
+
+        //Number of bits read or skipped since the reset
+        long getPosition() {
+            return bitPos - start;
+        }
+
+    }
+
+}
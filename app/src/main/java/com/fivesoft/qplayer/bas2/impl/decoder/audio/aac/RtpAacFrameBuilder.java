@@ -0,0 +1,461 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.audio.aac;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.track.AudioTrack;
+import com.fivesoft.qplayer.track.Track;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Builder of AAC access units from RTP payloads of the {@code mpeg4-generic} format (RFC 3640).<br>
+ * <p>
+ *     Each payload starts with the AU header section describing the access units (AUs) in the packet.
+ *     Its layout is given by fmtp parameters of the track ({@code sizeLength}, {@code indexLength},
+ *     {@code indexDeltaLength}, {@code CTSDeltaLength}, {@code DTSDeltaLength},
+ *     {@code randomAccessIndication}, {@code streamStateIndication}, {@code auxiliaryDataSizeLength}),
+ *     which are read from the track metadata, case insensitive. If they are missing, defaults of the mode
+ *     are used: {@code AAC-hbr} 13/3/3, {@code AAC-lbr} 6/2/2 bits of size/index/index delta.
+ *     Without any AU header fields the packet carries a single AU, completed by the marker bit.
+ * </p>
+ * <p>
+ *     Packets with several AUs are split: {@link #pull(Sample)} returns the first AU
+ *     and {@link #poll()} the following ones. The RTP timestamp is the one of the first AU,
+ *     the others get it increased by {@code constantDuration} (1024 samples by default) per AU index.
+ *     AUs bigger than a packet are fragmented over consecutive packets and reassembled here;
+ *     fragments of an AU broken by packet loss are dropped, AAC frames don't depend on each other,
+ *     so the following AUs are decoded normally.
+ * </p>
+ * <p>
+ *     Frames are copied to arrays obtained from {@link ByteArrayPool}, so they should be released
+ *     with {@link Frame#release()} when they're not needed anymore. The builder is not thread-safe,
+ *     it should be used by one (feeding) thread only.
+ * </p>
+ */
+
+public class RtpAacFrameBuilder extends FrameBuilder {
+
+    /**
+     * Default number of samples (per channel) of one AAC access unit.
+     */
+
+    public static final int DEFAULT_CONSTANT_DURATION = 1024;
+
+    private static final String MODE_HBR = "aac-hbr";
+    private static final String MODE_LBR = "aac-lbr";
+
+    private static final int NO_FRAGMENT = -1;
+    //Size of a fragmented AU which has no AU header, the AU ends with the marker bit
+    private static final int UNKNOWN_SIZE = -2;
+
+    @NonNull
+    private final ByteArrayPool pool;
+
+    //Track the AU header layout has been read for
+    @Nullable
+    private Track configuredTrack;
+    private int sizeLength;
+    private int indexLength;
+    private int indexDeltaLength;
+    private int ctsDeltaLength;
+    private int dtsDeltaLength;
+    private int auxiliaryDataSizeLength;
+    private boolean randomAccessIndication;
+    private int streamStateIndication;
+    private int constantDuration = DEFAULT_CONSTANT_DURATION;
+
+    @NonNull
+    private final AudioSpecificConfig.BitReader reader = new AudioSpecificConfig.BitReader();
+    //Sizes and index offsets (from the first AU) of AUs of the current packet
+    @NonNull
+    private int[] auSizes = new int[8];
+    @NonNull
+    private int[] auIndexes = new int[8];
+
+    //AU being reassembled from fragments
+    @Nullable
+    private PooledByteArray fragment;
+    private int fragmentLen;
+    private int fragmentSize = NO_FRAGMENT;
+    private long fragmentTimestamp;
+    private Track fragmentTrack;
+
+    private int lastSequenceNumber = Sample.UNKNOWN_SEQUENCE_NUMBER;
+    private long droppedFrames;
+    //Set when the last pull dropped a fragment because of loss, the rest of that AU isn't counted again
+    private boolean fragmentLost;
+
+    //AUs completed by the last pull, returned by poll()
+    @NonNull
+    private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+
+    /**
+     * Creates builder with specified max frame size and buffer pool.
+     * @param maxFrameSize If an AU is bigger than this value, {@link BufferOverflowException}
+     *                     will be thrown by {@link #pull(Sample)} method.
+     * @param pool Pool to obtain frame arrays from.
+     */
+
+    public RtpAacFrameBuilder(int maxFrameSize, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize);
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    /**
+     * Creates builder with specified max frame size, using {@link ByteArrayPool#getDefault()}.
+     * @param maxFrameSize max size of an AU
+     */
+
+    public RtpAacFrameBuilder(int maxFrameSize) {
+        this(maxFrameSize, ByteArrayPool.getDefault());
+    }
+
+    @Nullable
+    @Override
+    public Frame pull(@NonNull Sample sample) throws BufferOverflowException {
+        Objects.requireNonNull(sample);
+
+        byte[] data = sample.getArray();
+        int off = sample.getOffset();
+        int length = sample.getLength();
+
+        releasePending();
+        if (length < 1)
+            return null;
+
+        configure(sample.track);
+
+        boolean loss = checkSequenceNumber(sample.sequenceNumber);
+        fragmentLost = loss && fragmentSize != NO_FRAGMENT;
+        if (fragmentSize != NO_FRAGMENT && (loss || sample.timestamp != fragmentTimestamp)) {
+            if (fragmentSize == UNKNOWN_SIZE && !loss) {
+                //Marker bit of the previous AU is missing, the new timestamp ends it
+                completeFragment();
+            } else {
+                dropFragment();
+            }
+        }
+
+        try {
+            if (hasAuHeaders()) {
+                processPacket(data, off, length, sample);
+            } else {
+                processHeaderlessPacket(data, off, length, sample);
+            }
+        } catch (BufferOverflowException e) {
+            clear();
+            throw e;
+        }
+
+        return pending.poll();
+    }
+
+    @Nullable
+    @Override
+    public Frame poll() {
+        return pending.poll();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return fragmentLen;
+    }
+
+    @Override
+    public void clear() {
+        releasePending();
+        fragmentLen = 0;
+        fragmentSize = NO_FRAGMENT;
+    }
+
+    /**
+     * Returns number of AUs dropped, because they were incomplete (e.g. by packet loss) or malformed.
+     * @return number of dropped AUs
+     */
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    //Reads AU header layout from the track, once per track
+    private void configure(@Nullable Track track) {
+        if (track == null || track == configuredTrack)
+            return;
+        configuredTrack = track;
+
+        Map<String, Object> metadata = new HashMap<>();
+        track.getAllMetadata(metadata);
+        Map<String, String> params = new HashMap<>();
+        for (Map.Entry<String, Object> e : metadata.entrySet()) {
+            if (e.getValue() != null) {
+                params.put(e.getKey().toLowerCase(), e.getValue().toString().trim());
+            }
+        }
+
+        String mode = track instanceof AudioTrack ? ((AudioTrack) track).getMode() : null;
+        mode = mode == null ? "" : mode.trim().toLowerCase();
+        int defaultSize = 0, defaultIndex = 0;
+        if (mode.equals(MODE_HBR)) {
+            defaultSize = 13;
+            defaultIndex = 3;
+        } else if (mode.equals(MODE_LBR)) {
+            defaultSize = 6;
+            defaultIndex = 2;
+        }
+
+        sizeLength = getBits(params, "sizelength", defaultSize);
+        indexLength = getBits(params, "indexlength", defaultIndex);
+        indexDeltaLength = getBits(params, "indexdeltalength", defaultIndex);
+        ctsDeltaLength = getBits(params, "ctsdeltalength", 0);
+        dtsDeltaLength = getBits(params, "dtsdeltalength", 0);
+        auxiliaryDataSizeLength = getBits(params, "auxiliarydatasizelength", 0);
+        randomAccessIndication = getInt(params, "randomaccessindication", 0) != 0;
+        streamStateIndication = getBits(params, "streamstateindication", 0);
+        constantDuration = getInt(params, "constantduration", DEFAULT_CONSTANT_DURATION);
+        if (constantDuration <= 0) {
+            constantDuration = DEFAULT_CONSTANT_DURATION;
+        }
+    }
+
+    private static int getInt(@NonNull Map<String, String> params, @NonNull String key, int defaultValue) {
+        String value = params.get(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    //Length of an AU header field, fields are read as ints
+    private static int getBits(@NonNull Map<String, String> params, @NonNull String key, int defaultValue) {
+        return Math.max(0, Math.min(31, getInt(params, key, defaultValue)));
+    }
+
+    private boolean hasAuHeaders() {
+        return sizeLength > 0 || indexLength > 0 || indexDeltaLength > 0 || ctsDeltaLength > 0
+                || dtsDeltaLength > 0 || randomAccessIndication || streamStateIndication > 0;
+    }
+
+    private void processPacket(byte[] data, int off, int length, @NonNull Sample sample) {
+        int end = off + length;
+        if (length < 2) {
+            droppedFrames++;
+            return;
+        }
+
+        //AU-headers-length is in bits, headers are padded to whole bytes
+        int headersBits = ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+        int pos = off + 2 + (headersBits + 7) / 8;
+        if (pos > end) {
+            droppedFrames++;
+            return;
+        }
+
+        int count = 0;
+        reader.reset(data, off + 2, pos - off - 2);
+        try {
+            int index = 0;
+            while (reader.getPosition() < headersBits) {
+                int size = reader.read(sizeLength);
+                index = count == 0 ? 0 : index + reader.read(indexDeltaLength) + 1;
+                if (count == 0) {
+                    //Index of the first AU only matters for interleaving, which isn't supported
+                    reader.skip(indexLength);
+                }
+                if (ctsDeltaLength > 0 && reader.read(1) != 0) {
+                    reader.skip(ctsDeltaLength);
+                }
+                if (dtsDeltaLength > 0 && reader.read(1) != 0) {
+                    reader.skip(dtsDeltaLength);
+                }
+                if (randomAccessIndication) {
+                    reader.skip(1);
+                }
+                reader.skip(streamStateIndication);
+                if (reader.getPosition() > headersBits)
+                    break;
+
+                if (count == auSizes.length) {
+                    auSizes = Arrays.copyOf(auSizes, count * 2);
+                    auIndexes = Arrays.copyOf(auIndexes, count * 2);
+                }
+                auSizes[count] = size;
+                auIndexes[count] = index;
+                count++;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            count = 0;
+        }
+
+        if (auxiliaryDataSizeLength > 0 && pos < end) {
+            reader.reset(data, pos, end - pos);
+            try {
+                int auxiliaryBits = reader.read(auxiliaryDataSizeLength);
+                pos += (auxiliaryDataSizeLength + auxiliaryBits + 7) / 8;
+            } catch (IndexOutOfBoundsException e) {
+                pos = end + 1;
+            }
+        }
+
+        if (count == 0 || pos > end) {
+            dropFragment();
+            droppedFrames++;
+            return;
+        }
+
+        if (fragmentSize != NO_FRAGMENT) {
+            //Following fragment repeats the AU header of the first one
+            if (count == 1 && auSizes[0] == fragmentSize) {
+                appendFragment(data, pos, end - pos);
+                if (fragmentLen >= fragmentSize) {
+                    fragmentLen = fragmentSize;
+                    completeFragment();
+                } else if (sample.marker) {
+                    //Last fragment arrived, but the AU is still incomplete
+                    dropFragment();
+                }
+                return;
+            }
+            dropFragment();
+        }
+
+        for (int i = 0; i < count; i++) {
+            int size = auSizes[i];
+            if (size > maxFrameSize)
+                throw new BufferOverflowException();
+
+            long timestamp = sample.timestamp + getTimestampOffset(sample.track, auIndexes[i]);
+            int available = end - pos;
+            if (size <= available) {
+                pending.add(createFrame(data, pos, size, timestamp, sample.track));
+                pos += size;
+            } else if (count == 1) {
+                //The AU continues in the following packets
+                if (sample.marker) {
+                    //Last fragment of an AU whose beginning has been lost
+                    if (!fragmentLost) {
+                        droppedFrames++;
+                    }
+                    return;
+                }
+                startFragment(size, timestamp, sample.track);
+                appendFragment(data, pos, available);
+            } else {
+                //Sizes don't match the payload, the rest of the packet can't be trusted
+                droppedFrames += count - i;
+                return;
+            }
+        }
+    }
+
+    private void processHeaderlessPacket(byte[] data, int off, int length, @NonNull Sample sample) {
+        if (fragmentSize == NO_FRAGMENT) {
+            startFragment(UNKNOWN_SIZE, sample.timestamp, sample.track);
+        }
+        appendFragment(data, off, length);
+        if (sample.marker) {
+            completeFragment();
+        }
+    }
+
+    //Offset of the AU with the given index from the first AU of the packet, in units of the sample timestamps
+    private long getTimestampOffset(@Nullable Track track, int index) {
+        if (index == 0)
+            return 0;
+        long ticks = (long) index * constantDuration;
+        int clockRate = track == null ? 0 : track.getClockRate();
+        //Timestamps are converted to milliseconds if the clock rate is known
+        return clockRate > 0 ? ticks * 1000 / clockRate : ticks;
+    }
+
+    private void startFragment(int size, long timestamp, Track track) {
+        fragmentSize = size;
+        fragmentLen = 0;
+        fragmentTimestamp = timestamp;
+        fragmentTrack = track;
+        if (size > 0) {
+            ensureCapacity(size);
+        }
+    }
+
+    private void appendFragment(byte[] data, int off, int length) {
+        int n = fragmentSize > 0 ? Math.min(length, fragmentSize - fragmentLen) : length;
+        ensureCapacity(fragmentLen + n);
+        System.arraycopy(data, off, Objects.requireNonNull(fragment).array(), fragmentLen, n);
+        fragmentLen += n;
+    }
+
+    private void completeFragment() {
+        if (fragmentLen > 0) {
+            pending.add(createFrame(Objects.requireNonNull(fragment).array(), 0, fragmentLen,
+                    fragmentTimestamp, fragmentTrack));
+        }
+        fragmentLen = 0;
+        fragmentSize = NO_FRAGMENT;
+    }
+
+    private void dropFragment() {
+        if (fragmentSize != NO_FRAGMENT) {
+            droppedFrames++;
+        }
+        fragmentLen = 0;
+        fragmentSize = NO_FRAGMENT;
+    }
+
+    private void ensureCapacity(int required) throws BufferOverflowException {
+        if (required > maxFrameSize)
+            throw new BufferOverflowException();
+
+        PooledByteArray buf = fragment;
+        if (buf != null && buf.size() >= required)
+            return;
+
+        PooledByteArray grown = pool.obtain(Math.max(required, buf == null ? 0 : (int) Math.min(maxFrameSize, buf.size() * 2L)));
+        if (buf != null) {
+            System.arraycopy(buf.array(), 0, grown.array(), 0, fragmentLen);
+            buf.release();
+        }
+        fragment = grown;
+    }
+
+    @NonNull
+    private Frame createFrame(byte[] data, int off, int size, long timestamp, Track track) {
+        PooledByteArray memory = pool.obtain(size);
+        System.arraycopy(data, off, memory.array(), 0, size);
+        //Every AAC access unit can be decoded on its own
+        Frame frame = new Frame(memory, 0, size, timestamp, track, Frame.SYNC_FRAME, 0);
+        frame.marker = true;
+        return frame;
+    }
+
+    private void releasePending() {
+        Frame frame;
+        while ((frame = pending.poll()) != null) {
+            //Not polled, drop it
+            frame.release();
+        }
+    }
+
+    //Returns true if packets have been lost before the given one
+    private boolean checkSequenceNumber(int sequenceNumber) {
+        if (sequenceNumber == Sample.UNKNOWN_SEQUENCE_NUMBER)
+            return false;
+
+        int last = lastSequenceNumber;
+        lastSequenceNumber = sequenceNumber;
+        return last != Sample.UNKNOWN_SEQUENCE_NUMBER && sequenceNumber != ((last + 1) & 0xFFFF);
+    }
+
+}
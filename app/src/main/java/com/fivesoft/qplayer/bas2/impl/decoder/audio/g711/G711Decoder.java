@@ -0,0 +1,423 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.audio.g711;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.UnsupportedSampleException;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.AudioDecoder;
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.resolver.Creator;
+import com.fivesoft.qplayer.track.AudioTrack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Software decoder of G.711 audio (ITU-T G.711), µ-law ({@code PCMU}) and A-law ({@code PCMA}).<br>
+ * <p>
+ *     Every byte is one sample, it's expanded to 16-bit PCM through a precomputed table of 256 values.
+ *     Optionally the PCM is resampled to the rate of the output device (see {@link #setOutputSampleRate(int)})
+ *     by linear interpolation, in the same pass as the expansion. Weights of the interpolation
+ *     are precomputed for one period of the rate ratio, so no division is done per sample.
+ * </p>
+ * <p>
+ *     PCM is written to a buffer owned by the decoder, which grows to the size of the largest packet
+ *     and is reused afterwards, so decoding allocates nothing per packet. The sink copies the PCM
+ *     in {@link AudioSink#write(short[], int, int, long)}, so the buffer is free again right after.
+ * </p>
+ */
+
+public class G711Decoder extends AudioDecoder {
+
+    public static final int ENCODING_MU_LAW = 0;
+    public static final int ENCODING_A_LAW = 1;
+
+    /**
+     * Static RTP payload types of G.711 (RFC 3551), used when SDP has no rtpmap attribute.
+     */
+
+    public static final int PAYLOAD_TYPE_PCMU = 0;
+    public static final int PAYLOAD_TYPE_PCMA = 8;
+
+    /**
+     * Sample rate of G.711.
+     */
+
+    public static final int SAMPLE_RATE = 8000;
+
+    public static final List<Integer> SUPPORTED_SAMPLE_FORMATS =
+            new ArrayList<>(Arrays.asList(MediaDecoder.FORMAT_RTP, MediaDecoder.FORMAT_RAW));
+
+    public static final Creator<Descriptor, AudioDecoder> CREATOR =
+            new Creator<Descriptor, AudioDecoder>() {
+
+        @Override
+        public int accept(Descriptor t) {
+            if (t == null || !(t.track instanceof AudioTrack))
+                return 0;
+
+            if (!SUPPORTED_SAMPLE_FORMATS.contains(t.sampleFormat))
+                return 0;
+
+            return getEncoding((AudioTrack) t.track) != ENCODING_UNKNOWN ? 1 : 0;
+        }
+
+        @Nullable
+        @Override
+        public G711Decoder create(Descriptor t) {
+            if (accept(t) > 0)
+                return new G711Decoder((AudioTrack) t.track, t.sampleFormat, t.maxEncodedFrameSize);
+
+            return null;
+        }
+    };
+
+    private static final int ENCODING_UNKNOWN = -1;
+
+    private static final short[] MU_LAW_TABLE = new short[256];
+    private static final short[] A_LAW_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            MU_LAW_TABLE[i] = muLawToLinear(i);
+            A_LAW_TABLE[i] = aLawToLinear(i);
+        }
+    }
+
+    //Interpolation weights are in 1/2^WEIGHT_BITS
+    private static final int WEIGHT_BITS = 15;
+    //Longest period of the rate ratio with precomputed weights, e.g. 441 for 8000 -> 44100 Hz
+    private static final int MAX_PHASES = 4096;
+
+    @NonNull
+    private final short[] table;
+    private final int encoding;
+    private final int sampleRate;
+    private final int channels;
+
+    private volatile int outputSampleRate;
+    private volatile boolean released = false;
+
+    //Resampling state, rebuilt when the output rate changes
+    private int resamplerRate;
+    //Per phase of the period: input sample (from the start of the period) and weight of it
+    private int[] phaseInput;
+    private int[] phaseWeight;
+    //Number of input samples per period
+    private int periodInput;
+    //Next output phase and input index of its period start, relative to the next packet
+    private int phase;
+    private long periodStart;
+    //Last input sample of each channel, interpolated with the first one of the next packet
+    @NonNull
+    private final short[] previous;
+
+    //Sink and format it has been configured with
+    private AudioSink configuredSink;
+    private int configuredSampleRate;
+
+    //Decoded PCM, reused
+    @NonNull
+    private short[] pcm = new short[0];
+
+    private volatile long decodedSamples;
+
+    /**
+     * Creates a new G.711 decoder for the specified audio track.
+     *
+     * @param track               The track that the decoder decodes. Cannot be null.
+     *                            Its format must be {@code PCMU} or {@code PCMA} or
+     *                            its payload type one of the static ones of G.711.
+     * @param sampleFormat        The sample format, {@link MediaDecoder#FORMAT_RTP} or {@link MediaDecoder#FORMAT_RAW}.
+     *                            Both are plain G.711 bytes.
+     * @param maxEncodedFrameSize Max size of encoded frame.
+     * @throws UnsupportedSampleFormatException If the sample format or the encoding is not supported.
+     */
+
+    public G711Decoder(@NonNull AudioTrack track, int sampleFormat, int maxEncodedFrameSize) throws UnsupportedSampleFormatException {
+        super(track, sampleFormat, maxEncodedFrameSize);
+        if (!SUPPORTED_SAMPLE_FORMATS.contains(sampleFormat))
+            throw new UnsupportedSampleFormatException("Unsupported sample format: " + sampleFormat);
+
+        this.encoding = getEncoding(track);
+        if (encoding == ENCODING_UNKNOWN)
+            throw new UnsupportedSampleFormatException("Not a G.711 track: " + track.getFormat());
+        this.table = encoding == ENCODING_MU_LAW ? MU_LAW_TABLE : A_LAW_TABLE;
+
+        if (track.getClockRate() <= 0) {
+            //Static payload types may come without rtpmap, timestamps of the following samples are converted with it
+            track.setClockRate(SAMPLE_RATE);
+        }
+        this.sampleRate = track.getClockRate();
+        this.channels = Math.max(1, track.getChannels());
+        this.outputSampleRate = sampleRate;
+        this.previous = new short[channels];
+    }
+
+    //Returns encoding of the track or ENCODING_UNKNOWN if it's not a G.711 track
+    private static int getEncoding(@NonNull AudioTrack track) {
+        String format = track.getFormat();
+        if (format == null) {
+            if (track.getPayloadType() == PAYLOAD_TYPE_PCMU)
+                return ENCODING_MU_LAW;
+            if (track.getPayloadType() == PAYLOAD_TYPE_PCMA)
+                return ENCODING_A_LAW;
+            return ENCODING_UNKNOWN;
+        }
+
+        format = format.toLowerCase().replace(" ", "");
+        if (format.equals("pcmu") || format.equals("g711u") || format.equals("g.711u") || format.equals("audio/g711-mlaw"))
+            return ENCODING_MU_LAW;
+        if (format.equals("pcma") || format.equals("g711a") || format.equals("g.711a") || format.equals("audio/g711-alaw"))
+            return ENCODING_A_LAW;
+        return ENCODING_UNKNOWN;
+    }
+
+    /**
+     * Sets sample rate of the decoded PCM, e.g. native rate of the output device,
+     * so the device doesn't resample it with its own (typically higher latency) resampler.
+     * @param sampleRate the rate in Hz, 0 or less to output PCM at the rate of the track
+     */
+
+    public void setOutputSampleRate(int sampleRate) {
+        this.outputSampleRate = sampleRate > 0 ? sampleRate : this.sampleRate;
+    }
+
+    /**
+     * Returns encoding of the decoded track.
+     * @return {@link #ENCODING_MU_LAW} or {@link #ENCODING_A_LAW}
+     */
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns number of decoded samples (of all channels), before resampling.
+     * @return number of samples
+     */
+
+    public long getDecodedSamples() {
+        return decodedSamples;
+    }
+
+    @Override
+    public void setCsd(@Nullable Csd csd) throws IllegalStateException {
+        //G.711 has no codec specific data
+    }
+
+    @Nullable
+    @Override
+    public Frame feed(@NonNull Sample sample) throws IllegalStateException, UnsupportedSampleException, NullPointerException {
+        checkReleased();
+        //Every packet is a frame of whole samples
+        return FrameBuilder.RAW_FRAME_BUILDER.pull(sample);
+    }
+
+    @Override
+    public synchronized int decode(@NonNull Frame frame)
+            throws IllegalStateException, UnsupportedSampleException, MediaDecoderException, NullPointerException {
+        try {
+            checkReleased();
+
+            AudioSink sink = getSink();
+            int len = frame.getLength() - frame.getLength() % channels;
+            if (sink == null || len == 0)
+                return MediaDecoder.ACTION_NONE;
+
+            int rate = outputSampleRate;
+            if (sink != configuredSink || rate != configuredSampleRate) {
+                sink.configure(rate, channels);
+                configuredSink = sink;
+                configuredSampleRate = rate;
+            }
+
+            int n;
+            if (rate == sampleRate) {
+                ensureCapacity(len);
+                decode(table, frame.getArray(), frame.getOffset(), len, pcm, 0);
+                n = len;
+            } else {
+                n = resample(frame.getArray(), frame.getOffset(), len, rate);
+            }
+            //noinspection NonAtomicOperationOnVolatileField
+            decodedSamples += len;
+
+            sink.write(pcm, 0, n, TimeUnit.MILLISECONDS.toMicros(frame.timestamp));
+            return MediaDecoder.ACTION_RENDER_SYNC_FRAME;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Expands G.711 bytes to 16-bit PCM through the lookup table.
+     * @param encoding {@link #ENCODING_MU_LAW} or {@link #ENCODING_A_LAW}
+     * @param src array of G.711 samples
+     * @param srcOff offset of the first sample
+     * @param len number of samples
+     * @param dst array receiving PCM, at least len samples from dstOff
+     * @param dstOff offset of the first PCM sample
+     * @throws IllegalArgumentException if the encoding is not known
+     */
+
+    public static void decode(int encoding, @NonNull byte[] src, int srcOff, int len, @NonNull short[] dst, int dstOff) {
+        if (encoding != ENCODING_MU_LAW && encoding != ENCODING_A_LAW)
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        decode(encoding == ENCODING_MU_LAW ? MU_LAW_TABLE : A_LAW_TABLE, src, srcOff, len, dst, dstOff);
+    }
+
+    private static void decode(@NonNull short[] table, @NonNull byte[] src, int srcOff, int len,
+                               @NonNull short[] dst, int dstOff) {
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] = table[src[srcOff + i] & 0xFF];
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        //Next packet doesn't continue the previous one
+        resamplerRate = 0;
+        AudioSink sink = getSink();
+        if (sink != null) {
+            sink.flush();
+        }
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return outputSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channels;
+    }
+
+    //Expands and resamples the packet into pcm, returns number of samples written
+    private int resample(byte[] src, int off, int len, int rate) {
+        if (resamplerRate != rate) {
+            setUpResampler(rate);
+        }
+
+        int[] phaseInput = this.phaseInput;
+        int[] phaseWeight = this.phaseWeight;
+        int phases = phaseInput.length;
+        int frames = len / channels;
+        //Output samples of the packet at the ratio actually used (approximated for long periods),
+        //rounded up, plus one for the phase carried over
+        ensureCapacity((int) (((long) frames * phases + periodInput - 1) / periodInput + 1) * channels);
+
+        short[] table = this.table;
+        short[] pcm = this.pcm;
+        int phase = this.phase;
+        long periodStart = this.periodStart;
+        int out = 0;
+
+        while (true) {
+            //Output sample lies between input samples index - 1 and index
+            long index = periodStart + phaseInput[phase];
+            if (index >= frames)
+                break;
+            int i = (int) index;
+            int weight = phaseWeight[phase];
+            for (int c = 0; c < channels; c++) {
+                int b = table[src[off + i * channels + c] & 0xFF];
+                int a = i == 0 ? previous[c] : table[src[off + (i - 1) * channels + c] & 0xFF];
+                pcm[out++] = (short) (a + (((b - a) * weight) >> WEIGHT_BITS));
+            }
+            if (++phase == phases) {
+                phase = 0;
+                periodStart += periodInput;
+            }
+        }
+
+        for (int c = 0; c < channels; c++) {
+            previous[c] = table[src[off + (frames - 1) * channels + c] & 0xFF];
+        }
+        this.phase = phase;
+        this.periodStart = periodStart - frames;
+        return out;
+    }
+
+    private void setUpResampler(int rate) {
+        int gcd = gcd(sampleRate, rate);
+        int phases = rate / gcd;
+        int input = sampleRate / gcd;
+        if (phases > MAX_PHASES) {
+            //Ratio with too long period, approximate it, the rate error is below 1/MAX_PHASES
+            input = (int) Math.max(1, Math.round((double) input * MAX_PHASES / phases));
+            phases = MAX_PHASES;
+        }
+
+        phaseInput = new int[phases];
+        phaseWeight = new int[phases];
+        for (int k = 0; k < phases; k++) {
+            //Position of output sample k in input samples, delayed by one sample
+            long position = (long) k * input;
+            phaseInput[k] = (int) (position / phases);
+            phaseWeight[k] = (int) ((position % phases << WEIGHT_BITS) / phases);
+        }
+        periodInput = input;
+        phase = 0;
+        //First output of the stream lies at the first input sample
+        periodStart = 0;
+        Arrays.fill(previous, (short) 0);
+        resamplerRate = rate;
+    }
+
+    private void ensureCapacity(int samples) {
+        if (pcm.length < samples) {
+            pcm = new short[samples];
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    //ITU-T G.711 µ-law expansion
+    private static short muLawToLinear(int value) {
+        int u = ~value & 0xFF;
+        int t = ((u & 0x0F) << 3) + 0x84;
+        t <<= (u & 0x70) >> 4;
+        return (short) ((u & 0x80) != 0 ? 0x84 - t : t - 0x84);
+    }
+
+    //ITU-T G.711 A-law expansion
+    private static short aLawToLinear(int value) {
+        int a = (value ^ 0x55) & 0xFF;
+        int t = (a & 0x0F) << 4;
+        int segment = (a & 0x70) >> 4;
+        if (segment == 0) {
+            t += 8;
+        } else {
+            t = (t + 0x108) << (segment - 1);
+        }
+        return (short) ((a & 0x80) != 0 ? t : -t);
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+
+/**
+ * Builds video frames from Annex B byte stream (NAL units separated by 0x000001 or 0x00000001 start codes),
+ * e.g. raw .h264 / .h265 files.<br>
+ * A NAL unit is complete when the start code of the next one arrives.
+ * Start codes are found with {@link StartCodeScanner}.
+ * @see NalStreamFrameBuilder
+ */
+
+public class AnnexBFrameBuilder extends NalStreamFrameBuilder {
+
+    private static final int START_CODE_LENGTH = 3;
+
+    //NAL unit header and the first byte of slice header (enough for H264 and H265)
+    private static final int NAL_START_CHECK_LENGTH = 3;
+
+    private final StartCodeScanner scanner = new StartCodeScanner();
+
+    //Offset of the current NAL unit header (after its start code), -1 if no start code found yet
+    private int nalStart = -1;
+    //Offset to continue scanning from
+    private int scanPos = 0;
+    //True if the beginning of the current NAL unit has been passed to onNalUnitStart()
+    private boolean nalStartChecked;
+
+    /**
+     * Creates Frame builder with specified max frame size and buffer pool.<br>
+     *
+     * @param maxFrameSize If a frame (or a single NAL unit) is bigger than this value,
+     *                     {@link BufferOverflowException} will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param classifier NAL unit classifier of the codec.
+     * @param pool Pool to obtain buffers from.
+     */
+
+    public AnnexBFrameBuilder(int maxFrameSize, @NonNull NalUnitClassifier classifier, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize, classifier, pool);
+    }
+
+    /**
+     * Creates Frame builder with specified max frame size, which uses {@link ByteArrayPool#getDefault()} pool.<br>
+     *
+     * @param maxFrameSize If a frame (or a single NAL unit) is bigger than this value,
+     *                     {@link BufferOverflowException} will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param classifier NAL unit classifier of the codec.
+     */
+
+    public AnnexBFrameBuilder(int maxFrameSize, @NonNull NalUnitClassifier classifier) {
+        this(maxFrameSize, classifier, ByteArrayPool.getDefault());
+    }
+
+    @Override
+    protected int parse(byte[] data, int len) {
+        while (true) {
+            int startCode = scanner.find(data, scanPos, len);
+
+            if (startCode < 0) {
+                //Last two bytes may be the beginning of a start code, check them again with more data
+                scanPos = Math.max(scanPos, len - (START_CODE_LENGTH - 1));
+                break;
+            }
+
+            if (nalStart >= 0) {
+                int nalEnd = startCode;
+                //Skip leading zero of 4-byte start code and trailing zero bytes
+                while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                    nalEnd--;
+                }
+                onNalUnit(data, nalStart, nalEnd - nalStart);
+            }
+
+            nalStart = startCode + START_CODE_LENGTH;
+            scanPos = nalStart;
+            nalStartChecked = false;
+        }
+
+        if (nalStart >= 0 && !nalStartChecked) {
+            //Incomplete NAL unit may already tell if it starts a new access unit,
+            //check again with more data until its beginning is known for sure
+            onNalUnitStart(data, nalStart, len - nalStart);
+            nalStartChecked = len - nalStart >= NAL_START_CHECK_LENGTH;
+        }
+
+        //Data before current NAL unit (or garbage before the first start code) is not needed anymore
+        int consumed = nalStart >= 0 ? nalStart : scanPos;
+        if (nalStart >= 0) {
+            nalStart -= consumed;
+        }
+        scanPos -= consumed;
+        return consumed;
+    }
+
+    @Override
+    protected void parseLast(byte[] data, int len) {
+        //End of stream completes the last NAL unit
+        if (nalStart >= 0) {
+            int nalEnd = len;
+            while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+            onNalUnit(data, nalStart, nalEnd - nalStart);
+        }
+    }
+
+    @Override
+    protected void onClear() {
+        nalStart = -1;
+        scanPos = 0;
+        nalStartChecked = false;
+    }
+
+}
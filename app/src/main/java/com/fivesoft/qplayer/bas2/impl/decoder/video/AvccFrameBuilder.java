@@ -0,0 +1,115 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+
+/**
+ * Builds video frames (Annex B format) from AVCC / HVCC byte stream, where each NAL unit is preceded
+ * by its length written on 1, 2 or 4 bytes (big endian) instead of a start code.<br>
+ * Length size is set by lengthSizeMinusOne field of decoder configuration record, 4 bytes is the most common.
+ * @see NalStreamFrameBuilder
+ */
+
+public class AvccFrameBuilder extends NalStreamFrameBuilder {
+
+    /**
+     * Default size of NAL unit length field in bytes.
+     */
+
+    public static final int DEFAULT_LENGTH_SIZE = 4;
+
+    private int lengthSize;
+
+    /**
+     * Creates Frame builder with specified max frame size, length field size and buffer pool.<br>
+     *
+     * @param maxFrameSize If a frame (or a single NAL unit) is bigger than this value,
+     *                     {@link BufferOverflowException} will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param lengthSize Size of NAL unit length field in bytes: 1, 2 or 4.
+     * @param classifier NAL unit classifier of the codec.
+     * @param pool Pool to obtain buffers from.
+     * @throws IllegalArgumentException if length size is not 1, 2 or 4
+     */
+
+    public AvccFrameBuilder(int maxFrameSize, int lengthSize, @NonNull NalUnitClassifier classifier, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize, classifier, pool);
+        this.lengthSize = checkLengthSize(lengthSize);
+    }
+
+    /**
+     * Creates Frame builder with specified max frame size and length field size,
+     * which uses {@link ByteArrayPool#getDefault()} pool.<br>
+     *
+     * @param maxFrameSize If a frame (or a single NAL unit) is bigger than this value,
+     *                     {@link BufferOverflowException} will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param lengthSize Size of NAL unit length field in bytes: 1, 2 or 4.
+     * @param classifier NAL unit classifier of the codec.
+     * @throws IllegalArgumentException if length size is not 1, 2 or 4
+     */
+
+    public AvccFrameBuilder(int maxFrameSize, int lengthSize, @NonNull NalUnitClassifier classifier) {
+        this(maxFrameSize, lengthSize, classifier, ByteArrayPool.getDefault());
+    }
+
+    /**
+     * Sets size of NAL unit length field. Changing the size clears the buffer.
+     * @param lengthSize Size of NAL unit length field in bytes: 1, 2 or 4.
+     * @throws IllegalArgumentException if length size is not 1, 2 or 4
+     */
+
+    public void setLengthSize(int lengthSize) {
+        if (this.lengthSize != checkLengthSize(lengthSize)) {
+            this.lengthSize = lengthSize;
+            clear();
+        }
+    }
+
+    /**
+     * Returns size of NAL unit length field.
+     * @return size of NAL unit length field in bytes
+     */
+
+    public int getLengthSize() {
+        return lengthSize;
+    }
+
+    @Override
+    protected int parse(byte[] data, int len) {
+        int lengthSize = this.lengthSize;
+        int pos = 0;
+
+        while (len - pos >= lengthSize) {
+            long nalLen = 0;
+            for (int i = 0; i < lengthSize; i++) {
+                nalLen = (nalLen << 8) | (data[pos + i] & 0xFF);
+            }
+
+            if (nalLen > maxFrameSize)
+                throw new BufferOverflowException();
+
+            if (len - pos - lengthSize < nalLen) {
+                //Wait for the rest of the NAL unit, its beginning may already complete current access unit
+                onNalUnitStart(data, pos + lengthSize, len - pos - lengthSize);
+                break;
+            }
+
+            onNalUnit(data, pos + lengthSize, (int) nalLen);
+            pos += lengthSize + (int) nalLen;
+        }
+
+        return pos;
+    }
+
+    @Override
+    protected void onClear() {
+        //No parsing state
+    }
+
+    private static int checkLengthSize(int lengthSize) {
+        if (lengthSize != 1 && lengthSize != 2 && lengthSize != 4)
+            throw new IllegalArgumentException("Length size must be 1, 2 or 4");
+        return lengthSize;
+    }
+
+}
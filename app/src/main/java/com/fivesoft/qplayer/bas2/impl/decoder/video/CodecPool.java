@@ -0,0 +1,285 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.impl.decoder.CodecAdapter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Pool of configured, idle video codecs, reused by decoders instead of creating new ones.<br>
+ * <p>
+ *     Creating and configuring a hardware decoder takes 50 - 300 ms. A decoder which doesn't need its codec
+ *     anymore (stream switched, output recreated, decoder released) flushes it and returns it
+ *     with {@link #recycle(String, int, int, CodecAdapter)}. The next decoder of the same mime type
+ *     and max resolution takes it with {@link #acquire(String, int, int)} and only binds it to its output surface.
+ * </p>
+ * <p>
+ *     Devices limit the number of codec instances existing at once. The pool counts instances created
+ *     through it (see {@link #reserve(String)}) and releases least recently used idle codecs
+ *     to make room for new ones. At most {@code maxIdle} idle codecs are kept.
+ * </p>
+ * <p>
+ *     The pool is thread-safe. Decoders use {@link #getDefault()} unless configured otherwise.
+ * </p>
+ */
+
+public class CodecPool {
+
+    /**
+     * Default max number of idle codecs kept by a pool.
+     */
+
+    public static final int DEFAULT_MAX_IDLE = 2;
+
+    private static final CodecPool DEFAULT = new CodecPool(DEFAULT_MAX_IDLE);
+
+    private static final String TAG = "CodecPool";
+
+    private final int maxIdle;
+
+    //Idle codecs, least recently used first
+    private final ArrayList<Entry> idle = new ArrayList<>();
+    //Number of existing instances (in use or idle) per mime type
+    private final HashMap<String, Integer> instances = new HashMap<>();
+    //Max number of instances per mime type, as reported by the codecs
+    private final HashMap<String, Integer> maxInstances = new HashMap<>();
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a pool keeping at most the given number of idle codecs.
+     * @param maxIdle max number of idle codecs, 0 disables reuse (instances are still counted)
+     */
+
+    public CodecPool(int maxIdle) {
+        if (maxIdle < 0)
+            throw new IllegalArgumentException("Max idle count must not be negative");
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns pool shared by all decoders by default.
+     * @return the default pool
+     */
+
+    @NonNull
+    public static CodecPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Takes the most recently used idle codec configured for the given mime type and max resolution.
+     * The codec is flushed and running, it just has to be bound to an output surface.
+     * @param mime mime type of the codec
+     * @param maxWidth max width of video the codec has been configured for
+     * @param maxHeight max height of video the codec has been configured for
+     * @return the codec or null if there's no matching idle codec
+     */
+
+    @Nullable
+    public synchronized CodecAdapter acquire(@NonNull String mime, int maxWidth, int maxHeight) {
+        Objects.requireNonNull(mime);
+        for (int i = idle.size() - 1; i >= 0; i--) {
+            Entry entry = idle.get(i);
+            if (entry.matches(mime, maxWidth, maxHeight)) {
+                idle.remove(i);
+                hits++;
+                return entry.codec;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Reserves an instance of the given mime type before a new codec is created,
+     * releasing least recently used idle codecs if the instance limit has been reached.<br>
+     * If the codec can't be created, the reservation must be cancelled with {@link #onReleased(String)}.
+     * @param mime mime type of the codec to create
+     */
+
+    public void reserve(@NonNull String mime) {
+        Objects.requireNonNull(mime);
+        ArrayList<CodecAdapter> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            Integer max = maxInstances.get(mime);
+            if (max != null) {
+                //Evict the least recently used idle codecs of the type
+                for (int i = 0; i < idle.size() && getInstances(mime) >= max; ) {
+                    Entry entry = idle.get(i);
+                    if (entry.mime.equals(mime)) {
+                        idle.remove(i);
+                        decrementInstances(mime);
+                        evicted.add(entry.codec);
+                    } else {
+                        i++;
+                    }
+                }
+            }
+            instances.put(mime, getInstances(mime) + 1);
+        }
+
+        //Releasing may take a while, don't block other decoders
+        for (CodecAdapter codec : evicted) {
+            releaseQuietly(codec);
+        }
+    }
+
+    /**
+     * Stores the instance limit reported by a codec of the given mime type.
+     * @param mime mime type
+     * @param maxSupportedInstances max number of instances, not positive if unknown
+     */
+
+    public synchronized void setMaxInstances(@NonNull String mime, int maxSupportedInstances) {
+        Objects.requireNonNull(mime);
+        if (maxSupportedInstances > 0) {
+            maxInstances.put(mime, maxSupportedInstances);
+        }
+    }
+
+    /**
+     * Returns a codec which is not needed anymore to the pool. The codec must be flushed and running.
+     * If the pool is full, the least recently used idle codec is released.
+     * @param mime mime type of the codec
+     * @param maxWidth max width of video the codec has been configured for
+     * @param maxHeight max height of video the codec has been configured for
+     * @param codec the codec
+     */
+
+    public void recycle(@NonNull String mime, int maxWidth, int maxHeight, @NonNull CodecAdapter codec) {
+        Objects.requireNonNull(mime);
+        Objects.requireNonNull(codec);
+
+        CodecAdapter evicted = null;
+        synchronized (this) {
+            if (maxIdle == 0) {
+                evicted = codec;
+                decrementInstances(mime);
+            } else {
+                if (idle.size() >= maxIdle) {
+                    Entry entry = idle.remove(0);
+                    decrementInstances(entry.mime);
+                    evicted = entry.codec;
+                }
+                idle.add(new Entry(mime, maxWidth, maxHeight, codec));
+            }
+        }
+
+        if (evicted != null) {
+            releaseQuietly(evicted);
+        }
+    }
+
+    /**
+     * Notifies the pool that a codec of the given mime type, counted by {@link #reserve(String)},
+     * has been released (or couldn't be created).
+     * @param mime mime type of the codec
+     */
+
+    public synchronized void onReleased(@NonNull String mime) {
+        decrementInstances(Objects.requireNonNull(mime));
+    }
+
+    /**
+     * Releases all idle codecs.
+     */
+
+    public void clear() {
+        ArrayList<Entry> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(idle);
+            idle.clear();
+            for (Entry entry : evicted) {
+                decrementInstances(entry.mime);
+            }
+        }
+
+        for (Entry entry : evicted) {
+            releaseQuietly(entry.codec);
+        }
+    }
+
+    /**
+     * Returns number of idle codecs.
+     * @return number of idle codecs
+     */
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns number of existing codec instances (in use or idle) of the given mime type.
+     * @param mime mime type
+     * @return number of instances
+     */
+
+    public synchronized int getInstances(@NonNull String mime) {
+        Integer count = instances.get(mime);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Returns number of {@link #acquire(String, int, int)} calls, which returned an idle codec.
+     * @return number of hits
+     */
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns number of {@link #acquire(String, int, int)} calls, which returned nothing.
+     * @return number of misses
+     */
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void decrementInstances(String mime) {
+        int count = getInstances(mime);
+        if (count > 1) {
+            instances.put(mime, count - 1);
+        } else {
+            instances.remove(mime);
+        }
+    }
+
+    private static void releaseQuietly(CodecAdapter codec) {
+        try {
+            codec.release();
+        } catch (Exception e) {
+            Log.println(Log.ASSERT, TAG, "Failed to release idle codec: " + e);
+        }
+    }
+
+    private static final class Entry {
+
+        final String mime;
+        final int maxWidth, maxHeight;
+        final CodecAdapter codec;
+
+        Entry(String mime, int maxWidth, int maxHeight, CodecAdapter codec) {
+            this.mime = mime;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.codec = codec;
+        }
+
+        boolean matches(String mime, int maxWidth, int maxHeight) {
+            return this.mime.equals(mime) && this.maxWidth == maxWidth && this.maxHeight == maxHeight;
+        }
+
+    }
+
+}
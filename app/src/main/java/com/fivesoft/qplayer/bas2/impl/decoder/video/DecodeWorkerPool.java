@@ -0,0 +1,266 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Fixed number of threads shared by software decoders, so decoding many streams at once
+ * doesn't create a thread per stream.<br>
+ * <p>
+ *     Each decoder gets a {@link Lane} - a bounded queue of items processed in order, one at a time.
+ *     A lane processes one item per turn and then goes to the end of the pool queue, so busy streams
+ *     don't starve the others.
+ * </p>
+ * <p>
+ *     Threads are daemons, the pool doesn't keep the process alive.
+ * </p>
+ */
+
+public class DecodeWorkerPool {
+
+    private static final String TAG = "DecodeWorkerPool";
+
+    private static volatile DecodeWorkerPool defaultPool;
+
+    @NonNull
+    private final ThreadPoolExecutor executor;
+    private final int threadCount;
+
+    /**
+     * Creates pool with the given number of threads.
+     * @param threadCount number of threads
+     * @throws IllegalArgumentException if thread count is not positive
+     */
+
+    public DecodeWorkerPool(int threadCount) {
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+
+        this.threadCount = threadCount;
+        AtomicInteger index = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "SoftwareDecoder-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        //Each lane is queued at most once, so the queue is bounded by the number of lanes
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Returns pool shared by software decoders by default, with one thread per available processor.
+     * @return the default pool
+     */
+
+    @NonNull
+    public static DecodeWorkerPool getDefault() {
+        DecodeWorkerPool pool = defaultPool;
+        if (pool == null) {
+            synchronized (DecodeWorkerPool.class) {
+                pool = defaultPool;
+                if (pool == null) {
+                    pool = new DecodeWorkerPool(Runtime.getRuntime().availableProcessors());
+                    defaultPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Creates a new lane of the pool.
+     * @param capacity max number of items waiting in the lane
+     * @param handler processes items, on threads of the pool
+     * @param discarded receives items removed from the lane without processing (see {@link Lane#close()})
+     * @param <T> type of the items
+     * @return the lane
+     */
+
+    @NonNull
+    public <T> Lane<T> newLane(int capacity, @NonNull Consumer<T> handler, @NonNull Consumer<T> discarded) {
+        return new Lane<>(capacity, handler, discarded);
+    }
+
+    /**
+     * Stops threads of the pool. Lanes can't be used afterwards.
+     */
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Queue of items processed sequentially by threads of the pool.
+     * @param <T> type of the items
+     */
+
+    public final class Lane<T> implements Runnable {
+
+        private final int capacity;
+        @NonNull
+        private final Consumer<T> handler;
+        @NonNull
+        private final Consumer<T> discarded;
+
+        private final ArrayDeque<T> items = new ArrayDeque<>();
+        //True while the lane is queued in the pool or its item is being processed
+        private boolean scheduled;
+        private boolean closed;
+        //Thread processing an item of the lane, null between items
+        private Thread worker;
+
+        private Lane(int capacity, @NonNull Consumer<T> handler, @NonNull Consumer<T> discarded) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("Capacity must be positive");
+            this.capacity = capacity;
+            this.handler = Objects.requireNonNull(handler);
+            this.discarded = Objects.requireNonNull(discarded);
+        }
+
+        /**
+         * Adds item to the lane. Never blocks.
+         * @param item the item
+         * @return true if the item has been added, false if the lane is full or closed or the pool has been shut down
+         */
+
+        public boolean offer(@NonNull T item) {
+            Objects.requireNonNull(item);
+            synchronized (this) {
+                if (closed || items.size() >= capacity)
+                    return false;
+                items.add(item);
+                if (scheduled)
+                    return true;
+                scheduled = true;
+            }
+            if (schedule())
+                return true;
+            //Rejected items stay with the caller, the others can't be processed anymore
+            synchronized (this) {
+                items.removeLastOccurrence(item);
+            }
+            clear();
+            return false;
+        }
+
+        /**
+         * Returns number of items waiting in the lane.
+         * @return number of items
+         */
+
+        public synchronized int size() {
+            return items.size();
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Discards waiting items, without closing the lane. The item being processed is not affected.
+         */
+
+        public void clear() {
+            ArrayDeque<T> removed;
+            synchronized (this) {
+                removed = new ArrayDeque<>(items);
+                items.clear();
+            }
+            for (T item : removed) {
+                discarded.accept(item);
+            }
+        }
+
+        /**
+         * Discards waiting items and waits for the item being processed.
+         * Items offered afterwards are rejected.<br>
+         * When called while processing an item of this lane (e.g. by the handler), it returns without waiting.
+         */
+
+        public void close() {
+            boolean processing;
+            synchronized (this) {
+                closed = true;
+                processing = worker == Thread.currentThread();
+            }
+            clear();
+            if (processing)
+                return;
+            synchronized (this) {
+                boolean interrupted = false;
+                while (scheduled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            T item;
+            synchronized (this) {
+                item = items.poll();
+                worker = Thread.currentThread();
+            }
+            try {
+                if (item != null) {
+                    handler.accept(item);
+                }
+            } catch (RuntimeException e) {
+                Log.println(Log.ASSERT, TAG, "Failed to process item: " + e);
+            } finally {
+                boolean more;
+                synchronized (this) {
+                    worker = null;
+                    more = !closed && !items.isEmpty();
+                    if (!more) {
+                        scheduled = false;
+                        notifyAll();
+                    }
+                }
+                if (more && !schedule()) {
+                    //Let other lanes go first, unless the pool has been shut down
+                    clear();
+                }
+            }
+        }
+
+        //Queues the lane in the pool, returns false if the pool has been shut down
+        private boolean schedule() {
+            try {
+                executor.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    scheduled = false;
+                    notifyAll();
+                }
+                return false;
+            }
+        }
+
+    }
+
+}
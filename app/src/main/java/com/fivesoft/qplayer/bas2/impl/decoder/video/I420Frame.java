@@ -0,0 +1,124 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+
+import java.util.Objects;
+
+/**
+ * Decoded picture in I420 (YUV 4:2:0 planar) format, stored in a pooled array.<br>
+ * <p>
+ *     Planes are tightly packed one after another: Y plane ({@code width * height} bytes),
+ *     U plane and V plane ({@code chromaWidth * chromaHeight} bytes each, half of the resolution rounded up).
+ *     Sample values are unsigned.
+ * </p>
+ * <p>
+ *     The frame is reference counted like its {@link PooledByteArray}: receivers which keep it after
+ *     the callback it has been passed to must {@link #retain()} it and {@link #release()} it when done.
+ * </p>
+ */
+
+public final class I420Frame {
+
+    public final int width;
+    public final int height;
+    public final int chromaWidth;
+    public final int chromaHeight;
+
+    /**
+     * Timestamp of the encoded frame, in milliseconds.
+     */
+
+    public final long timestamp;
+
+    @NonNull
+    private final PooledByteArray memory;
+
+    private I420Frame(@NonNull PooledByteArray memory, int width, int height, long timestamp) {
+        this.memory = memory;
+        this.width = width;
+        this.height = height;
+        this.chromaWidth = (width + 1) / 2;
+        this.chromaHeight = (height + 1) / 2;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Creates a frame with uninitialized pixels, backed by an array from the given pool.
+     * @param pool pool to take the array from
+     * @param width width of the picture
+     * @param height height of the picture
+     * @param timestamp timestamp of the picture in milliseconds
+     * @return new frame, holding one reference
+     * @throws IllegalArgumentException if width or height is not positive
+     */
+
+    @NonNull
+    public static I420Frame obtain(@NonNull ByteArrayPool pool, int width, int height, long timestamp) {
+        Objects.requireNonNull(pool);
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        return new I420Frame(pool.obtain(getSize(width, height)), width, height, timestamp);
+    }
+
+    /**
+     * Returns number of bytes of an I420 picture of the given size.
+     * @param width width of the picture
+     * @param height height of the picture
+     * @return size in bytes
+     */
+
+    public static int getSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Returns array containing the planes, starting at index 0. The array may be longer than {@link #getSize()}.
+     * @return the array
+     */
+
+    @NonNull
+    public byte[] getData() {
+        return memory.array();
+    }
+
+    /**
+     * Returns number of bytes of the picture.
+     * @return size in bytes
+     */
+
+    public int getSize() {
+        return getSize(width, height);
+    }
+
+    public int getUOffset() {
+        return width * height;
+    }
+
+    public int getVOffset() {
+        return width * height + chromaWidth * chromaHeight;
+    }
+
+    /**
+     * Adds one reference to the frame.
+     * @return this frame
+     * @throws IllegalStateException if the frame has already been released
+     */
+
+    @NonNull
+    public I420Frame retain() {
+        memory.retain();
+        return this;
+    }
+
+    /**
+     * Removes one reference from the frame. When it was the last one, the memory goes back to its pool.
+     */
+
+    public void release() {
+        memory.release();
+    }
+
+}
@@ -0,0 +1,1029 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.UnsupportedSampleException;
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.common.Size;
+import com.fivesoft.qplayer.bas2.common.Util;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.core.PresentationClock;
+import com.fivesoft.qplayer.bas2.core.StreamPresentationClock;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
+import com.fivesoft.qplayer.bas2.decoder.VideoDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.AsyncCodecAdapter;
+import com.fivesoft.qplayer.bas2.impl.decoder.CodecAdapter;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.H264Util;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base class for video decoders backed by {@link MediaCodec}, which consume frames in Annex B format.<br>
+ * <p>
+ *     Subclasses provide the codec specific parts: mime type, frame builder,
+ *     handling of parameter sets (in-band and from {@link Csd}) and parsing of video parameters.
+ *     Codec lifecycle, output surface management and feeding the codec are handled here.
+ *     The codec is accessed through {@link CodecAdapter} (see {@link #createCodecAdapter()}),
+ *     by default running in asynchronous mode, so input buffers are not missed when the codec lags.
+ *     Decoded pictures are drained continuously by an output thread and shown at times given by
+ *     {@link PresentationClock} for their timestamps, pictures too late to be shown are dropped.
+ * </p>
+ */
+
+public abstract class MediaCodecVideoDecoder extends VideoDecoder {
+
+    public static final int MIN_VIDEO_WIDTH = 256; // 144p
+    public static final int MIN_VIDEO_HEIGHT = 144; // 144p
+
+    public static final int MAX_VIDEO_WIDTH = 4096; // 4K
+    public static final int MAX_VIDEO_HEIGHT = 2304; // 4K
+
+    //Codecs are configured for (and pooled by) one of these max sizes, so other streams can reuse them
+    private static final int[][] MAX_SIZE_CLASSES = {
+            {1280, 736}, // 720p
+            {1920, 1088}, // 1080p
+            {MAX_VIDEO_WIDTH, MAX_VIDEO_HEIGHT}
+    };
+
+    private static final long DEQUEUE_INPUT_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(0);
+    //Output thread wakes up at least this often to check if it should stop
+    private static final long DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(10);
+    //Reference frames wait a bit longer for an input buffer, they can't be dropped safely
+    private static final long DEQUEUE_REFERENCE_INPUT_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(10);
+    //Frames which must not be dropped at all (sync frames right after flush, frames of catch-up)
+    //give the codec more time to free an input buffer
+    private static final long DEQUEUE_CRITICAL_INPUT_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(100);
+
+    @NonNull
+    private final String mime;
+
+    private int videoWidth = Constants.UNKNOWN_VALUE, videoHeight = Constants.UNKNOWN_VALUE;
+    private float videoFrameRate = Constants.UNKNOWN_VALUE;
+
+    private volatile CodecAdapter codec;
+    private volatile MediaFormat format;
+    private volatile Csd csd;
+    private volatile Surface output;
+    private volatile boolean released = false;
+
+    private volatile Surface codecSurface;
+    //True if the codec has been configured with a surface, so it can be moved to another one
+    private boolean codecSurfaceMode;
+
+    @NonNull
+    private volatile CodecPool codecPool = CodecPool.getDefault();
+    //Pool the current codec is counted by and max size it's configured for
+    private CodecPool codecOwnerPool;
+    private int codecMaxWidth, codecMaxHeight;
+
+    //Number of frames queued to the codec
+    private long frameIndex = 0;
+    //Presentation time of the last queued frame
+    private long lastQueuedTimeUs = Long.MIN_VALUE;
+
+    private volatile boolean waitForKeyFrame = true;
+    private volatile boolean lowLatency = false;
+
+    @NonNull
+    protected final FrameBuilder frameBuilder;
+
+    //Last parameter sets of the track, survive flushing and recreation of the codec
+    @NonNull
+    private final ParameterSetCache parameterSets;
+    //Splits frames with parameter sets into NAL units
+    private final StartCodeScanner startCodeScanner = new StartCodeScanner();
+    //Parameter sets found in the frame being decoded (bit mask of slots)
+    private int frameParameterSets;
+    //True while parameter sets of the frame being decoded are read (not the ones of csd)
+    private boolean readingFrame;
+
+    //Output buffers with lower presentation time are not rendered (frames decoded while catching up),
+    //cleared once a frame reaches it, timestamps may start over afterwards
+    private final AtomicLong renderFromTimeUs = new AtomicLong(Long.MIN_VALUE);
+    //Number of frames of the catch-up GOP not decoded yet
+    private int catchUpRemaining;
+    //Start time of the last catch-up, 0 if its last frame has been rendered already
+    private volatile long catchUpStartNanos;
+    private volatile long catchUpLatencyMs = Constants.UNKNOWN_VALUE;
+
+    @NonNull
+    private volatile PresentationClock presentationClock = new StreamPresentationClock();
+    //Drains output of the current codec
+    private volatile OutputThread outputThread;
+    //Held while an output buffer is dequeued and released and while the codec is flushed,
+    //so a buffer can't be dequeued before a flush and released after it (or vice versa).
+    //Fair, a flush waits for one dequeue at most
+    private final ReentrantLock outputLock = new ReentrantLock(true);
+    //Set by the output thread, cleared by decode()
+    private final AtomicBoolean renderedSinceDecode = new AtomicBoolean();
+    private volatile boolean endOfStream;
+    private volatile long renderedFrames;
+    private volatile long lateFrames;
+
+    /**
+     * Creates a new media decoder for the specified video track.
+     *
+     * @param track               The track that the decoder decodes. Cannot be null.
+     * @param sampleFormat        The sample format.
+     * @param maxEncodedFrameSize Max size of encoded frame.
+     * @param mime                Mime type of the {@link MediaCodec} to create.
+     * @param frameBuilder        Builder creating frames from samples of the given format.
+     * @param parameterSetCount   Number of parameter set kinds required to decode pictures,
+     *                            see {@link #cacheParameterSet(int, byte[], int, int)}.
+     */
+
+    protected MediaCodecVideoDecoder(@NonNull VideoTrack track, int sampleFormat, int maxEncodedFrameSize,
+                                     @NonNull String mime, @NonNull FrameBuilder frameBuilder, int parameterSetCount) {
+        super(track, sampleFormat, maxEncodedFrameSize);
+        this.mime = Objects.requireNonNull(mime);
+        this.frameBuilder = Objects.requireNonNull(frameBuilder);
+        this.parameterSets = new ParameterSetCache(parameterSetCount);
+    }
+
+    /**
+     * Returns mime type of the underlying {@link MediaCodec}.
+     * @return mime type, e.g. "video/avc"
+     */
+
+    @NonNull
+    public String getMime() {
+        return mime;
+    }
+
+    /**
+     * Enables or disables access unit aggregation of RTP samples. (enabled by default)<br>
+     * When enabled, all NAL units of a picture are submitted to the codec as one input buffer.
+     * Disabling it makes the decoder submit NAL units one by one, which is useful for debugging only.<br>
+     * Has no effect for sample formats other than {@link MediaDecoder#FORMAT_RTP}.
+     * @param enabled true to decode whole access units, false to decode single NAL units
+     * @see RtpVideoFrameBuilder#setAccessUnitMode(boolean)
+     */
+
+    public synchronized void setAccessUnitMode(boolean enabled) {
+        if (frameBuilder instanceof RtpVideoFrameBuilder) {
+            ((RtpVideoFrameBuilder) frameBuilder).setAccessUnitMode(enabled);
+        }
+    }
+
+    /**
+     * Sets size of NAL unit length field of AVCC samples. (4 bytes by default)<br>
+     * Has no effect for sample formats other than {@link MediaDecoder#FORMAT_AVCC}.
+     * @param lengthSize Size of NAL unit length field in bytes: 1, 2 or 4.
+     * @throws IllegalArgumentException if length size is not 1, 2 or 4
+     * @see AvccFrameBuilder#setLengthSize(int)
+     */
+
+    public synchronized void setNalLengthSize(int lengthSize) {
+        if (frameBuilder instanceof AvccFrameBuilder) {
+            ((AvccFrameBuilder) frameBuilder).setLengthSize(lengthSize);
+        }
+    }
+
+    @Override
+    public int getVideoWidth() {
+        return videoWidth;
+    }
+
+    @Override
+    public int getVideoHeight() {
+        return videoHeight;
+    }
+
+    @Override
+    public float getVideoFrameRate() {
+        return videoFrameRate;
+    }
+
+    @Override
+    public void setCsd(@Nullable Csd csd) throws IllegalStateException {
+        this.csd = csd;
+    }
+
+    @Override
+    public void setOutput(@Nullable MediaDecoderOutput<Surface> output) throws IllegalStateException, IllegalArgumentException {
+        checkReleased();
+        this.output = output == null ? null : output.getRenderer();
+    }
+
+    @Nullable
+    @Override
+    public synchronized Frame feed(@NonNull Sample sample) throws IllegalStateException, UnsupportedSampleException, NullPointerException {
+        checkReleased();
+        return frameBuilder.pull(sample);
+    }
+
+    @Nullable
+    @Override
+    public synchronized Frame poll() throws IllegalStateException {
+        checkReleased();
+        return frameBuilder.poll();
+    }
+
+    /**
+     * Decodes cached frames (e.g. {@link com.fivesoft.qplayer.bas2.core.GopCache#snapshot()}) as fast as possible,
+     * rendering only the last one, so the output shows the current picture of the stream right away,
+     * instead of waiting for the next key frame.<br>
+     * Frames should start with a sync frame (or parameter sets followed by a sync frame),
+     * each of them is released, like with {@link #decode(Frame)}. Frames fed afterwards are decoded normally.<br>
+     * Time from calling this method till the last frame is rendered is available via {@link #getCatchUpLatency()}.
+     * @param frames frames to decode, in decoding order
+     * @return number of frames queued to the codec
+     * @throws IllegalStateException if the decoder is released
+     * @throws UnsupportedSampleException if a frame is not supported by the decoder
+     * @throws MediaDecoderException if the codec fails
+     */
+
+    public synchronized int catchUp(@NonNull List<Frame> frames)
+            throws IllegalStateException, UnsupportedSampleException, MediaDecoderException, NullPointerException {
+        Objects.requireNonNull(frames);
+        checkReleased();
+
+        if (frames.isEmpty())
+            return 0;
+
+        catchUpStartNanos = System.nanoTime();
+        renderFromTimeUs.set(Long.MAX_VALUE);
+        catchUpRemaining = frames.size();
+
+        int queued = 0;
+        int i = 0;
+        try {
+            for (; i < frames.size(); i++) {
+                long index = frameIndex;
+                decode(frames.get(i));
+                if (frameIndex != index) {
+                    queued++;
+                }
+            }
+        } finally {
+            //Frames not passed to decode() because of an exception still have to be released
+            for (i++; i < frames.size(); i++) {
+                frames.get(i).release();
+            }
+            catchUpRemaining = 0;
+            //Last frame hasn't been queued, show the next one
+            renderFromTimeUs.compareAndSet(Long.MAX_VALUE,
+                    lastQueuedTimeUs == Long.MIN_VALUE ? Long.MIN_VALUE : lastQueuedTimeUs + 1);
+        }
+        return queued;
+    }
+
+    /**
+     * Returns time it took to show the last frame of the last {@link #catchUp(List)}
+     * (from the call till the frame has been rendered).
+     * @return latency in milliseconds or {@link Constants#UNKNOWN_VALUE} if no catch-up has been completed
+     */
+
+    public long getCatchUpLatency() {
+        return catchUpLatencyMs;
+    }
+
+    /**
+     * Sets the clock decoded frames are scheduled with. By default {@link StreamPresentationClock},
+     * which follows the timestamps of the stream. The clock is reset when the codec is flushed.
+     * @param clock the clock
+     */
+
+    public void setPresentationClock(@NonNull PresentationClock clock) {
+        this.presentationClock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * Returns the clock decoded frames are scheduled with.
+     * @return the clock
+     * @see #setPresentationClock(PresentationClock)
+     */
+
+    @NonNull
+    public PresentationClock getPresentationClock() {
+        return presentationClock;
+    }
+
+    /**
+     * Returns number of decoded frames rendered on the output.
+     * @return number of rendered frames
+     */
+
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    /**
+     * Returns number of decoded frames dropped because they were too late to be shown.
+     * @return number of late frames
+     */
+
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    @Override
+    public synchronized int decode(@NonNull Frame frame)
+            throws IllegalStateException, UnsupportedSampleException, MediaDecoderException, NullPointerException {
+        checkReleased();
+
+        boolean catchingUp = catchUpRemaining > 0;
+        boolean lastCatchUpFrame = catchingUp && --catchUpRemaining == 0;
+
+        try {
+            //Ensure that output surface matches set output surface
+            updateCodecSurface();
+            //Ensure that codec is configured
+            CodecAdapter codec = ensureMediaCodec();
+
+            frameParameterSets = 0;
+            if (frame.hasFlag(Frame.FLAG_HAS_CONFIG)) {
+                //Frame may be a single parameter set or whole access unit with parameter sets inside
+                readingFrame = true;
+                try {
+                    readParameterSets(frame.getArray(), frame.getOffset(), frame.getLength());
+                } finally {
+                    readingFrame = false;
+                }
+            }
+
+            if (frame.hasFlag(Frame.FLAG_DISCONTINUITY) && frame.frameType != Frame.SYNC_FRAME
+                    && !frame.hasFlag(Frame.FLAG_RECOVERY_POINT)) {
+                //Frames this one is predicted from may be missing, decoding it would smear the picture
+                suspendTillKeyFrame();
+            }
+
+            if (frame.frameType != Frame.CONFIG_FRAME) {
+                if (!hasParameterSets()) {
+                    //Codec not configured yet
+                    waitForKeyFrame = true;
+                    return MediaDecoder.ACTION_NOT_CONFIGURED;
+                } else if (waitForKeyFrame) {
+                    if (frame.frameType == Frame.SYNC_FRAME) {
+                        Log.println(Log.ASSERT, "sdfsdf", "Received key frame, flushing codec");
+                        flush();
+                        waitForKeyFrame = false;
+                    } else if (frame.hasFlag(Frame.FLAG_RECOVERY_POINT)) {
+                        //Gradual decoder refresh, pictures are correct again from the recovery point
+                        waitForKeyFrame = false;
+                    } else {
+                        return MediaDecoder.ACTION_WAITING_FOR_KEY_FRAME;
+                    }
+                }
+            }
+
+            int inIndex;
+
+            inIndex = codec.dequeueInputBuffer(DEQUEUE_INPUT_TIMEOUT_US);
+            if (inIndex < 0 && (catchingUp || !frame.isDisposable())) {
+                //Codec is behind, reference frame can't be skipped without corrupting the following ones
+                inIndex = codec.dequeueInputBuffer(catchingUp || frame.frameType == Frame.SYNC_FRAME ?
+                        DEQUEUE_CRITICAL_INPUT_TIMEOUT_US : DEQUEUE_REFERENCE_INPUT_TIMEOUT_US);
+            }
+
+            int dropAction = ACTION_NONE;
+            if (inIndex < 0) {
+                if (frame.isDisposable()) {
+                    dropAction = MediaDecoder.ACTION_DROP_FRAME_NON_REFERENCE;
+                } else if (frame.frameType != Frame.CONFIG_FRAME) {
+                    //Following frames would be decoded with artifacts, recover on the next key frame
+                    Log.println(Log.ASSERT, "MediaCodecVideoDecoder", "Codec busy, reference frame dropped");
+                    suspendTillKeyFrame();
+                    dropAction = MediaDecoder.ACTION_WAITING_FOR_KEY_FRAME;
+                }
+            }
+
+            if (inIndex >= 0) {
+
+                ByteBuffer bb = codec.getInputBuffer(inIndex);
+
+                if (bb != null) {
+                    bb.clear();
+
+                    if (frame.frameType == Frame.SYNC_FRAME || frame.hasFlag(Frame.FLAG_RECOVERY_POINT)) {
+                        //Codec may have lost parameter sets sent long ago (flush, recreation), repeat missing ones
+                        int missing = parameterSets.getMask() & ~frameParameterSets;
+                        if (missing != 0 && bb.remaining() >= parameterSets.getSize(missing) + frame.getLength()
+                                + Constants.H264_NAL_PREFIX.length) {
+                            parameterSets.writeTo(bb, missing);
+                        }
+                    }
+
+                    //Write nal prefix if needed
+                    if (H264Util.startsWithNalPrefix(frame.getArray(), frame.getOffset(), frame.getLength()) == 0) {
+                        bb.put(Constants.H264_NAL_PREFIX);
+                    }
+
+                    //Write whole frame (single NAL unit or access unit) into one input buffer
+                    bb.put(frame.getArray(), frame.getOffset(), frame.getLength());
+
+                    //Output is scheduled by the stream time (timestamps are in milliseconds)
+                    long presentationTimeUs = TimeUnit.MILLISECONDS.toMicros(frame.timestamp);
+                    if (lastCatchUpFrame) {
+                        renderFromTimeUs.set(presentationTimeUs);
+                    }
+                    codec.queueInputBuffer(inIndex, 0, bb.position(), presentationTimeUs, 0);
+                    lastQueuedTimeUs = presentationTimeUs;
+                    frameIndex++;
+                }
+            }
+
+            //Output is drained by the output thread, report if it has rendered anything meanwhile
+            if (endOfStream) {
+                return MediaDecoder.ACTION_END_OF_STREAM_REACHED;
+            } else if (dropAction != ACTION_NONE) {
+                return dropAction;
+            } else if (renderedSinceDecode.getAndSet(false)) {
+                return 100 + frame.frameType;
+            } else if (frame.frameType == Frame.CONFIG_FRAME) {
+                return ACTION_CONFIGURED;
+            }
+
+        } catch (Exception e) {
+            if (!isReleased()) {
+                destroyMediaCodec(false);
+                throw new MediaDecoderException(e);
+            }
+        } finally {
+            //Frame data has been copied to the codec (or dropped), its memory may be reused
+            frame.release();
+            if (isReleased()) {
+                destroyMediaCodec(true);
+            }
+        }
+        return MediaDecoder.ACTION_NONE;
+    }
+
+    //Stops decoding till the next key frame (or recovery point) and asks for one
+    private void suspendTillKeyFrame() {
+        if (!waitForKeyFrame) {
+            waitForKeyFrame = true;
+            requestKeyFrame();
+        }
+    }
+
+    //Releases decoded output buffer, scheduling it by the presentation clock
+    //(or dropping it if it's too late or it belongs to frames decoded while catching up)
+    private void releaseOutputBuffer(CodecAdapter codec, int outIndex, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            endOfStream = true;
+        }
+
+        Surface output = this.output;
+        long renderFrom = renderFromTimeUs.get();
+        boolean reached = info.size != 0 && info.presentationTimeUs >= renderFrom;
+        if (reached && renderFrom != Long.MIN_VALUE) {
+            //The target frame is out, following ones are shown whatever their timestamps
+            //(unless a new catch-up has set another target meanwhile)
+            renderFromTimeUs.compareAndSet(renderFrom, Long.MIN_VALUE);
+        }
+        boolean visible = reached
+                && !isReleased()
+                && output != null && output.isValid();
+
+        try {
+            if (!visible) {
+                codec.releaseOutputBuffer(outIndex, false);
+                return;
+            }
+
+            PresentationClock clock = presentationClock;
+            long catchUpStart = catchUpStartNanos;
+            if (catchUpStart != 0) {
+                //Catch-up frames are old, the stream continues from the last one, shown right away
+                clock.reset();
+            }
+
+            long now = clock.nanoTime();
+            long renderTime = clock.getRenderTimeNanos(info.presentationTimeUs);
+            //Later outputs are dropped, showing them would only delay the following ones
+            if (now - renderTime > clock.getMaxLatenessNanos()) {
+                codec.releaseOutputBuffer(outIndex, false);
+                lateFrames++;
+                return;
+            }
+
+            codec.releaseOutputBuffer(outIndex, Math.max(renderTime, now));
+            renderedFrames++;
+            renderedSinceDecode.set(true);
+
+            if (catchUpStart != 0) {
+                catchUpStartNanos = 0;
+                catchUpLatencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - catchUpStart);
+            }
+        } catch (IllegalStateException e) {
+            //when surface becomes invalid after check, this may happen
+            //release without rendering
+            codec.releaseOutputBuffer(outIndex, false);
+        }
+    }
+
+    /**
+     * Drains output of one codec, until the codec is destroyed.
+     */
+
+    private final class OutputThread extends Thread {
+
+        @NonNull
+        private final CodecAdapter codec;
+        private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        private volatile boolean running = true;
+
+        OutputThread(@NonNull CodecAdapter codec) {
+            super("VideoOutput");
+            this.codec = codec;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                outputLock.lock();
+                try {
+                    int outIndex = codec.dequeueOutputBuffer(info, DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
+                    if (outIndex >= 0 && running) {
+                        releaseOutputBuffer(codec, outIndex, info);
+                    }
+                } catch (IllegalStateException e) {
+                    //Codec failed or is being destroyed, decoding thread recreates it
+                    break;
+                } finally {
+                    outputLock.unlock();
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            try {
+                join(TimeUnit.MICROSECONDS.toMillis(DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US) * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private synchronized void updateCodecSurface() throws IOException {
+        CodecAdapter codec = this.codec;
+        Surface output = this.output;
+
+        if(output != null && !output.isValid()){
+            output = null;
+            this.output = null;
+        }
+
+        if (codec != null && codecSurface != output) {
+            try {
+                codec.setOutputSurface(output);
+                Log.println(Log.ASSERT, "errr", "Set output surface " + output);
+                codecSurface = output;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Log.println(Log.ASSERT, "errr", "Failed to set output surface " + e);
+                //Codec stays usable with another surface, get one matching this output
+                destroyMediaCodec(true);
+                ensureMediaCodec();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        CodecAdapter codec = this.codec;
+        if (codec != null) {
+            flushCodecQuietly();
+            configCsd(format, codec, csd);
+        }
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        //Waits for decode() in progress, the codec mustn't be used after it's returned to the pool
+        synchronized (this) {
+            if (codec != null) {
+                destroyMediaCodec(true);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Creates the codec adapter used to decode frames, called each time the codec is (re)created.<br>
+     * By default creates {@link AsyncCodecAdapter} of a decoder of the mime type,
+     * tests may override it to run the decoder on a fake codec.
+     * @return new, not configured adapter
+     * @throws IOException if the codec can't be created
+     */
+
+    @NonNull
+    protected CodecAdapter createCodecAdapter() throws IOException {
+        return new AsyncCodecAdapter(MediaCodec.createDecoderByType(mime));
+    }
+
+    /**
+     * Sets the pool codecs are taken from and returned to. By default {@link CodecPool#getDefault()}.
+     * Takes effect when the next codec is created.
+     * @param pool the pool
+     */
+
+    public void setCodecPool(@NonNull CodecPool pool) {
+        this.codecPool = Objects.requireNonNull(pool);
+    }
+
+    /**
+     * Returns the pool codecs are taken from and returned to.
+     * @return the pool
+     * @see #setCodecPool(CodecPool)
+     */
+
+    @NonNull
+    public CodecPool getCodecPool() {
+        return codecPool;
+    }
+
+    @NonNull
+    private CodecAdapter initCodec() throws IOException {
+        CodecAdapter codec = this.codec;
+
+        if (codec == null) {
+            CodecPool pool = codecPool;
+            Surface output = this.output;
+            int[] maxSize = getMaxSizeClass(videoWidth, videoHeight);
+            int maxWidth = maxSize[0], maxHeight = maxSize[1];
+
+            //Only codecs rendering to a surface can be moved to another one
+            codec = output != null ? pool.acquire(mime, maxWidth, maxHeight) : null;
+            if (codec != null) {
+                try {
+                    codec.setOutputSurface(output);
+                    applyParameters(codec);
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    Log.println(Log.ASSERT, "MediaCodecVideoDecoder", "Pooled codec not reusable: " + e);
+                    releaseCodecQuietly(codec, pool);
+                    codec = null;
+                }
+            }
+
+            if (codec != null) {
+                //Configured for another stream, parameter sets of this one are recorded from csd
+                //and injected before the first key frame
+                format = MediaFormat.createVideoFormat(mime, maxWidth, maxHeight);
+                configCsd(format, codec, csd);
+            } else {
+                pool.reserve(mime);
+                try {
+                    codec = createConfiguredCodec(output, maxWidth, maxHeight);
+                } catch (IOException | RuntimeException e) {
+                    pool.onReleased(mime);
+                    throw e;
+                }
+                pool.setMaxInstances(mime, codec.getMaxSupportedInstances(mime));
+            }
+
+            codecSurface = output;
+            codecSurfaceMode = output != null;
+            codecOwnerPool = pool;
+            codecMaxWidth = maxWidth;
+            codecMaxHeight = maxHeight;
+            frameIndex = 0;
+            endOfStream = false;
+            waitForKeyFrame = true;
+            clearRenderFrom();
+            presentationClock.reset();
+
+            this.codec = codec;
+            outputThread = new OutputThread(codec);
+            outputThread.start();
+        }
+        return codec;
+    }
+
+    @NonNull
+    private CodecAdapter createConfiguredCodec(Surface output, int maxWidth, int maxHeight) throws IOException {
+        CodecAdapter codec = createCodecAdapter();
+        try {
+            Size safeSize = getDecoderSafeWidthHeight(codec);
+            format = MediaFormat.createVideoFormat(mime, safeSize.width, safeSize.height);
+            //format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            if (format != null && isSizeSupported(codec, maxWidth, maxHeight)) {
+                //Lets the codec (and codecs taken from the pool) decode bigger streams without reconfiguration
+                format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+                format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+            }
+
+            configCsd(format, codec, csd);
+            codec.configure(format, output);
+            applyParameters(codec);
+            codec.start();
+            return codec;
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+    }
+
+    private void applyParameters(CodecAdapter codec) {
+        //Set low latency mode if available and stream has no reordering (known after parsing csd)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_LOW_LATENCY, lowLatency ? 1 : 0);
+            codec.setParameters(params);
+        }
+    }
+
+    private boolean isSizeSupported(CodecAdapter codec, int width, int height) {
+        MediaCodecInfo.VideoCapabilities c = codec.getVideoCapabilities(mime);
+        return c == null || c.isSizeSupported(width, height);
+    }
+
+    //Returns the smallest max size class fitting the video, 1080p if the size is not known yet
+    private static int[] getMaxSizeClass(int width, int height) {
+        if (width <= 0 || height <= 0)
+            return MAX_SIZE_CLASSES[1];
+
+        for (int[] size : MAX_SIZE_CLASSES) {
+            if (width <= size[0] && height <= size[1])
+                return size;
+        }
+        return MAX_SIZE_CLASSES[MAX_SIZE_CLASSES.length - 1];
+    }
+
+    private void configCsd(MediaFormat format, CodecAdapter codec, Csd csd) {
+        if (format == null || codec == null || csd == null) {
+            return;
+        }
+        onCsd(format, csd);
+    }
+
+    @NonNull
+    private CodecAdapter ensureMediaCodec() throws IOException {
+        return initCodec();
+    }
+
+    //Stops using the codec, returning it to the pool if it's still usable
+    private void destroyMediaCodec(boolean reusable) {
+        OutputThread outputThread = this.outputThread;
+        if (outputThread != null) {
+            outputThread.shutdown();
+            this.outputThread = null;
+        }
+        CodecAdapter codec = this.codec;
+        CodecPool pool = codecOwnerPool;
+        if (codec != null && pool != null) {
+            boolean recycled = false;
+            if (reusable && codecSurfaceMode) {
+                try {
+                    outputLock.lock();
+                    try {
+                        codec.flush();
+                    } finally {
+                        outputLock.unlock();
+                    }
+                    pool.recycle(mime, codecMaxWidth, codecMaxHeight, codec);
+                    recycled = true;
+                } catch (Exception e) {
+                    Log.println(Log.ASSERT, "MediaCodecVideoDecoder", "Codec not recyclable: " + e);
+                }
+            }
+            if (!recycled) {
+                releaseCodecQuietly(codec, pool);
+            }
+        }
+        this.codecOwnerPool = null;
+        this.format = null;
+        this.codec = null;
+        this.waitForKeyFrame = true;
+        this.codecSurface = null;
+    }
+
+    private void releaseCodecQuietly(CodecAdapter codec, CodecPool pool) {
+        try {
+            codec.release();
+        } catch (Exception ignored) {
+        } finally {
+            pool.onReleased(mime);
+        }
+    }
+
+    private void flushCodecQuietly() {
+        try {
+            waitForKeyFrame = true;
+            outputLock.lock();
+            try {
+                codec.flush();
+            } finally {
+                outputLock.unlock();
+            }
+            presentationClock.reset();
+            endOfStream = false;
+            clearRenderFrom();
+        } catch (Exception ignored) {
+        }
+    }
+
+    //Outputs of the old codec (or before the flush) are gone, the threshold of a previous catch-up
+    //mustn't hide frames of a restarted stream. Kept while catching up, its frames are still to come.
+    private void clearRenderFrom() {
+        if (catchUpRemaining == 0) {
+            renderFromTimeUs.set(Long.MIN_VALUE);
+        }
+    }
+
+    private Size getDecoderSafeWidthHeight(CodecAdapter decoder) {
+
+        MediaCodecInfo.VideoCapabilities c = decoder.getVideoCapabilities(mime);
+
+        int width = Util.limit(videoWidth, MIN_VIDEO_WIDTH, MAX_VIDEO_WIDTH);
+        int height = Util.limit(videoHeight, MIN_VIDEO_HEIGHT, MAX_VIDEO_HEIGHT);
+
+        Size size;
+        if (c == null || c.isSizeSupported(width, height)) {
+            size = new Size(width, height);
+        } else {
+            int wa = c.getWidthAlignment();
+            int ha = c.getHeightAlignment();
+            size = new Size(
+                    ceilDivide(width, wa) * wa,
+                    ceilDivide(height, ha) * ha
+            );
+        }
+
+        return size;
+    }
+
+    /**
+     * Divides a {@code numerator} by a {@code denominator}, returning the ceiled result.
+     *
+     * @param numerator   The numerator to divide.
+     * @param denominator The denominator to divide by.
+     * @return The ceiled result of the division.
+     */
+    public static int ceilDivide(int numerator, int denominator) {
+        return (numerator + denominator - 1) / denominator;
+    }
+
+    private void readParameterSets(byte[] data, int off, int len) {
+        int end = off + len;
+        int prefix = H264Util.startsWithNalPrefix(data, off, len);
+
+        if (prefix == 0) {
+            //Single NAL unit without prefix
+            onParameterSet(data, off, len);
+            return;
+        }
+
+        int nalStart = off + prefix;
+        while (nalStart < end) {
+            int next = startCodeScanner.find(data, nalStart, end);
+            int nalEnd = next < 0 ? end : next;
+            //Skip leading zero of 4-byte start code
+            while (nalEnd > nalStart && next >= 0 && data[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+            onParameterSet(data, nalStart, nalEnd - nalStart);
+            if (next < 0) {
+                break;
+            }
+            nalStart = next + Constants.H264_NAL_PREFIX_OLD.length;
+        }
+    }
+
+    /**
+     * Updates video parameters obtained from a parameter set.<br>
+     * Invalid or unknown values are ignored.
+     * @param width video width in pixels
+     * @param height video height in pixels
+     * @param frameRate video frame rate in frames per second
+     */
+
+    protected void onVideoParams(int width, int height, float frameRate) {
+        if (width > 0 && height > 0
+                && width != videoWidth && height != videoHeight) {
+
+            videoWidth = width;
+            videoHeight = height;
+
+            track.setWidth(videoWidth);
+            track.setHeight(videoHeight);
+
+            MediaFormat format = this.format;
+            if(format != null){
+                format.setInteger(MediaFormat.KEY_WIDTH, videoWidth);
+                format.setInteger(MediaFormat.KEY_HEIGHT, videoHeight);
+            }
+        }
+
+        if(frameRate > 0 && frameRate != videoFrameRate && frameRate <= 130){
+            videoFrameRate = frameRate;
+            track.setFps(videoFrameRate);
+        }
+    }
+
+    /**
+     * Enables or disables low latency output of the codec. (disabled by default)<br>
+     * In low latency mode the codec outputs a picture as soon as it's decoded, which is safe
+     * only if the stream doesn't reorder pictures. Subclasses should enable it when parameter sets
+     * declare no reordering. Takes effect on Android 11+ only.
+     * @param enabled true to enable low latency mode
+     */
+
+    protected void setLowLatency(boolean enabled) {
+        if (lowLatency == enabled) {
+            return;
+        }
+        lowLatency = enabled;
+
+        CodecAdapter codec = this.codec;
+        if (codec != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_LOW_LATENCY, enabled ? 1 : 0);
+            try {
+                codec.setParameters(params);
+            } catch (IllegalStateException ignored) {
+                //Applied on next configuration
+            }
+        }
+    }
+
+    /**
+     * Checks if low latency output is requested.
+     * @return true if low latency mode is enabled
+     * @see #setLowLatency(boolean)
+     */
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    /**
+     * Stores parameter set in the cache of the track. Cached parameter sets missing in a key frame
+     * are injected before it, so the codec recovers after flushing or recreation at the next key frame,
+     * even if the source doesn't repeat parameter sets.
+     * @param index slot of the parameter set kind, from 0 to parameterSetCount - 1 (see constructor)
+     * @param data array containing the parameter set NAL unit
+     * @param off offset of the NAL unit header
+     * @param len length of the NAL unit
+     */
+
+    protected final void cacheParameterSet(int index, byte[] data, int off, int len) {
+        parameterSets.put(index, data, off, len);
+        if (readingFrame) {
+            frameParameterSets |= 1 << index;
+        }
+    }
+
+    /**
+     * Checks if all parameter sets required to decode pictures have been received
+     * (in codec specific data or in-band), see {@link #cacheParameterSet(int, byte[], int, int)}.
+     * @return true if pictures can be decoded, false otherwise
+     */
+
+    protected boolean hasParameterSets() {
+        return parameterSets.isComplete();
+    }
+
+    /**
+     * Called for each NAL unit (without start code) of a frame flagged with {@link Frame#FLAG_HAS_CONFIG}
+     * and for each parameter set of codec specific data.<br>
+     * Implementations should cache received parameter sets with {@link #cacheParameterSet(int, byte[], int, int)}
+     * and may obtain video parameters from them.
+     * @param data array containing the NAL unit
+     * @param off offset of the NAL unit header
+     * @param len length of the NAL unit
+     */
+
+    protected abstract void onParameterSet(byte[] data, int off, int len);
+
+    /**
+     * Called when the codec is being configured (or flushed) with the codec specific data set
+     * with {@link #setCsd(Csd)}.<br>
+     * Implementations should put the csd buffers into the format and record received parameter sets.
+     * @param format format the codec is configured with
+     * @param csd codec specific data of the track
+     */
+
+    protected abstract void onCsd(@NonNull MediaFormat format, @NonNull Csd csd);
+
+
+}
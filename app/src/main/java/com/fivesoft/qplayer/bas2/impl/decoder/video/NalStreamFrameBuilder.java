@@ -0,0 +1,355 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.track.Track;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+
+/**
+ * Base class for builders of video frames (Annex B format) from NAL unit byte streams,
+ * like raw .h264 files or TCP streams.<br>
+ * <p>
+ *     Samples may be arbitrary chunks of the stream, they are collected in an input buffer,
+ *     which subclasses split into NAL units in {@link #parse(byte[], int)}.
+ *     NAL units are grouped into access units using {@link NalUnitClassifier} of the codec:
+ *     an access unit is complete when the beginning of the first NAL unit of the next one arrives
+ *     (see {@link #onNalUnitStart(byte[], int, int)}), so the last access unit of the stream
+ *     is returned only after {@link #flush()}.
+ * </p>
+ * <p>
+ *     Frames are assembled in arrays obtained from {@link ByteArrayPool}, ready frame takes the array
+ *     over without copying, so it should be released with {@link Frame#release()} when it's not needed anymore.
+ *     Timestamp of a frame is the timestamp of the sample its first NAL unit has been completed by.
+ *     Frames are marked with {@link Frame#FLAG_NON_REFERENCE} and {@link Frame#FLAG_NEW_PICTURE}
+ *     according to {@link NalUnitClassifier#inspectNalUnit(byte[], int, int)} of their slices.
+ * </p>
+ * <p>
+ *     The builder is not thread-safe, it should be used by one (feeding) thread only.
+ * </p>
+ */
+
+public abstract class NalStreamFrameBuilder extends FrameBuilder {
+
+    /**
+     * Initial size of the input and assembly buffers. The buffers grow on demand.
+     */
+
+    public static final int INITIAL_BUFFER_SIZE = 64 * 1024; // 64KB
+
+    @NonNull
+    private final NalUnitClassifier classifier;
+    @NonNull
+    private final ByteArrayPool pool;
+
+    //Collected stream data not split into NAL units yet
+    @Nullable
+    private PooledByteArray input;
+    private int inputLen;
+
+    //Access unit being assembled
+    @Nullable
+    private PooledByteArray au;
+    private int auLen;
+    private long auTimestamp;
+    private Track auTrack;
+    private boolean auHasKeyFrame;
+    private boolean auHasConfig;
+    private boolean auHasOther;
+    private boolean auHasSlice;
+    private boolean auHasReferenceSlice;
+    private boolean auHasNewPicture;
+    private boolean auHasRecoveryPoint;
+
+    private long timestamp;
+    private Track track;
+
+    private final ArrayDeque<Frame> ready = new ArrayDeque<>();
+
+    /**
+     * Creates Frame builder with specified max frame size and buffer pool.<br>
+     *
+     * @param maxFrameSize If a frame (or a single NAL unit) is bigger than this value,
+     *                     {@link BufferOverflowException} will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param classifier NAL unit classifier of the codec.
+     * @param pool Pool to obtain buffers from.
+     */
+
+    protected NalStreamFrameBuilder(int maxFrameSize, @NonNull NalUnitClassifier classifier, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize);
+        this.classifier = Objects.requireNonNull(classifier);
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    @Nullable
+    @Override
+    public Frame pull(@NonNull Sample sample) throws BufferOverflowException {
+        Objects.requireNonNull(sample);
+
+        //Frames not polled after the previous pull are dropped
+        releaseReadyFrames();
+
+        int length = sample.getLength();
+        if (length < 1)
+            return null;
+
+        timestamp = sample.timestamp;
+        track = sample.track;
+
+        try {
+            PooledByteArray input = ensureCapacity(this.input, inputLen, inputLen + length);
+            this.input = input;
+            System.arraycopy(sample.getArray(), sample.getOffset(), input.array(), inputLen, length);
+            inputLen += length;
+
+            int consumed = parse(input.array(), inputLen);
+
+            //Move unparsed data to the beginning of the buffer
+            int remaining = inputLen - consumed;
+            if (remaining > maxFrameSize)
+                throw new BufferOverflowException();
+            if (consumed > 0 && remaining > 0) {
+                System.arraycopy(input.array(), consumed, input.array(), 0, remaining);
+            }
+            inputLen = remaining;
+        } catch (BufferOverflowException e) {
+            clear();
+            throw e;
+        }
+
+        return ready.poll();
+    }
+
+    @Nullable
+    @Override
+    public Frame poll() {
+        return ready.poll();
+    }
+
+    /**
+     * Completes the access unit being assembled, treating collected data as the end of stream.
+     * The frame, if any, can be obtained with {@link #poll()}.<br>
+     * Should be called at the end of stream, the builder is empty afterwards.
+     */
+
+    public void flush() {
+        try {
+            if (input != null && inputLen > 0) {
+                parseLast(input.array(), inputLen);
+            }
+            finishAccessUnit();
+        } catch (BufferOverflowException e) {
+            Log.println(Log.ASSERT, "NalStreamFrameBuilder", "Last access unit too big, dropped");
+        } finally {
+            inputLen = 0;
+            resetAccessUnit();
+            onClear();
+        }
+    }
+
+    @Override
+    public int getBufferSize() {
+        return inputLen + auLen;
+    }
+
+    @Override
+    public void clear() {
+        inputLen = 0;
+        resetAccessUnit();
+        onClear();
+        classifier.reset();
+        releaseReadyFrames();
+    }
+
+    /**
+     * Splits collected stream data into NAL units and passes each complete one to
+     * {@link #onNalUnit(byte[], int, int)}.<br>
+     * Data following the returned position is kept and passed again (moved to the beginning of the array)
+     * on the next call together with new data, so implementations keeping positions between calls
+     * should shift them by the returned value.
+     * @param data array containing collected stream data, starting at index 0
+     * @param len length of collected data
+     * @return number of bytes from the beginning of data, which are not needed anymore
+     * @throws BufferOverflowException if a NAL unit is bigger than max frame size
+     */
+
+    protected abstract int parse(byte[] data, int len) throws BufferOverflowException;
+
+    /**
+     * Called by {@link #flush()} at the end of stream with data left after the last {@link #parse(byte[], int)} call.
+     * Implementations may pass the last NAL unit to {@link #onNalUnit(byte[], int, int)} if it's complete.
+     * Parsing state is reset with {@link #onClear()} afterwards.
+     * @param data array containing collected stream data, starting at index 0
+     * @param len length of collected data
+     * @throws BufferOverflowException if a NAL unit is bigger than max frame size
+     */
+
+    protected void parseLast(byte[] data, int len) throws BufferOverflowException {
+        //Incomplete NAL unit is dropped by default
+    }
+
+    /**
+     * Called when the builder is cleared. Implementations should reset parsing state.
+     */
+
+    protected abstract void onClear();
+
+    /**
+     * Notifies the builder about beginning of the next NAL unit, before it's complete.<br>
+     * If the NAL unit starts a new access unit, the current one is completed immediately,
+     * instead of waiting for the whole NAL unit. This saves up to one frame of latency.
+     * @param data array containing the beginning of the NAL unit
+     * @param off offset of the NAL unit header
+     * @param available number of bytes of the NAL unit available so far
+     */
+
+    protected final void onNalUnitStart(byte[] data, int off, int available) {
+        if (available < 1 || !auHasSlice)
+            return;
+
+        //Role may be misjudged as ROLE_SLICE if too few bytes are available, onNalUnit() checks it again
+        int role = classifier.getAccessUnitRole(data, off, available);
+        if (role == NalUnitClassifier.ROLE_FIRST_SLICE || role == NalUnitClassifier.ROLE_PREFIX) {
+            finishAccessUnit();
+        }
+    }
+
+    /**
+     * Appends a complete NAL unit to the current access unit. If the NAL unit starts a new access unit,
+     * the current one is completed first.
+     * @param data array containing the NAL unit
+     * @param off offset of the NAL unit header
+     * @param len length of the NAL unit
+     * @throws BufferOverflowException if the access unit exceeds max frame size
+     */
+
+    protected final void onNalUnit(byte[] data, int off, int len) throws BufferOverflowException {
+        if (len < 1)
+            return;
+
+        int role = classifier.getAccessUnitRole(data, off, len);
+        int sliceFlags = classifier.inspectNalUnit(data, off, len);
+        boolean slice = role == NalUnitClassifier.ROLE_FIRST_SLICE || role == NalUnitClassifier.ROLE_SLICE;
+
+        //Slice may start a new picture even if it's not the first one (the first has been lost)
+        if (auHasSlice && (role == NalUnitClassifier.ROLE_FIRST_SLICE || role == NalUnitClassifier.ROLE_PREFIX
+                || (slice && (sliceFlags & Frame.FLAG_NEW_PICTURE) != 0))) {
+            finishAccessUnit();
+        }
+
+        if (auLen == 0) {
+            auTimestamp = timestamp;
+            auTrack = track;
+        }
+
+        int prefix = Constants.H264_NAL_PREFIX.length;
+        if (auLen + prefix + len > maxFrameSize)
+            throw new BufferOverflowException();
+
+        PooledByteArray au = ensureCapacity(this.au, auLen, auLen + prefix + len);
+        this.au = au;
+        System.arraycopy(Constants.H264_NAL_PREFIX, 0, au.array(), auLen, prefix);
+        System.arraycopy(data, off, au.array(), auLen + prefix, len);
+        auLen += prefix + len;
+
+        byte frameType = classifier.getFrameType(data, off);
+        if (frameType == Frame.SYNC_FRAME) {
+            auHasKeyFrame = true;
+        } else if (frameType == Frame.CONFIG_FRAME) {
+            auHasConfig = true;
+        } else {
+            auHasOther = true;
+        }
+        if (slice) {
+            auHasSlice = true;
+            if ((sliceFlags & Frame.FLAG_NON_REFERENCE) == 0) {
+                auHasReferenceSlice = true;
+            }
+        }
+        if ((sliceFlags & Frame.FLAG_NEW_PICTURE) != 0) {
+            auHasNewPicture = true;
+        }
+        if ((sliceFlags & Frame.FLAG_RECOVERY_POINT) != 0) {
+            auHasRecoveryPoint = true;
+        }
+    }
+
+    private void finishAccessUnit() {
+        if (auLen == 0)
+            return;
+
+        byte frameType;
+        if (auHasKeyFrame) {
+            frameType = Frame.SYNC_FRAME;
+        } else if (auHasConfig && !auHasOther) {
+            frameType = Frame.CONFIG_FRAME;
+        } else {
+            frameType = Frame.NON_SYNC_FRAME;
+        }
+
+        //Hand the buffer over to the frame, next access unit gets a new one
+        PooledByteArray accessUnit = Objects.requireNonNull(au);
+        au = null;
+
+        int flags = auHasConfig ? Frame.FLAG_HAS_CONFIG : 0;
+        if (auHasSlice && !auHasReferenceSlice) {
+            flags |= Frame.FLAG_NON_REFERENCE;
+        }
+        if (auHasNewPicture) {
+            flags |= Frame.FLAG_NEW_PICTURE;
+        }
+        if (auHasRecoveryPoint) {
+            flags |= Frame.FLAG_RECOVERY_POINT;
+        }
+
+        Frame frame = new Frame(accessUnit, 0, auLen, auTimestamp, auTrack, frameType, flags);
+        frame.marker = true;
+        ready.add(frame);
+
+        resetAccessUnit();
+    }
+
+    private void resetAccessUnit() {
+        auLen = 0;
+        auHasKeyFrame = false;
+        auHasConfig = false;
+        auHasOther = false;
+        auHasSlice = false;
+        auHasReferenceSlice = false;
+        auHasNewPicture = false;
+        auHasRecoveryPoint = false;
+    }
+
+    private void releaseReadyFrames() {
+        Frame frame;
+        while ((frame = ready.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    @NonNull
+    private PooledByteArray ensureCapacity(@Nullable PooledByteArray buf, int used, int required) {
+        if (buf != null && buf.size() >= required)
+            return buf;
+
+        int size = buf == null ? INITIAL_BUFFER_SIZE : (int) Math.min(Integer.MAX_VALUE, buf.size() * 2L);
+        PooledByteArray grown = pool.obtain(Math.max(required, size));
+
+        if (buf != null) {
+            System.arraycopy(buf.array(), 0, grown.array(), 0, used);
+            buf.release();
+        }
+        return grown;
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import com.fivesoft.qplayer.bas2.Frame;
+
+/**
+ * Classifies NAL units of a codec (H264, H265) for access unit assembly.<br>
+ * Implementations may keep state between calls of {@link #inspectNalUnit(byte[], int, int)}
+ * (e.g. parameter sets needed to parse slice headers), so unless an implementation states otherwise,
+ * each builder should use its own instance.
+ */
+
+public interface NalUnitClassifier {
+
+    /**
+     * NAL unit, which doesn't affect access unit boundaries. (e.g. end of sequence, filler data)
+     */
+
+    int ROLE_OTHER = 0;
+
+    /**
+     * NAL unit, which may only precede slices of a picture. (e.g. access unit delimiter, parameter sets, SEI)<br>
+     * Such unit following a slice starts a new access unit.
+     */
+
+    int ROLE_PREFIX = 1;
+
+    /**
+     * First slice of a picture. Starts a new access unit if current one already contains a slice.
+     */
+
+    int ROLE_FIRST_SLICE = 2;
+
+    /**
+     * Slice other than the first one of a picture.
+     */
+
+    int ROLE_SLICE = 3;
+
+    /**
+     * Returns frame type ({@link Frame#SYNC_FRAME}, {@link Frame#CONFIG_FRAME} or {@link Frame#NON_SYNC_FRAME})
+     * of a single NAL unit.
+     * @param data array containing the NAL unit
+     * @param off offset of the NAL unit header
+     * @return frame type of the NAL unit
+     */
+
+    byte getFrameType(byte[] data, int off);
+
+    /**
+     * Returns role of the NAL unit in an access unit.
+     * @param data array containing the NAL unit
+     * @param off offset of the NAL unit header
+     * @param len length of the NAL unit
+     * @return one of {@link #ROLE_OTHER}, {@link #ROLE_PREFIX}, {@link #ROLE_FIRST_SLICE}, {@link #ROLE_SLICE}
+     */
+
+    int getAccessUnitRole(byte[] data, int off, int len);
+
+    /**
+     * Inspects a complete NAL unit in decoding order. Called once for every NAL unit of the stream.<br>
+     * For slices returns {@link Frame#FLAG_NON_REFERENCE} if the picture the slice belongs to
+     * is not used for reference by other pictures and {@link Frame#FLAG_NEW_PICTURE} if the slice
+     * is the first one of a new picture. For SEI units containing a recovery point
+     * {@link Frame#FLAG_RECOVERY_POINT} is returned. For other NAL units 0 is returned.
+     * @param data array containing the NAL unit
+     * @param off offset of the NAL unit header
+     * @param len length of the NAL unit
+     * @return frame flags (see above) or 0
+     */
+
+    int inspectNalUnit(byte[] data, int off, int len);
+
+    /**
+     * Resets the state collected by {@link #inspectNalUnit(byte[], int, int)}.
+     * Called when the stream is discontinued, e.g. the builder is cleared.
+     */
+
+    void reset();
+
+}
@@ -0,0 +1,155 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Keeps the last received parameter set of each kind (e.g. SPS and PPS for H264, VPS, SPS and PPS for H265)
+ * of a single track, so they can be injected before key frames, which come without them.<br>
+ * <p>
+ *     Some sources send parameter sets only once (in SDP or at the beginning of the session),
+ *     so a decoder which is flushed or recreated later would stay unconfigured till reconnection.
+ *     The cache is filled from codec specific data and in-band parameter sets and isn't cleared
+ *     with the codec.
+ * </p>
+ * <p>
+ *     Each kind of parameter set has its own slot, streams using more parameter sets of the same kind
+ *     (different ids) keep the last one only. The cache is not thread-safe, it's guarded by the decoder.
+ * </p>
+ */
+
+public class ParameterSetCache {
+
+    private final byte[][] sets;
+    private final int[] lengths;
+
+    /**
+     * Creates an empty cache.
+     * @param count number of parameter set kinds (slots), 1 - 31
+     * @throws IllegalArgumentException if count is out of range
+     */
+
+    public ParameterSetCache(int count) {
+        if (count < 1 || count > 31)
+            throw new IllegalArgumentException("Count must be in range 1 - 31");
+
+        this.sets = new byte[count][];
+        this.lengths = new int[count];
+    }
+
+    /**
+     * Stores parameter set in the given slot. Data is copied only if it differs from the cached one.
+     * @param index slot of the parameter set kind
+     * @param data array containing the parameter set NAL unit (without start code)
+     * @param off offset of the NAL unit header
+     * @param len length of the NAL unit
+     * @return true if the cached parameter set has changed
+     */
+
+    public boolean put(int index, @NonNull byte[] data, int off, int len) {
+        Objects.requireNonNull(data);
+        if (len < 1)
+            return false;
+
+        byte[] set = sets[index];
+        if (set != null && lengths[index] == len && equals(set, data, off, len)) {
+            return false;
+        }
+
+        if (set == null || set.length < len) {
+            set = new byte[len];
+            sets[index] = set;
+        }
+        System.arraycopy(data, off, set, 0, len);
+        lengths[index] = len;
+        return true;
+    }
+
+    /**
+     * Checks if parameter set of the given kind is cached.
+     * @param index slot of the parameter set kind
+     * @return true if the parameter set is cached
+     */
+
+    public boolean has(int index) {
+        return sets[index] != null;
+    }
+
+    /**
+     * Returns bit mask of cached parameter sets, bit {@code 1 << index} is set for each cached slot.
+     * @return bit mask of cached parameter sets
+     */
+
+    public int getMask() {
+        int mask = 0;
+        for (int i = 0; i < sets.length; i++) {
+            if (sets[i] != null) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Checks if parameter sets of all kinds are cached.
+     * @return true if all slots are filled
+     */
+
+    public boolean isComplete() {
+        return getMask() == (1 << sets.length) - 1;
+    }
+
+    /**
+     * Returns number of bytes {@link #writeTo(ByteBuffer, int)} writes for the given mask.
+     * @param mask bit mask of parameter sets to write
+     * @return size of the parameter sets with start codes in bytes
+     */
+
+    public int getSize(int mask) {
+        int size = 0;
+        for (int i = 0; i < sets.length; i++) {
+            if ((mask & (1 << i)) != 0 && sets[i] != null) {
+                size += Constants.H264_NAL_PREFIX.length + lengths[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes cached parameter sets selected by the mask (in slot order) in Annex B format.
+     * @param buffer buffer to write to, it must have at least {@link #getSize(int)} bytes remaining
+     * @param mask bit mask of parameter sets to write
+     */
+
+    public void writeTo(@NonNull ByteBuffer buffer, int mask) {
+        for (int i = 0; i < sets.length; i++) {
+            if ((mask & (1 << i)) != 0 && sets[i] != null) {
+                buffer.put(Constants.H264_NAL_PREFIX);
+                buffer.put(sets[i], 0, lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached parameter sets.
+     */
+
+    public void clear() {
+        Arrays.fill(sets, null);
+        Arrays.fill(lengths, 0);
+    }
+
+    private static boolean equals(byte[] set, byte[] data, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (set[i] != data[off + i])
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import java.util.Objects;
+
+/**
+ * Reads bits and Exp-Golomb codes from a NAL unit (H264, H265) payload.<br>
+ * <p>
+ *     The reader works directly on the given array slice (for example a {@link com.fivesoft.qplayer.bas2.Frame})
+ *     and skips emulation prevention bytes (0x03 following two zero bytes) on the fly,
+ *     so the raw byte sequence payload (RBSP) doesn't have to be copied out first.
+ * </p>
+ * <p>
+ *     One instance may be reused for any number of NAL units with {@link #reset(byte[], int, int)}.
+ *     Reading past the end of data throws {@link IllegalStateException}.
+ *     The reader is not thread-safe.
+ * </p>
+ */
+
+public final class RbspBitReader {
+
+    private byte[] data;
+    private int pos;
+    private int end;
+
+    //Currently consumed byte and number of its bits not read yet
+    private int current;
+    private int bitsLeft;
+
+    //Number of consecutive zero bytes preceding pos
+    private int zeros;
+
+    /**
+     * Sets the data to read from and moves to its first bit.
+     * @param data array containing the NAL unit
+     * @param off offset of the first byte to read (usually the NAL unit header)
+     * @param len number of bytes to read
+     * @throws IndexOutOfBoundsException if the slice is out of array bounds
+     */
+
+    public void reset(byte[] data, int off, int len) {
+        Objects.requireNonNull(data);
+        if (off < 0 || len < 0 || off + len > data.length)
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", size: " + data.length);
+
+        this.data = data;
+        this.pos = off;
+        this.end = off + len;
+        this.current = 0;
+        this.bitsLeft = 0;
+        this.zeros = 0;
+    }
+
+    /**
+     * Reads single bit.
+     * @return 0 or 1
+     */
+
+    public int readBit() {
+        if (bitsLeft == 0) {
+            nextByte();
+        }
+        return (current >> --bitsLeft) & 1;
+    }
+
+    /**
+     * Reads single bit as flag.
+     * @return true if the bit is 1
+     */
+
+    public boolean readFlag() {
+        return readBit() != 0;
+    }
+
+    /**
+     * Reads up to 32 bits as unsigned number. (most significant bit first)<br>
+     * Value of 32 bits is returned as int, so it may be negative.
+     * @param count number of bits to read, from 0 to 32
+     * @return read value
+     */
+
+    public int readBits(int count) {
+        if (count < 0 || count > 32)
+            throw new IllegalArgumentException("count must be in range 0..32");
+
+        int result = 0;
+        while (count > 0) {
+            if (bitsLeft == 0) {
+                nextByte();
+            }
+            int take = Math.min(count, bitsLeft);
+            bitsLeft -= take;
+            result = (result << take) | ((current >> bitsLeft) & ((1 << take) - 1));
+            count -= take;
+        }
+        return result;
+    }
+
+    /**
+     * Reads 32 bits as unsigned number.
+     * @return read value
+     */
+
+    public long readUnsignedInt() {
+        return readBits(32) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Skips given number of bits.
+     * @param count number of bits to skip
+     */
+
+    public void skipBits(int count) {
+        while (count > 32) {
+            readBits(32);
+            count -= 32;
+        }
+        readBits(count);
+    }
+
+    /**
+     * Reads unsigned Exp-Golomb code. (ue(v))
+     * @return decoded value
+     */
+
+    public int readUE() {
+        int leadingZeros = 0;
+        while (readBit() == 0) {
+            if (++leadingZeros > 31)
+                throw new IllegalStateException("Invalid Exp-Golomb code");
+        }
+        if (leadingZeros == 0) {
+            return 0;
+        }
+        return (int) ((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Reads signed Exp-Golomb code. (se(v))
+     * @return decoded value
+     */
+
+    public int readSE() {
+        int value = readUE();
+        if ((value & 0x01) != 0) {
+            return (value + 1) >>> 1;
+        } else {
+            return -(value >>> 1);
+        }
+    }
+
+    /**
+     * Checks if there are more bits to read.<br>
+     * Trailing bits of the RBSP are counted as well.
+     * @return true if at least one more bit can be read
+     */
+
+    public boolean hasMoreBits() {
+        return bitsLeft > 0 || pos < end;
+    }
+
+    private void nextByte() {
+        if (pos >= end)
+            throw new IllegalStateException("End of data");
+
+        int b = data[pos++] & 0xFF;
+        if (zeros >= 2 && b == 0x03) {
+            //Emulation prevention byte
+            zeros = 0;
+            if (pos >= end)
+                throw new IllegalStateException("End of data");
+            b = data[pos++] & 0xFF;
+        }
+        zeros = b == 0 ? zeros + 1 : 0;
+        current = b;
+        bitsLeft = 8;
+    }
+
+}
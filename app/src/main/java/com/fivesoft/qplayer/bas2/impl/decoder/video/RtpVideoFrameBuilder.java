@@ -0,0 +1,494 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.track.Track;
+
+import java.util.Objects;
+
+/**
+ * Base class for builders of NAL unit based video frames (Annex B format) from RTP payloads.<br>
+ * <p>
+ *     By default the builder works in access unit mode: all NAL units sharing the same RTP timestamp
+ *     are collected until a packet with marker bit set arrives (or until the timestamp changes,
+ *     if the marker bit is missing) and returned as a single frame. This way the decoder receives
+ *     one input buffer per picture, no matter how many slices, SEI or AUD units it consists of.
+ * </p>
+ * <p>
+ *     Lost packets are detected using {@link Sample#sequenceNumber}. Access units missing any data
+ *     (lost packets, incomplete fragments, NAL units with forbidden_zero_bit set) are dropped
+ *     instead of being passed to the decoder. Unless the loss is known to be confined to a non-reference
+ *     picture, the next frame is marked with {@link Frame#FLAG_DISCONTINUITY},
+ *     so the decoder waits for a key frame or a recovery point.
+ * </p>
+ * <p>
+ *     Access unit mode may be disabled with {@link #setAccessUnitMode(boolean)}.
+ *     Each NAL unit is returned as a separate frame then. (useful for debugging)
+ * </p>
+ * <p>
+ *     Frames are assembled in arrays obtained from {@link ByteArrayPool}, which grow on demand
+ *     up to {@link #getMaxFrameSize()}. Ready frame takes the array over without copying,
+ *     so the frame should be released with {@link Frame#release()} when it's not needed anymore.
+ * </p>
+ * <p>
+ *     Every completed NAL unit is inspected with {@link NalUnitClassifier} of the codec, frames are marked
+ *     with {@link Frame#FLAG_NON_REFERENCE} and {@link Frame#FLAG_NEW_PICTURE} according to their slices.
+ * </p>
+ * <p>
+ *     Subclasses parse payload format specific packets in {@link #processPacket(byte[], int, int)}
+ *     and write NAL units with {@link #appendNalUnit(byte[], int, int)} or
+ *     {@link #startFragment(int)}, {@link #writeToBuffer(byte[], int, int)} and {@link #endFragment()}.
+ * </p>
+ * <p>
+ *     The builder is not thread-safe, it should be used by one (feeding) thread only.
+ * </p>
+ */
+
+public abstract class RtpVideoFrameBuilder extends FrameBuilder {
+
+    /**
+     * Initial size of the assembly buffer. The buffer grows on demand up to max frame size.
+     */
+
+    public static final int INITIAL_BUFFER_SIZE = 64 * 1024; // 64KB
+
+    private static final int NO_FRAGMENT = -1;
+
+    //Access unit is complete
+    private static final int DAMAGE_NONE = 0;
+    //Some data of the access unit is missing, but other pictures are not affected
+    private static final int DAMAGE_PICTURE = 1;
+    //Data lost at the access unit may have belonged to other pictures as well
+    private static final int DAMAGE_STREAM = 2;
+
+    @NonNull
+    private final NalUnitClassifier classifier;
+    @NonNull
+    private final ByteArrayPool pool;
+    @Nullable
+    private PooledByteArray buf;
+
+    //Length of all buffered data (including fragment being assembled)
+    private int len;
+    //Length of completed NAL units of the current access unit
+    private int auLen;
+
+    private long auTimestamp;
+    private Track auTrack;
+
+    private boolean auHasKeyFrame;
+    private boolean auHasConfig;
+    private boolean auHasOther;
+    private boolean auHasSlice;
+    private boolean auHasReferenceSlice;
+    private boolean auHasNewPicture;
+
+    private boolean auHasRecoveryPoint;
+
+    //Damage of the current access unit, one of DAMAGE_* constants
+    private int auDamage = DAMAGE_NONE;
+
+    private int currentFragmentNalType = NO_FRAGMENT;
+
+    private int lastSequenceNumber = Sample.UNKNOWN_SEQUENCE_NUMBER;
+    //Set when a damaged access unit has been dropped, next frame gets FLAG_DISCONTINUITY
+    private boolean discontinuity;
+    private long droppedFrames;
+
+    private boolean accessUnitMode = true;
+
+    //Second frame completed by the last pull
+    private Frame pending;
+
+    /**
+     * Creates Frame builder with specified max frame size and buffer pool.<br>
+     *
+     * @param maxFrameSize If a frame is bigger than this value, {@link BufferOverflowException}
+     *                     will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param classifier NAL unit classifier of the codec.
+     * @param pool Pool to obtain assembly buffers from.
+     */
+    protected RtpVideoFrameBuilder(int maxFrameSize, @NonNull NalUnitClassifier classifier, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize);
+        this.classifier = Objects.requireNonNull(classifier);
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    /**
+     * Enables or disables access unit mode. (enabled by default)<br>
+     * When disabled, each NAL unit is returned as a separate frame.<br>
+     * Changing the mode clears the buffer, so it should be called from the feeding thread.
+     * @param enabled true to aggregate NAL units into access units, false to return NAL units one by one
+     */
+
+    public void setAccessUnitMode(boolean enabled) {
+        if (accessUnitMode != enabled) {
+            accessUnitMode = enabled;
+            clear();
+        }
+    }
+
+    /**
+     * Checks if access unit mode is enabled.
+     * @return true if NAL units are aggregated into access units, false otherwise
+     * @see #setAccessUnitMode(boolean)
+     */
+
+    public boolean isAccessUnitMode() {
+        return accessUnitMode;
+    }
+
+    @Nullable
+    @Override
+    public Frame pull(@NonNull Sample sample) throws BufferOverflowException {
+        Objects.requireNonNull(sample);
+
+        byte[] data = sample.getArray();
+        int off = sample.getOffset();
+        int length = sample.getLength();
+
+        if (length < 1)
+            return null;
+
+        Frame ready = null;
+        if (pending != null) {
+            //Not polled, drop it
+            pending.release();
+            pending = null;
+        }
+
+        boolean loss = checkSequenceNumber(sample.sequenceNumber);
+
+        if (isAccessUnitStarted() && sample.timestamp != auTimestamp) {
+            //Timestamp changed, but marker bit wasn't received.
+            //Unfinished fragment can't be completed anymore.
+            dropFragment();
+            if (loss) {
+                //Lost packets might have been the end of this access unit
+                markDamaged(DAMAGE_STREAM);
+            }
+            if (auLen > 0 || auDamage != DAMAGE_NONE) {
+                ready = completeAccessUnit();
+            }
+            clear();
+        }
+
+        if (!isAccessUnitStarted()) {
+            auTimestamp = sample.timestamp;
+            auTrack = sample.track;
+            if (loss) {
+                //Whole access units might have been lost as well
+                markDamaged(DAMAGE_STREAM);
+            }
+        } else if (loss) {
+            //Packets lost between two packets of the same timestamp belong to this access unit
+            markDamaged(DAMAGE_PICTURE);
+        }
+
+        try {
+            processPacket(data, off, length);
+        } catch (BufferOverflowException e) {
+            //Drop whole access unit, next one will be assembled from scratch
+            clear();
+            discontinuity = true;
+            if (ready != null) {
+                ready.release();
+            }
+            throw e;
+        }
+
+        if (auLen == 0) {
+            if (auDamage != DAMAGE_NONE && (sample.marker || !accessUnitMode) && len == 0) {
+                //Nothing usable left of the access unit, just account for it
+                completeAccessUnit();
+                clear();
+            }
+            return ready;
+        }
+
+        //Access unit is complete on marker bit, in single NAL unit mode every completed NAL unit is returned
+        if ((sample.marker || !accessUnitMode) && len == auLen) {
+            Frame frame = completeAccessUnit();
+            clear();
+            if (frame == null) {
+                return ready;
+            }
+            if (ready == null) {
+                ready = frame;
+            } else {
+                //Marker bit of the previous access unit was missing, return this one on poll()
+                pending = frame;
+            }
+        }
+
+        return ready;
+    }
+
+    @Nullable
+    @Override
+    public Frame poll() {
+        Frame frame = pending;
+        pending = null;
+        return frame;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return len;
+    }
+
+    @Override
+    public void clear() {
+        len = 0;
+        auLen = 0;
+        auHasKeyFrame = false;
+        auHasConfig = false;
+        auHasOther = false;
+        auHasSlice = false;
+        auHasReferenceSlice = false;
+        auHasNewPicture = false;
+        auHasRecoveryPoint = false;
+        auDamage = DAMAGE_NONE;
+        currentFragmentNalType = NO_FRAGMENT;
+    }
+
+    /**
+     * Returns number of access units dropped, because they were damaged (e.g. by packet loss).
+     * @return number of dropped access units
+     */
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Processes single RTP payload. Called by {@link #pull(Sample)}.
+     * @param data array containing the payload
+     * @param off offset of the payload
+     * @param length length of the payload, at least 1
+     * @throws BufferOverflowException if the access unit exceeds max frame size
+     */
+
+    protected abstract void processPacket(byte[] data, int off, int length) throws BufferOverflowException;
+
+    /**
+     * Appends a complete NAL unit to the current access unit. Unfinished fragment is dropped.
+     * @param data array containing the NAL unit
+     * @param off offset of the NAL unit header
+     * @param length length of the NAL unit
+     */
+
+    protected final void appendNalUnit(byte[] data, int off, int length) {
+        dropFragment();
+        writeToBuffer(Constants.H264_NAL_PREFIX);
+        writeToBuffer(data, off, length);
+        onNalUnitCompleted();
+    }
+
+    /**
+     * Starts a new fragmented NAL unit. Unfinished fragment is dropped.<br>
+     * Reconstructed NAL unit header and payload should be written with {@link #writeToBuffer(byte[], int, int)}.
+     * @param nalUnitType type of the fragmented NAL unit
+     */
+
+    protected final void startFragment(int nalUnitType) {
+        dropFragment();
+        currentFragmentNalType = nalUnitType;
+        writeToBuffer(Constants.H264_NAL_PREFIX);
+    }
+
+    /**
+     * Checks if a fragmented NAL unit of the given type is being assembled.
+     * @param nalUnitType type of the fragmented NAL unit
+     * @return true if fragment of the given type has been started and not finished yet
+     */
+
+    protected final boolean isFragmentInProgress(int nalUnitType) {
+        return currentFragmentNalType != NO_FRAGMENT && currentFragmentNalType == nalUnitType;
+    }
+
+    /**
+     * Finishes the fragmented NAL unit being assembled and appends it to the current access unit.
+     */
+
+    protected final void endFragment() {
+        if (currentFragmentNalType != NO_FRAGMENT) {
+            onNalUnitCompleted();
+        }
+    }
+
+    /**
+     * Drops the fragmented NAL unit being assembled, if any. The access unit is damaged then.
+     */
+
+    protected final void dropFragment() {
+        if (currentFragmentNalType != NO_FRAGMENT) {
+            markDamaged(DAMAGE_PICTURE);
+        }
+        len = auLen;
+        currentFragmentNalType = NO_FRAGMENT;
+    }
+
+    /**
+     * Marks the current access unit as damaged, e.g. when a fragment without matching start fragment is received.
+     * Damaged access unit is not returned, see {@link #pull(Sample)}.
+     */
+
+    protected final void markDamaged() {
+        markDamaged(DAMAGE_PICTURE);
+    }
+
+    private void markDamaged(int damage) {
+        auDamage = Math.max(auDamage, damage);
+    }
+
+    //Returns true if any data of the current access unit has been received (including damaged, dropped data)
+    private boolean isAccessUnitStarted() {
+        return len > 0 || auDamage != DAMAGE_NONE;
+    }
+
+    //Returns true if packets have been lost before the given one
+    private boolean checkSequenceNumber(int sequenceNumber) {
+        if (sequenceNumber == Sample.UNKNOWN_SEQUENCE_NUMBER)
+            return false;
+
+        int last = lastSequenceNumber;
+        lastSequenceNumber = sequenceNumber;
+        return last != Sample.UNKNOWN_SEQUENCE_NUMBER && sequenceNumber != ((last + 1) & 0xFFFF);
+    }
+
+    //Returns frame of the current access unit or null if it's damaged and has been dropped
+    @Nullable
+    private Frame completeAccessUnit() {
+        if (auDamage == DAMAGE_NONE) {
+            Frame frame = buildFrame();
+            if (discontinuity) {
+                frame.flags |= Frame.FLAG_DISCONTINUITY;
+                discontinuity = false;
+            }
+            return frame;
+        }
+
+        //Decoding damaged picture would smear the picture and the ones predicted from it.
+        //Missing non-reference picture doesn't affect other pictures, any other loss does.
+        boolean nonReference = auHasSlice && !auHasReferenceSlice;
+        if (auDamage == DAMAGE_STREAM || !nonReference) {
+            discontinuity = true;
+        }
+        droppedFrames++;
+        return null;
+    }
+
+    private void onNalUnitCompleted() {
+        //NAL unit header follows the start code written at the end of completed data
+        byte[] data = Objects.requireNonNull(buf).array();
+        int off = auLen + Constants.H264_NAL_PREFIX.length;
+
+        if ((data[off] & 0x80) != 0) {
+            //forbidden_zero_bit set, the NAL unit is known to contain errors
+            markDamaged(DAMAGE_PICTURE);
+            currentFragmentNalType = NO_FRAGMENT;
+            len = auLen;
+            return;
+        }
+
+        byte frameType = classifier.getFrameType(data, off);
+
+        int sliceFlags = classifier.inspectNalUnit(data, off, len - off);
+        int role = classifier.getAccessUnitRole(data, off, len - off);
+        if (role == NalUnitClassifier.ROLE_FIRST_SLICE || role == NalUnitClassifier.ROLE_SLICE) {
+            auHasSlice = true;
+            if ((sliceFlags & Frame.FLAG_NON_REFERENCE) == 0) {
+                auHasReferenceSlice = true;
+            }
+        }
+        if ((sliceFlags & Frame.FLAG_NEW_PICTURE) != 0) {
+            auHasNewPicture = true;
+        }
+        if ((sliceFlags & Frame.FLAG_RECOVERY_POINT) != 0) {
+            auHasRecoveryPoint = true;
+        }
+
+        if (frameType == Frame.SYNC_FRAME) {
+            auHasKeyFrame = true;
+        } else if (frameType == Frame.CONFIG_FRAME) {
+            auHasConfig = true;
+        } else {
+            auHasOther = true;
+        }
+        currentFragmentNalType = NO_FRAGMENT;
+        auLen = len;
+    }
+
+    @NonNull
+    private Frame buildFrame() {
+        byte frameType;
+        if (auHasKeyFrame) {
+            frameType = Frame.SYNC_FRAME;
+        } else if (auHasConfig && !auHasOther) {
+            frameType = Frame.CONFIG_FRAME;
+        } else {
+            frameType = Frame.NON_SYNC_FRAME;
+        }
+
+        //Hand the buffer over to the frame, next access unit gets a new one
+        PooledByteArray accessUnit = Objects.requireNonNull(buf);
+        buf = null;
+
+        int flags = auHasConfig ? Frame.FLAG_HAS_CONFIG : 0;
+        if (auHasSlice && !auHasReferenceSlice) {
+            flags |= Frame.FLAG_NON_REFERENCE;
+        }
+        if (auHasNewPicture) {
+            flags |= Frame.FLAG_NEW_PICTURE;
+        }
+        if (auHasRecoveryPoint) {
+            flags |= Frame.FLAG_RECOVERY_POINT;
+        }
+
+        Frame frame = new Frame(accessUnit, 0, auLen, auTimestamp, auTrack, frameType, flags);
+        frame.marker = true;
+        return frame;
+    }
+
+    private void ensureCapacity(int required) throws BufferOverflowException {
+        if (required > maxFrameSize)
+            throw new BufferOverflowException();
+
+        PooledByteArray buf = this.buf;
+        if (buf != null && buf.size() >= required)
+            return;
+
+        int size = buf == null ? INITIAL_BUFFER_SIZE : (int) Math.min(Integer.MAX_VALUE, buf.size() * 2L);
+        PooledByteArray grown = pool.obtain(Math.max(required, Math.min(size, maxFrameSize)));
+
+        if (buf != null) {
+            System.arraycopy(buf.array(), 0, grown.array(), 0, len);
+            buf.release();
+        }
+        this.buf = grown;
+    }
+
+    protected final void writeToBuffer(byte[] data, int off, int len){
+        ensureCapacity(this.len + len);
+        System.arraycopy(data, off, Objects.requireNonNull(buf).array(), this.len, len);
+        this.len += len;
+    }
+
+    protected final void writeToBuffer(byte[] data){
+        writeToBuffer(data, 0, data.length);
+    }
+
+    protected final void writeToBuffer(byte data){
+        ensureCapacity(len + 1);
+        Objects.requireNonNull(buf).array()[len++] = data;
+    }
+
+}
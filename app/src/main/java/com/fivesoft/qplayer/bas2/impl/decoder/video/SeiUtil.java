@@ -0,0 +1,60 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Utilities for supplemental enhancement information (SEI) NAL units, common for H264 and H265.
+ */
+
+public class SeiUtil {
+
+    /**
+     * Payload type of recovery point SEI message. (the same in H264 and H265)
+     */
+
+    public static final int PAYLOAD_TYPE_RECOVERY_POINT = 6;
+
+    /**
+     * Checks if SEI RBSP contains a message of the given payload type.
+     * @param reader reader used to parse the data (its state is overwritten)
+     * @param data array containing SEI NAL unit
+     * @param off offset of the first byte after NAL unit header
+     * @param len length of the data after NAL unit header
+     * @param payloadType payload type to look for, e.g. {@link #PAYLOAD_TYPE_RECOVERY_POINT}
+     * @return true if the message has been found, false if not or the data is corrupted
+     */
+
+    public static boolean containsPayload(@NonNull RbspBitReader reader, byte[] data, int off, int len, int payloadType) {
+        if (len < 2)
+            return false;
+
+        reader.reset(data, off, len);
+        try {
+            //Each message (7.3.2.3.1) is followed by another one or by rbsp_trailing_bits (0x80)
+            while (reader.hasMoreBits()) {
+                int type = readSeiValue(reader);
+                if (type == payloadType)
+                    return true;
+                if (type == 0x80 && !reader.hasMoreBits())
+                    return false; //Trailing bits
+
+                int size = readSeiValue(reader);
+                reader.skipBits(size * 8);
+            }
+        } catch (IllegalStateException e) {
+            //Truncated or corrupted
+        }
+        return false;
+    }
+
+    //Value coded as a sequence of 0xFF bytes followed by the last byte
+    private static int readSeiValue(RbspBitReader reader) {
+        int value = 0;
+        int b;
+        while ((b = reader.readBits(8)) == 0xFF) {
+            value += 0xFF;
+        }
+        return value + b;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import java.util.Objects;
+
+/**
+ * Finds Annex B start codes (0x000001) in byte streams.<br>
+ * <p>
+ *     The third byte of a candidate is checked first: if it's neither 0 nor 1, a start code can't begin
+ *     at any of the three positions ending with it, so the search skips three bytes ahead.
+ *     Compressed video rarely contains zero bytes outside of start codes, so most of the stream
+ *     is checked with one read per three bytes. Reading eight bytes at a time doesn't pay off on top of it,
+ *     see StartCodeScannerBenchmark in the tests.
+ * </p>
+ * <p>
+ *     The scanner has no state, one instance may be shared.
+ * </p>
+ */
+
+public final class StartCodeScanner {
+
+    /**
+     * Finds the next 3-byte start code (0x000001).<br>
+     * 4-byte start codes are found as well, the returned position then points to their second byte.
+     * @param data the data to search in
+     * @param from index of the first byte to check (inclusive)
+     * @param to index of the last byte to check (exclusive)
+     * @return index of the first byte of the start code or -1 if not found
+     */
+
+    public int find(byte[] data, int from, int to) {
+        Objects.requireNonNull(data);
+
+        int i = from;
+        int limit = to - 2;
+        while (i < limit) {
+            int b = data[i + 2] & 0xFF;
+            if (b == 0) {
+                i++;
+            } else if (b == 1 && data[i] == 0 && data[i + 1] == 0) {
+                return i;
+            } else {
+                //Start code can't begin at any of these three positions
+                i += 3;
+            }
+        }
+
+        return -1;
+    }
+
+}
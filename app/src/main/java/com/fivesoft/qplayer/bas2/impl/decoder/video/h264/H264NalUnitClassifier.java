@@ -0,0 +1,213 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.NalUnitClassifier;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.RbspBitReader;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.SeiUtil;
+
+/**
+ * Classifies H264 NAL units for access unit assembly. (ITU-T H.264, 7.4.1.2.3)<br>
+ * <p>
+ *     Beside NAL unit type, the first fields of slice headers are parsed:
+ *     first_mb_in_slice, slice_type, pic_parameter_set_id and frame_num.
+ *     Reference pictures are recognized by nal_ref_idc. A slice starts a new picture if its
+ *     first_mb_in_slice is 0 or if it differs from the previous slice in frame_num, pic_parameter_set_id,
+ *     IDR flag or in nal_ref_idc being 0 (subset of the rules of 7.4.1.2.4), so a new picture is detected
+ *     even if its first slice has been lost.
+ *     SEI units containing a recovery point are recognized as well.
+ * </p>
+ * <p>
+ *     Length of frame_num depends on the SPS, which is taken from SPS NAL units passing through
+ *     {@link #inspectNalUnit(byte[], int, int)} or set with {@link #setSps(byte[], int, int)}.
+ *     Until the SPS is known, frame_num is not compared.
+ * </p>
+ * <p>
+ *     The classifier is stateful and not thread-safe, each builder needs its own instance.
+ * </p>
+ */
+
+public class H264NalUnitClassifier implements NalUnitClassifier {
+
+    //Slice header fields we need fit in a few bytes, don't read more
+    private static final int MAX_SLICE_HEADER_BYTES = 16;
+
+    private static final int UNKNOWN = -1;
+
+    private final RbspBitReader reader = new RbspBitReader();
+    private final SPSParser spsParser = new SPSParser();
+
+    //From the last SPS
+    private int log2MaxFrameNum = UNKNOWN;
+    private boolean separateColourPlane;
+
+    //Fields of the last parsed slice header
+    private int nalRefIdc;
+    private int nalUnitType;
+    private int firstMbInSlice = UNKNOWN;
+    private int sliceType = UNKNOWN;
+    private int picParameterSetId = UNKNOWN;
+    private int frameNum = UNKNOWN;
+
+    /**
+     * Sets SPS used to parse slice headers, e.g. received out of band.
+     * @param data array containing the SPS NAL unit (with or without start code)
+     * @param off offset of the SPS
+     * @param len length of the SPS
+     * @return true if the SPS has been parsed successfully
+     */
+
+    public boolean setSps(byte[] data, int off, int len) {
+        if (!spsParser.parse(data, off, len))
+            return false;
+
+        log2MaxFrameNum = spsParser.getLog2MaxFrameNum();
+        separateColourPlane = spsParser.isSeparateColourPlane();
+        return true;
+    }
+
+    @Override
+    public byte getFrameType(byte[] data, int off) {
+        return H264Util.getFrameType((byte) (data[off] & 0x1F));
+    }
+
+    @Override
+    public int getAccessUnitRole(byte[] data, int off, int len) {
+        int nalUnitType = data[off] & 0x1F;
+        switch (nalUnitType) {
+            case H264Util.NAL_UNIT_TYPE_NON_IDR_SLICE:
+            case H264Util.NAL_UNIT_TYPE_DPA_SLICE:
+            case H264Util.NAL_UNIT_TYPE_IDR_SLICE:
+                //first_mb_in_slice == 0 is coded as single bit 1
+                return len > 1 && (data[off + 1] & 0x80) != 0 ?
+                        ROLE_FIRST_SLICE : ROLE_SLICE;
+            case H264Util.NAL_UNIT_TYPE_DPB_SLICE:
+            case H264Util.NAL_UNIT_TYPE_DPC_SLICE:
+                return ROLE_SLICE;
+            case H264Util.NAL_UNIT_TYPE_SEI:
+            case H264Util.NAL_UNIT_TYPE_SPS:
+            case H264Util.NAL_UNIT_TYPE_PPS:
+            case H264Util.NAL_UNIT_TYPE_AUD:
+            case H264Util.NAL_UNIT_TYPE_PREFIX_NAL_UNIT:
+            case H264Util.NAL_UNIT_TYPE_SUBSET_SEQ_PARAMETER_SET:
+            case H264Util.NAL_UNIT_TYPE_RESERVED16:
+            case H264Util.NAL_UNIT_TYPE_RESERVED17:
+            case H264Util.NAL_UNIT_TYPE_RESERVED18:
+                return ROLE_PREFIX;
+            default:
+                return ROLE_OTHER;
+        }
+    }
+
+    @Override
+    public int inspectNalUnit(byte[] data, int off, int len) {
+        byte type = (byte) (data[off] & 0x1F);
+
+        if (type == H264Util.NAL_UNIT_TYPE_SPS) {
+            setSps(data, off, len);
+            return 0;
+        }
+
+        if (type == H264Util.NAL_UNIT_TYPE_SEI) {
+            return SeiUtil.containsPayload(reader, data, off + 1, len - 1, SeiUtil.PAYLOAD_TYPE_RECOVERY_POINT) ?
+                    Frame.FLAG_RECOVERY_POINT : 0;
+        }
+
+        if (!H264Util.isNalUnitSlice(type))
+            return 0;
+
+        int refIdc = (data[off] >> 5) & 0x03;
+        int flags = refIdc == 0 ? Frame.FLAG_NON_REFERENCE : 0;
+
+        if (type == H264Util.NAL_UNIT_TYPE_DPB_SLICE || type == H264Util.NAL_UNIT_TYPE_DPC_SLICE) {
+            //Partitions B and C don't carry slice header, they belong to the picture of partition A
+            return flags;
+        }
+
+        int prevRefIdc = nalRefIdc;
+        int prevType = nalUnitType;
+        int prevPps = picParameterSetId;
+        int prevFrameNum = frameNum;
+
+        if (!parseSliceHeader(data, off, len, refIdc, type)) {
+            //Corrupted or truncated header, rely on the first slice bit only
+            return getAccessUnitRole(data, off, len) == ROLE_FIRST_SLICE ?
+                    flags | Frame.FLAG_NEW_PICTURE : flags;
+        }
+
+        boolean newPicture = firstMbInSlice == 0
+                || prevPps == UNKNOWN
+                || picParameterSetId != prevPps
+                || frameNum != prevFrameNum
+                || (refIdc == 0) != (prevRefIdc == 0)
+                || (type == H264Util.NAL_UNIT_TYPE_IDR_SLICE) != (prevType == H264Util.NAL_UNIT_TYPE_IDR_SLICE);
+
+        return newPicture ? flags | Frame.FLAG_NEW_PICTURE : flags;
+    }
+
+    @Override
+    public void reset() {
+        nalRefIdc = 0;
+        nalUnitType = 0;
+        firstMbInSlice = UNKNOWN;
+        sliceType = UNKNOWN;
+        picParameterSetId = UNKNOWN;
+        frameNum = UNKNOWN;
+    }
+
+    /**
+     * Returns first_mb_in_slice of the last inspected slice.
+     * @return first_mb_in_slice or -1 if unknown
+     */
+
+    public int getFirstMbInSlice() {
+        return firstMbInSlice;
+    }
+
+    /**
+     * Returns slice_type of the last inspected slice. (0 - P, 1 - B, 2 - I, 3 - SP, 4 - SI,
+     * values 5-9 mean the same types for all slices of the picture)
+     * @return slice_type or -1 if unknown
+     */
+
+    public int getSliceType() {
+        return sliceType;
+    }
+
+    /**
+     * Returns frame_num of the last inspected slice.
+     * @return frame_num or -1 if unknown (e.g. SPS not received yet)
+     */
+
+    public int getFrameNum() {
+        return frameNum;
+    }
+
+    private boolean parseSliceHeader(byte[] data, int off, int len, int refIdc, int type) {
+        RbspBitReader reader = this.reader;
+        reader.reset(data, off + 1, Math.min(len - 1, MAX_SLICE_HEADER_BYTES));
+
+        try {
+            int firstMb = reader.readUE();
+            int slice = reader.readUE();
+            int pps = reader.readUE();
+            int frame = UNKNOWN;
+            if (log2MaxFrameNum != UNKNOWN) {
+                if (separateColourPlane) {
+                    reader.skipBits(2); //colour_plane_id
+                }
+                frame = reader.readBits(log2MaxFrameNum);
+            }
+
+            nalRefIdc = refIdc;
+            nalUnitType = type;
+            firstMbInSlice = firstMb;
+            sliceType = slice;
+            picParameterSetId = pps;
+            frameNum = frame;
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
 
 import androidx.annotation.Nullable;
 
+import com.fivesoft.qplayer.bas2.Frame;
 import com.fivesoft.qplayer.bas2.common.Constants;
 
 import java.nio.ByteBuffer;
@@ -107,6 +108,16 @@ public class H264Util {
         return nalUnitType == NAL_UNIT_TYPE_SPS || nalUnitType == NAL_UNIT_TYPE_PPS;
     }
 
+    /**
+     * Returns true if the given NAL unit type is a coded slice (or slice data partition).
+     * @param nalUnitType the NAL unit type
+     * @return true if the given NAL unit type is a slice
+     */
+
+    public static boolean isNalUnitSlice(byte nalUnitType) {
+        return nalUnitType >= NAL_UNIT_TYPE_NON_IDR_SLICE && nalUnitType <= NAL_UNIT_TYPE_IDR_SLICE;
+    }
+
     /**
      * Returns the length of the NAL prefix in bytes (3 or 4) or 0 if the data does not start with.
      * @return the length of the NAL prefix in bytes (3 or 4) or 0 if the data does not start with
@@ -118,18 +129,35 @@ public class H264Util {
         if(len < Constants.H264_NAL_PREFIX_OLD.length)
             return 0;
 
-        if(data[0] == 0 && data[1] == 0 && data[2] == 1)
+        if(data[off] == 0 && data[off + 1] == 0 && data[off + 2] == 1)
             return Constants.H264_NAL_PREFIX_OLD.length;
 
         if(len < Constants.H264_NAL_PREFIX.length)
             return 0;
 
-        if(data[0] == 0 && data[1] == 0 && data[2] == 0 && data[3] == 1)
+        if(data[off] == 0 && data[off + 1] == 0 && data[off + 2] == 0 && data[off + 3] == 1)
             return Constants.H264_NAL_PREFIX.length;
 
         return 0;
     }
 
+    /**
+     * Returns frame type ({@link Frame#SYNC_FRAME}, {@link Frame#CONFIG_FRAME} or {@link Frame#NON_SYNC_FRAME})
+     * matching single NAL unit of the given type.
+     * @param nalUnitType the NAL unit type
+     * @return frame type matching the NAL unit type
+     */
+
+    public static byte getFrameType(byte nalUnitType) {
+        if (isNalUnitKeyFrame(nalUnitType)) {
+            return Frame.SYNC_FRAME;
+        } else if (isNAlUnitConfig(nalUnitType)) {
+            return Frame.CONFIG_FRAME;
+        } else {
+            return Frame.NON_SYNC_FRAME;
+        }
+    }
+
     public static byte[] ensureStartsWithNalPrefix(byte[] src) {
         if (src == null || src.length < 4)
             return null;
@@ -0,0 +1,97 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+import com.fivesoft.qplayer.bas2.impl.snapshot.KeyFrameDecoder;
+
+import java.util.List;
+
+/**
+ * Decodes H.264 key frames in pure Java with JCodec, which has to be on the classpath
+ * (see {@link #isAvailable()}).<br>
+ * <p>
+ *     Each thread calling {@link #decode(Csd, List, ByteArrayPool)} gets its own JCodec decoder,
+ *     reused for the following key frames, so the thread count should be bounded (e.g. threads of
+ *     {@link com.fivesoft.qplayer.bas2.impl.decoder.video.DecodeWorkerPool}).
+ * </p>
+ */
+
+public final class JCodecKeyFrameDecoder implements KeyFrameDecoder {
+
+    private final ThreadLocal<JCodecPictureDecoder> decoders = new ThreadLocal<>();
+
+    /**
+     * Checks if JCodec is on the classpath.
+     * @return true if the decoder can be used
+     */
+
+    public static boolean isAvailable() {
+        return SoftwareH264Decoder.JCODEC_AVAILABLE;
+    }
+
+    @NonNull
+    @Override
+    public FrameBuilder createFrameBuilder(int sampleFormat, int maxFrameSize)
+            throws MediaDecoder.UnsupportedSampleFormatException {
+        return H264Decoder.createFrameBuilder(sampleFormat, maxFrameSize);
+    }
+
+    @Nullable
+    @Override
+    public I420Frame decode(@Nullable Csd csd, @NonNull List<Frame> frames, @NonNull ByteArrayPool pool)
+            throws MediaDecoderException {
+        JCodecPictureDecoder decoder = decoders.get();
+        if (decoder == null) {
+            decoder = new JCodecPictureDecoder();
+            decoders.set(decoder);
+        }
+
+        I420Frame picture = null;
+        try {
+            decoder.decodeCsd(csd);
+            for (Frame frame : frames) {
+                if (frame.frameType == Frame.CONFIG_FRAME || frame.hasFlag(Frame.FLAG_HAS_CONFIG)) {
+                    decoder.readParameterSets(frame.getArray(), frame.getOffset(), frame.getLength());
+                }
+                if (frame.frameType == Frame.CONFIG_FRAME) {
+                    decoder.decode(frame.getArray(), frame.getOffset(), frame.getLength(), frame.timestamp, null);
+                    continue;
+                }
+
+                if (!decoder.isConfigured())
+                    throw new MediaDecoderException("No SPS received");
+
+                I420Frame decoded = decoder.decode(frame.getArray(), frame.getOffset(), frame.getLength(),
+                        frame.timestamp, pool);
+                if (decoded != null) {
+                    if (picture != null) {
+                        picture.release();
+                    }
+                    picture = decoded;
+                }
+            }
+            return picture;
+        } catch (RuntimeException e) {
+            if (picture != null) {
+                picture.release();
+            }
+            //State of the decoder is unknown, the next key frame gets a new one
+            decoders.remove();
+            throw new MediaDecoderException("Failed to decode key frame", e);
+        } catch (MediaDecoderException e) {
+            if (picture != null) {
+                picture.release();
+            }
+            throw e;
+        }
+    }
+
+}
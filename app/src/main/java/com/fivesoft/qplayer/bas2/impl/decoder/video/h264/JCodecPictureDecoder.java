@@ -0,0 +1,151 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+import org.jcodec.common.model.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * Decodes Annex B access units with the JCodec H.264 decoder.
+ * All JCodec classes are referenced here only, so SoftwareH264Decoder can be loaded without JCodec.
+ * Not thread-safe, used by one decode lane at a time.
+ */
+
+final class JCodecPictureDecoder {
+
+    private static final String TAG = "JCodecPictureDecoder";
+
+    @NonNull
+    private final org.jcodec.codecs.h264.H264Decoder decoder = new org.jcodec.codecs.h264.H264Decoder();
+
+    //Decoded picture, size of the macroblock aligned picture of the last SPS
+    @Nullable
+    private Picture picture;
+
+    JCodecPictureDecoder() {
+        disableInternalThreads(decoder);
+    }
+
+    /*
+     * Allocates the picture for the last SPS found in the data, if any.
+     * Returns true if the picture is allocated.
+     */
+    boolean readParameterSets(byte[] data, int off, int len) {
+        List<ByteBuffer> spsList = H264Utils.getRawSPS(ByteBuffer.wrap(data, off, len));
+        if (!spsList.isEmpty()) {
+            SeqParameterSet sps = H264Utils.readSPS(spsList.get(spsList.size() - 1));
+            int width = (sps.picWidthInMbsMinus1 + 1) * 16;
+            int height = SeqParameterSet.getPicHeightInMbs(sps) * 16;
+            if (picture == null || picture.getWidth() != width || picture.getHeight() != height) {
+                picture = Picture.create(width, height, ColorSpace.YUV420J);
+            }
+        }
+        return picture != null;
+    }
+
+    boolean isConfigured() {
+        return picture != null;
+    }
+
+    /*
+     * Passes parameter sets of the codec specific data (SPS, PPS) to the decoder.
+     */
+    void decodeCsd(@Nullable Csd csd) {
+        if (csd == null)
+            return;
+
+        ByteArrayOutputStream parameterSets = new ByteArrayOutputStream();
+        for (int i = 0; i < csd.getCapacity(); i++) {
+            if (csd.hasCsd(i)) {
+                byte[] data = H264Util.ensureStartsWithNalPrefix(csd.getCsd(i));
+                parameterSets.write(data, 0, data.length);
+            }
+        }
+
+        byte[] data = parameterSets.toByteArray();
+        if (data.length > 0 && readParameterSets(data, 0, data.length)) {
+            decode(data, 0, data.length, 0, null);
+        }
+    }
+
+    /*
+     * Decodes the access unit. If output pool is given, returns decoded picture (cropped)
+     * in a new I420 frame, null otherwise or if the data contains no picture.
+     * Throws RuntimeException if the data is corrupted.
+     */
+    @Nullable
+    I420Frame decode(byte[] data, int off, int len, long timestamp, @Nullable ByteArrayPool outputPool) {
+        Picture picture = this.picture;
+        if (picture == null)
+            return null;
+
+        Picture decoded = decoder.decodeFrame(ByteBuffer.wrap(data, off, len), picture.getData());
+        if (decoded == null || outputPool == null)
+            return null;
+
+        Rect crop = decoded.getCrop();
+        int x = crop != null ? crop.getX() : 0;
+        int y = crop != null ? crop.getY() : 0;
+        int width = crop != null ? crop.getWidth() : decoded.getWidth();
+        int height = crop != null ? crop.getHeight() : decoded.getHeight();
+
+        I420Frame frame = I420Frame.obtain(outputPool, width, height, timestamp);
+        byte[] out = frame.getData();
+        copyPlane(decoded, 0, x, y, width, height, out, 0);
+        copyPlane(decoded, 1, x / 2, y / 2, frame.chromaWidth, frame.chromaHeight, out, frame.getUOffset());
+        copyPlane(decoded, 2, x / 2, y / 2, frame.chromaWidth, frame.chromaHeight, out, frame.getVOffset());
+        return frame;
+    }
+
+    //JCodec stores samples as signed bytes (value - 128)
+    private static void copyPlane(Picture picture, int plane, int x, int y, int width, int height,
+                                  byte[] out, int outOffset) {
+        byte[] src = picture.getPlaneData(plane);
+        int stride = picture.getPlaneWidth(plane);
+        int dst = outOffset;
+        for (int row = 0; row < height; row++) {
+            int s = (y + row) * stride + x;
+            for (int end = s + width; s < end; s++) {
+                out[dst++] = (byte) (src[s] + 128);
+            }
+        }
+    }
+
+    /*
+     * JCodec decoder creates its own thread pool (one thread per processor) to decode slices in parallel.
+     * Streams are decoded in parallel on DecodeWorkerPool instead, so the thread count stays bounded.
+     */
+    private static void disableInternalThreads(org.jcodec.codecs.h264.H264Decoder decoder) {
+        try {
+            Field threaded = org.jcodec.codecs.h264.H264Decoder.class.getDeclaredField("threaded");
+            threaded.setAccessible(true);
+            threaded.setBoolean(decoder, false);
+
+            Field tp = org.jcodec.codecs.h264.H264Decoder.class.getDeclaredField("tp");
+            tp.setAccessible(true);
+            ExecutorService executor = (ExecutorService) tp.get(decoder);
+            if (executor != null) {
+                executor.shutdown();
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.println(Log.ASSERT, TAG, "Failed to disable decoder threads: " + e);
+        }
+    }
+
+}
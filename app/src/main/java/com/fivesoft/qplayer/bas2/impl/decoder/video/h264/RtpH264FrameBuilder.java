@@ -3,32 +3,37 @@ package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 
-import com.fivesoft.qplayer.bas2.Frame;
-import com.fivesoft.qplayer.bas2.Sample;
-import com.fivesoft.qplayer.bas2.common.Constants;
-import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.RtpVideoFrameBuilder;
 
-public class RtpH264FrameBuilder extends FrameBuilder {
+/**
+ * Builds H264 frames (Annex B format) from RTP payloads (RFC 6184).<br>
+ * Single NAL unit, STAP-A and FU-A packets are supported.
+ * @see RtpVideoFrameBuilder
+ */
 
-    private final byte[] buf;
-    private volatile int off;
-    private volatile int len;
+public class RtpH264FrameBuilder extends RtpVideoFrameBuilder {
 
-    private volatile byte[] nalUnit;
-    private volatile byte frameType;
-    private volatile byte currentFragmentNalType = H264Util.NAL_UNIT_TYPE_UNSPECIFIED;
+    /**
+     * Creates Frame builder with specified max frame size and buffer pool.<br>
+     *
+     * @param maxFrameSize If a frame is bigger than this value, {@link BufferOverflowException}
+     *                     will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param pool Pool to obtain assembly buffers from.
+     */
+    public RtpH264FrameBuilder(int maxFrameSize, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize, new H264NalUnitClassifier(), pool);
+    }
 
     /**
-     * Creates Frame builder with specified max frame size.<br>
+     * Creates Frame builder with specified max frame size, which uses {@link ByteArrayPool#getDefault()} pool.<br>
      *
      * @param maxFrameSize If a frame is bigger than this value, {@link BufferOverflowException}
      *                     will be thrown by {@link #pull(Sample sampe)} method.<br>
      */
     public RtpH264FrameBuilder(int maxFrameSize) {
-        super(maxFrameSize);
-        buf = new byte[maxFrameSize];
+        this(maxFrameSize, ByteArrayPool.getDefault());
     }
 
     /**
@@ -40,22 +45,22 @@ public class RtpH264FrameBuilder extends FrameBuilder {
         this(DEFAULT_MAX_FRAME_SIZE);
     }
 
-    @Nullable
     @Override
-    public Frame pull(@NonNull Sample sample) throws BufferOverflowException {
-
-        byte[] data = sample.getArray();
-        int length = sample.getLength();
-
-        int nalType = data[0] & 0x1F;
-        int packFlag = data[1] & 0xC0;
+    protected void processPacket(byte[] data, int off, int length) {
+        int nalType = data[off] & 0x1F;
 
         switch (nalType) {
             case H264Util.NAL_UNIT_TYPE_FU_A:
-                processFuAPacket(data, length, packFlag);
+                if (length > 2) {
+                    processFuAPacket(data, off, length);
+                }
                 break;
 
             case H264Util.NAL_UNIT_TYPE_STAP_A:
+                dropFragment();
+                processStapA(data, off, length);
+                break;
+
             case H264Util.NAL_UNIT_TYPE_STAP_B:
             case H264Util.NAL_UNIT_TYPE_MTAP16:
             case H264Util.NAL_UNIT_TYPE_MTAP24:
@@ -66,226 +71,65 @@ public class RtpH264FrameBuilder extends FrameBuilder {
                 break;
 
             default:
-                processSingleNalUnit(data, 0, length);
+                appendNalUnit(data, off, length);
                 break;
         }
-
-        if(nalUnit == null)
-            return null;
-
-        try {
-            return new Frame(nalUnit, sample.timestamp, sample.track, frameType);
-        } finally {
-            frameType = 0;
-            currentFragmentNalType = H264Util.NAL_UNIT_TYPE_UNSPECIFIED;
-            nalUnit = null;
-        }
-    }
-
-    @Override
-    public int getBufferSize() {
-        return len;
     }
 
-    @Override
-    public void clear() {
-        off = 0;
-        len = 0;
-        nalUnit = null;
-    }
-
-    private void processFuAPacket(byte[] data, int len, int packFlag) {
-        byte nalHeader = (byte) ((data[0] & 0xE0) | (data[1] & 0x1F));
+    private void processFuAPacket(byte[] data, int off, int len) {
+        byte nalHeader = (byte) ((data[off] & 0xE0) | (data[off + 1] & 0x1F));
         byte nalUnitType = (byte) (nalHeader & 0x1F);
+        int packFlag = data[off + 1] & 0xC0;
 
         switch (packFlag) {
             case 0x80:
                 // Start of a fragmented NAL unit
-                currentFragmentNalType = nalUnitType;
-                clear();
-                writeToBuffer(Constants.H264_NAL_PREFIX); // NAL unit prefix
+                startFragment(nalUnitType);
                 writeToBuffer(nalHeader); // NAL unit header
-                writeToBuffer(data, 2, len - 2); // NAL unit payload
+                writeToBuffer(data, off + 2, len - 2); // NAL unit payload
                 break;
             case 0x00:
                 // Middle part of a fragmented NAL unit
-                if (currentFragmentNalType == nalUnitType) {
-                    writeToBuffer(data, 2, len - 2); // NAL unit payload
+                if (isFragmentInProgress(nalUnitType)) {
+                    writeToBuffer(data, off + 2, len - 2); // NAL unit payload
+                } else {
+                    //Start fragment lost (or NAL type mismatch), the NAL unit can't be completed
+                    dropFragment();
+                    markDamaged();
                 }
-                //else Nal type mismatch
                 break;
             case 0x40:
                 // End of a fragmented NAL unit
-                if(currentFragmentNalType != nalUnitType){
-                    //Nal type mismatch
+                if (!isFragmentInProgress(nalUnitType)) {
+                    //Start fragment lost (or NAL type mismatch)
+                    dropFragment();
+                    markDamaged();
                     return;
                 }
 
-                int nalUnitLength = this.len + len - 2;
-                nalUnit = new byte[nalUnitLength];
-
-                synchronized (buf) {
-                    System.arraycopy(buf, 0, nalUnit, 0, this.len); // Buffered data
-                    System.arraycopy(data, 2, nalUnit, this.len, len - 2); // NAL unit payload just received
-                }
-
-                if(H264Util.isNalUnitKeyFrame(nalUnitType)){
-                    frameType = Frame.SYNC_FRAME;
-                } else if(H264Util.isNAlUnitConfig(nalUnitType)){
-                    frameType = Frame.CONFIG_FRAME;
-                } else {
-                    frameType = Frame.NON_SYNC_FRAME;
-                }
-
+                writeToBuffer(data, off + 2, len - 2); // NAL unit payload just received
+                endFragment();
                 break;
         }
     }
 
-    private void processSingleNalUnit(byte[] data, int off, int length) {
-        nalUnit = new byte[4 + length];
-        nalUnit[0] = 0x00;
-        nalUnit[1] = 0x00;
-        nalUnit[2] = 0x00;
-        nalUnit[3] = 0x01;
-
-        byte nalUnitType = H264Util.getNalUnitType(data, off, length);
-
-        if(H264Util.isNalUnitKeyFrame(nalUnitType)){
-            frameType = Frame.SYNC_FRAME;
-        } else if(H264Util.isNAlUnitConfig(nalUnitType)){
-            frameType = Frame.CONFIG_FRAME;
-        } else {
-            frameType = Frame.NON_SYNC_FRAME;
-        }
-
-        System.arraycopy(data, off, nalUnit, 4, length);
-    }
-
     private void processStapA(byte[] data, int off, int length) {
         int pos = off + 1;
         int end = off + length;
 
-        while (pos < end) {
+        while (pos + 2 < end) {
             int nalUnitLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
             pos += 2;
 
-            if (pos + nalUnitLength > end) {
+            if (nalUnitLength == 0 || pos + nalUnitLength > end) {
                 // Invalid STAP-A packet
+                markDamaged();
                 return;
             }
 
-            byte nalUnitType = (byte) (data[pos] & 0x1F);
-
-            if (H264Util.isNalUnitKeyFrame(nalUnitType)) {
-                frameType = Frame.SYNC_FRAME;
-            } else if (H264Util.isNAlUnitConfig(nalUnitType)) {
-                frameType = Frame.CONFIG_FRAME;
-            } else {
-                frameType = Frame.NON_SYNC_FRAME;
-            }
-
+            appendNalUnit(data, pos, nalUnitLength);
             pos += nalUnitLength;
         }
     }
 
-    private void processStapB(byte[] data, int off, int length) {
-        int pos = off + 2;
-        int end = off + length;
-
-        while (pos < end) {
-            int nalUnitLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
-            pos += 2;
-
-            if (pos + nalUnitLength > end) {
-                // Invalid STAP-B packet
-                return;
-            }
-
-            byte nalUnitType = (byte) (data[pos] & 0x1F);
-
-            if (H264Util.isNalUnitKeyFrame(nalUnitType)) {
-                frameType = Frame.SYNC_FRAME;
-            } else if (H264Util.isNAlUnitConfig(nalUnitType)) {
-                frameType = Frame.CONFIG_FRAME;
-            } else {
-                frameType = Frame.NON_SYNC_FRAME;
-            }
-
-            pos += nalUnitLength;
-        }
-    }
-
-    private void processMtap16(byte[] data, int off, int length) {
-        int pos = off + 2;
-        int end = off + length;
-
-        while (pos < end) {
-            int nalUnitLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
-            pos += 2;
-
-            if (pos + nalUnitLength > end) {
-                // Invalid MTAP16 packet
-                return;
-            }
-
-            byte nalUnitType = (byte) (data[pos] & 0x1F);
-
-            if (H264Util.isNalUnitKeyFrame(nalUnitType)) {
-                frameType = Frame.SYNC_FRAME;
-            } else if (H264Util.isNAlUnitConfig(nalUnitType)) {
-                frameType = Frame.CONFIG_FRAME;
-            } else {
-                frameType = Frame.NON_SYNC_FRAME;
-            }
-
-            pos += nalUnitLength;
-        }
-    }
-
-    private void processMtap24(byte[] data, int off, int length) {
-        int pos = off + 3;
-        int end = off + length;
-
-        while (pos < end) {
-            int nalUnitLength = ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
-            pos += 3;
-
-            if (pos + nalUnitLength > end) {
-                // Invalid MTAP24 packet
-                return;
-            }
-
-            byte nalUnitType = (byte) (data[pos] & 0x1F);
-
-            if (H264Util.isNalUnitKeyFrame(nalUnitType)) {
-                frameType = Frame.SYNC_FRAME;
-            } else if (H264Util.isNAlUnitConfig(nalUnitType)) {
-                frameType = Frame.CONFIG_FRAME;
-            } else {
-                frameType = Frame.NON_SYNC_FRAME;
-            }
-
-            pos += nalUnitLength;
-        }
-    }
-
-    private void writeToBuffer(byte[] data, int off, int len){
-        synchronized (buf) {
-            System.arraycopy(data, off, buf, this.off, len);
-            this.off += len;
-            this.len += len;
-        }
-    }
-
-    private void writeToBuffer(byte[] data){
-        writeToBuffer(data, 0, data.length);
-    }
-
-    private void writeToBuffer(byte data){
-        synchronized (buf) {
-            buf[off++] = data;
-            len++;
-        }
-    }
-
 }
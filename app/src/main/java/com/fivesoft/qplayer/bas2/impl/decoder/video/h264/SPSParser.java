@@ -1,207 +1,408 @@
 package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
 
+import androidx.annotation.Nullable;
+
 import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.RbspBitReader;
 
-import java.util.Arrays;
+/**
+ * Parses H264 sequence parameter set (ITU-T H.264, 7.3.2.1.1) including VUI parameters.<br>
+ * <p>
+ *     The parser reads the NAL unit in place (emulation prevention bytes are skipped by {@link RbspBitReader})
+ *     and keeps the results in its fields, so one instance may parse any number of SPS without allocations.
+ *     Values are valid after {@link #parse(byte[], int, int)} returned true and until the next call.
+ * </p>
+ * <p>
+ *     The parser is not thread-safe.
+ * </p>
+ */
 
 public class SPSParser {
 
-    private int spsParserOffset;
+    private final RbspBitReader reader = new RbspBitReader();
+
+    private int profileIdc;
+    private int constraintFlags;
+    private int levelIdc;
+    private int seqParameterSetId;
+    private int chromaFormatIdc;
+    private boolean separateColourPlane;
+    private int log2MaxFrameNum;
+    private int picOrderCntType;
+    private int log2MaxPicOrderCntLsb;
+    private boolean deltaPicOrderAlwaysZero;
+    private int maxNumRefFrames;
+    private boolean frameMbsOnly;
+    private int width;
+    private int height;
+    private int cropLeft, cropRight, cropTop, cropBottom;
+    private float frameRate;
+    private boolean fixedFrameRate;
+    private int maxNumReorderFrames;
+    private int maxDecFrameBuffering;
+
+    /**
+     * Parses SPS NAL unit.
+     * @param src array containing the SPS NAL unit, with or without start code
+     * @param off offset of the NAL unit (or its start code)
+     * @param len length of the NAL unit
+     * @return true if the SPS has been parsed successfully, false if it's malformed or not an SPS
+     */
+
+    public boolean parse(byte[] src, int off, int len) {
+        int prefix = H264Util.startsWithNalPrefix(src, off, len);
+        off += prefix;
+        len -= prefix;
+
+        if (len < 4 || (src[off] & 0x1F) != H264Util.NAL_UNIT_TYPE_SPS) {
+            return false;
+        }
+
+        try {
+            parseSPS(src, off, len);
+            return true;
+        } catch (IllegalStateException e) {
+            //Truncated or corrupted SPS
+            return false;
+        }
+    }
+
+    private void parseSPS(byte[] src, int off, int len) {
+        RbspBitReader r = reader;
+        r.reset(src, off, len);
+
+        r.skipBits(8); // nal_unit_header
+        profileIdc = r.readBits(8);
+        constraintFlags = r.readBits(8);
+        levelIdc = r.readBits(8);
+        seqParameterSetId = r.readUE();
 
-    private int readBits(byte[] buffer, int count) {
-        int result = 0;
-        int index = (spsParserOffset / 8);
-        int bitNumber = (spsParserOffset - (index * 8));
-        int outBitNumber = count - 1;
-        for (int c = 0; c < count; c++) {
-            if ((buffer[index] << bitNumber & 0x80) != 0) {
-                result |= (1 << outBitNumber);
+        chromaFormatIdc = 1;
+        separateColourPlane = false;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 ||
+            profileIdc == 244 || profileIdc == 44 || profileIdc == 83 ||
+            profileIdc == 86 || profileIdc == 118 || profileIdc == 128 ||
+            profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = r.readUE();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = r.readFlag();
             }
-            if (++bitNumber > 7) {
-                bitNumber = 0;
-                index++;
+            r.readUE(); // bit_depth_luma_minus8
+            r.readUE(); // bit_depth_chroma_minus8
+            r.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (r.readFlag()) { // seq_scaling_matrix_present_flag
+                for (int i = 0; i < (chromaFormatIdc != 3 ? 8 : 12); i++) {
+                    if (r.readFlag()) { // seq_scaling_list_present_flag
+                        skipScalingList(i < 6 ? 16 : 64);
+                    }
+                }
             }
-            outBitNumber--;
         }
-        spsParserOffset += count;
-        return result;
-    }
 
-    private int readUEG(byte[] buffer) {
-        int bitcount = 0;
+        log2MaxFrameNum = r.readUE() + 4;
+        picOrderCntType = r.readUE();
+        log2MaxPicOrderCntLsb = 0;
+        deltaPicOrderAlwaysZero = false;
+
+        if (picOrderCntType == 0) {
+            log2MaxPicOrderCntLsb = r.readUE() + 4;
+        } else if (picOrderCntType == 1) {
+            deltaPicOrderAlwaysZero = r.readFlag();
+            r.readSE(); // offset_for_non_ref_pic
+            r.readSE(); // offset_for_top_to_bottom_field
+            int numRefFramesInPicOrderCntCycle = r.readUE();
+            for (int i = 0; i < numRefFramesInPicOrderCntCycle; i++) {
+                r.readSE(); // offset_for_ref_frame
+            }
+        }
 
-        while (true) {
-            if (readBits(buffer, 1) == 0) {
-                bitcount++;
+        maxNumRefFrames = r.readUE();
+        r.skipBits(1); // gaps_in_frame_num_value_allowed_flag
+        int picWidthInMbsMinus1 = r.readUE();
+        int picHeightInMapUnitsMinus1 = r.readUE();
+        frameMbsOnly = r.readFlag();
+        if (!frameMbsOnly) {
+            r.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        r.skipBits(1); // direct_8x8_inference_flag
+
+        cropLeft = cropRight = cropTop = cropBottom = 0;
+        if (r.readFlag()) { // frame_cropping_flag
+            int cropUnitX, cropUnitY;
+            if (chromaFormatIdc == 0 || separateColourPlane) {
+                cropUnitX = 1;
+                cropUnitY = frameMbsOnly ? 1 : 2;
             } else {
-                break;
+                cropUnitX = chromaFormatIdc == 3 ? 1 : 2;
+                cropUnitY = (chromaFormatIdc == 1 ? 2 : 1) * (frameMbsOnly ? 1 : 2);
+            }
+            cropLeft = r.readUE() * cropUnitX;
+            cropRight = r.readUE() * cropUnitX;
+            cropTop = r.readUE() * cropUnitY;
+            cropBottom = r.readUE() * cropUnitY;
+        }
+
+        width = (picWidthInMbsMinus1 + 1) * 16 - cropLeft - cropRight;
+        height = (frameMbsOnly ? 1 : 2) * (picHeightInMapUnitsMinus1 + 1) * 16 - cropTop - cropBottom;
+
+        frameRate = Constants.UNKNOWN_VALUE;
+        fixedFrameRate = false;
+        maxNumReorderFrames = Constants.UNKNOWN_VALUE;
+        maxDecFrameBuffering = Constants.UNKNOWN_VALUE;
+
+        if (r.readFlag()) { // vui_parameters_present_flag
+            parseVui();
+        }
+
+        if (maxNumReorderFrames == Constants.UNKNOWN_VALUE) {
+            //Inferred values (E.2.1), baseline profile doesn't have B slices
+            boolean intraProfile = (profileIdc == 44 || profileIdc == 86 || profileIdc == 100 ||
+                    profileIdc == 110 || profileIdc == 122 || profileIdc == 244) && (constraintFlags & 0x10) != 0;
+            if (intraProfile || profileIdc == 66) {
+                maxNumReorderFrames = 0;
+            }
+        }
+    }
+
+    private void parseVui() {
+        RbspBitReader r = reader;
+
+        if (r.readFlag()) { // aspect_ratio_info_present_flag
+            if (r.readBits(8) == 255) { // aspect_ratio_idc == Extended_SAR
+                r.skipBits(16); // sar_width
+                r.skipBits(16); // sar_height
             }
         }
 
-        int result = 0;
-        if (bitcount > 0) {
-            int val = readBits(buffer, bitcount);
-            result = (1 << bitcount) - 1 + val;
+        if (r.readFlag()) { // overscan_info_present_flag
+            r.skipBits(1); // overscan_appropriate_flag
+        }
+
+        if (r.readFlag()) { // video_signal_type_present_flag
+            r.skipBits(3); // video_format
+            r.skipBits(1); // video_full_range_flag
+            if (r.readFlag()) { // colour_description_present_flag
+                r.skipBits(8); // colour_primaries
+                r.skipBits(8); // transfer_characteristics
+                r.skipBits(8); // matrix_coefficients
+            }
         }
 
-        return result;
+        if (r.readFlag()) { // chroma_loc_info_present_flag
+            r.readUE(); // chroma_sample_loc_type_top_field
+            r.readUE(); // chroma_sample_loc_type_bottom_field
+        }
+
+        if (r.readFlag()) { // timing_info_present_flag
+            long numUnitsInTick = r.readUnsignedInt();
+            long timeScale = r.readUnsignedInt();
+            fixedFrameRate = r.readFlag();
+            if (numUnitsInTick > 0 && timeScale > 0) {
+                //One frame lasts two ticks (one per field)
+                frameRate = (float) (timeScale / (2.0 * numUnitsInTick));
+            }
+        }
+
+        boolean nalHrdParametersPresent = r.readFlag();
+        if (nalHrdParametersPresent) {
+            skipHrdParameters();
+        }
+        boolean vclHrdParametersPresent = r.readFlag();
+        if (vclHrdParametersPresent) {
+            skipHrdParameters();
+        }
+        if (nalHrdParametersPresent || vclHrdParametersPresent) {
+            r.skipBits(1); // low_delay_hrd_flag
+        }
+
+        r.skipBits(1); // pic_struct_present_flag
+
+        if (r.readFlag()) { // bitstream_restriction_flag
+            r.skipBits(1); // motion_vectors_over_pic_boundaries_flag
+            r.readUE(); // max_bytes_per_pic_denom
+            r.readUE(); // max_bits_per_mb_denom
+            r.readUE(); // log2_max_mv_length_horizontal
+            r.readUE(); // log2_max_mv_length_vertical
+            maxNumReorderFrames = r.readUE();
+            maxDecFrameBuffering = r.readUE();
+        }
     }
 
-    private int readEG(byte[] buffer) {
-        int value = readUEG(buffer);
-        if ((value & 0x01) != 0) {
-            return (value + 1) / 2;
-        } else {
-            return -(value / 2);
+    private void skipHrdParameters() {
+        RbspBitReader r = reader;
+        int cpbCntMinus1 = r.readUE();
+        r.skipBits(4); // bit_rate_scale
+        r.skipBits(4); // cpb_size_scale
+        for (int i = 0; i <= cpbCntMinus1; i++) {
+            r.readUE(); // bit_rate_value_minus1
+            r.readUE(); // cpb_size_value_minus1
+            r.skipBits(1); // cbr_flag
         }
+        r.skipBits(5); // initial_cpb_removal_delay_length_minus1
+        r.skipBits(5); // cpb_removal_delay_length_minus1
+        r.skipBits(5); // dpb_output_delay_length_minus1
+        r.skipBits(5); // time_offset_length
     }
 
-    private void skipScalingList(byte[] buffer, int count) {
-        int deltaScale, lastScale = 8, nextScale = 8;
+    private void skipScalingList(int count) {
+        int lastScale = 8, nextScale = 8;
         for (int j = 0; j < count; j++) {
             if (nextScale != 0) {
-                deltaScale = readEG(buffer);
+                int deltaScale = reader.readSE();
                 nextScale = (lastScale + deltaScale + 256) % 256;
             }
             lastScale = (nextScale == 0 ? lastScale : nextScale);
         }
     }
 
-    public VideoParams parseSPS(byte[] src, int off) {
+    public int getProfileIdc() {
+        return profileIdc;
+    }
 
-        src = Arrays.copyOfRange(src, off, src.length);
+    public int getLevelIdc() {
+        return levelIdc;
+    }
 
-        int profileIdc;
-        int pictOrderCntType;
-        int picWidthInMbsMinus1;
-        int picHeightInMapUnitsMinus1;
-        int frameMbsOnlyFlag;
-        int frameCropLeftOffset = 0;
-        int frameCropRightOffset = 0;
-        int frameCropTopOffset = 0;
-        int frameCropBottomOffset = 0;
+    public int getSeqParameterSetId() {
+        return seqParameterSetId;
+    }
 
-        spsParserOffset = off;
-        readBits(src, 8);
-        profileIdc = readBits(src, 8);
-        readBits(src, 16);
-        readUEG(src);
+    public int getChromaFormatIdc() {
+        return chromaFormatIdc;
+    }
 
-        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 ||
-            profileIdc == 244 || profileIdc == 44 || profileIdc == 83 ||
-            profileIdc == 86 || profileIdc == 118 || profileIdc == 128) {
-            int chromaFormatIdc = readUEG(src);
-            if (chromaFormatIdc == 3) {
-                readBits(src, 1);
-            }
-            readUEG(src);
-            readUEG(src);
-            readBits(src, 1);
-            if (readBits(src, 1) != 0) {
-                for (int i = 0; i < (chromaFormatIdc != 3 ? 8 : 12); i++) {
-                    if (readBits(src, 1) != 0) {
-                        if (i < 6) {
-                            skipScalingList(src, 16);
-                        } else {
-                            skipScalingList(src, 64);
-                        }
-                    }
-                }
-            }
-        }
+    public boolean isSeparateColourPlane() {
+        return separateColourPlane;
+    }
 
-        readUEG(src);
-        pictOrderCntType = readUEG(src);
+    /**
+     * Returns number of bits of frame_num slice header field.
+     * @return log2_max_frame_num_minus4 + 4
+     */
 
-        if (pictOrderCntType == 0) {
-            readUEG(src);
-        } else if (pictOrderCntType == 1) {
-            readBits(src, 1);
-            readEG(src);
-            readEG(src);
-            for (int i = 0; i < readUEG(src); i++) {
-                readEG(src);
-            }
-        }
+    public int getLog2MaxFrameNum() {
+        return log2MaxFrameNum;
+    }
 
-        readUEG(src);
-        readBits(src, 1);
-        picWidthInMbsMinus1 = readUEG(src);
-        picHeightInMapUnitsMinus1 = readUEG(src);
-        frameMbsOnlyFlag = readBits(src, 1);
-        if (frameMbsOnlyFlag == 0) {
-            readBits(src, 1);
-        }
-        readBits(src, 1);
-        if (readBits(src, 1) != 0) {
-            frameCropLeftOffset = readUEG(src);
-            frameCropRightOffset = readUEG(src);
-            frameCropTopOffset = readUEG(src);
-            frameCropBottomOffset = readUEG(src);
-        }
-
-        boolean vuiParametersPresentFlag = readBits(src, 1) == 1;
-        int frameRate = 0;
-
-        if (vuiParametersPresentFlag) {
-            boolean aspectRatioInfoPresentFlag = readBits(src, 1) == 1;
-            if (aspectRatioInfoPresentFlag) {
-                int aspectRatioIdc = readBits(src, 8);
-                if (aspectRatioIdc == 255) {
-                    readBits(src, 16); // sar_width
-                    readBits(src, 16); // sar_height
-                }
-            }
+    public int getPicOrderCntType() {
+        return picOrderCntType;
+    }
 
-            boolean overscanInfoPresentFlag = readBits(src, 1) == 1;
-            if (overscanInfoPresentFlag) {
-                readBits(src, 1); // overscan_appropriate_flag
-            }
+    /**
+     * Returns number of bits of pic_order_cnt_lsb slice header field. (valid for pic_order_cnt_type 0 only)
+     * @return log2_max_pic_order_cnt_lsb_minus4 + 4
+     */
 
-            boolean videoSignalTypePresentFlag = readBits(src, 1) == 1;
-            if (videoSignalTypePresentFlag) {
-                readBits(src, 3); // video_format
-                readBits(src, 1); // video_full_range_flag
-                boolean colourDescriptionPresentFlag = readBits(src, 1) == 1;
-                if (colourDescriptionPresentFlag) {
-                    readBits(src, 8); // colour_primaries
-                    readBits(src, 8); // transfer_characteristics
-                    readBits(src, 8); // matrix_coefficients
-                }
-            }
+    public int getLog2MaxPicOrderCntLsb() {
+        return log2MaxPicOrderCntLsb;
+    }
 
-            boolean chromaLocInfoPresentFlag = readBits(src, 1) == 1;
-            if (chromaLocInfoPresentFlag) {
-                readUEG(src); // chroma_sample_loc_type_top_field
-                readUEG(src); // chroma_sample_loc_type_bottom_field
-            }
+    public boolean isDeltaPicOrderAlwaysZero() {
+        return deltaPicOrderAlwaysZero;
+    }
 
-            boolean timingInfoPresentFlag = readBits(src, 1) == 1;
-            if (timingInfoPresentFlag) {
-                int numUnitsInTick = readBits(src, 32); // num_units_in_tick
-                int timeScale = readBits(src, 32); // time_scale
-                boolean fixedFrameRateFlag = readBits(src, 1) == 1;
-                if (fixedFrameRateFlag) {
-                    frameRate = (int) Math.ceil((float) timeScale / numUnitsInTick) / 2;
-                }
-            }
-        }
-        int width = ((picWidthInMbsMinus1 + 1) * 16) - frameCropLeftOffset * 2 - frameCropRightOffset * 2;
-        int height = (2 - frameMbsOnlyFlag) * (picHeightInMapUnitsMinus1 + 1) * 16 - ((frameMbsOnlyFlag != 0 ? 2 : 4) * (frameCropTopOffset + frameCropBottomOffset));
+    public int getMaxNumRefFrames() {
+        return maxNumRefFrames;
+    }
 
-        return new VideoParams(width, height, frameRate);
+    public boolean isFrameMbsOnly() {
+        return frameMbsOnly;
     }
 
-    public static VideoParams parseSPSStatic(byte[] src, int off) {
-        return new SPSParser().parseSPS(src, off);
+    /**
+     * Returns video width in pixels, with cropping applied.
+     * @return video width
+     */
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns video height in pixels, with cropping applied.
+     * @return video height
+     */
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getCropLeft() {
+        return cropLeft;
+    }
+
+    public int getCropRight() {
+        return cropRight;
+    }
+
+    public int getCropTop() {
+        return cropTop;
+    }
+
+    public int getCropBottom() {
+        return cropBottom;
+    }
+
+    /**
+     * Returns frame rate declared in VUI timing info.
+     * @return frame rate or {@link Constants#UNKNOWN_VALUE} if timing info is not present
+     */
+
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Checks if VUI timing info declares fixed frame rate.
+     * @return fixed_frame_rate_flag
+     */
+
+    public boolean isFixedFrameRate() {
+        return fixedFrameRate;
+    }
+
+    /**
+     * Returns max number of frames preceding any frame in decoding order and following it in output order.
+     * @return max_num_reorder_frames or {@link Constants#UNKNOWN_VALUE} if it's not signalled nor can be inferred
+     */
+
+    public int getMaxNumReorderFrames() {
+        return maxNumReorderFrames;
+    }
+
+    /**
+     * Returns required size of decoded picture buffer in frames.
+     * @return max_dec_frame_buffering or {@link Constants#UNKNOWN_VALUE} if bitstream restriction is not present
+     */
+
+    public int getMaxDecFrameBuffering() {
+        return maxDecFrameBuffering;
+    }
+
+    /**
+     * Parses SPS NAL unit and returns basic video parameters.<br>
+     * Allocates new parser, {@link #parse(byte[], int, int)} should be preferred for repeated parsing.
+     * @param src array containing the SPS NAL unit, with or without start code
+     * @param off offset of the NAL unit (or its start code)
+     * @param len length of the NAL unit
+     * @return video parameters or null if the SPS is malformed
+     */
+
+    @Nullable
+    public static VideoParams parseSPSStatic(byte[] src, int off, int len) {
+        SPSParser parser = new SPSParser();
+        if (!parser.parse(src, off, len)) {
+            return null;
+        }
+        return new VideoParams(parser.width, parser.height, parser.frameRate);
     }
 
     public static class VideoParams {
         public final int width;
         public final int height;
-        public final int frameRate;
+        public final float frameRate;
 
-        public VideoParams(int width, int height, int frameRate) {
+        public VideoParams(int width, int height, float frameRate) {
             this.width = Math.max(Constants.UNKNOWN_VALUE, width);
             this.height = Math.max(Constants.UNKNOWN_VALUE, height);
             this.frameRate = Math.max(Constants.UNKNOWN_VALUE, frameRate);
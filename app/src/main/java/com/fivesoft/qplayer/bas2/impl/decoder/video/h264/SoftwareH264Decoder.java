@@ -0,0 +1,480 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
+
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.UnsupportedSampleException;
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.BufferReceiver;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
+import com.fivesoft.qplayer.bas2.decoder.VideoDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.DecodeWorkerPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+import com.fivesoft.qplayer.bas2.resolver.Creator;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import java.util.Objects;
+
+/**
+ * H.264 decoder running on the JVM, without {@link android.media.MediaCodec}, for headless use
+ * (e.g. frame extraction on servers). Decoding is done by the pure Java JCodec library,
+ * which has to be on the classpath (it's not bundled with the app).<br>
+ * <p>
+ *     Decoded pictures are delivered as {@link I420Frame}s in pooled buffers to the {@link FrameListener}
+ *     and to the {@link BufferReceiver} of the output (the surface of the output is ignored).
+ * </p>
+ * <p>
+ *     Frames are decoded asynchronously on a shared {@link DecodeWorkerPool}, so many streams are decoded
+ *     in parallel on a bounded number of threads. {@link #decode(Frame)} never blocks: if the stream
+ *     is decoded slower than it comes, frames are dropped and decoding resumes at the next key frame.
+ * </p>
+ * <p>
+ *     Decoding can be limited with {@link #setDecodeMode(int, int)} to key frames only
+ *     or to pictures needed to output every n-th frame.
+ * </p>
+ */
+
+public class SoftwareH264Decoder extends VideoDecoder {
+
+    /**
+     * All frames are decoded and output.
+     */
+
+    public static final int DECODE_ALL_FRAMES = 0;
+
+    /**
+     * Only key frames are decoded and output, the other frames are dropped without decoding.
+     */
+
+    public static final int DECODE_KEY_FRAMES = 1;
+
+    /**
+     * Every n-th frame is output. Reference frames are decoded anyway (without output),
+     * as the following frames are predicted from them, non-reference frames not output are dropped.
+     */
+
+    public static final int DECODE_EVERY_NTH_FRAME = 2;
+
+    /**
+     * Default max number of frames waiting for decoding.
+     */
+
+    public static final int DEFAULT_MAX_PENDING_FRAMES = 8;
+
+    private static final String TAG = "SoftwareH264Decoder";
+
+    static final boolean JCODEC_AVAILABLE = isClassAvailable("org.jcodec.codecs.h264.H264Decoder");
+    //Hardware decoders are always preferred on Android
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    public static final Creator<Descriptor, VideoDecoder> CREATOR =
+            new Creator<Descriptor, VideoDecoder>() {
+
+        @Override
+        public int accept(Descriptor t) {
+            if (!JCODEC_AVAILABLE || ANDROID)
+                return 0;
+
+            if (H264Decoder.CREATOR.accept(t) <= 0 || !H264Decoder.SUPPORTED_SAMPLE_FORMATS.contains(t.sampleFormat))
+                return 0;
+
+            return 2;
+        }
+
+        @Nullable
+        @Override
+        public SoftwareH264Decoder create(Descriptor t) {
+            if (accept(t) > 0)
+                return new SoftwareH264Decoder((VideoTrack) t.track, t.sampleFormat, t.maxEncodedFrameSize);
+
+            return null;
+        }
+    };
+
+    @NonNull
+    private final FrameBuilder frameBuilder;
+    @NonNull
+    private final DecodeWorkerPool.Lane<Job> lane;
+
+    //Used by the decode lane only
+    @Nullable
+    private JCodecPictureDecoder pictureDecoder;
+
+    @Nullable
+    private volatile Csd csd;
+    private volatile boolean csdChanged;
+    private volatile boolean waitForKeyFrame = true;
+
+    @Nullable
+    private volatile MediaDecoderOutput<Surface> output;
+    @Nullable
+    private volatile FrameListener frameListener;
+    @NonNull
+    private volatile ByteArrayPool bufferPool = ByteArrayPool.getDefault();
+
+    private volatile int decodeMode = DECODE_ALL_FRAMES;
+    private volatile int frameInterval = 1;
+    //Frames passed to decode(), used to select every n-th frame
+    private long frameCounter;
+
+    private volatile int videoWidth = Constants.UNKNOWN_VALUE, videoHeight = Constants.UNKNOWN_VALUE;
+
+    private volatile long decodedFrames;
+    private volatile long outputFrames;
+    private volatile long droppedFrames;
+
+    private volatile boolean released;
+
+    /**
+     * Creates decoder decoding on {@link DecodeWorkerPool#getDefault()}.
+     * @param track The track that the decoder decodes. Cannot be null.
+     * @param sampleFormat The sample format.
+     * @param maxEncodedFrameSize Max size of encoded frame.
+     * @throws UnsupportedSampleFormatException If the specified sample format is not supported.
+     */
+
+    public SoftwareH264Decoder(@NonNull VideoTrack track, int sampleFormat, int maxEncodedFrameSize)
+            throws UnsupportedSampleFormatException {
+        this(track, sampleFormat, maxEncodedFrameSize, DecodeWorkerPool.getDefault(), DEFAULT_MAX_PENDING_FRAMES);
+    }
+
+    /**
+     * Creates decoder.
+     * @param track The track that the decoder decodes. Cannot be null.
+     * @param sampleFormat The sample format.
+     * @param maxEncodedFrameSize Max size of encoded frame.
+     * @param workerPool Threads to decode on.
+     * @param maxPendingFrames Max number of frames waiting for decoding.
+     * @throws UnsupportedSampleFormatException If the specified sample format is not supported.
+     */
+
+    public SoftwareH264Decoder(@NonNull VideoTrack track, int sampleFormat, int maxEncodedFrameSize,
+                               @NonNull DecodeWorkerPool workerPool, int maxPendingFrames)
+            throws UnsupportedSampleFormatException {
+        super(track, sampleFormat, maxEncodedFrameSize);
+        this.frameBuilder = H264Decoder.createFrameBuilder(sampleFormat, maxEncodedFrameSize);
+        this.lane = workerPool.newLane(maxPendingFrames, this::decodeNow, job -> job.frame.release());
+    }
+
+    /**
+     * Limits decoding, e.g. to extract thumbnails cheaper.
+     * @param mode one of {@link #DECODE_ALL_FRAMES}, {@link #DECODE_KEY_FRAMES}, {@link #DECODE_EVERY_NTH_FRAME}
+     * @param frameInterval n for {@link #DECODE_EVERY_NTH_FRAME}, ignored otherwise
+     * @throws IllegalArgumentException if mode is unknown or frame interval is not positive
+     */
+
+    public void setDecodeMode(int mode, int frameInterval) {
+        if (mode != DECODE_ALL_FRAMES && mode != DECODE_KEY_FRAMES && mode != DECODE_EVERY_NTH_FRAME)
+            throw new IllegalArgumentException("Unknown decode mode: " + mode);
+        if (frameInterval <= 0)
+            throw new IllegalArgumentException("Frame interval must be positive");
+
+        this.frameInterval = frameInterval;
+        this.decodeMode = mode;
+    }
+
+    public int getDecodeMode() {
+        return decodeMode;
+    }
+
+    /**
+     * Sets listener receiving decoded pictures.
+     * @param listener the listener or null
+     */
+
+    public void setFrameListener(@Nullable FrameListener listener) {
+        this.frameListener = listener;
+    }
+
+    /**
+     * Sets pool of buffers decoded pictures are stored in. By default {@link ByteArrayPool#getDefault()}.
+     * @param pool the pool
+     */
+
+    public void setBufferPool(@NonNull ByteArrayPool pool) {
+        this.bufferPool = Objects.requireNonNull(pool);
+    }
+
+    @Override
+    public int getVideoWidth() {
+        return videoWidth;
+    }
+
+    @Override
+    public int getVideoHeight() {
+        return videoHeight;
+    }
+
+    @Override
+    public float getVideoFrameRate() {
+        return Constants.UNKNOWN_VALUE;
+    }
+
+    @Override
+    public void setCsd(@Nullable Csd csd) throws IllegalStateException {
+        checkReleased();
+        this.csd = csd;
+        this.csdChanged = true;
+    }
+
+    @Override
+    public void setOutput(@Nullable MediaDecoderOutput<Surface> output) throws IllegalStateException, IllegalArgumentException {
+        checkReleased();
+        this.output = output;
+    }
+
+    @Nullable
+    @Override
+    public Frame feed(@NonNull Sample sample) throws IllegalStateException, UnsupportedSampleException, NullPointerException {
+        checkReleased();
+        synchronized (frameBuilder) {
+            return frameBuilder.pull(sample);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Frame poll() throws IllegalStateException {
+        checkReleased();
+        synchronized (frameBuilder) {
+            return frameBuilder.poll();
+        }
+    }
+
+    /**
+     * Queues the frame for decoding on the worker pool. Never blocks.
+     * @return {@link #ACTION_NONE} if the frame has been queued, {@link #ACTION_DROP_FRAME_NON_REFERENCE}
+     * or {@link #ACTION_WAITING_FOR_KEY_FRAME} if it has been dropped
+     */
+
+    @Override
+    public int decode(@NonNull Frame frame) throws IllegalStateException, NullPointerException {
+        Objects.requireNonNull(frame);
+        checkReleased();
+
+        boolean output = true;
+        if (frame.frameType != Frame.CONFIG_FRAME) {
+            int mode = decodeMode;
+            if (mode == DECODE_KEY_FRAMES && frame.frameType != Frame.SYNC_FRAME) {
+                frame.release();
+                return ACTION_WAITING_FOR_KEY_FRAME;
+            }
+            if (mode == DECODE_EVERY_NTH_FRAME) {
+                output = frameCounter++ % frameInterval == 0;
+                if (!output && frame.isDisposable() && !frame.hasFlag(Frame.FLAG_HAS_CONFIG)) {
+                    frame.release();
+                    return ACTION_DROP_FRAME_NON_REFERENCE;
+                }
+            }
+        }
+
+        if (lane.offer(new Job(frame, output)))
+            return ACTION_NONE;
+
+        //Decoding is behind the stream
+        //noinspection NonAtomicOperationOnVolatileField
+        droppedFrames++;
+        boolean reference = !frame.isDisposable() && frame.frameType != Frame.CONFIG_FRAME;
+        frame.release();
+        if (!reference)
+            return ACTION_DROP_FRAME_NON_REFERENCE;
+
+        if (!waitForKeyFrame) {
+            waitForKeyFrame = true;
+            requestKeyFrame();
+        }
+        return ACTION_WAITING_FOR_KEY_FRAME;
+    }
+
+    @Override
+    public void flush() {
+        lane.clear();
+        waitForKeyFrame = true;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        lane.close();
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Returns number of frames decoded (with or without output).
+     * @return number of frames
+     */
+
+    public long getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    /**
+     * Returns number of pictures passed to the listener and the buffer receiver.
+     * @return number of frames
+     */
+
+    public long getOutputFrames() {
+        return outputFrames;
+    }
+
+    /**
+     * Returns number of frames dropped, because decoding was behind the stream.
+     * @return number of frames
+     */
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns number of frames waiting for decoding.
+     * @return number of frames
+     */
+
+    public int getPendingFrames() {
+        return lane.size();
+    }
+
+    //Called on the worker pool, one frame at a time
+    private void decodeNow(Job job) {
+        Frame frame = job.frame;
+        try {
+            if (released)
+                return;
+
+            JCodecPictureDecoder decoder = pictureDecoder;
+            if (decoder == null) {
+                decoder = new JCodecPictureDecoder();
+                pictureDecoder = decoder;
+            }
+
+            if (csdChanged) {
+                csdChanged = false;
+                decoder.decodeCsd(csd);
+            }
+
+            boolean hasConfig = frame.frameType == Frame.CONFIG_FRAME || frame.hasFlag(Frame.FLAG_HAS_CONFIG);
+            if (hasConfig) {
+                decoder.readParameterSets(frame.getArray(), frame.getOffset(), frame.getLength());
+            }
+
+            if (frame.frameType == Frame.CONFIG_FRAME) {
+                //Parameter sets are stored by the decoder
+                decoder.decode(frame.getArray(), frame.getOffset(), frame.getLength(), frame.timestamp, null);
+                return;
+            }
+
+            if (frame.frameType != Frame.SYNC_FRAME) {
+                if (frame.hasFlag(Frame.FLAG_DISCONTINUITY) && !waitForKeyFrame) {
+                    waitForKeyFrame = true;
+                    requestKeyFrame();
+                }
+                if (waitForKeyFrame) {
+                    //Pictures this one is predicted from are missing
+                    return;
+                }
+            }
+
+            if (!decoder.isConfigured()) {
+                //No SPS received yet
+                return;
+            }
+
+            I420Frame picture = decoder.decode(frame.getArray(), frame.getOffset(), frame.getLength(),
+                    frame.timestamp, job.output ? bufferPool : null);
+            waitForKeyFrame = false;
+            //noinspection NonAtomicOperationOnVolatileField
+            decodedFrames++;
+
+            if (picture != null) {
+                deliver(picture);
+            }
+        } catch (RuntimeException e) {
+            //Corrupted data
+            Log.println(Log.ASSERT, TAG, "Failed to decode frame: " + e);
+            waitForKeyFrame = true;
+            requestKeyFrame();
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void deliver(I420Frame picture) {
+        try {
+            if (picture.width != videoWidth || picture.height != videoHeight) {
+                videoWidth = picture.width;
+                videoHeight = picture.height;
+                track.setWidth(picture.width);
+                track.setHeight(picture.height);
+            }
+
+            FrameListener listener = frameListener;
+            if (listener != null) {
+                listener.onFrame(this, picture);
+            }
+
+            MediaDecoderOutput<Surface> output = this.output;
+            BufferReceiver receiver = output != null ? output.getBufferReceiver() : null;
+            if (receiver != null) {
+                receiver.onBufferReceived(picture.timestamp, picture.getData(), 0, picture.getSize());
+            }
+
+            //noinspection NonAtomicOperationOnVolatileField
+            outputFrames++;
+        } finally {
+            picture.release();
+        }
+    }
+
+    private static boolean isClassAvailable(String name) {
+        try {
+            Class.forName(name, false, SoftwareH264Decoder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Receives pictures decoded by {@link SoftwareH264Decoder}.
+     */
+
+    public interface FrameListener {
+
+        /**
+         * Called on a thread of the worker pool for each decoded picture, in decoding order.<br>
+         * The frame is released after the call, listeners keeping it longer must {@link I420Frame#retain()} it.
+         * @param decoder the decoder
+         * @param frame the picture
+         */
+
+        void onFrame(@NonNull SoftwareH264Decoder decoder, @NonNull I420Frame frame);
+
+    }
+
+    private static final class Job {
+
+        final Frame frame;
+        final boolean output;
+
+        Job(Frame frame, boolean output) {
+            this.frame = frame;
+            this.output = output;
+        }
+
+    }
+
+}
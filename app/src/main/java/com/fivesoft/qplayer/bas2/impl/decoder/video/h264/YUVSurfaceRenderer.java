@@ -5,106 +5,83 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.RectF;
 import android.os.Build;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicYuvToRGB;
-import android.renderscript.Type;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
+import com.fivesoft.qplayer.bas2.common.LatencyHistogram;
+import com.fivesoft.qplayer.bas2.common.TripleBuffer;
+import com.fivesoft.qplayer.bas2.common.yuv.YuvConverter;
+
 import java.util.Objects;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Renders YUV 4:2:0 frames to a {@link Surface}.<br>
+ * <p>
+ *     Frames pass two workers: the prepare worker converts the newest frame to a {@link Bitmap},
+ *     the render worker draws the newest prepared bitmap on the surface. Each handoff is a {@link TripleBuffer},
+ *     so {@link #updateFrame(byte[], int, int, int)}, the prepare worker and the render worker never wait for each other.
+ *     A frame replaced by a newer one before it's been prepared or rendered is dropped,
+ *     see {@link #getDroppedFrames()}.
+ * </p>
+ */
 
 public class YUVSurfaceRenderer {
 
     public static final boolean USE_HARDWARE_BITMAP = false;
-    public static final int FPS_CALC_BUFFER_SIZE = 100;
-
-    private Allocation in, out;
-    private ScriptIntrinsicYuvToRGB yuvConverter;
+    public static final long WORKER_JOIN_TIMEOUT_MS = 1000;
 
-    private final Semaphore renderLock = new Semaphore(0);
-    private final Semaphore prepareLock = new Semaphore(0);
-    private volatile Surface surface;
-
-    //Caching flow
+    /**
+     * Period {@link #getFPS()} is measured over.
+     */
 
-    private final Bitmap[] cache = new Bitmap[2];
-    private volatile byte readyFrameIndex = -1;
+    public static final long FPS_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
 
-    //1. Write raw YUV data to cache
+    //Used by the prepare worker only
+    private final YuvConverter yuvConverter = new YuvConverter();
+    private int[] pixels = new int[0];
 
-    private volatile byte[] lf_yuvData;
-    private volatile int lf_width;
-    private volatile int lf_height;
+    private volatile Surface surface;
 
-    //2. Decode frame into bitmap and store it in cache
+    //1. updateFrame() copies raw YUV data to the back slot
+    private final TripleBuffer<YuvSlot> yuvFrames = new TripleBuffer<>(new YuvSlot(), new YuvSlot(), new YuvSlot());
 
-    private volatile boolean isPreparing = false;
+    //2. Prepare worker converts the newest YUV frame into the back bitmap
+    private final BitmapSlot[] bitmapSlots = {new BitmapSlot(), new BitmapSlot(), new BitmapSlot()};
+    private final TripleBuffer<BitmapSlot> preparedFrames =
+            new TripleBuffer<>(bitmapSlots[0], bitmapSlots[1], bitmapSlots[2]);
 
-    //3. Pass ready prepared frame to renderer
+    //3. Render worker draws the newest prepared bitmap
+    private volatile Bitmap currentFrame;
+    private final AtomicBoolean redrawRequested = new AtomicBoolean();
 
-    private volatile boolean isRendering = false;
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong repeatedFrames = new AtomicLong();
 
     private volatile boolean released = false;
     private final RectF frameRect = new RectF();
 
-    private final Context context;
+    //Intervals between rendered frames in microseconds
+    private final LatencyHistogram renderIntervals = new LatencyHistogram();
+    //Frame rate of the last completed window, -1 till the first one completes
+    private volatile double windowFps = -1;
+    //Time the last new frame has been rendered at
+    private volatile long lastFrameNanos = Long.MIN_VALUE;
 
-    private final FPSCalculator fpsCalculator = new FPSCalculator(FPS_CALC_BUFFER_SIZE);
+    @NonNull
+    private final PrepareWorker prepareWorker = new PrepareWorker();
+    @NonNull
+    private final RenderWorker renderWorker = new RenderWorker();
 
     public YUVSurfaceRenderer(@NonNull Context context) {
-        this.context = Objects.requireNonNull(context);
-
-        /*
-         * Thread that prepares the frame for rendering.
-         * Converts YUV 4:2:0 byte array to Bitmap.
-         */
-        Thread framePrepareThread = new Thread(rendererGroup, () -> {
-            int index;
-            while (!Thread.interrupted()) {
-                //Wait for the frame to be prepared
-                if (acquire(prepareLock)) {
-                    //Convert YUV 4:2:0 byte array to Bitmap
-                    isPreparing = true;
-                    index = readyFrameIndex == 0 ? 1 : 0;
-                    prepareFrame(lf_yuvData, index, lf_width, lf_height);
-                    //Swap caches
-                    readyFrameIndex = (byte) index;
-                    isPreparing = false;
-                    //Release the frame for rendering
-                    if (!isRendering) {
-                        renderLock.release();
-                    }
-                }
-            }
-        }, "FramePrepareThread");
-        framePrepareThread.start();
-
-        /*
-         * Thread that renders the frame to the surface.
-         */
-        Thread frameRenderThread = new Thread(rendererGroup, () -> {
-            int index;
-            while (!Thread.interrupted()) {
-                //Wait for the frame to be rendered
-                if (acquire(renderLock)) {
-                    //Render the frame
-                    isRendering = true;
-                    index = readyFrameIndex;
-                    if (index >= 0 && index < cache.length) {
-                        renderFrame(cache[index], frameRect, surface);
-                        fpsCalculator.onFrame();
-                    }
-                    isRendering = false;
-                }
-            }
-        }, "FrameRenderThread");
-        frameRenderThread.start();
+        Objects.requireNonNull(context);
+        prepareWorker.start();
+        renderWorker.start();
     }
 
     /**
@@ -128,17 +105,18 @@ public class YUVSurfaceRenderer {
      */
 
     public void release(){
+        if (released){
+            return;
+        }
 
         //Set released flag to true
         released = true;
 
-        //Interrupt threads
-        rendererGroup.interrupt();
-        try {
-            rendererGroup.destroy();
-        } catch (Exception e) {
-            //Ignore illegal thread state exception
-        }
+        //Stop workers, so nothing uses the bitmaps or the surface anymore
+        prepareWorker.interrupt();
+        renderWorker.interrupt();
+        prepareWorker.finish();
+        renderWorker.finish();
 
         Surface surface = this.surface;
         try {
@@ -148,37 +126,51 @@ public class YUVSurfaceRenderer {
         }
 
         //Release all resources
-        for (Bitmap b: cache){
-            recycleBitmapQuietly(b);
+        for (BitmapSlot slot : bitmapSlots){
+            recycleBitmapQuietly(slot.bitmap);
+            slot.bitmap = null;
         }
 
         //Let GC do its job
         this.surface = null;
-        Arrays.fill(cache, null);
-        this.lf_yuvData = null;
+        this.currentFrame = null;
     }
 
     /**
-     * Renders a frame to the surface.
+     * Renders a NV21 frame to the surface.
      * @param yuvData YUV data to render
      * @param width Width of the frame
      * @param height Height of the frame
      */
 
     public void updateFrame(byte[] yuvData, int width, int height){
+        updateFrame(yuvData, width, height, YuvConverter.FORMAT_NV21);
+    }
+
+    /**
+     * Renders a frame to the surface.
+     * @param yuvData YUV data to render
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param format Format of the data, one of YuvConverter.FORMAT_* constants
+     */
+
+    public void updateFrame(byte[] yuvData, int width, int height, int format){
         checkReleased();
-        if (yuvData == null || width <= 0 || height <= 0){
+        if (yuvData == null || width <= 0 || height <= 0 || validateYUV(yuvData, width, height) != 0){
             return;
         }
-        synchronized (prepareLock){
-            if (isPreparing){
-                return;
+        //The data is copied, so the caller may reuse the array right away
+        //Callers are serialized, the buffer takes a single producer
+        synchronized (yuvFrames){
+            YuvSlot slot = yuvFrames.getBack();
+            slot.set(yuvData, width, height, format);
+            if (yuvFrames.publish()){
+                //The previous frame hasn't been prepared
+                droppedFrames.incrementAndGet();
             }
-            this.lf_yuvData = yuvData;
-            this.lf_width = width;
-            this.lf_height = height;
-            prepareLock.release();
         }
+        LockSupport.unpark(prepareWorker);
     }
 
     /**
@@ -188,12 +180,8 @@ public class YUVSurfaceRenderer {
 
     public void redraw(){
         checkReleased();
-        synchronized (renderLock){
-            if (isRendering){
-                return;
-            }
-            renderLock.release();
-        }
+        redrawRequested.set(true);
+        LockSupport.unpark(renderWorker);
     }
 
     /**
@@ -234,15 +222,71 @@ public class YUVSurfaceRenderer {
     }
 
     /**
-     * Returns average FPS of the renderer. If no frames have been rendered yet, returns -1.<br>
-     * The FPS is calculated using the last {@link #FPS_CALC_BUFFER_SIZE} frames.
-     * @return Average FPS of the renderer or -1 if no frames have been rendered yet.
+     * Returns current FPS of the renderer. If no frames have been rendered yet, returns -1.<br>
+     * The FPS is the number of new frames rendered over the last {@link #FPS_WINDOW_NANOS}
+     * (the mean of all intervals till the first window completes), so it follows changes of the stream,
+     * 0 if no frame has been rendered for the whole window.
+     * Long term statistics are in {@link #getRenderIntervals()}.
+     * @return Current FPS of the renderer or -1 if no frames have been rendered yet.
      */
 
     public double getFPS(){
         if(isReleased())
             return -1;
-        return fpsCalculator.getAverageFPS();
+        long last = lastFrameNanos;
+        if(last == Long.MIN_VALUE)
+            return -1;
+        if(System.nanoTime() - last > FPS_WINDOW_NANOS)
+            return 0;
+
+        double fps = windowFps;
+        if(fps >= 0)
+            return fps;
+        double meanUs = renderIntervals.snapshot().getMean();
+        return meanUs > 0 ? 1_000_000.0 / meanUs : -1;
+    }
+
+    /**
+     * Returns histogram of intervals between newly rendered frames in microseconds,
+     * since the renderer has been created or {@link #resetStats()} called.
+     * Unlike the FPS it shows stutter, e.g. p99 interval
+     * or number of frames over 50 ms ({@code countAbove(50_000)}).
+     * @return Snapshot of the render intervals
+     */
+
+    @NonNull
+    public LatencyHistogram.Snapshot getRenderIntervals(){
+        return renderIntervals.snapshot();
+    }
+
+    /**
+     * Clears render intervals and dropped and repeated frame counters.
+     */
+
+    public void resetStats(){
+        renderIntervals.reset();
+        droppedFrames.set(0);
+        repeatedFrames.set(0);
+    }
+
+    /**
+     * Returns number of frames which have been replaced by a newer frame
+     * before they've been prepared or rendered.
+     * @return Number of dropped frames
+     */
+
+    public long getDroppedFrames(){
+        return droppedFrames.get();
+    }
+
+    /**
+     * Returns number of times a frame has been drawn again, because no newer frame
+     * has been prepared when the surface had to be redrawn. (see {@link #redraw()})
+     * @return Number of repeated frames
+     */
+
+    public long getRepeatedFrames(){
+        return repeatedFrames.get();
     }
 
     /**
@@ -336,90 +380,48 @@ public class YUVSurfaceRenderer {
         }
     }
 
-    private final ThreadGroup rendererGroup = new ThreadGroup("YUVSurfaceRenderer" + hashCode());
-
-    /**
-     * Convenience method to acquire a semaphore without throwing an exception.
-     * @param semaphore Semaphore to acquire
-     * @return True if the semaphore was acquired, false if the thread was interrupted
-     */
-
-    private static boolean acquire(Semaphore semaphore){
-        try {
-            semaphore.acquire();
-        } catch (InterruptedException e) {
-            return false;
-        }
-        return true;
-    }
-
     private int validateYUV(byte[] yuv, int width, int height){
         if(yuv == null){
             return 101; //Null data
         }
-        if (yuv.length != getYUVByteSize(width, height)){
+        if (yuv.length < getYUVByteSize(width, height)){
             return 1; //Invalid data
         }
         return 0;
     }
 
+    /**
+     * Returns size of a YUV 4:2:0 frame. (any of the formats supported by {@link YuvConverter})
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @return Size in bytes
+     */
+
     public static int getYUVByteSize(int width, int height){
-        return width * height * 2;
+        return YuvConverter.getSize(width, height);
     }
 
     @Nullable
     private Bitmap getPreparedFrame(){
         checkReleased();
-        if (readyFrameIndex >= 0 && readyFrameIndex < cache.length) {
-            return cache[readyFrameIndex];
-        }
-        return null;
-    }
-
-    private void initRenderScript(Context context, int width, int height) {
-
-        //Destroy old
-        destroyRenderScript();
-
-        //Create RenderScript
-        RenderScript rs = RenderScript.create(context);
-        yuvConverter = ScriptIntrinsicYuvToRGB.create(
-                rs, Element.U8_4(rs));
-
-        //Create allocations
-        Type.Builder yuvType = new Type.Builder(rs, Element.U8(rs))
-                .setX(getYUVByteSize(width, height));
-
-        in = Allocation.createTyped(
-                rs, yuvType.create(), Allocation.USAGE_SCRIPT);
-
-        Type.Builder rgbaType = new Type.Builder(rs, Element.RGBA_8888(rs))
-                .setX(width)
-                .setY(height);
-
-        out = Allocation.createTyped(
-                rs, rgbaType.create(), Allocation.USAGE_SCRIPT);
+        return currentFrame;
     }
 
-    private int prepareFrame(byte[] yuv, int index, int width, int height){
-        int dV = validateYUV(yuv, width, height);
+    private int prepareFrame(YuvSlot yuv, BitmapSlot target){
+        int dV = validateYUV(yuv.data, yuv.width, yuv.height);
         if (dV != 0){
             return dV;
         }
-        int dB = ensureBitmap(cache, 0, width, height, USE_HARDWARE_BITMAP);
+        int dB = ensureBitmap(target, yuv.width, yuv.height, USE_HARDWARE_BITMAP);
         if (dB != 0){
             return dB;
         }
-        int dB2 = ensureBitmap(cache, 1, width, height, USE_HARDWARE_BITMAP);
-        if (dB2 != 0){
-            return dB;
-        }
 
-        return decodeFrame(cache[index], yuv);
+        return decodeFrame(target.bitmap, yuv.data, yuv.width, yuv.height, yuv.format);
     }
 
-    private int ensureBitmap(Bitmap[] frameArr, int pos, int width, int height, boolean hardware){
-        Bitmap frame = frameArr[pos];
+    private int ensureBitmap(BitmapSlot slot, int width, int height, boolean hardware){
+        Bitmap frame = slot.bitmap;
         //Get desired bitmap config
         Bitmap.Config config = hardware && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ?
                 Bitmap.Config.HARDWARE :
@@ -428,9 +430,8 @@ public class YUVSurfaceRenderer {
         if (frame == null || frame.getWidth() != width || frame.getHeight() != height || //Check if bitmaps are the same size
                 frame.getConfig() != config){ //Check if bitmaps are the same type
             try {
-                frameArr[pos] = Bitmap.createBitmap(width, height, config);
-                //Init RenderScript
-                initRenderScript(context, width, height);
+                //The old bitmap may still be referenced by getCurrentFrame(), GC will take it
+                slot.bitmap = Bitmap.createBitmap(width, height, config);
             } catch (Exception e) {
                 //Bad size
                 return 11;
@@ -442,56 +443,189 @@ public class YUVSurfaceRenderer {
         return 0;
     }
 
-    private int decodeFrame(Bitmap bitmap, byte[] yuvByteArray) {
-
-        ScriptIntrinsicYuvToRGB script = this.yuvConverter;
-        Allocation in = this.in;
-        Allocation out = this.out;
+    private int decodeFrame(Bitmap bitmap, byte[] yuv, int width, int height, int format) {
 
-        if (in == null || out == null || bitmap == null || script == null){
+        if (bitmap == null){
             return 102; //Not initialized
         }
 
-        in.copyFrom(yuvByteArray);
-        script.setInput(in);
-        script.forEach(out);
+        if (pixels.length < width * height){
+            pixels = new int[width * height];
+        }
+
+        try {
+            yuvConverter.toArgb(yuv, 0, format, width, height, pixels, 0, width);
+        } catch (IllegalArgumentException e) {
+            return 1; //Invalid data
+        }
 
         //noinspection SynchronizationOnLocalVariableOrMethodParameter
         synchronized (bitmap) {
-            out.copyTo(bitmap);
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
         }
 
         return 0;
     }
 
-    private void destroyRenderScript(){
-        if (yuvConverter != null){
-            try {
-                yuvConverter.destroy();
-            } catch (Throwable ignore) {}
-            yuvConverter = null;
+    private static void recycleBitmapQuietly(Bitmap bitmap){
+        if (bitmap == null){
+            return;
         }
-        if (in != null){
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (bitmap) {
             try {
-                in.destroy();
-            } catch (Throwable ignore) {}
-            in = null;
+                if (!bitmap.isRecycled()){
+                    bitmap.recycle();
+                }
+            } catch (Exception e) {
+                //In case, exceptions here are not important
+            }
         }
-        if (out != null){
-            try {
-                out.destroy();
-            } catch (Throwable ignore) {}
-            out = null;
+    }
+
+    /*
+     * Copy of a frame passed to updateFrame().
+     */
+
+    private static final class YuvSlot {
+
+        byte[] data = new byte[0];
+        int width, height, format;
+
+        void set(byte[] yuv, int width, int height, int format){
+            int size = getYUVByteSize(width, height);
+            if (data.length < size){
+                data = new byte[size];
+            }
+            System.arraycopy(yuv, 0, data, 0, size);
+            this.width = width;
+            this.height = height;
+            this.format = format;
         }
+
     }
 
-    private static void recycleBitmapQuietly(Bitmap bitmap){
-        try {
-            if (bitmap != null && !bitmap.isRecycled()){
-                bitmap.recycle();
+    /*
+     * Bitmap of a prepared frame, replaced when the frame size changes.
+     */
+
+    private static final class BitmapSlot {
+
+        Bitmap bitmap;
+
+    }
+
+    /*
+     * Converts the newest YUV frame to a bitmap.
+     */
+
+    private final class PrepareWorker extends Thread {
+
+        PrepareWorker() {
+            super("FramePrepareThread");
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                if (!yuvFrames.update()) {
+                    //Woken up by updateFrame() or release()
+                    LockSupport.park(this);
+                    continue;
+                }
+                BitmapSlot target = preparedFrames.getBack();
+                if (prepareFrame(yuvFrames.getFront(), target) == 0) {
+                    if (preparedFrames.publish()) {
+                        //The previous frame hasn't been rendered
+                        droppedFrames.incrementAndGet();
+                    }
+                    LockSupport.unpark(renderWorker);
+                }
             }
-        } catch (Exception e) {
-            //In case, exceptions here are not important
+        }
+
+        //Waits for the interrupted worker
+        void finish() {
+            joinQuietly(this);
+        }
+
+    }
+
+    /*
+     * Draws the newest prepared frame, or the current one again if a redraw has been requested.
+     */
+
+    private final class RenderWorker extends Thread {
+
+        //Start of the current FPS window (time of a frame) and number of frames rendered after it
+        private long windowStartNanos = Long.MIN_VALUE;
+        private int windowFrames;
+
+        RenderWorker() {
+            super("FrameRenderThread");
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                boolean fresh = preparedFrames.update();
+                boolean redraw = redrawRequested.getAndSet(false);
+                if (!fresh && !redraw) {
+                    //Woken up by the prepare worker, redraw() or release()
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                Bitmap frame = preparedFrames.getFront().bitmap;
+                currentFrame = frame;
+                if (frame == null) {
+                    continue;
+                }
+                renderFrame(frame, frameRect, surface);
+                if (fresh) {
+                    long now = System.nanoTime();
+                    long last = lastFrameNanos;
+                    if (last != Long.MIN_VALUE) {
+                        renderIntervals.record(TimeUnit.NANOSECONDS.toMicros(now - last));
+                    }
+                    lastFrameNanos = now;
+                    countWindowFrame(now);
+                } else {
+                    repeatedFrames.incrementAndGet();
+                }
+            }
+        }
+
+        //Counts a new frame, completing the FPS window if it's over
+        private void countWindowFrame(long now) {
+            if (windowStartNanos == Long.MIN_VALUE) {
+                windowStartNanos = now;
+                return;
+            }
+            windowFrames++;
+            long elapsed = now - windowStartNanos;
+            if (elapsed >= FPS_WINDOW_NANOS) {
+                windowFps = windowFrames * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                windowStartNanos = now;
+                windowFrames = 0;
+            }
+        }
+
+        //Waits for the interrupted worker
+        void finish() {
+            joinQuietly(this);
+        }
+
+    }
+
+    private static void joinQuietly(Thread thread){
+        if (thread == Thread.currentThread()){
+            return;
+        }
+        try {
+            thread.join(WORKER_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -0,0 +1,171 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h265;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.decoder.VideoDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.AnnexBFrameBuilder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.AvccFrameBuilder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.MediaCodecVideoDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.H264Util;
+import com.fivesoft.qplayer.bas2.resolver.Creator;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * H265 (HEVC) video decoder.<br>
+ * Codec specific data of the track is expected to contain VPS, SPS and PPS, (in any order)
+ * which are passed to the codec together as csd-0.
+ */
+
+public class H265Decoder extends MediaCodecVideoDecoder {
+
+    public static final List<Integer> SUPPORTED_SAMPLE_FORMATS =
+            new ArrayList<>(Arrays.asList(MediaDecoder.FORMAT_RTP, MediaDecoder.FORMAT_RAW,
+                    MediaDecoder.FORMAT_ANNEX_B, MediaDecoder.FORMAT_AVCC));
+
+    public static final Creator<Descriptor, VideoDecoder> CREATOR =
+            new Creator<Descriptor, VideoDecoder>() {
+
+        @Override
+        public int accept(Descriptor t) {
+            if(t == null)
+                return 0;
+
+            if(!(t.track instanceof VideoTrack))
+                return 0;
+
+            String format = t.track.getFormat();
+            if(format == null)
+                return 0;
+
+            format = format.toLowerCase()
+                    .replace(" ", "");
+
+            boolean isHevc = format.equals("h265") || format.equals("h.265") || format.equals("hevc") ||
+                    format.equals("h265/hevc") || format.equals("h.265/hevc") || format.equals("highefficiencyvideocoding") ||
+                    format.contains("/hevc") || format.contains("/h265") || format.contains("/h.265");
+
+            if(!isHevc)
+                return 0;
+
+            if(!SUPPORTED_SAMPLE_FORMATS.contains(t.sampleFormat))
+                return 0;
+
+            //More specific than H264Decoder, which accepts any format
+            return 2;
+        }
+
+        @Nullable
+        @Override
+        public H265Decoder create(Descriptor t) {
+            if(accept(t) > 0)
+                return new H265Decoder((VideoTrack) t.track, t.sampleFormat, t.maxEncodedFrameSize);
+
+            return null;
+        }
+    };
+
+    public static final String MIME = "video/hevc";
+
+    //Parameter set cache slots
+    private static final int PARAMETER_SET_VPS = 0;
+    private static final int PARAMETER_SET_SPS = 1;
+    private static final int PARAMETER_SET_PPS = 2;
+    private static final int PARAMETER_SET_COUNT = 3;
+
+    private final H265SPSParser spsParser = new H265SPSParser();
+
+    /**
+     * Creates a new media decoder for the specified video track.
+     *
+     * @param track The track that the decoder decodes. Cannot be null.
+     * @throws UnsupportedSampleFormatException If the specified sample format is not supported.
+     */
+
+    public H265Decoder(@NonNull VideoTrack track, int sampleFormat, int maxEncodedFrameSize) throws UnsupportedSampleFormatException {
+        super(track, sampleFormat, maxEncodedFrameSize, MIME, createFrameBuilder(sampleFormat, maxEncodedFrameSize),
+                PARAMETER_SET_COUNT);
+    }
+
+    /**
+     * Creates a new media decoder for the specified video track.
+     *
+     * @param track        The track that the decoder decodes. Cannot be null.
+     * @param sampleFormat The sample format.
+     * @throws UnsupportedSampleFormatException If the specified sample format is not supported.
+     */
+
+    public H265Decoder(@NonNull VideoTrack track, int sampleFormat) throws UnsupportedSampleFormatException {
+        this(track, sampleFormat, FrameBuilder.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    @NonNull
+    private static FrameBuilder createFrameBuilder(int sampleFormat, int maxEncodedFrameSize) throws UnsupportedSampleFormatException {
+        if (sampleFormat == MediaDecoder.FORMAT_RAW) {
+            return FrameBuilder.RAW_FRAME_BUILDER;
+        } else if (sampleFormat == MediaDecoder.FORMAT_RTP) {
+            return new RtpH265FrameBuilder(maxEncodedFrameSize);
+        } else if (sampleFormat == MediaDecoder.FORMAT_ANNEX_B) {
+            return new AnnexBFrameBuilder(maxEncodedFrameSize, H265Util.NAL_UNIT_CLASSIFIER);
+        } else if (sampleFormat == MediaDecoder.FORMAT_AVCC) {
+            return new AvccFrameBuilder(maxEncodedFrameSize, AvccFrameBuilder.DEFAULT_LENGTH_SIZE, H265Util.NAL_UNIT_CLASSIFIER);
+        } else {
+            throw new UnsupportedSampleFormatException("Unsupported sample format: " + sampleFormat);
+        }
+    }
+
+    @Override
+    protected void onCsd(@NonNull MediaFormat format, @NonNull Csd csd) {
+        //HEVC decoders expect all parameter sets in csd-0
+        ByteArrayOutputStream parameterSets = new ByteArrayOutputStream();
+        for (int i = 0; i < csd.getCapacity(); i++) {
+            if (csd.hasCsd(i)) {
+                byte[] data = H264Util.ensureStartsWithNalPrefix(csd.getCsd(i));
+                if (data == null) {
+                    continue;
+                }
+                parameterSets.write(data, 0, data.length);
+                int prefix = H264Util.startsWithNalPrefix(data, 0, data.length);
+                onParameterSet(data, prefix, data.length - prefix);
+            }
+        }
+        if (parameterSets.size() > 0) {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(parameterSets.toByteArray()));
+        }
+    }
+
+    @Override
+    protected void onParameterSet(byte[] data, int off, int len) {
+        if (len < H265Util.NAL_UNIT_HEADER_LENGTH) {
+            return;
+        }
+        int nalUnitType = H265Util.getNalUnitType(data, off);
+        if (nalUnitType == H265Util.NAL_UNIT_TYPE_VPS) {
+            cacheParameterSet(PARAMETER_SET_VPS, data, off, len);
+        } else if (nalUnitType == H265Util.NAL_UNIT_TYPE_SPS) {
+            cacheParameterSet(PARAMETER_SET_SPS, data, off, len);
+            obtainVideoParamsFromSPS(data, off, len);
+        } else if (nalUnitType == H265Util.NAL_UNIT_TYPE_PPS) {
+            cacheParameterSet(PARAMETER_SET_PPS, data, off, len);
+        }
+    }
+
+    private void obtainVideoParamsFromSPS(byte[] sps, int off, int len) {
+        if (spsParser.parse(sps, off, len)) {
+            onVideoParams(spsParser.getWidth(), spsParser.getHeight(), spsParser.getFrameRate());
+            setLowLatency(spsParser.getMaxNumReorderPics() == 0);
+        }
+    }
+
+}
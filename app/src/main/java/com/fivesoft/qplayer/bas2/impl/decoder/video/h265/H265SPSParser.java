@@ -0,0 +1,326 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h265;
+
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.RbspBitReader;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.H264Util;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.SPSParser;
+
+/**
+ * Parses H265 sequence parameter set (ITU-T H.265, 7.3.2.2) to obtain video resolution, frame rate
+ * and reordering depth.<br>
+ * <p>
+ *     Resolution accounts for the conformance window, frame rate is read from VUI timing info if present.
+ *     Like {@link SPSParser}, the parser reads the NAL unit in place and keeps the results in its fields,
+ *     so one instance may be reused without allocations. The parser is not thread-safe.
+ * </p>
+ */
+
+public class H265SPSParser {
+
+    private static final int MAX_SUB_LAYERS = 7;
+    private static final int MAX_SHORT_TERM_REF_PIC_SETS = 64;
+
+    private final RbspBitReader reader = new RbspBitReader();
+
+    private final boolean[] subLayerProfilePresent = new boolean[MAX_SUB_LAYERS];
+    private final boolean[] subLayerLevelPresent = new boolean[MAX_SUB_LAYERS];
+    private final int[] numDeltaPocs = new int[MAX_SHORT_TERM_REF_PIC_SETS];
+
+    private int width;
+    private int height;
+    private float frameRate;
+    private int maxNumReorderPics;
+
+    /**
+     * Parses SPS NAL unit.
+     * @param src array containing the SPS NAL unit, with or without start code
+     * @param off offset of the NAL unit (or its start code)
+     * @param len length of the NAL unit
+     * @return true if the SPS has been parsed successfully, false if it's malformed or not an SPS
+     */
+
+    public boolean parse(byte[] src, int off, int len) {
+        int prefix = H264Util.startsWithNalPrefix(src, off, len);
+        off += prefix;
+        len -= prefix;
+
+        if (len < 4 || H265Util.getNalUnitType(src, off) != H265Util.NAL_UNIT_TYPE_SPS) {
+            return false;
+        }
+
+        try {
+            parseSPS(src, off, len);
+            return true;
+        } catch (IllegalStateException e) {
+            //Truncated or corrupted SPS
+            return false;
+        }
+    }
+
+    private void parseSPS(byte[] src, int off, int len) {
+        RbspBitReader r = reader;
+        r.reset(src, off, len);
+
+        r.skipBits(16); // nal_unit_header
+        r.skipBits(4); // sps_video_parameter_set_id
+        int maxSubLayersMinus1 = r.readBits(3);
+        r.skipBits(1); // sps_temporal_id_nesting_flag
+        skipProfileTierLevel(maxSubLayersMinus1);
+        r.readUE(); // sps_seq_parameter_set_id
+
+        int chromaFormatIdc = r.readUE();
+        if (chromaFormatIdc == 3) {
+            r.skipBits(1); // separate_colour_plane_flag
+        }
+
+        width = r.readUE(); // pic_width_in_luma_samples
+        height = r.readUE(); // pic_height_in_luma_samples
+
+        if (r.readFlag()) { // conformance_window_flag
+            int subWidthC = chromaFormatIdc == 1 || chromaFormatIdc == 2 ? 2 : 1;
+            int subHeightC = chromaFormatIdc == 1 ? 2 : 1;
+            width -= subWidthC * (r.readUE() + r.readUE()); // left + right offset
+            height -= subHeightC * (r.readUE() + r.readUE()); // top + bottom offset
+        }
+
+        r.readUE(); // bit_depth_luma_minus8
+        r.readUE(); // bit_depth_chroma_minus8
+        int log2MaxPicOrderCntLsb = r.readUE() + 4;
+
+        boolean subLayerOrderingInfoPresent = r.readFlag();
+        for (int i = subLayerOrderingInfoPresent ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+            r.readUE(); // sps_max_dec_pic_buffering_minus1
+            maxNumReorderPics = r.readUE(); // sps_max_num_reorder_pics, the last one is for the highest sub-layer
+            r.readUE(); // sps_max_latency_increase_plus1
+        }
+
+        r.readUE(); // log2_min_luma_coding_block_size_minus3
+        r.readUE(); // log2_diff_max_min_luma_coding_block_size
+        r.readUE(); // log2_min_luma_transform_block_size_minus2
+        r.readUE(); // log2_diff_max_min_luma_transform_block_size
+        r.readUE(); // max_transform_hierarchy_depth_inter
+        r.readUE(); // max_transform_hierarchy_depth_intra
+
+        if (r.readFlag()) { // scaling_list_enabled_flag
+            if (r.readFlag()) { // sps_scaling_list_data_present_flag
+                skipScalingListData();
+            }
+        }
+
+        r.skipBits(1); // amp_enabled_flag
+        r.skipBits(1); // sample_adaptive_offset_enabled_flag
+        if (r.readFlag()) { // pcm_enabled_flag
+            r.skipBits(4); // pcm_sample_bit_depth_luma_minus1
+            r.skipBits(4); // pcm_sample_bit_depth_chroma_minus1
+            r.readUE(); // log2_min_pcm_luma_coding_block_size_minus3
+            r.readUE(); // log2_diff_max_min_pcm_luma_coding_block_size
+            r.skipBits(1); // pcm_loop_filter_disabled_flag
+        }
+
+        frameRate = Constants.UNKNOWN_VALUE;
+
+        int numShortTermRefPicSets = r.readUE();
+        if (numShortTermRefPicSets > MAX_SHORT_TERM_REF_PIC_SETS) {
+            //Corrupted SPS, frame rate can't be obtained
+            return;
+        }
+        for (int i = 0; i < numShortTermRefPicSets; i++) {
+            skipShortTermRefPicSet(i);
+        }
+
+        if (r.readFlag()) { // long_term_ref_pics_present_flag
+            int numLongTermRefPicsSps = r.readUE();
+            for (int i = 0; i < numLongTermRefPicsSps; i++) {
+                r.skipBits(log2MaxPicOrderCntLsb); // lt_ref_pic_poc_lsb_sps
+                r.skipBits(1); // used_by_curr_pic_lt_sps_flag
+            }
+        }
+
+        r.skipBits(1); // sps_temporal_mvp_enabled_flag
+        r.skipBits(1); // strong_intra_smoothing_enabled_flag
+
+        if (r.readFlag()) { // vui_parameters_present_flag
+            frameRate = readVuiFrameRate();
+        }
+    }
+
+    private void skipProfileTierLevel(int maxSubLayersMinus1) {
+        RbspBitReader r = reader;
+        // general_profile_space, general_tier_flag, general_profile_idc, general_profile_compatibility_flags,
+        // constraint flags and general_level_idc
+        r.skipBits(2 + 1 + 5 + 32 + 48 + 8);
+
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            subLayerProfilePresent[i] = r.readFlag();
+            subLayerLevelPresent[i] = r.readFlag();
+        }
+        if (maxSubLayersMinus1 > 0) {
+            r.skipBits(2 * (8 - maxSubLayersMinus1)); // reserved_zero_2bits
+        }
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            if (subLayerProfilePresent[i]) {
+                r.skipBits(2 + 1 + 5 + 32 + 48);
+            }
+            if (subLayerLevelPresent[i]) {
+                r.skipBits(8);
+            }
+        }
+    }
+
+    private void skipScalingListData() {
+        RbspBitReader r = reader;
+        for (int sizeId = 0; sizeId < 4; sizeId++) {
+            for (int matrixId = 0; matrixId < 6; matrixId += (sizeId == 3) ? 3 : 1) {
+                if (!r.readFlag()) { // scaling_list_pred_mode_flag
+                    r.readUE(); // scaling_list_pred_matrix_id_delta
+                } else {
+                    int coefNum = Math.min(64, 1 << (4 + (sizeId << 1)));
+                    if (sizeId > 1) {
+                        r.readUE(); // scaling_list_dc_coef_minus8
+                    }
+                    for (int i = 0; i < coefNum; i++) {
+                        r.readUE(); // scaling_list_delta_coef
+                    }
+                }
+            }
+        }
+    }
+
+    private void skipShortTermRefPicSet(int stRpsIdx) {
+        RbspBitReader r = reader;
+        boolean interRefPicSetPrediction = stRpsIdx != 0 && r.readFlag();
+
+        if (interRefPicSetPrediction) {
+            //delta_idx_minus1 is present in slice headers only, in SPS reference set is the previous one
+            int refRpsIdx = stRpsIdx - 1;
+            r.skipBits(1); // delta_rps_sign
+            r.readUE(); // abs_delta_rps_minus1
+
+            int count = 0;
+            for (int j = 0; j <= numDeltaPocs[refRpsIdx]; j++) {
+                boolean usedByCurrPic = r.readFlag();
+                boolean useDelta = usedByCurrPic || r.readFlag();
+                if (useDelta) {
+                    count++;
+                }
+            }
+            numDeltaPocs[stRpsIdx] = count;
+        } else {
+            int numNegativePics = r.readUE();
+            int numPositivePics = r.readUE();
+            for (int i = 0; i < numNegativePics + numPositivePics; i++) {
+                r.readUE(); // delta_poc_s0_minus1 / delta_poc_s1_minus1
+                r.skipBits(1); // used_by_curr_pic_s0_flag / used_by_curr_pic_s1_flag
+            }
+            numDeltaPocs[stRpsIdx] = numNegativePics + numPositivePics;
+        }
+    }
+
+    private float readVuiFrameRate() {
+        RbspBitReader r = reader;
+        if (r.readFlag()) { // aspect_ratio_info_present_flag
+            if (r.readBits(8) == 255) { // aspect_ratio_idc
+                r.skipBits(16); // sar_width
+                r.skipBits(16); // sar_height
+            }
+        }
+
+        if (r.readFlag()) { // overscan_info_present_flag
+            r.skipBits(1); // overscan_appropriate_flag
+        }
+
+        if (r.readFlag()) { // video_signal_type_present_flag
+            r.skipBits(3); // video_format
+            r.skipBits(1); // video_full_range_flag
+            if (r.readFlag()) { // colour_description_present_flag
+                r.skipBits(8); // colour_primaries
+                r.skipBits(8); // transfer_characteristics
+                r.skipBits(8); // matrix_coeffs
+            }
+        }
+
+        if (r.readFlag()) { // chroma_loc_info_present_flag
+            r.readUE(); // chroma_sample_loc_type_top_field
+            r.readUE(); // chroma_sample_loc_type_bottom_field
+        }
+
+        r.skipBits(1); // neutral_chroma_indication_flag
+        r.skipBits(1); // field_seq_flag
+        r.skipBits(1); // frame_field_info_present_flag
+
+        if (r.readFlag()) { // default_display_window_flag
+            r.readUE(); // def_disp_win_left_offset
+            r.readUE(); // def_disp_win_right_offset
+            r.readUE(); // def_disp_win_top_offset
+            r.readUE(); // def_disp_win_bottom_offset
+        }
+
+        if (r.readFlag()) { // vui_timing_info_present_flag
+            long numUnitsInTick = r.readUnsignedInt();
+            long timeScale = r.readUnsignedInt();
+            if (numUnitsInTick > 0 && timeScale > 0) {
+                //Unlike H264, H265 tick is the duration of a picture
+                return (float) ((double) timeScale / numUnitsInTick);
+            }
+        }
+
+        return Constants.UNKNOWN_VALUE;
+    }
+
+    /**
+     * Returns video width in pixels, with conformance window applied.
+     * @return video width
+     */
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns video height in pixels, with conformance window applied.
+     * @return video height
+     */
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns frame rate declared in VUI timing info.
+     * @return frame rate or {@link Constants#UNKNOWN_VALUE} if timing info is not present
+     */
+
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Returns max number of pictures preceding any picture in decoding order and following it in output order.
+     * @return sps_max_num_reorder_pics of the highest sub-layer
+     */
+
+    public int getMaxNumReorderPics() {
+        return maxNumReorderPics;
+    }
+
+    /**
+     * Parses SPS NAL unit and returns basic video parameters.<br>
+     * Allocates new parser, {@link #parse(byte[], int, int)} should be preferred for repeated parsing.
+     * @param src array containing the SPS NAL unit, with or without start code
+     * @param off offset of the NAL unit (or its start code)
+     * @param len length of the NAL unit
+     * @return video parameters or null if the SPS is malformed
+     */
+
+    @Nullable
+    public static SPSParser.VideoParams parseSPSStatic(byte[] src, int off, int len) {
+        H265SPSParser parser = new H265SPSParser();
+        if (!parser.parse(src, off, len)) {
+            return null;
+        }
+        return new SPSParser.VideoParams(parser.width, parser.height, parser.frameRate);
+    }
+
+}
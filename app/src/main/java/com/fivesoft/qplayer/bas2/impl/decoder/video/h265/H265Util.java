@@ -0,0 +1,162 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h265;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.NalUnitClassifier;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.RbspBitReader;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.SeiUtil;
+
+public class H265Util {
+
+    public static final int NAL_UNIT_TYPE_TRAIL_N = 0; // Coded slice of a non-TSA, non-STSA trailing picture
+    public static final int NAL_UNIT_TYPE_TRAIL_R = 1;
+    public static final int NAL_UNIT_TYPE_TSA_N = 2; // Coded slice of a TSA picture
+    public static final int NAL_UNIT_TYPE_TSA_R = 3;
+    public static final int NAL_UNIT_TYPE_STSA_N = 4; // Coded slice of an STSA picture
+    public static final int NAL_UNIT_TYPE_STSA_R = 5;
+    public static final int NAL_UNIT_TYPE_RADL_N = 6; // Coded slice of a RADL picture
+    public static final int NAL_UNIT_TYPE_RADL_R = 7;
+    public static final int NAL_UNIT_TYPE_RASL_N = 8; // Coded slice of a RASL picture
+    public static final int NAL_UNIT_TYPE_RASL_R = 9;
+    public static final int NAL_UNIT_TYPE_BLA_W_LP = 16; // Coded slice of a BLA picture
+    public static final int NAL_UNIT_TYPE_BLA_W_RADL = 17;
+    public static final int NAL_UNIT_TYPE_BLA_N_LP = 18;
+    public static final int NAL_UNIT_TYPE_IDR_W_RADL = 19; // Coded slice of an IDR picture
+    public static final int NAL_UNIT_TYPE_IDR_N_LP = 20;
+    public static final int NAL_UNIT_TYPE_CRA_NUT = 21; // Coded slice of a CRA picture
+    public static final int NAL_UNIT_TYPE_VPS = 32; // Video Parameter Set
+    public static final int NAL_UNIT_TYPE_SPS = 33; // Sequence Parameter Set
+    public static final int NAL_UNIT_TYPE_PPS = 34; // Picture Parameter Set
+    public static final int NAL_UNIT_TYPE_AUD = 35; // Access Unit Delimiter
+    public static final int NAL_UNIT_TYPE_EOS = 36; // End of Sequence
+    public static final int NAL_UNIT_TYPE_EOB = 37; // End of Bitstream
+    public static final int NAL_UNIT_TYPE_FD = 38; // Filler Data
+    public static final int NAL_UNIT_TYPE_PREFIX_SEI = 39; // Supplemental Enhancement Information
+    public static final int NAL_UNIT_TYPE_SUFFIX_SEI = 40;
+
+    //RTP payload types (RFC 7798)
+    public static final int NAL_UNIT_TYPE_AP = 48; // Aggregation Packet
+    public static final int NAL_UNIT_TYPE_FU = 49; // Fragmentation Unit
+    public static final int NAL_UNIT_TYPE_PACI = 50; // PACI Packet
+
+    /**
+     * Length of H265 NAL unit header in bytes.
+     */
+
+    public static final int NAL_UNIT_HEADER_LENGTH = 2;
+
+    /**
+     * Classifies H265 NAL units for access unit assembly. (ITU-T H.265, 7.4.2.4.4)<br>
+     * All information is taken from NAL unit header, first_slice_segment_in_pic_flag and SEI messages,
+     * so the classifier is stateless and may be shared by all builders.
+     */
+
+    public static final NalUnitClassifier NAL_UNIT_CLASSIFIER = new NalUnitClassifier() {
+
+        @Override
+        public byte getFrameType(byte[] data, int off) {
+            return H265Util.getFrameType(getNalUnitType(data, off));
+        }
+
+        @Override
+        public int getAccessUnitRole(byte[] data, int off, int len) {
+            int nalUnitType = getNalUnitType(data, off);
+            if (nalUnitType < NAL_UNIT_TYPE_VPS) {
+                //VCL NAL unit, first_slice_segment_in_pic_flag follows the header
+                return len > NAL_UNIT_HEADER_LENGTH && (data[off + NAL_UNIT_HEADER_LENGTH] & 0x80) != 0 ?
+                        ROLE_FIRST_SLICE : ROLE_SLICE;
+            }
+            if (nalUnitType <= NAL_UNIT_TYPE_AUD || nalUnitType == NAL_UNIT_TYPE_PREFIX_SEI
+                    || (nalUnitType >= 41 && nalUnitType <= 44) || (nalUnitType >= 48 && nalUnitType <= 55)) {
+                return ROLE_PREFIX;
+            }
+            return ROLE_OTHER;
+        }
+
+        @Override
+        public int inspectNalUnit(byte[] data, int off, int len) {
+            int nalUnitType = getNalUnitType(data, off);
+            if (nalUnitType == NAL_UNIT_TYPE_PREFIX_SEI) {
+                //SEI units are rare, reader doesn't need to be cached
+                return SeiUtil.containsPayload(new RbspBitReader(), data, off + NAL_UNIT_HEADER_LENGTH,
+                        len - NAL_UNIT_HEADER_LENGTH, SeiUtil.PAYLOAD_TYPE_RECOVERY_POINT) ? Frame.FLAG_RECOVERY_POINT : 0;
+            }
+            if (nalUnitType >= NAL_UNIT_TYPE_VPS)
+                return 0;
+
+            int flags = isNalUnitSubLayerNonReference(nalUnitType) ? Frame.FLAG_NON_REFERENCE : 0;
+            if (len > NAL_UNIT_HEADER_LENGTH && (data[off + NAL_UNIT_HEADER_LENGTH] & 0x80) != 0) {
+                flags |= Frame.FLAG_NEW_PICTURE;
+            }
+            return flags;
+        }
+
+        @Override
+        public void reset() {
+            //Stateless
+        }
+    };
+
+    /**
+     * Returns the type of NAL unit with header at the given offset.
+     * @param nal array containing the NAL unit header (without start code)
+     * @param off offset of the first byte of the header
+     * @return the NAL unit type
+     */
+
+    public static byte getNalUnitType(byte[] nal, int off) {
+        return (byte) ((nal[off] >> 1) & 0x3F);
+    }
+
+    /**
+     * Returns true if the given NAL unit type is a slice of an IRAP (IDR, CRA or BLA) picture,
+     * decoding can be started from.
+     * @param nalUnitType the NAL unit type
+     * @return true if the given NAL unit type is a key frame slice
+     */
+
+    public static boolean isNalUnitKeyFrame(byte nalUnitType) {
+        return nalUnitType >= NAL_UNIT_TYPE_BLA_W_LP && nalUnitType <= NAL_UNIT_TYPE_CRA_NUT;
+    }
+
+    /**
+     * Returns true if the given NAL unit type is a slice of a sub-layer non-reference picture
+     * (TRAIL_N, TSA_N, STSA_N, RADL_N, RASL_N or reserved RSV_VCL_N10/12/14).<br>
+     * Such pictures are not used for reference by pictures of the same sub-layer,
+     * so they can be skipped without breaking decoding of the following pictures.
+     * @param nalUnitType the NAL unit type
+     * @return true if the given NAL unit type is a sub-layer non-reference slice
+     */
+
+    public static boolean isNalUnitSubLayerNonReference(int nalUnitType) {
+        return nalUnitType <= 14 && (nalUnitType & 1) == 0;
+    }
+
+    /**
+     * Returns true if the given NAL unit type is a configuration NAL unit. (VPS, SPS or PPS)
+     * @param nalUnitType the NAL unit type
+     * @return true if the given NAL unit type is a configuration NAL unit
+     */
+
+    public static boolean isNalUnitConfig(byte nalUnitType) {
+        return nalUnitType == NAL_UNIT_TYPE_VPS || nalUnitType == NAL_UNIT_TYPE_SPS
+                || nalUnitType == NAL_UNIT_TYPE_PPS;
+    }
+
+    /**
+     * Returns frame type ({@link Frame#SYNC_FRAME}, {@link Frame#CONFIG_FRAME} or {@link Frame#NON_SYNC_FRAME})
+     * matching single NAL unit of the given type.
+     * @param nalUnitType the NAL unit type
+     * @return frame type matching the NAL unit type
+     */
+
+    public static byte getFrameType(byte nalUnitType) {
+        if (isNalUnitKeyFrame(nalUnitType)) {
+            return Frame.SYNC_FRAME;
+        } else if (isNalUnitConfig(nalUnitType)) {
+            return Frame.CONFIG_FRAME;
+        } else {
+            return Frame.NON_SYNC_FRAME;
+        }
+    }
+
+}
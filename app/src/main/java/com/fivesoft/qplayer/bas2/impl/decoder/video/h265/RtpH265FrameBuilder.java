@@ -0,0 +1,186 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h265;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.RtpVideoFrameBuilder;
+
+/**
+ * Builds H265 frames (Annex B format) from RTP payloads (RFC 7798).<br>
+ * Single NAL unit, aggregation (AP) and fragmentation unit (FU) packets are supported, also carried in PACI packets,
+ * whose header extensions are skipped.
+ * Streams using decoding order numbers (sprop-max-don-diff &gt; 0) are not supported.
+ * @see RtpVideoFrameBuilder
+ */
+
+public class RtpH265FrameBuilder extends RtpVideoFrameBuilder {
+
+    //Payload header + FU header
+    private static final int FU_HEADERS_LENGTH = H265Util.NAL_UNIT_HEADER_LENGTH + 1;
+    //Payload header + A, cType, PHSsize, F0-F2 and Y fields
+    private static final int PACI_HEADERS_LENGTH = H265Util.NAL_UNIT_HEADER_LENGTH + 2;
+
+    /**
+     * Creates Frame builder with specified max frame size and buffer pool.<br>
+     *
+     * @param maxFrameSize If a frame is bigger than this value, {@link BufferOverflowException}
+     *                     will be thrown by {@link #pull(Sample sampe)} method.<br>
+     * @param pool Pool to obtain assembly buffers from.
+     */
+    public RtpH265FrameBuilder(int maxFrameSize, @NonNull ByteArrayPool pool) {
+        super(maxFrameSize, H265Util.NAL_UNIT_CLASSIFIER, pool);
+    }
+
+    /**
+     * Creates Frame builder with specified max frame size, which uses {@link ByteArrayPool#getDefault()} pool.<br>
+     *
+     * @param maxFrameSize If a frame is bigger than this value, {@link BufferOverflowException}
+     *                     will be thrown by {@link #pull(Sample sampe)} method.<br>
+     */
+    public RtpH265FrameBuilder(int maxFrameSize) {
+        this(maxFrameSize, ByteArrayPool.getDefault());
+    }
+
+    /**
+     * Creates Frame builder with default max frame size ({@link #DEFAULT_MAX_FRAME_SIZE}).<br>
+     * @see #RtpH265FrameBuilder(int)
+     */
+
+    public RtpH265FrameBuilder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    @Override
+    protected void processPacket(byte[] data, int off, int length) {
+        if (length < H265Util.NAL_UNIT_HEADER_LENGTH) {
+            return;
+        }
+
+        int nalType = H265Util.getNalUnitType(data, off);
+
+        switch (nalType) {
+            case H265Util.NAL_UNIT_TYPE_FU:
+                if (length > FU_HEADERS_LENGTH) {
+                    processFuPacket(data[off], data[off + 1], data, off + H265Util.NAL_UNIT_HEADER_LENGTH, length - H265Util.NAL_UNIT_HEADER_LENGTH);
+                }
+                break;
+
+            case H265Util.NAL_UNIT_TYPE_AP:
+                dropFragment();
+                processAp(data, off + H265Util.NAL_UNIT_HEADER_LENGTH, length - H265Util.NAL_UNIT_HEADER_LENGTH);
+                break;
+
+            case H265Util.NAL_UNIT_TYPE_PACI:
+                processPaci(data, off, length);
+                break;
+
+            default:
+                appendNalUnit(data, off, length);
+                break;
+        }
+    }
+
+    //Processes the packet carried in a PACI packet, it has the PACI payload header with the type from cType
+    private void processPaci(byte[] data, int off, int length) {
+        if (length <= PACI_HEADERS_LENGTH) {
+            markDamaged();
+            return;
+        }
+
+        int cType = (data[off + 2] >> 1) & 0x3F;
+        int phesLength = ((data[off + 2] & 0x01) << 4) | ((data[off + 3] >> 4) & 0x0F);
+        int pos = off + PACI_HEADERS_LENGTH + phesLength;
+        int len = off + length - pos;
+        if (len <= 0 || cType == H265Util.NAL_UNIT_TYPE_PACI) {
+            //Truncated or nested PACI packet, which is not allowed
+            dropFragment();
+            markDamaged();
+            return;
+        }
+
+        byte header0 = (byte) ((data[off] & 0x81) | (cType << 1));
+        byte header1 = data[off + 1];
+        switch (cType) {
+            case H265Util.NAL_UNIT_TYPE_FU:
+                if (len > 1) {
+                    processFuPacket(header0, header1, data, pos, len);
+                }
+                break;
+
+            case H265Util.NAL_UNIT_TYPE_AP:
+                dropFragment();
+                processAp(data, pos, len);
+                break;
+
+            default:
+                //NAL unit with the header taken from the PACI packet
+                startFragment(cType);
+                writeToBuffer(header0);
+                writeToBuffer(header1);
+                writeToBuffer(data, pos, len);
+                endFragment();
+                break;
+        }
+    }
+
+    //Payload starts with the FU header, the payload header is passed separately
+    private void processFuPacket(byte header0, byte header1, byte[] data, int off, int len) {
+        int fuHeader = data[off];
+        byte nalUnitType = (byte) (fuHeader & 0x3F);
+        int packFlag = fuHeader & 0xC0;
+
+        switch (packFlag) {
+            case 0x80:
+                // Start of a fragmented NAL unit
+                startFragment(nalUnitType);
+                // NAL unit header: F bit and LayerId MSB from payload header, type from FU header
+                writeToBuffer((byte) ((header0 & 0x81) | (nalUnitType << 1)));
+                writeToBuffer(header1); // LayerId LSBs and TID
+                writeToBuffer(data, off + 1, len - 1); // NAL unit payload
+                break;
+            case 0x00:
+                // Middle part of a fragmented NAL unit
+                if (isFragmentInProgress(nalUnitType)) {
+                    writeToBuffer(data, off + 1, len - 1); // NAL unit payload
+                } else {
+                    //Start fragment lost (or NAL type mismatch), the NAL unit can't be completed
+                    dropFragment();
+                    markDamaged();
+                }
+                break;
+            case 0x40:
+                // End of a fragmented NAL unit
+                if (!isFragmentInProgress(nalUnitType)) {
+                    //Start fragment lost (or NAL type mismatch)
+                    dropFragment();
+                    markDamaged();
+                    return;
+                }
+
+                writeToBuffer(data, off + 1, len - 1); // NAL unit payload just received
+                endFragment();
+                break;
+        }
+    }
+
+    //Payload starts with the first NAL unit size, after the payload header
+    private void processAp(byte[] data, int off, int length) {
+        int pos = off;
+        int end = off + length;
+
+        while (pos + 2 < end) {
+            int nalUnitLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+
+            if (nalUnitLength < H265Util.NAL_UNIT_HEADER_LENGTH || pos + nalUnitLength > end) {
+                // Invalid AP packet
+                markDamaged();
+                return;
+            }
+
+            appendNalUnit(data, pos, nalUnitLength);
+            pos += nalUnitLength;
+        }
+    }
+
+}
@@ -18,6 +18,11 @@ public class RtpParser {
 
     private final static int RTP_HEADER_SIZE = 12;
 
+    //Packet type of RTCP sender report (RFC 3550, 6.4.1), read as marker bit and payload type 72
+    private final static int RTCP_SENDER_REPORT = 200;
+    //NTP timestamp (least significant word) and RTP timestamp follow the first 12 bytes of the report
+    private final static int SENDER_REPORT_PAYLOAD_SIZE = 8;
+
     public static class RtpHeader {
 
         public int version;
@@ -85,7 +90,7 @@ public class RtpParser {
             rtpHeader.payloadType = header[1] & 0x7F;
             rtpHeader.sequenceNumber = (header[3] & 0xFF) + ((header[2] & 0xFF) << 8);
             rtpHeader.timestamp = (header[7] & 0xFF) + ((header[6] & 0xFF) << 8) + ((header[5] & 0xFF) << 16) + ((long) (header[4] & 0xFF) << 24) & 0xffffffffL;
-            rtpHeader.ssrc = (header[7] & 0xFF) + ((header[6] & 0xFF) << 8) + ((header[5] & 0xFF) << 16) + ((long) (header[4] & 0xFF) << 24) & 0xffffffffL;
+            rtpHeader.ssrc = (header[11] & 0xFF) + ((header[10] & 0xFF) << 8) + ((header[9] & 0xFF) << 16) + ((long) (header[8] & 0xFF) << 24) & 0xffffffffL;
             rtpHeader.payloadSize = packetSize - RTP_HEADER_SIZE;
             return rtpHeader;
         }
@@ -111,6 +116,58 @@ public class RtpParser {
         }
     }
 
+    /**
+     * RTCP sender report: wall clock time of the sender paired with an RTP timestamp of its stream.
+     */
+
+    public static class SenderReport {
+
+        //SSRC of the sender, the same as in its RTP packets
+        public long ssrc;
+        //NTP time (since 1900) in microseconds
+        public long ntpTimeUs;
+        public long rtpTimestamp;
+
+    }
+
+    /**
+     * Returns whether the packet read by {@link #readHeader(InputStream)} is an RTCP sender report.
+     * RTCP packets of interleaved streams are read like RTP ones, their first 12 bytes land in the header fields.
+     * @param header the header
+     * @return true if it's a sender report
+     */
+
+    public static boolean isSenderReport(@NonNull RtpHeader header) {
+        return ((header.marker << 7) | header.payloadType) == RTCP_SENDER_REPORT
+                && header.payloadSize >= SENDER_REPORT_PAYLOAD_SIZE;
+    }
+
+    /**
+     * Parses RTCP sender report.
+     * @param header header of the report, see {@link #isSenderReport(RtpHeader)}
+     * @param payload rest of the packet, following the header
+     * @return the report or null if it isn't a sender report
+     */
+
+    @Nullable
+    public static SenderReport parseSenderReport(@NonNull RtpHeader header, @NonNull byte[] payload) {
+        if (!isSenderReport(header) || payload.length < SENDER_REPORT_PAYLOAD_SIZE)
+            return null;
+
+        //Sender SSRC takes place of RTP timestamp, NTP seconds take place of RTP SSRC
+        SenderReport report = new SenderReport();
+        report.ssrc = header.timestamp;
+        long ntpFraction = readUInt32(payload, 0);
+        report.ntpTimeUs = header.ssrc * 1_000_000 + ((ntpFraction * 1_000_000) >>> 32);
+        report.rtpTimestamp = readUInt32(payload, 4);
+        return report;
+    }
+
+    private static long readUInt32(@NonNull byte[] data, int off) {
+        return ((long) (data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16)
+                | ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+    }
+
     @Nullable
     public static RtpHeader readHeader(@NonNull InputStream inputStream) throws IOException {
         // 24 01 00 1c 80 c8 00 06  7f 1d d2 c4
@@ -17,6 +17,7 @@ import com.fivesoft.qplayer.bas2.Sample;
 import com.fivesoft.qplayer.bas2.TimeoutException;
 import com.fivesoft.qplayer.bas2.TrackSelector;
 import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.common.LatencyHistogram;
 import com.fivesoft.qplayer.bas2.common.Util;
 import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
 import com.fivesoft.qplayer.bas2.resolver.Creator;
@@ -35,6 +36,9 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /*
     Based on https://github.com/alexeyvasilyev/rtsp-client-android
@@ -75,6 +79,11 @@ public class RtspMediaExtractor extends MediaExtractor {
 
     public static final String DEFAULT_USER_AGENT = Constants.Q_PLAYER_USER_AGENT;
 
+    //Csd indexes of H265 parameter sets (H264 uses 0 for SPS and 1 for PPS)
+    private static final int H265_CSD_VPS = 0;
+    private static final int H265_CSD_SPS = 1;
+    private static final int H265_CSD_PPS = 2;
+
     private volatile boolean opened = true;
     private final String uri;
 
@@ -97,6 +106,15 @@ public class RtspMediaExtractor extends MediaExtractor {
 
     private volatile long sampleCount = Constants.UNKNOWN_VALUE;
 
+    //Intervals between arrivals of RTP packets in microseconds
+    private final LatencyHistogram packetInterArrival = new LatencyHistogram();
+    private long lastArrivalNanos = Long.MIN_VALUE;
+
+    //Tracks by SSRC of their RTP packets, so sender reports can be matched with them
+    private final Map<Long, Track> tracksBySsrc = new HashMap<>();
+    @Nullable
+    private volatile SenderReportListener senderReportListener;
+
     private volatile boolean prepared = false;
     private volatile Authentication auth;
     private volatile RtspSession rtspSession;
@@ -115,6 +133,15 @@ public class RtspMediaExtractor extends MediaExtractor {
         this.userAgent = userAgent;
     }
 
+    /**
+     * Sets listener of RTCP sender reports, which map timestamps of the tracks to the wall clock of the camera.
+     * @param listener the listener or null
+     */
+
+    public void setSenderReportListener(@Nullable SenderReportListener listener) {
+        this.senderReportListener = listener;
+    }
+
     public void setBufferSize(int bufferSize) {
         if (bufferSize <= 0) {
             throw new IllegalArgumentException("bufferSize must be positive");
@@ -249,25 +276,59 @@ public class RtspMediaExtractor extends MediaExtractor {
                 return null;
             }
 
+            //The header has just been read from the network
+            long now = System.nanoTime();
+            if (lastArrivalNanos != Long.MIN_VALUE) {
+                packetInterArrival.record(TimeUnit.NANOSECONDS.toMicros(now - lastArrivalNanos));
+            }
+            lastArrivalNanos = now;
+
             if (header.payloadSize > readBuffer.length || true) {
                 readBuffer = new byte[header.payloadSize];
             }
 
             NetUtils.readData(inputStream, readBuffer, 0, header.payloadSize);
 
+            if (RtpParser.isSenderReport(header)) {
+                onSenderReport(RtpParser.parseSenderReport(header, readBuffer));
+                return null;
+            }
+
             Track track = tracks.getByPayloadType(header.payloadType);
 
             if (track == null) {
                 return null;
             }
+            tracksBySsrc.put(header.ssrc, track);
 
-            long timestamp = header.timestamp;
-            if (track.getClockRate() > 0) {
-                timestamp = (long) (((double) header.timestamp / (double) track.getClockRate()) * 1000.0);
-            }
+            long timestamp = getSampleTimestamp(track, header.timestamp);
 
             lastTimestamp = timestamp;
-            return  new Sample(readBuffer, timestamp, track);
+            Sample sample = new Sample(readBuffer, timestamp, track);
+            sample.marker = header.marker != 0;
+            sample.sequenceNumber = header.sequenceNumber;
+            return sample;
+        }
+    }
+
+    //Converts RTP timestamp to milliseconds, if clock rate of the track is known
+    private static long getSampleTimestamp(@NonNull Track track, long rtpTimestamp) {
+        if (track.getClockRate() > 0) {
+            return (long) (((double) rtpTimestamp / (double) track.getClockRate()) * 1000.0);
+        }
+        return rtpTimestamp;
+    }
+
+    private void onSenderReport(@Nullable RtpParser.SenderReport report) {
+        SenderReportListener listener = senderReportListener;
+        if (report == null || listener == null)
+            return;
+
+        //Reports of streams which haven't sent any packet yet can't be matched
+        Track track = tracksBySsrc.get(report.ssrc);
+        if (track != null) {
+            long timestampUs = TimeUnit.MILLISECONDS.toMicros(getSampleTimestamp(track, report.rtpTimestamp));
+            listener.onSenderReport(track, report.ntpTimeUs, timestampUs);
         }
     }
 
@@ -301,6 +362,17 @@ public class RtspMediaExtractor extends MediaExtractor {
         return lastTimestamp;
     }
 
+    /**
+     * Returns histogram of intervals between arrivals of RTP packets (of all tracks) in microseconds.
+     * Network jitter shows as its spread, e.g. p99 compared to the median.
+     * @return snapshot of the inter-arrival times
+     */
+
+    @NonNull
+    public LatencyHistogram.Snapshot getPacketInterArrival() {
+        return packetInterArrival.snapshot();
+    }
+
     @Override
     public long getSampleIndex() {
         return sampleIndex;
@@ -485,6 +557,18 @@ public class RtspMediaExtractor extends MediaExtractor {
         }
     }
 
+    private static void setBase64Csd(@NonNull Track.Builder target, int index, @NonNull String value) {
+        // H265 parameter set attributes may contain more than one NAL unit, only the first one is used
+        String[] values = TextUtils.split(value, ",");
+        try {
+            if (values.length > 0) {
+                target.setCsd(index, Base64.decode(values[0], Base64.NO_WRAP));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void parseRtspParamString(@NonNull String input, @NonNull Track.Builder target) {
         Log.println(Log.ASSERT, "", "parseRtspParamString: " + input);
         // Split the input string by semicolon (;)
@@ -494,7 +578,8 @@ public class RtspMediaExtractor extends MediaExtractor {
         for (String pair : keyValuePairs) {
             Log.println(Log.ASSERT, "", "pair: " + pair);
             // Split each pair by equals (=)
-            String[] keyValue = pair.trim().split("=");
+            // Limit to 2 parts, base64 values may end with '=' padding
+            String[] keyValue = pair.trim().split("=", 2);
 
             // Ensure the pair has a key and a value
             if (keyValue.length == 2) {
@@ -513,6 +598,12 @@ public class RtspMediaExtractor extends MediaExtractor {
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
+                } else if ("sprop-vps".equalsIgnoreCase(key)) {
+                    setBase64Csd(target, H265_CSD_VPS, value);
+                } else if ("sprop-sps".equalsIgnoreCase(key)) {
+                    setBase64Csd(target, H265_CSD_SPS, value);
+                } else if ("sprop-pps".equalsIgnoreCase(key)) {
+                    setBase64Csd(target, H265_CSD_PPS, value);
                 } else if ("config".equalsIgnoreCase(key)) {
                     try {
                         target.setCsd(0, getBytesFromHexString(value));
@@ -529,4 +620,22 @@ public class RtspMediaExtractor extends MediaExtractor {
         }
     }
 
+    /**
+     * Receives RTCP sender reports of the tracks.
+     */
+
+    public interface SenderReportListener {
+
+        /**
+         * Called from the thread reading samples, when a sender report arrives.
+         * @param track track the report belongs to
+         * @param ntpTimeUs wall clock time of the sender (NTP) in microseconds
+         * @param timestampUs timestamp of the track at that time, in the time base of
+         *                    {@link Sample#timestamp} converted to microseconds
+         */
+
+        void onSenderReport(@NonNull Track track, long ntpTimeUs, long timestampUs);
+
+    }
+
 }
@@ -1,14 +1,172 @@
 package com.fivesoft.qplayer.bas2.impl.player;
 
+import android.util.Log;
+import android.view.Surface;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
 import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.UnsupportedSampleException;
+import com.fivesoft.qplayer.bas2.common.Constants;
+import com.fivesoft.qplayer.bas2.common.SpscRingBuffer;
+import com.fivesoft.qplayer.bas2.core.GopCache;
+import com.fivesoft.qplayer.bas2.core.LoadShedder;
+import com.fivesoft.qplayer.bas2.core.LoadSheddingPolicy;
+import com.fivesoft.qplayer.bas2.core.SyncClock;
+import com.fivesoft.qplayer.bas2.core.resolvers.AudioDecoderResolver;
+import com.fivesoft.qplayer.bas2.core.resolvers.VideoDecoderResolver;
+import com.fivesoft.qplayer.bas2.decoder.AudioDecoder;
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.CodecPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.MediaCodecVideoDecoder;
+import com.fivesoft.qplayer.track.AudioTrack;
 import com.fivesoft.qplayer.track.Track;
 import com.fivesoft.qplayer.track.Tracks;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs decoders of the played tracks.<br>
+ * <p>
+ *     A decoder is resolved for each track (video tracks with {@link VideoDecoderResolver},
+ *     audio tracks with {@link AudioDecoderResolver}). Each decoder runs on its own worker thread,
+ *     which takes samples from a bounded {@link SpscRingBuffer}, feeds them to the decoder
+ *     and decodes completed frames. So audio and video never wait for each other.
+ * </p>
+ * <p>
+ *     {@link #feed(Sample)} finds the track's worker with a single map lookup and never blocks:
+ *     if the decoder can't keep up and its queue is full, the sample is dropped and counted
+ *     (see {@link #getDroppedSamples(Track)}). Decoders see the dropped samples as lost packets.
+ *     To avoid that, completed frames are passed through a {@link LoadShedder} first,
+ *     which sheds frames under pressure according to the {@link LoadSheddingPolicy}.
+ * </p>
+ * <p>
+ *     Each video worker keeps the last GOP of its track in a {@link GopCache}, frames are added to it before
+ *     they're decoded. When an output is attached to a running track ({@link #setVideoOutput(Track, MediaDecoderOutput)})
+ *     or its decoder is replaced ({@link #replaceDecoder(Track)}), the decoder catches up from the cache
+ *     ({@link MediaCodecVideoDecoder#catchUp(List)}) and shows the current picture without waiting for the next key frame.
+ * </p>
+ * <p>
+ *     Tracks are kept in sync by a {@link SyncClock} ({@link #getSyncClock()}): it sees every fed sample,
+ *     video decoders schedule frames with it and the sink of the first audio decoder is its master.
+ *     Sinks are created with the audio output creator and released with their decoders,
+ *     {@link #setAudioOutput(Track, MediaDecoderOutput)} moves a running decoder to another sink.
+ * </p>
+ * <p>
+ *     {@link #feed(Sample)}, {@link #addDecoderForTrack(Track, int, int)} and {@link #releaseAll()}
+ *     must be called from one thread (the thread reading samples), statistics may be read from any thread.
+ * </p>
+ */
 
 public class DecodersManager {
 
+    /**
+     * Default max number of samples queued for a decoder.
+     */
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final String TAG = "DecodersManager";
+
+    //Max time to wait for a worker to finish, when it's released
+    private static final long WORKER_JOIN_TIMEOUT_MS = 500;
+
+    //Codecs of released decoders are kept warm here for the next ones
+    @NonNull
+    private final CodecPool codecPool;
+    private final int queueCapacity;
+    @NonNull
+    private final SyncClock syncClock = new SyncClock();
+
+    //Replaced on every change, so feed() reads it without locking
+    @NonNull
+    private volatile Map<Track, DecoderWorker> workers = new HashMap<>();
+
+    @Nullable
+    private volatile MediaDecoderOutput.Creator<Surface> videoOutputCreator;
+    @Nullable
+    private volatile MediaDecoderOutput.Creator<AudioSink> audioOutputCreator;
+
+    @NonNull
+    private volatile LoadSheddingPolicy loadSheddingPolicy = LoadSheddingPolicy.LIVE_LOW_LATENCY;
+
+    public DecodersManager() {
+        this(CodecPool.getDefault(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public DecodersManager(@NonNull CodecPool codecPool) {
+        this(codecPool, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates manager.
+     * @param codecPool pool of codecs used by video decoders
+     * @param queueCapacity max number of samples queued for each decoder
+     */
 
+    public DecodersManager(@NonNull CodecPool codecPool, int queueCapacity) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        this.codecPool = Objects.requireNonNull(codecPool);
+        this.queueCapacity = queueCapacity;
+    }
+
+    @NonNull
+    public CodecPool getCodecPool() {
+        return codecPool;
+    }
+
+    /**
+     * Returns the clock synchronizing the tracks, e.g. to pass RTCP sender reports to it.
+     * @return the clock
+     */
+
+    @NonNull
+    public SyncClock getSyncClock() {
+        return syncClock;
+    }
+
+    /**
+     * Sets creator of surfaces for video decoders added afterwards.
+     * @param creator the creator or null to decode video without output
+     */
+
+    public void setVideoOutputCreator(@Nullable MediaDecoderOutput.Creator<Surface> creator) {
+        this.videoOutputCreator = creator;
+    }
+
+    /**
+     * Sets creator of sinks for audio decoders added afterwards.
+     * Sinks are released with their decoders, see {@link AudioSink#release()}.
+     * @param creator the creator or null to decode audio without output
+     */
+
+    public void setAudioOutputCreator(@Nullable MediaDecoderOutput.Creator<AudioSink> creator) {
+        this.audioOutputCreator = creator;
+    }
+
+    /**
+     * Sets policy of shedding frames, when decoders can't keep up. Applies to running decoders as well.
+     * @param policy the policy or null to use {@link LoadSheddingPolicy#LIVE_LOW_LATENCY}
+     */
+
+    public void setLoadSheddingPolicy(@Nullable LoadSheddingPolicy policy) {
+        LoadSheddingPolicy p = policy != null ? policy : LoadSheddingPolicy.LIVE_LOW_LATENCY;
+        loadSheddingPolicy = p;
+        for (DecoderWorker worker : workers.values()) {
+            worker.loadShedder.setPolicy(p);
+        }
+    }
 
     public void addDecoderForTracks(@NonNull Tracks tracks, int sampleFormat, int maxFrameSize){
         for (Track track : tracks) {
@@ -16,17 +174,446 @@ public class DecodersManager {
         }
     }
 
-    public void addDecoderForTrack(@NonNull Track track, int sampleFormat, int maxFrameSize){
-        //TODO
+    /**
+     * Resolves a decoder for the track and starts its worker.
+     * Does nothing if the track already has a decoder.
+     * @param track the track
+     * @param sampleFormat format of the samples of the track
+     * @param maxFrameSize max size of an encoded frame
+     * @return true if the track has a decoder
+     */
+
+    public boolean addDecoderForTrack(@NonNull Track track, int sampleFormat, int maxFrameSize){
+        Objects.requireNonNull(track);
+        if (workers.containsKey(track))
+            return true;
+
+        MediaDecoder<?, ?> decoder;
+        try {
+            decoder = createDecoder(track, sampleFormat, maxFrameSize);
+        } catch (RuntimeException e) {
+            Log.println(Log.ASSERT, TAG, "Failed to create decoder for track " + track.getId() + ": " + e);
+            return false;
+        }
+
+        if (decoder == null)
+            return false;
+
+        DecoderWorker worker = new DecoderWorker(track, decoder, syncClock, queueCapacity, loadSheddingPolicy,
+                track instanceof VideoTrack ? new GopCache() : null);
+        Map<Track, DecoderWorker> updated = new HashMap<>(workers);
+        updated.put(track, worker);
+        workers = updated;
+        worker.start();
+        return true;
+    }
+
+    /**
+     * Attaches output to the running decoder of a video track, e.g. a new surface after the view has been recreated.
+     * The decoder shows the current picture right away, decoding the cached GOP. Applied by the worker
+     * before the next sample.
+     * @param track the video track
+     * @param output the output or null to decode without output
+     * @return true if the track has a decoder
+     */
+
+    public boolean setVideoOutput(@NonNull Track track, @Nullable MediaDecoderOutput<Surface> output) {
+        DecoderWorker worker = workers.get(track);
+        if (worker == null || worker.gopCache == null)
+            return false;
+        worker.attach(null, output);
+        return true;
     }
 
+    /**
+     * Attaches output to the running decoder of an audio track, e.g. when the player's audio output changes.
+     * The previous sink is released, the new one becomes the master of the {@link SyncClock} if the previous one was.
+     * Applied by the worker before the next sample.
+     * @param track the audio track
+     * @param output the output or null to decode without output
+     * @return true if the track has an audio decoder
+     */
+
+    public boolean setAudioOutput(@NonNull Track track, @Nullable MediaDecoderOutput<AudioSink> output) {
+        DecoderWorker worker = workers.get(track);
+        if (worker == null || !(worker.decoder instanceof AudioDecoder))
+            return false;
+        worker.attach(null, output);
+        return true;
+    }
+
+    /**
+     * Replaces decoder of a video track with a new one (e.g. after its codec has failed),
+     * which starts from the current picture, decoding the cached GOP. Applied by the worker before the next sample.
+     * The output is created again with the output creator.
+     * @param track the video track
+     * @return true if a new decoder has been created
+     */
+
+    public boolean replaceDecoder(@NonNull Track track) {
+        DecoderWorker worker = workers.get(track);
+        if (worker == null || worker.gopCache == null)
+            return false;
+
+        MediaDecoder<?, ?> decoder;
+        try {
+            decoder = createDecoder(track, worker.decoder.getSampleFormat(), worker.decoder.getMaxEncodedFrameSize());
+        } catch (RuntimeException e) {
+            Log.println(Log.ASSERT, TAG, "Failed to create decoder for track " + track.getId() + ": " + e);
+            return false;
+        }
+        if (decoder == null)
+            return false;
+        worker.attach(decoder, null);
+        return true;
+    }
+
+    /**
+     * Returns the cache of the last GOP of a video track.
+     * @param track the track
+     * @return the cache or null if the track isn't a decoded video track
+     */
+
+    @Nullable
+    public GopCache getGopCache(@NonNull Track track) {
+        DecoderWorker worker = workers.get(track);
+        return worker != null ? worker.gopCache : null;
+    }
+
+    /**
+     * Stops all workers and releases their decoders.
+     */
+
     public void releaseAll(){
-        //TODO
+        Map<Track, DecoderWorker> released = workers;
+        if (released.isEmpty())
+            return;
+
+        workers = new HashMap<>();
+        for (DecoderWorker worker : released.values()) {
+            worker.interrupt();
+        }
+        for (DecoderWorker worker : released.values()) {
+            worker.finish();
+        }
+        syncClock.setAudioOutput(null, null);
+        syncClock.reset();
     }
 
+    /**
+     * Queues the sample for decoding by the decoder of its track. Never blocks.
+     * @param sample the sample
+     * @return true if the sample has been queued, false if its track has no decoder
+     * or the decoder's queue is full
+     */
+
     public boolean feed(@NonNull Sample sample){
-        //TODO
-        return false;
+        DecoderWorker worker = workers.get(sample.track);
+        if (worker == null)
+            return false;
+        syncClock.onSample(sample.track, TimeUnit.MILLISECONDS.toMicros(sample.timestamp));
+        return worker.offer(sample);
+    }
+
+    /**
+     * Returns decoder of the track.
+     * @param track the track
+     * @return the decoder or null if the track has no decoder
+     */
+
+    @Nullable
+    public MediaDecoder<?, ?> getDecoder(@NonNull Track track) {
+        DecoderWorker worker = workers.get(track);
+        return worker != null ? worker.decoder : null;
+    }
+
+    /**
+     * Returns number of samples of the track waiting for its decoder.
+     * @param track the track
+     * @return number of queued samples or {@link Constants#UNKNOWN_VALUE} if the track has no decoder
+     */
+
+    public int getQueueDepth(@NonNull Track track) {
+        DecoderWorker worker = workers.get(track);
+        return worker != null ? worker.queue.size() : Constants.UNKNOWN_VALUE;
+    }
+
+    /**
+     * Returns number of samples of the track dropped, because its decoder's queue was full.
+     * @param track the track
+     * @return number of dropped samples or {@link Constants#UNKNOWN_VALUE} if the track has no decoder
+     */
+
+    public long getDroppedSamples(@NonNull Track track) {
+        DecoderWorker worker = workers.get(track);
+        return worker != null ? worker.droppedSamples : Constants.UNKNOWN_VALUE;
+    }
+
+    /**
+     * Returns the stage shedding frames of the track, with its statistics
+     * (decoded and dropped frames, decode latency).
+     * @param track the track
+     * @return the load shedder or null if the track has no decoder
+     */
+
+    @Nullable
+    public LoadShedder getLoadShedder(@NonNull Track track) {
+        DecoderWorker worker = workers.get(track);
+        return worker != null ? worker.loadShedder : null;
+    }
+
+    @Nullable
+    private MediaDecoder<?, ?> createDecoder(Track track, int sampleFormat, int maxFrameSize) {
+        MediaDecoder.Descriptor descriptor = new MediaDecoder.Descriptor(track, sampleFormat, maxFrameSize);
+
+        if (track instanceof VideoTrack) {
+            MediaDecoder<VideoTrack, Surface> decoder = VideoDecoderResolver.resolveDecoder(descriptor);
+            if (decoder == null)
+                return null;
+
+            if (decoder instanceof MediaCodecVideoDecoder) {
+                ((MediaCodecVideoDecoder) decoder).setCodecPool(codecPool);
+                ((MediaCodecVideoDecoder) decoder).setPresentationClock(syncClock.getPresentationClock(track));
+            }
+            decoder.setCsd(track.getCsd());
+
+            MediaDecoderOutput.Creator<Surface> creator = videoOutputCreator;
+            if (creator != null) {
+                decoder.setOutput(new MediaDecoderOutput<>(creator.create(track)));
+            }
+            return decoder;
+        }
+
+        if (track instanceof AudioTrack) {
+            AudioDecoder decoder = AudioDecoderResolver.resolveDecoder(descriptor);
+            if (decoder == null)
+                return null;
+
+            decoder.setCsd(track.getCsd());
+
+            MediaDecoderOutput.Creator<AudioSink> creator = audioOutputCreator;
+            if (creator != null) {
+                decoder.setOutput(new MediaDecoderOutput<>(creator.create(track)));
+                AudioSink sink = decoder.getSink();
+                if (sink != null && !syncClock.hasAudioOutput()) {
+                    syncClock.setAudioOutput(track, sink);
+                }
+            }
+            return decoder;
+        }
+
+        //Subtitle tracks aren't decoded yet
+        return null;
+    }
+
+    /*
+     * Feeds samples of one track to its decoder and decodes completed frames.
+     */
+
+    private static final class DecoderWorker extends Thread {
+
+        @NonNull
+        final Track track;
+        //Replaced by the worker thread only
+        @NonNull
+        volatile MediaDecoder<?, ?> decoder;
+        @NonNull
+        final SpscRingBuffer<Sample> queue;
+        @NonNull
+        final LoadShedder loadShedder;
+        //Its master sink is replaced, when the output of an audio decoder changes
+        @NonNull
+        private final SyncClock syncClock;
+        //Last GOP of a video track, null for other tracks
+        @Nullable
+        final GopCache gopCache;
+
+        //Written by the producer (feed) thread only
+        volatile long droppedSamples;
+
+        //Decoder or output to attach, applied by the worker before the next sample
+        private final Object attachLock = new Object();
+        @Nullable
+        private MediaDecoder<?, ?> pendingDecoder;
+        @Nullable
+        private MediaDecoderOutput<?> pendingOutput;
+        private boolean outputPending;
+        private volatile boolean attachPending;
+
+        DecoderWorker(@NonNull Track track, @NonNull MediaDecoder<?, ?> decoder, @NonNull SyncClock syncClock,
+                      int queueCapacity, @NonNull LoadSheddingPolicy policy, @Nullable GopCache gopCache) {
+            super("Decoder-" + track.getId());
+            this.track = track;
+            this.decoder = decoder;
+            this.syncClock = syncClock;
+            this.queue = new SpscRingBuffer<>(queueCapacity);
+            this.loadShedder = new LoadShedder(policy);
+            this.gopCache = gopCache;
+        }
+
+        //Either argument may be null, a decoder replaces the previous pending one, which is released,
+        //so is a pending sink
+        void attach(@Nullable MediaDecoder<?, ?> decoder, @Nullable MediaDecoderOutput<?> output) {
+            MediaDecoder<?, ?> replaced = null;
+            MediaDecoderOutput<?> replacedOutput = null;
+            synchronized (attachLock) {
+                if (decoder != null) {
+                    replaced = pendingDecoder;
+                    pendingDecoder = decoder;
+                } else {
+                    replacedOutput = pendingOutput;
+                    pendingOutput = output;
+                    outputPending = true;
+                }
+                attachPending = true;
+            }
+            if (replaced != null) {
+                replaced.release();
+            }
+            if (replacedOutput != null && replacedOutput.getRenderer() instanceof AudioSink) {
+                ((AudioSink) replacedOutput.getRenderer()).release();
+            }
+        }
+
+        boolean offer(Sample sample) {
+            if (queue.offer(sample))
+                return true;
+            //noinspection NonAtomicOperationOnVolatileField
+            droppedSamples++;
+            return false;
+        }
+
+        @Override
+        public void run() {
+            Sample sample;
+            while (!isInterrupted()) {
+                try {
+                    sample = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (attachPending) {
+                    applyAttach();
+                }
+                if (sample != null && !decode(sample))
+                    break;
+            }
+            //A decoder or sink attached after the worker had stopped has to be released as well
+            synchronized (attachLock) {
+                if (pendingDecoder != null) {
+                    pendingDecoder.release();
+                    pendingDecoder = null;
+                }
+                if (pendingOutput != null && pendingOutput.getRenderer() instanceof AudioSink) {
+                    ((AudioSink) pendingOutput.getRenderer()).release();
+                    pendingOutput = null;
+                }
+            }
+        }
+
+        //Attaches the pending decoder or output and catches up from the cached GOP
+        @SuppressWarnings("unchecked")
+        private void applyAttach() {
+            MediaDecoder<?, ?> newDecoder;
+            MediaDecoderOutput<?> output;
+            boolean setOutput;
+            synchronized (attachLock) {
+                newDecoder = pendingDecoder;
+                output = pendingOutput;
+                setOutput = outputPending;
+                pendingDecoder = null;
+                pendingOutput = null;
+                outputPending = false;
+                attachPending = false;
+            }
+
+            if (newDecoder != null) {
+                MediaDecoder<?, ?> old = decoder;
+                decoder = newDecoder;
+                old.release();
+            }
+            if (setOutput && decoder instanceof AudioDecoder) {
+                setAudioOutput((AudioDecoder) decoder, (MediaDecoderOutput<AudioSink>) output);
+            } else if (setOutput) {
+                ((MediaDecoder<?, Object>) decoder).setOutput((MediaDecoderOutput<Object>) output);
+            }
+            if (gopCache != null && decoder instanceof MediaCodecVideoDecoder && (newDecoder != null || output != null)) {
+                List<Frame> frames = gopCache.snapshot();
+                try {
+                    ((MediaCodecVideoDecoder) decoder).catchUp(frames);
+                } catch (UnsupportedSampleException | MediaDecoderException | IllegalStateException e) {
+                    //The decoder recovers on the next key frame
+                    Log.println(Log.ASSERT, TAG, getName() + ": catch-up failed: " + e);
+                }
+            }
+        }
+
+        //Moves the audio decoder and the clock to the new sink and releases the previous one
+        private void setAudioOutput(AudioDecoder audioDecoder, @Nullable MediaDecoderOutput<AudioSink> output) {
+            AudioSink old = audioDecoder.getSink();
+            audioDecoder.setOutput(output);
+            AudioSink sink = audioDecoder.getSink();
+            if (sink == old)
+                return;
+            synchronized (syncClock) {
+                if (syncClock.getAudioOutput() == old || !syncClock.hasAudioOutput()) {
+                    syncClock.setAudioOutput(track, sink);
+                }
+            }
+            if (old != null) {
+                old.release();
+            }
+        }
+
+        //Returns false if the decoder can't be used anymore
+        private boolean decode(Sample sample) {
+            try {
+                Frame frame = decoder.feed(sample);
+                while (frame != null) {
+                    if (gopCache != null) {
+                        //Kept whatever is shed, a decoder catching up needs all reference frames
+                        gopCache.add(frame);
+                    }
+                    if (loadShedder.accept(frame, queue.size(), queue.capacity())) {
+                        long start = System.nanoTime();
+                        decoder.decode(frame);
+                        loadShedder.onDecoded(System.nanoTime() - start);
+                    } else {
+                        frame.release();
+                    }
+                    frame = decoder.poll();
+                }
+            } catch (UnsupportedSampleException | MediaDecoderException e) {
+                //Corrupted data, the decoder recovers with the following samples
+                Log.println(Log.ASSERT, TAG, getName() + ": " + e);
+            } catch (IllegalStateException e) {
+                if (decoder.isReleased())
+                    return false;
+                Log.println(Log.ASSERT, TAG, getName() + ": " + e);
+            }
+            return true;
+        }
+
+        //Waits for the interrupted worker and releases the decoder
+        void finish() {
+            try {
+                join(WORKER_JOIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            decoder.release();
+            if (gopCache != null) {
+                gopCache.clear();
+            }
+            if (decoder instanceof AudioDecoder) {
+                //Sink has been created for this decoder only
+                AudioSink sink = ((AudioDecoder) decoder).getSink();
+                if (sink != null) {
+                    sink.release();
+                }
+            }
+        }
+
     }
 
 }
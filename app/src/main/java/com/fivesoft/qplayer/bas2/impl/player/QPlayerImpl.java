@@ -14,18 +14,25 @@ import com.fivesoft.qplayer.bas2.TrackSelector;
 import com.fivesoft.qplayer.bas2.common.Constants;
 import com.fivesoft.qplayer.bas2.common.Util;
 import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.core.LoadSheddingPolicy;
+import com.fivesoft.qplayer.bas2.core.SyncClock;
 import com.fivesoft.qplayer.bas2.core.resolvers.DataSourceResolver;
 import com.fivesoft.qplayer.bas2.core.resolvers.MediaExtractorResolver;
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
 import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
 import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
 import com.fivesoft.qplayer.bas2.decoder.SubtitleReceiver;
+import com.fivesoft.qplayer.bas2.impl.audio.AudioTrackSink;
+import com.fivesoft.qplayer.bas2.impl.extractor.rtsp.RtspMediaExtractor;
 import com.fivesoft.qplayer.track.AudioTrack;
 import com.fivesoft.qplayer.track.Track;
 import com.fivesoft.qplayer.track.Tracks;
+import com.fivesoft.qplayer.track.VideoTrack;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /*
  * Android QPlayer core implementation.
@@ -33,9 +40,11 @@ import java.util.Objects;
  * For public API, see QPlayerFactory.getDefault() method.
  */
 
-class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
+class QPlayerImpl implements QPlayer<Surface, AudioSink, SubtitleReceiver> {
 
-    public static final int DEFAULT_BUFFER_LATENCY = 500;
+    public static final int DEFAULT_BUFFER_LATENCY = 30;
+    public static final int DEFAULT_MIN_BUFFER_LATENCY = 30;
+    public static final int DEFAULT_MAX_BUFFER_LATENCY = 500;
 
     //Internal params
     private final Object mainThreadLock = new Object();
@@ -45,14 +54,23 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
 
     //Config
     private volatile long bufferLatency = DEFAULT_BUFFER_LATENCY;
+    private volatile long minBufferLatency = DEFAULT_MIN_BUFFER_LATENCY;
+    private volatile long maxBufferLatency = DEFAULT_MAX_BUFFER_LATENCY;
     private volatile float volume = 0.5f;
 
     private MediaDecoderOutput.Creator<Surface> videoOutputCreator;
-    private MediaDecoderOutput.Creator<AudioTrack> audioOutputCreator;
+    //Audio is played on the device unless another output is set
+    private volatile MediaDecoderOutput.Creator<AudioSink> audioOutputCreator = new MediaDecoderOutput.Creator<AudioSink>() {
+        @Override
+        public AudioSink create(Track track) {
+            return new AudioTrackSink();
+        }
+    };
     private MediaDecoderOutput.Creator<SubtitleReceiver> subtitleOutputCreator;
 
     private TrackSelector trackSelector;
     private Authentication authentication;
+    private volatile LoadSheddingPolicy loadSheddingPolicy;
 
     private volatile URI uri;
 
@@ -60,6 +78,8 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
 
     private volatile DataSource dataSource;
     private volatile MediaExtractor mediaExtractor;
+    //Decoders of the main thread, their clock learns the buffer latency
+    private volatile DecodersManager decodersManager;
 
     //Caches
 
@@ -115,10 +135,43 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
 
     @Override
     public int setBufferLatency(long latency) {
-        bufferLatency = (int) latency;
+        if(latency < 0)
+            return ERROR_INVALID_LATENCY;
+        bufferLatency = latency;
+        DecodersManager manager = decodersManager;
+        if(manager != null) {
+            manager.getSyncClock().setPlayoutDelayUs(TimeUnit.MILLISECONDS.toMicros(latency));
+        }
+        return 0;
+    }
+
+    @Override
+    public int setBufferLatencyLimits(long min, long max) {
+        if(min < 0 || min > max)
+            return ERROR_INVALID_LATENCY;
+        minBufferLatency = min;
+        maxBufferLatency = max;
+        DecodersManager manager = decodersManager;
+        if(manager != null) {
+            manager.getSyncClock().setPlayoutDelayLimits(TimeUnit.MILLISECONDS.toMicros(min), TimeUnit.MILLISECONDS.toMicros(max));
+        }
         return 0;
     }
 
+    @Override
+    public long getBufferLatency() {
+        DecodersManager manager = decodersManager;
+        if(manager != null) {
+            return TimeUnit.MICROSECONDS.toMillis(manager.getSyncClock().getPlayoutDelayUs());
+        }
+        return Math.max(minBufferLatency, Math.min(maxBufferLatency, bufferLatency));
+    }
+
+    @Override
+    public void setLoadSheddingPolicy(@Nullable LoadSheddingPolicy policy) {
+        this.loadSheddingPolicy = policy;
+    }
+
     @Override
     public void setTrackSelector(@Nullable TrackSelector selector) {
         this.trackSelector = selector;
@@ -127,11 +180,33 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
     @Override
     public void setVideoOutputCreator(@Nullable MediaDecoderOutput.Creator<Surface> creator) {
         this.videoOutputCreator = creator;
+        DecodersManager manager = decodersManager;
+        Tracks tracks = this.tracks;
+        if(manager != null && tracks != null) {
+            //Running decoders move to the new output and show the current picture right away
+            manager.setVideoOutputCreator(creator);
+            for (Track track : tracks) {
+                if(track instanceof VideoTrack && manager.getDecoder(track) != null) {
+                    manager.setVideoOutput(track, creator == null ? null : new MediaDecoderOutput<>(creator.create(track)));
+                }
+            }
+        }
     }
 
     @Override
-    public void setAudioOutputCreator(@Nullable MediaDecoderOutput.Creator<AudioTrack> creator) {
+    public void setAudioOutputCreator(@Nullable MediaDecoderOutput.Creator<AudioSink> creator) {
         this.audioOutputCreator = creator;
+        DecodersManager manager = decodersManager;
+        Tracks tracks = this.tracks;
+        if(manager != null && tracks != null) {
+            //Running decoders move to the new output, the previous sinks are released
+            manager.setAudioOutputCreator(creator);
+            for (Track track : tracks) {
+                if(track instanceof AudioTrack && manager.getDecoder(track) != null) {
+                    manager.setAudioOutput(track, creator == null ? null : new MediaDecoderOutput<>(creator.create(track)));
+                }
+            }
+        }
     }
 
     @Override
@@ -202,6 +277,7 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
         private MediaExtractor cExtractor;
 
         private Tracks cTracks;
+        private URI cUri;
 
         private int sampleFormat;
 
@@ -213,9 +289,14 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
             boolean cmpChanged;
             Sample sample;
             DecodersManager decodersManager = new DecodersManager();
+            SyncClock clock = decodersManager.getSyncClock();
+            clock.setPlayoutDelayLimits(TimeUnit.MILLISECONDS.toMicros(minBufferLatency), TimeUnit.MILLISECONDS.toMicros(maxBufferLatency));
+            clock.setPlayoutDelayUs(TimeUnit.MILLISECONDS.toMicros(bufferLatency));
+            QPlayerImpl.this.decodersManager = decodersManager;
             while (!isInterrupted() && !isReleased) {
                 //Check if components were changed
                 cmpChanged = checkComponentsReferences();
+                decodersManager.setLoadSheddingPolicy(loadSheddingPolicy);
 
                 if(!checkDataSource()) {
                     //DataSource is not ready
@@ -235,7 +316,18 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
                 if(cmpChanged) {
                     //Components were changed, we need to close old decoders
                     decodersManager.releaseAll();
+                    if(!Objects.equals(cUri, uri)) {
+                        //Latency learned for another source doesn't apply
+                        cUri = uri;
+                        clock.setPlayoutDelayUs(TimeUnit.MILLISECONDS.toMicros(bufferLatency));
+                    }
+                    sampleFormat = cExtractor.getSampleFormat();
+                    decodersManager.setVideoOutputCreator(videoOutputCreator);
+                    decodersManager.setAudioOutputCreator(audioOutputCreator);
                     decodersManager.addDecoderForTracks(cTracks, sampleFormat, FrameBuilder.DEFAULT_MAX_FRAME_SIZE);
+                    if(cExtractor instanceof RtspMediaExtractor) {
+                        ((RtspMediaExtractor) cExtractor).setSenderReportListener(decodersManager.getSyncClock()::onSenderReport);
+                    }
                     continue;
                 }
 
@@ -253,6 +345,10 @@ class QPlayerImpl implements QPlayer<Surface, AudioTrack, SubtitleReceiver> {
                 }
 
             }
+            decodersManager.releaseAll();
+            if(QPlayerImpl.this.decodersManager == decodersManager) {
+                QPlayerImpl.this.decodersManager = null;
+            }
         }
 
         //Returns true if components were changed
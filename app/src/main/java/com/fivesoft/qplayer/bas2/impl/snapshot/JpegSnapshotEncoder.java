@@ -0,0 +1,78 @@
+package com.fivesoft.qplayer.bas2.impl.snapshot;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Encodes pictures into JPEG with {@link YuvImage}, which takes NV21 pictures.
+ * The picture is interleaved into NV21 in a pooled array first.
+ */
+
+public class JpegSnapshotEncoder implements SnapshotEncoder {
+
+    public static final int DEFAULT_QUALITY = 80;
+
+    private final int quality;
+    @NonNull
+    private final ByteArrayPool pool;
+
+    /**
+     * Creates encoder.
+     * @param quality JPEG quality, 0 - 100
+     * @param pool pool to take NV21 buffers from
+     */
+
+    public JpegSnapshotEncoder(int quality, @NonNull ByteArrayPool pool) {
+        if (quality < 0 || quality > 100)
+            throw new IllegalArgumentException("Quality must be in range 0 - 100");
+        this.quality = quality;
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    public JpegSnapshotEncoder() {
+        this(DEFAULT_QUALITY, ByteArrayPool.getDefault());
+    }
+
+    @NonNull
+    @Override
+    public byte[] encode(@NonNull I420Frame picture) throws IOException {
+        int chromaStride = picture.chromaWidth * 2;
+        PooledByteArray nv21 = pool.obtain(picture.width * picture.height + chromaStride * picture.chromaHeight);
+        try {
+            byte[] src = picture.getData();
+            byte[] dst = nv21.array();
+            int ySize = picture.width * picture.height;
+            System.arraycopy(src, 0, dst, 0, ySize);
+
+            //NV21 chroma is a single plane of interleaved V and U samples
+            int u = picture.getUOffset();
+            int v = picture.getVOffset();
+            int chromaSize = picture.chromaWidth * picture.chromaHeight;
+            for (int i = 0, d = ySize; i < chromaSize; i++) {
+                dst[d++] = src[v + i];
+                dst[d++] = src[u + i];
+            }
+
+            YuvImage image = new YuvImage(dst, ImageFormat.NV21, picture.width, picture.height,
+                    new int[]{picture.width, chromaStride});
+            ByteArrayOutputStream out = new ByteArrayOutputStream(ySize / 8);
+            if (!image.compressToJpeg(new Rect(0, 0, picture.width, picture.height), quality, out))
+                throw new IOException("Failed to compress picture");
+            return out.toByteArray();
+        } finally {
+            nv21.release();
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.fivesoft.qplayer.bas2.impl.snapshot;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+
+import java.util.List;
+
+/**
+ * Decodes single key frames of a codec for {@link SnapshotService}.<br>
+ * <p>
+ *     Unlike a {@link MediaDecoder} it keeps no state between calls: each call gets the parameter sets
+ *     and a sync frame and decodes the one picture. Calls may come from several threads at once.
+ * </p>
+ */
+
+public interface KeyFrameDecoder {
+
+    /**
+     * Creates a builder assembling frames of this codec from samples of the given format.
+     * @param sampleFormat format of the samples (see MediaDecoder.FORMAT_* constants)
+     * @param maxFrameSize max size of an encoded frame
+     * @return new frame builder
+     * @throws MediaDecoder.UnsupportedSampleFormatException if the sample format is not supported
+     */
+
+    @NonNull
+    FrameBuilder createFrameBuilder(int sampleFormat, int maxFrameSize)
+            throws MediaDecoder.UnsupportedSampleFormatException;
+
+    /**
+     * Decodes the picture of the sync frame.
+     * @param csd codec specific data of the track, if any
+     * @param frames config frames followed by the sync frame, in decoding order. Not released by the decoder.
+     * @param pool pool to take memory of the picture from
+     * @return the picture, holding one reference, or null if the frames contain no picture
+     * @throws MediaDecoderException if the frames can't be decoded
+     */
+
+    @Nullable
+    I420Frame decode(@Nullable Csd csd, @NonNull List<Frame> frames, @NonNull ByteArrayPool pool)
+            throws MediaDecoderException;
+
+}
@@ -0,0 +1,26 @@
+package com.fivesoft.qplayer.bas2.impl.snapshot;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+
+import java.io.IOException;
+
+/**
+ * Encodes pictures taken by {@link SnapshotService} into an image format, e.g. JPEG.<br>
+ * Calls may come from several threads at once.
+ */
+
+public interface SnapshotEncoder {
+
+    /**
+     * Encodes the picture. The picture is not released by the encoder.
+     * @param picture the picture
+     * @return encoded image
+     * @throws IOException if the picture can't be encoded
+     */
+
+    @NonNull
+    byte[] encode(@NonNull I420Frame picture) throws IOException;
+
+}
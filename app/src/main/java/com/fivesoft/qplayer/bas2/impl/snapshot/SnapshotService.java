@@ -0,0 +1,651 @@
+package com.fivesoft.qplayer.bas2.impl.snapshot;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fivesoft.qplayer.bas2.Csd;
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.MediaDecoderException;
+import com.fivesoft.qplayer.bas2.Sample;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.common.mem.PooledByteArray;
+import com.fivesoft.qplayer.bas2.common.yuv.YuvConverter;
+import com.fivesoft.qplayer.bas2.common.yuv.YuvScaler;
+import com.fivesoft.qplayer.bas2.core.FrameBuilder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.DecodeWorkerPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+import com.fivesoft.qplayer.common.ByteArray;
+import com.fivesoft.qplayer.common.ErrorCallback;
+import com.fivesoft.qplayer.frame.FrameExtractListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes snapshots (e.g. JPEG images) of many cameras without decoding their streams.<br>
+ * <p>
+ *     Frames of each camera are passed to its {@link Camera}, which keeps only the last sync frame
+ *     and the parameter sets preceding it. A snapshot decodes just that key frame with the
+ *     {@link KeyFrameDecoder}, scales it down to the requested size and encodes it with the
+ *     {@link SnapshotEncoder}, so it shows the stream at its last key frame
+ *     (see {@link Camera#getKeyFrameTimestamp()}). That costs a fraction of a decoder running per camera.
+ * </p>
+ * <p>
+ *     Snapshots are taken on a bounded {@link DecodeWorkerPool}, in one lane per camera.
+ *     Requests for a camera, which come while its previous request is waiting, are coalesced into it:
+ *     the key frame is decoded once for all of them and encoded once per requested size.
+ *     The last encoded image of each camera is reused until the next key frame arrives.
+ * </p>
+ * <p>
+ *     {@link #startThumbnails(long, int, int, ThumbnailListener)} takes a thumbnail of every camera
+ *     periodically. Cameras are spread evenly over the period, so the pool isn't flooded at once.
+ * </p>
+ * <p>
+ *     The service is thread-safe. Listeners are called on threads of the pool.
+ * </p>
+ */
+
+public class SnapshotService {
+
+    private static final String TAG = "SnapshotService";
+
+    //Standalone parameter sets are kept, but not too many
+    private static final int MAX_CONFIG_FRAMES = 4;
+
+    //Max time between checks of due thumbnails
+    private static final long MAX_THUMBNAIL_TICK_MS = 1000;
+
+    @NonNull
+    private final KeyFrameDecoder decoder;
+    @NonNull
+    private final SnapshotEncoder encoder;
+    @NonNull
+    private final DecodeWorkerPool workerPool;
+    @NonNull
+    private final ByteArrayPool pool;
+
+    private final ConcurrentHashMap<String, Camera> cameras = new ConcurrentHashMap<>();
+
+    @Nullable
+    private ScheduledThreadPoolExecutor thumbnailScheduler;
+
+    private final AtomicLong decodedKeyFrames = new AtomicLong();
+    private final AtomicLong encodedSnapshots = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    /**
+     * Creates service.
+     * @param decoder decoder of key frames
+     * @param encoder encoder of snapshots
+     * @param workerPool threads to take snapshots on
+     * @param pool pool of memory for kept frames and decoded pictures
+     */
+
+    public SnapshotService(@NonNull KeyFrameDecoder decoder, @NonNull SnapshotEncoder encoder,
+                           @NonNull DecodeWorkerPool workerPool, @NonNull ByteArrayPool pool) {
+        this.decoder = Objects.requireNonNull(decoder);
+        this.encoder = Objects.requireNonNull(encoder);
+        this.workerPool = Objects.requireNonNull(workerPool);
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    /**
+     * Creates service taking snapshots on {@link DecodeWorkerPool#getDefault()}.
+     * @param decoder decoder of key frames
+     * @param encoder encoder of snapshots
+     */
+
+    public SnapshotService(@NonNull KeyFrameDecoder decoder, @NonNull SnapshotEncoder encoder) {
+        this(decoder, encoder, DecodeWorkerPool.getDefault(), ByteArrayPool.getDefault());
+    }
+
+    /**
+     * Adds a camera.
+     * @param id id of the camera
+     * @param sampleFormat format of samples passed to {@link Camera#feed(Sample)} (see MediaDecoder.FORMAT_* constants)
+     * @return the camera
+     * @throws IllegalStateException if a camera with the id already exists
+     * @throws MediaDecoder.UnsupportedSampleFormatException if the decoder doesn't support the sample format
+     */
+
+    @NonNull
+    public Camera addCamera(@NonNull String id, int sampleFormat) {
+        Objects.requireNonNull(id);
+        Camera camera = new Camera(id, decoder.createFrameBuilder(sampleFormat, FrameBuilder.DEFAULT_MAX_FRAME_SIZE));
+        if (cameras.putIfAbsent(id, camera) != null)
+            throw new IllegalStateException("Camera " + id + " already added");
+        return camera;
+    }
+
+    @Nullable
+    public Camera getCamera(@NonNull String id) {
+        return cameras.get(id);
+    }
+
+    @NonNull
+    public Collection<Camera> getCameras() {
+        return new ArrayList<>(cameras.values());
+    }
+
+    /**
+     * Removes the camera. Its pending requests fail, kept frames are released.
+     * @param id id of the camera
+     */
+
+    public void removeCamera(@NonNull String id) {
+        Camera camera = cameras.remove(id);
+        if (camera != null) {
+            camera.close();
+        }
+    }
+
+    /**
+     * Starts taking thumbnails of all cameras (including ones added later) periodically.
+     * Replaces thumbnails started before. Cameras without a key frame are skipped.
+     * @param periodMs time between thumbnails of a camera in milliseconds
+     * @param maxWidth max width of the thumbnails
+     * @param maxHeight max height of the thumbnails
+     * @param listener receives the thumbnails
+     */
+
+    public synchronized void startThumbnails(long periodMs, int maxWidth, int maxHeight,
+                                             @NonNull ThumbnailListener listener) {
+        if (periodMs <= 0)
+            throw new IllegalArgumentException("Period must be positive");
+        checkSize(maxWidth, maxHeight);
+        Objects.requireNonNull(listener);
+
+        stopThumbnails();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "SnapshotService-Thumbnails");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = Math.min(periodMs, MAX_THUMBNAIL_TICK_MS);
+        scheduler.scheduleAtFixedRate(new ThumbnailTask(periodMs, maxWidth, maxHeight, listener),
+                0, tick, TimeUnit.MILLISECONDS);
+        thumbnailScheduler = scheduler;
+    }
+
+    public synchronized void stopThumbnails() {
+        if (thumbnailScheduler != null) {
+            thumbnailScheduler.shutdownNow();
+            thumbnailScheduler = null;
+        }
+    }
+
+    /**
+     * Stops thumbnails and removes all cameras. The worker pool is not shut down.
+     */
+
+    public void release() {
+        stopThumbnails();
+        for (String id : new ArrayList<>(cameras.keySet())) {
+            removeCamera(id);
+        }
+    }
+
+    /**
+     * Returns number of key frames decoded by the service.
+     * @return number of decoded key frames
+     */
+
+    public long getDecodedKeyFrames() {
+        return decodedKeyFrames.get();
+    }
+
+    /**
+     * Returns number of images encoded by the service.
+     * @return number of encoded images
+     */
+
+    public long getEncodedSnapshots() {
+        return encodedSnapshots.get();
+    }
+
+    /**
+     * Returns number of requests, which joined a waiting request of the same camera.
+     * @return number of coalesced requests
+     */
+
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    private static void checkSize(int maxWidth, int maxHeight) {
+        if (maxWidth < 2 || maxHeight < 2)
+            throw new IllegalArgumentException("Invalid size: " + maxWidth + "x" + maxHeight);
+    }
+
+    //Takes snapshots for all requests of the camera waiting at the moment
+    private void process(Camera camera) {
+        List<Request> requests;
+        Frame keyFrame;
+        List<Frame> frames = new ArrayList<>();
+        long keyFrameSequence;
+        synchronized (camera) {
+            requests = camera.pending;
+            camera.pending = new ArrayList<>();
+            keyFrame = camera.keyFrame;
+            keyFrameSequence = camera.keyFrameSequence;
+            if (keyFrame != null) {
+                for (Frame config : camera.keyFrameConfig) {
+                    frames.add(config.retain());
+                }
+                frames.add(keyFrame.retain());
+            }
+        }
+
+        if (keyFrame == null) {
+            fail(requests, new MediaDecoderException("No key frame of camera " + camera.id + " received yet"));
+            return;
+        }
+
+        I420Frame picture = null;
+        try {
+            //Requests of the same size share the image
+            Map<Long, byte[]> images = new HashMap<>();
+            for (Request request : requests) {
+                long size = ((long) request.maxWidth << 32) | request.maxHeight;
+                byte[] image = images.get(size);
+                if (image == null) {
+                    image = camera.getCachedImage(keyFrameSequence, request.maxWidth, request.maxHeight);
+                }
+                if (image == null) {
+                    if (picture == null) {
+                        picture = decoder.decode(camera.csd, frames, pool);
+                        if (picture == null)
+                            throw new MediaDecoderException("Key frame of camera " + camera.id + " contains no picture");
+                        decodedKeyFrames.incrementAndGet();
+                    }
+                    image = encode(picture, request.maxWidth, request.maxHeight);
+                    camera.setCachedImage(keyFrameSequence, request.maxWidth, request.maxHeight, image);
+                }
+                images.put(size, image);
+            }
+
+            for (Request request : requests) {
+                long size = ((long) request.maxWidth << 32) | request.maxHeight;
+                deliver(request.listener, new com.fivesoft.qplayer.frame.Frame(
+                        new ByteArray(images.get(size)), keyFrame.timestamp));
+            }
+        } catch (MediaDecoderException | IOException | RuntimeException e) {
+            Log.println(Log.ASSERT, TAG, "Failed to take snapshot of camera " + camera.id + ": " + e);
+            fail(requests, e);
+        } finally {
+            if (picture != null) {
+                picture.release();
+            }
+            for (Frame frame : frames) {
+                frame.release();
+            }
+        }
+    }
+
+    private byte[] encode(I420Frame picture, int maxWidth, int maxHeight) throws IOException {
+        I420Frame scaled = downscale(picture, maxWidth, maxHeight);
+        try {
+            byte[] image = encoder.encode(scaled);
+            encodedSnapshots.incrementAndGet();
+            return image;
+        } finally {
+            scaled.release();
+        }
+    }
+
+    /*
+     * Returns the picture scaled down to fit the given size, keeping aspect ratio, or the picture itself (retained)
+     * if it fits already. Scaled size is even, JPEG encoders take NV21 of even size.
+     */
+    private I420Frame downscale(I420Frame picture, int maxWidth, int maxHeight) {
+        if (picture.width <= maxWidth && picture.height <= maxHeight)
+            return picture.retain();
+
+        double scale = Math.min((double) maxWidth / picture.width, (double) maxHeight / picture.height);
+        int width = Math.max(2, (int) Math.round(picture.width * scale) & ~1);
+        int height = Math.max(2, (int) Math.round(picture.height * scale) & ~1);
+
+        I420Frame scaled = I420Frame.obtain(pool, width, height, picture.timestamp);
+        //Snapshots are taken on several threads, each needs its own scaler
+        new YuvScaler(YuvScaler.FILTER_BOX, null, 0).scale(picture.getData(), 0, YuvConverter.FORMAT_I420,
+                picture.width, picture.height, scaled.getData(), 0, width, height);
+        return scaled;
+    }
+
+    private static void deliver(FrameExtractListener listener, com.fivesoft.qplayer.frame.Frame frame) {
+        try {
+            listener.onFrameAvailable(frame);
+        } catch (RuntimeException e) {
+            Log.println(Log.ASSERT, TAG, "Snapshot listener failed: " + e);
+        }
+    }
+
+    private static void fail(List<Request> requests, Exception error) {
+        for (Request request : requests) {
+            try {
+                request.listener.onError(error);
+            } catch (RuntimeException e) {
+                Log.println(Log.ASSERT, TAG, "Snapshot listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Camera of the service, keeping the last key frame of its stream.
+     */
+
+    public final class Camera {
+
+        @NonNull
+        private final String id;
+        @NonNull
+        private final FrameBuilder frameBuilder;
+        @NonNull
+        private final DecodeWorkerPool.Lane<Camera> lane;
+
+        @Nullable
+        private volatile Csd csd;
+
+        //Guarded by this
+        @Nullable
+        private Frame keyFrame;
+        //Parameter sets preceding the key frame
+        private ArrayList<Frame> keyFrameConfig = new ArrayList<>();
+        //Last parameter sets, they precede key frames without parameter sets
+        private final ArrayList<Frame> config = new ArrayList<>();
+        private long keyFrameSequence;
+        private ArrayList<Request> pending = new ArrayList<>();
+        private boolean closed;
+
+        //Last encoded image, valid for the key frame of the sequence number
+        @Nullable
+        private byte[] cachedImage;
+        private long cachedSequence = -1;
+        private int cachedWidth, cachedHeight;
+
+        private Camera(@NonNull String id, @NonNull FrameBuilder frameBuilder) {
+            this.id = id;
+            this.frameBuilder = frameBuilder;
+            //Waiting requests are queued in the camera, so the lane holds the camera once at most
+            this.lane = workerPool.newLane(1, SnapshotService.this::process, camera -> { });
+        }
+
+        @NonNull
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Sets codec specific data of the stream (e.g. parameter sets from SDP).
+         * @param csd the data or null
+         */
+
+        public void setCsd(@Nullable Csd csd) {
+            this.csd = csd != null ? csd.copy() : null;
+        }
+
+        /**
+         * Assembles frames from the sample and keeps the key frames.
+         * Samples should be passed by one thread, in order.
+         * @param sample the sample
+         */
+
+        public void feed(@NonNull Sample sample) {
+            Frame frame;
+            synchronized (frameBuilder) {
+                frame = frameBuilder.pull(sample);
+                while (frame != null) {
+                    try {
+                        feed(frame);
+                    } finally {
+                        frame.release();
+                    }
+                    frame = frameBuilder.poll();
+                }
+            }
+        }
+
+        /**
+         * Keeps the frame if it's a sync or config frame. Use this method if frames of the stream
+         * are assembled elsewhere, e.g. by its decoder.
+         * @param frame the frame, not released by the camera
+         */
+
+        public void feed(@NonNull Frame frame) {
+            if (frame.frameType != Frame.CONFIG_FRAME && frame.frameType != Frame.SYNC_FRAME)
+                return;
+
+            Frame kept = keep(frame);
+            synchronized (this) {
+                if (closed) {
+                    kept.release();
+                    return;
+                }
+
+                if (frame.frameType == Frame.CONFIG_FRAME) {
+                    if (config.size() >= MAX_CONFIG_FRAMES) {
+                        config.remove(0).release();
+                    }
+                    config.add(kept);
+                    return;
+                }
+
+                releaseKeyFrame();
+                keyFrame = kept;
+                for (Frame c : config) {
+                    keyFrameConfig.add(c.retain());
+                }
+                keyFrameSequence++;
+            }
+        }
+
+        public synchronized boolean hasKeyFrame() {
+            return keyFrame != null;
+        }
+
+        /**
+         * Returns timestamp of the kept key frame, which snapshots show.
+         * @return timestamp in milliseconds or -1 if no key frame has been received yet
+         */
+
+        public synchronized long getKeyFrameTimestamp() {
+            return keyFrame != null ? keyFrame.timestamp : -1;
+        }
+
+        /**
+         * Requests a snapshot of the camera's last key frame.
+         * The image is passed to {@link FrameExtractListener#onFrameAvailable(com.fivesoft.qplayer.frame.Frame)}
+         * with timestamp of the key frame. If the snapshot can't be taken, e.g. the camera has no key frame yet,
+         * {@link FrameExtractListener#onError(Exception)} is called.
+         * @param maxWidth max width of the image, the picture is scaled down to fit
+         * @param maxHeight max height of the image, the picture is scaled down to fit
+         * @param listener receives the image
+         */
+
+        public void requestSnapshot(int maxWidth, int maxHeight, @NonNull FrameExtractListener listener) {
+            checkSize(maxWidth, maxHeight);
+            Objects.requireNonNull(listener);
+
+            List<Request> failed;
+            synchronized (this) {
+                if (!closed) {
+                    pending.add(new Request(maxWidth, maxHeight, listener));
+                    if (pending.size() > 1) {
+                        //Taken together with the waiting request
+                        coalescedRequests.incrementAndGet();
+                        return;
+                    }
+                    if (lane.offer(this))
+                        return;
+                }
+                failed = pending;
+                pending = new ArrayList<>();
+                if (closed) {
+                    failed.add(new Request(maxWidth, maxHeight, listener));
+                }
+            }
+            fail(failed, new IllegalStateException("Camera " + id + " has been removed"));
+        }
+
+        private synchronized byte[] getCachedImage(long sequence, int width, int height) {
+            return cachedSequence == sequence && cachedWidth == width && cachedHeight == height ? cachedImage : null;
+        }
+
+        private synchronized void setCachedImage(long sequence, int width, int height, byte[] image) {
+            cachedSequence = sequence;
+            cachedWidth = width;
+            cachedHeight = height;
+            cachedImage = image;
+        }
+
+        //Returns frame sharing or copying memory of the given one
+        private Frame keep(Frame frame) {
+            int length = frame.getLength();
+            int pooled = frame.getPooledMemorySize();
+            //Frames assembled in big arrays are copied, so small frames don't hold big arrays
+            if (pooled > 0 && pooled <= length * 2L)
+                return frame.retain();
+
+            PooledByteArray copy = pool.obtain(length);
+            System.arraycopy(frame.getArray(), frame.getOffset(), copy.array(), 0, length);
+            return new Frame(copy, 0, length, frame.timestamp, frame.track, frame.frameType, frame.flags);
+        }
+
+        private void releaseKeyFrame() {
+            if (keyFrame != null) {
+                keyFrame.release();
+                keyFrame = null;
+            }
+            for (Frame frame : keyFrameConfig) {
+                frame.release();
+            }
+            keyFrameConfig = new ArrayList<>();
+        }
+
+        private void close() {
+            List<Request> failed;
+            synchronized (this) {
+                closed = true;
+                failed = pending;
+                pending = new ArrayList<>();
+            }
+            lane.close();
+            fail(failed, new IllegalStateException("Camera " + id + " has been removed"));
+
+            synchronized (this) {
+                releaseKeyFrame();
+                for (Frame frame : config) {
+                    frame.release();
+                }
+                config.clear();
+                cachedImage = null;
+            }
+            synchronized (frameBuilder) {
+                frameBuilder.clear();
+            }
+        }
+
+    }
+
+    /**
+     * Receives thumbnails of all cameras.
+     */
+
+    public interface ThumbnailListener extends ErrorCallback {
+
+        /**
+         * Called with a new thumbnail of the camera.
+         * @param camera the camera
+         * @param thumbnail encoded image, with timestamp of the key frame
+         */
+
+        void onThumbnail(@NonNull Camera camera, @NonNull com.fivesoft.qplayer.frame.Frame thumbnail);
+
+    }
+
+    private static final class Request {
+
+        final int maxWidth;
+        final int maxHeight;
+        @NonNull
+        final FrameExtractListener listener;
+
+        Request(int maxWidth, int maxHeight, @NonNull FrameExtractListener listener) {
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.listener = listener;
+        }
+
+    }
+
+    /*
+     * Requests thumbnails of cameras when they're due, on the scheduler thread.
+     */
+
+    private final class ThumbnailTask implements Runnable {
+
+        private final long periodMs;
+        private final int maxWidth;
+        private final int maxHeight;
+        @NonNull
+        private final ThumbnailListener listener;
+
+        //Time of the next thumbnail of each camera
+        private final HashMap<Camera, Long> dueTimes = new HashMap<>();
+
+        ThumbnailTask(long periodMs, int maxWidth, int maxHeight, @NonNull ThumbnailListener listener) {
+            this.periodMs = periodMs;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+            Collection<Camera> current = cameras.values();
+            dueTimes.keySet().retainAll(current);
+
+            for (Camera camera : current) {
+                Long due = dueTimes.get(camera);
+                if (due == null) {
+                    //Spread cameras over the period, by their ids
+                    dueTimes.put(camera, now + Math.floorMod(camera.id.hashCode(), periodMs));
+                    continue;
+                }
+                if (now < due)
+                    continue;
+
+                //Thumbnails missed while the scheduler was late are not made up for
+                dueTimes.put(camera, due + periodMs > now ? due + periodMs : now + periodMs);
+                if (camera.hasKeyFrame()) {
+                    camera.requestSnapshot(maxWidth, maxHeight, new FrameExtractListener() {
+                        @Override
+                        public void onFrameAvailable(com.fivesoft.qplayer.frame.Frame frame) {
+                            listener.onThumbnail(camera, frame);
+                        }
+
+                        @Override
+                        public void onError(@NonNull Exception e) {
+                            listener.onError(e);
+                        }
+                    });
+                }
+            }
+        }
+
+    }
+
+}
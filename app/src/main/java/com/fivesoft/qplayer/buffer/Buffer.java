@@ -1,25 +1,103 @@
 package com.fivesoft.qplayer.buffer;
 
-import android.util.Log;
-
-import java.util.Comparator;
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.common.LatencyHistogram;
+import com.fivesoft.qplayer.bas2.core.PlayoutDelayEstimator;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jitter buffer playing frames in timestamp order, paced by their timestamps (in milliseconds).<br>
+ * <p>
+ *     Frames are kept in a {@link JitterBuffer} keyed by timestamp, so reordered frames are put
+ *     in place in O(1). The storage is bounded: see {@link #Buffer(int, int)} for its capacity
+ *     and the policy applied when it's full.
+ * </p>
+ * <p>
+ *     Frames are played by a {@link PlayoutScheduler} (shared by all buffers unless one is given),
+ *     which computes when each frame is due in nanoseconds and parks till then. The first frame after
+ *     the buffer has been idle waits the latency, the following ones the difference of timestamps
+ *     (sped up when more than the latency is buffered). When no frame comes within the latency
+ *     after the last one, the buffer sleeps ({@link #onSleep()}) until the next one.
+ * </p>
+ * <p>
+ *     The latency is fixed ({@link #setLatency(long)}), unless limits have been set
+ *     ({@link #setLatencyLimits(long, long)}): then it's learned from the arrival of frames
+ *     by a {@link PlayoutDelayEstimator}, growing with the jitter and shrinking slowly when it calms down.
+ * </p>
+ * @param <T> type of the frames
+ */
 
 public abstract class Buffer<T extends Bufferable> {
 
-    @SuppressWarnings("ComparatorCombinators")
-    private transient final Comparator<T> DEFAULT_COMPARATOR = (o1, o2) -> Long.compare(o1.getTimestamp(), o2.getTimestamp());
-    private transient final Object ptLock = new Object();
-    private transient volatile long lastTimestamp = -99999999;
-    private transient volatile PlaybackThread playbackThread;
+    /**
+     * Default max number of buffered frames.
+     */
 
-    private final SortedSynchronizedList<T> buffer = new SortedSynchronizedList<>(DEFAULT_COMPARATOR);
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //Returned by play() when no frame is due
+    static final long NOT_DUE = Long.MIN_VALUE;
+
+    //Frames are buffered at most this far apart (timestamps in milliseconds)
+    private static final int WINDOW_MS = 8192;
+
+    @NonNull
+    private final PlayoutScheduler scheduler;
+
+    //Guarded by itself, as is the playout state below
+    private final JitterBuffer<Entry<T>> buffer;
+    //Playing, i.e. scheduled, since receive() till sleep or interrupt()
+    private volatile boolean playing;
+    //Registered with the scheduler on the first received frame till destroy()
+    private volatile boolean registered;
+    //Set after the first frame of playing has been played
+    private boolean started;
+    private long prevTimestamp;
+    private long prevDueNanos;
+    //Time frames spend in the buffer in microseconds
+    private final LatencyHistogram residency = new LatencyHistogram();
     private volatile long latency;
+    //Learns the latency, when its limits have been set, guarded by buffer
+    private PlayoutDelayEstimator latencyEstimator;
     private volatile boolean destroyed;
 
     private volatile float playbackSpeed = 1f;
 
     private volatile long actualLatency = 0;
 
+    /**
+     * Creates buffer holding at most {@link #DEFAULT_CAPACITY} frames, dropping the oldest ones when it's full.
+     */
+
+    public Buffer() {
+        this(DEFAULT_CAPACITY, JitterBuffer.OVERFLOW_DROP_OLDEST);
+    }
+
+    /**
+     * Creates buffer.
+     * @param capacity max number of buffered frames
+     * @param overflowPolicy {@link JitterBuffer#OVERFLOW_DROP_OLDEST} or {@link JitterBuffer#OVERFLOW_DROP_NEWEST}
+     */
+
+    public Buffer(int capacity, int overflowPolicy) {
+        this(capacity, overflowPolicy, PlayoutScheduler.getDefault());
+    }
+
+    /**
+     * Creates buffer.
+     * @param capacity max number of buffered frames
+     * @param overflowPolicy {@link JitterBuffer#OVERFLOW_DROP_OLDEST} or {@link JitterBuffer#OVERFLOW_DROP_NEWEST}
+     * @param scheduler scheduler playing the frames
+     */
+
+    public Buffer(int capacity, int overflowPolicy, @NonNull PlayoutScheduler scheduler) {
+        this.buffer = new JitterBuffer<>(capacity, WINDOW_MS, overflowPolicy);
+        this.scheduler = Objects.requireNonNull(scheduler);
+    }
+
     public void receive(T obj){
 
         if(destroyed)
@@ -30,21 +108,33 @@ public abstract class Buffer<T extends Bufferable> {
             return;
         }
 
-        buffer.add(obj);
-        synchronized (ptLock) {
-            if(playbackThread == null || playbackThread.isInterrupted() || !playbackThread.isAlive()){
-                playbackThread = new PlaybackThread();
-                playbackThread.start();
+        synchronized (buffer) {
+            long now = System.nanoTime();
+            if (latencyEstimator != null) {
+                latencyEstimator.onArrival(TimeUnit.MILLISECONDS.toMicros(obj.getTimestamp()), now);
+                latency = TimeUnit.MICROSECONDS.toMillis(latencyEstimator.getDelayUs());
             }
+            buffer.put(obj.getTimestamp(), new Entry<>(obj, now));
+            playing = true;
+        }
+        if (!registered) {
+            registered = true;
+            scheduler.register(this);
         }
+        scheduler.wakeUp();
 
     }
 
+    /**
+     * Stops playing. Buffered frames are kept, playing continues with the next received frame.
+     */
+
     public void interrupt(){
-        synchronized (ptLock){
-            playbackThread.interrupt();
-            sleep();
+        synchronized (buffer) {
+            playing = false;
+            started = false;
         }
+        sleep();
     }
 
     /**
@@ -52,10 +142,9 @@ public abstract class Buffer<T extends Bufferable> {
      */
 
     public void destroy(){
+        destroyed = true;
         interrupt();
-        synchronized (ptLock) {
-            destroyed = true;
-        }
+        scheduler.unregister(this);
     }
 
     protected abstract void onFrame(T frame);
@@ -64,8 +153,56 @@ public abstract class Buffer<T extends Bufferable> {
         //This can be overridden to be notified about buffer sleep
     }
 
+    /**
+     * Sets the latency. If limits have been set, it's the latency adapting starts with.
+     * @param latencyMs latency in milliseconds, 0 to play frames as they come
+     */
+
     public void setLatency(long latencyMs){
-        this.latency = latencyMs;
+        synchronized (buffer) {
+            if (latencyEstimator != null) {
+                latencyEstimator.setDelayUs(TimeUnit.MILLISECONDS.toMicros(latencyMs));
+                latencyMs = TimeUnit.MICROSECONDS.toMillis(latencyEstimator.getDelayUs());
+            }
+            this.latency = latencyMs;
+        }
+    }
+
+    /**
+     * Makes the latency adapt to the jitter of the frames within the limits.
+     * Equal limits make it fixed again.
+     * @param minLatencyMs min latency in milliseconds, positive
+     * @param maxLatencyMs max latency in milliseconds
+     * @throws IllegalArgumentException if min isn't positive or is greater than max
+     */
+
+    public void setLatencyLimits(long minLatencyMs, long maxLatencyMs){
+        if (minLatencyMs <= 0 || minLatencyMs > maxLatencyMs)
+            throw new IllegalArgumentException("Invalid latency limits: " + minLatencyMs + " - " + maxLatencyMs);
+        synchronized (buffer) {
+            if (minLatencyMs == maxLatencyMs) {
+                latencyEstimator = null;
+                latency = minLatencyMs;
+                return;
+            }
+            if (latencyEstimator == null) {
+                latencyEstimator = new PlayoutDelayEstimator();
+            }
+            latencyEstimator.setLimits(TimeUnit.MILLISECONDS.toMicros(minLatencyMs), TimeUnit.MILLISECONDS.toMicros(maxLatencyMs));
+            latencyEstimator.setDelayUs(TimeUnit.MILLISECONDS.toMicros(latency));
+            latency = TimeUnit.MICROSECONDS.toMillis(latencyEstimator.getDelayUs());
+        }
+    }
+
+    /**
+     * Returns the interarrival jitter of the received frames, as defined by RFC 3550.
+     * @return jitter in milliseconds, 0 if the latency doesn't adapt
+     */
+
+    public long getJitter(){
+        synchronized (buffer) {
+            return latencyEstimator != null ? TimeUnit.MICROSECONDS.toMillis(latencyEstimator.getJitterUs()) : 0;
+        }
     }
 
     public long getLatency(){
@@ -90,9 +227,7 @@ public abstract class Buffer<T extends Bufferable> {
      */
 
     public boolean isPlaying(){
-        synchronized (ptLock){
-            return playbackThread != null && playbackThread.isAlive();
-        }
+        return playing;
     }
 
     /**
@@ -101,88 +236,118 @@ public abstract class Buffer<T extends Bufferable> {
      */
 
     public int size(){
-        return buffer.size();
+        synchronized (buffer) {
+            return buffer.size();
+        }
     }
 
-    private class PlaybackThread extends Thread {
+    /**
+     * Returns number of frames dropped, because the buffer was full, or rejected, because they came
+     * after a frame with a greater timestamp had been played.
+     * @return number of frames
+     */
 
-        public PlaybackThread() {
-            super();
+    public long getDroppedFrames(){
+        synchronized (buffer) {
+            return buffer.getDroppedItems() + buffer.getLateItems();
         }
+    }
 
-        @Override
-        public void run() {
+    /**
+     * Returns histogram of times frames spent in the buffer, from {@link #receive(Bufferable)}
+     * to {@link #onFrame(Bufferable)}, in microseconds.
+     * @return snapshot of the residency times
+     */
 
-            synchronized (buffer) {
+    @NonNull
+    public LatencyHistogram.Snapshot getResidency(){
+        return residency.snapshot();
+    }
+
+    /*
+     * Plays frames which are due. Called by the scheduler thread only.
+     * Returns time the next frame is due or the buffer goes to sleep, NOT_DUE if it's not playing.
+     */
 
-                try {
-                    long prevTs = lastTimestamp, curTs;
-
-                    //Play until there is sth to play and thread is not interrupted
-                    while (!isInterrupted() && buffer.size() != 0) {
-                        //Get current frame
-                        T cFrame = buffer.get();
-                        T lFrame = buffer.getLast();
-
-                        //Calculate actual latency
-                        if (lFrame != null) {
-                            actualLatency = Math.abs(lFrame.getTimestamp() - cFrame.getTimestamp());
-                        } else {
-                            actualLatency = 0;
-                        }
-
-                        //Adjust playback speed to match latency
-                        if (actualLatency > latency) {
-                            playbackSpeed = (float) actualLatency / (float) latency;
-                        } else {
-                            playbackSpeed = 1f;
-                        }
-
-                        //Get current frame timestamp
-                        curTs = cFrame.getTimestamp();
-
-                        //Wait for timestamps difference
-                        try {
-                            //noinspection BusyWait
-                            Thread.sleep((long) Math.max(0, Math.min((curTs - prevTs) / playbackSpeed, latency)));
-                        } catch (InterruptedException e) {
-                            break;
-                        }
-
-                        prevTs = curTs;
-
-                        if (buffer.modified()) {
-                            Log.println(Log.ASSERT, "m", "modified");
-                            continue;
-                        }
-
-                        //Remove current frame
-                        buffer.remove(0);
-
-                        //Play current frame
-                        onFrame(cFrame);
-
-                        //Check if there is something to play
-                        for (int i = 0; i < latency && buffer.size() == 0; i++) {
-                            //If no, wait for latency time
-                            try {
-                                //noinspection BusyWait
-                                Thread.sleep(1);
-                            } catch (InterruptedException e) {
-                                break;
-                            }
-                        }
+    long play(long now) {
+        while (true) {
+            Entry<T> entry;
+            long due;
+            synchronized (buffer) {
+                if (!playing)
+                    return NOT_DUE;
+
+                long latencyNanos = TimeUnit.MILLISECONDS.toNanos(latency);
+                entry = buffer.peek();
+                if (entry == null) {
+                    actualLatency = 0;
+                    //Waits the latency for the next frame, then sleeps
+                    long sleepAt = prevDueNanos + latencyNanos;
+                    if (started && sleepAt - now > 0)
+                        return sleepAt;
+                    playing = false;
+                    started = false;
+                } else {
+                    //Calculate actual latency
+                    actualLatency = buffer.getLastKey() - buffer.peekKey();
+
+                    //Adjust playback speed to match latency
+                    if (latency > 0 && actualLatency > latency) {
+                        playbackSpeed = (float) actualLatency / (float) latency;
+                    } else {
+                        playbackSpeed = 1f;
                     }
 
-                } finally {
-                    Buffer.this.sleep();
+                    long timestamp = entry.item.getTimestamp();
+                    if (started) {
+                        //Wait for timestamps difference, at most the latency
+                        long waitNanos = (long) (TimeUnit.MILLISECONDS.toNanos(timestamp - prevTimestamp) / playbackSpeed);
+                        due = prevDueNanos + Math.max(0, Math.min(waitNanos, latencyNanos));
+                    } else {
+                        //The first frame waits the latency, to buffer the following ones
+                        due = entry.receivedNanos + latencyNanos;
+                    }
+                    if (due - now > 0)
+                        return due;
+
+                    //Remove current frame
+                    buffer.poll();
+                    started = true;
+                    prevTimestamp = timestamp;
+                    //Pacing continues from the due time, unless playing fell behind by more than the latency
+                    prevDueNanos = now - due > latencyNanos ? now : due;
                 }
             }
+
+            if (entry == null) {
+                sleep();
+                return NOT_DUE;
+            }
+
+            //Play current frame
+            residency.record(TimeUnit.NANOSECONDS.toMicros(now - entry.receivedNanos));
+            onFrame(entry.item);
+            now = System.nanoTime();
         }
     }
 
+    /*
+     * Buffered frame with its arrival time.
+     */
+
+    private static final class Entry<T> {
+
+        final T item;
+        final long receivedNanos;
+
+        Entry(T item, long receivedNanos) {
+            this.item = item;
+            this.receivedNanos = receivedNanos;
+        }
+
+    }
+
     private void sleep(){
-        lastTimestamp = -99999999;
         onSleep();
     }
 
@@ -0,0 +1,334 @@
+package com.fivesoft.qplayer.buffer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Bounded buffer putting items back in order by their keys, e.g. timestamps or unwrapped sequence numbers.<br>
+ * <p>
+ *     Items are kept in a ring of slots indexed directly by the key, so inserting an item anywhere
+ *     (also a reordered one) is O(1), no items are shifted or compared. The ring covers a window of keys
+ *     starting at the key of the last removed item, a bitmap of occupied slots finds the next item,
+ *     so taking items in key order is amortized O(1). Items with equal keys (e.g. packets of one frame)
+ *     share a slot and keep the order they have been put in. Keys are primitive longs.
+ * </p>
+ * <p>
+ *     Items with keys older than the last removed one come too late and are rejected, unless the keys
+ *     jump back by more than two windows (restart of the source), then the buffer starts over.
+ *     When the buffer is full or a key doesn't fit in the window with the buffered items,
+ *     {@link #getOverflowPolicy()} decides: {@link #OVERFLOW_DROP_OLDEST} removes the oldest items to make room, {@link #OVERFLOW_DROP_NEWEST}
+ *     rejects the new item. Removed and rejected items are counted.
+ * </p>
+ * <p>
+ *     The buffer doesn't allocate after creation. It's not thread-safe.
+ * </p>
+ * @param <T> type of the items
+ */
+
+public final class JitterBuffer<T> {
+
+    /**
+     * Oldest items are dropped to make room for new ones, for live playback.
+     */
+
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+
+    /**
+     * New items are rejected while the buffer is full.
+     */
+
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+
+    //Returned by put()
+    public static final int RESULT_ADDED = 0;
+    public static final int RESULT_LATE = 1;
+    public static final int RESULT_OVERFLOW = 2;
+
+    private static final int NONE = -1;
+
+    private final int overflowPolicy;
+
+    //Ring of slots: chain of items with the key of the slot
+    private final int slotMask;
+    @NonNull
+    private final int[] slotFirst;
+    @NonNull
+    private final int[] slotLast;
+    @NonNull
+    private final long[] occupied;
+
+    //Pool of items (nodes), chained by next
+    @NonNull
+    private final Object[] items;
+    @NonNull
+    private final long[] keys;
+    @NonNull
+    private final int[] next;
+    private int free;
+    private int size;
+
+    //Start of the window of keys held in the ring: [headKey, headKey + slots)
+    private long headKey;
+    private long lastKey;
+    //Key of the last removed item, smaller keys are late
+    private boolean removed;
+    private long removedKey;
+
+    private long droppedItems;
+    private long lateItems;
+
+    /**
+     * Creates an empty buffer.
+     * @param capacity max number of items
+     * @param window number of different keys the buffer spans (e.g. milliseconds of timestamps),
+     *               rounded up to a power of two
+     * @param overflowPolicy {@link #OVERFLOW_DROP_OLDEST} or {@link #OVERFLOW_DROP_NEWEST}
+     * @throws IllegalArgumentException if capacity or window are not positive or too big or the policy is unknown
+     */
+
+    public JitterBuffer(int capacity, int window, int overflowPolicy) {
+        if (capacity <= 0 || capacity > (1 << 24))
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        if (window <= 0 || window > (1 << 24))
+            throw new IllegalArgumentException("Invalid window: " + window);
+        if (overflowPolicy != OVERFLOW_DROP_OLDEST && overflowPolicy != OVERFLOW_DROP_NEWEST)
+            throw new IllegalArgumentException("Invalid overflow policy: " + overflowPolicy);
+
+        int slots = Math.max(64, Integer.highestOneBit(window));
+        if (slots < window) {
+            slots <<= 1;
+        }
+        this.slotMask = slots - 1;
+        this.slotFirst = new int[slots];
+        this.slotLast = new int[slots];
+        this.occupied = new long[slots / 64];
+        Arrays.fill(slotFirst, NONE);
+
+        this.items = new Object[capacity];
+        this.keys = new long[capacity];
+        this.next = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            next[i] = i + 1 < capacity ? i + 1 : NONE;
+        }
+        this.free = 0;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Puts the item in the buffer.
+     * @param key key of the item
+     * @param item the item
+     * @return {@link #RESULT_ADDED}, {@link #RESULT_LATE} if an item with a greater key has already been removed
+     * or {@link #RESULT_OVERFLOW} if the item has been dropped: the buffer is full (or the key is too far ahead)
+     * and the policy is {@link #OVERFLOW_DROP_NEWEST}, or the key is too far behind the buffered items
+     */
+
+    public int put(long key, @NonNull T item) {
+        Objects.requireNonNull(item);
+        if (removed && key < removedKey) {
+            if (removedKey - key <= 2L * (slotMask + 1)) {
+                lateItems++;
+                return RESULT_LATE;
+            }
+            //Far behind (e.g. the source has restarted), the buffered items belong to the old stream
+            droppedItems += size;
+            clear();
+        }
+
+        if (size == 0) {
+            //Nothing is buffered, the window moves to the new key
+            headKey = key;
+        } else if (key < headKey) {
+            //Earlier than all buffered items, the window moves back if they still fit in it
+            if (lastKey - key > slotMask) {
+                droppedItems++;
+                return RESULT_OVERFLOW;
+            }
+            headKey = key;
+        }
+
+        long windowEnd = headKey + slotMask + 1;
+        if (key >= windowEnd || size == items.length) {
+            if (overflowPolicy == OVERFLOW_DROP_NEWEST) {
+                droppedItems++;
+                return RESULT_OVERFLOW;
+            }
+            if (key - headKey > 2L * (slotMask + 1)) {
+                //Far ahead (e.g. the source has restarted), nothing buffered can be played before it
+                droppedItems += size;
+                while (size > 0) {
+                    poll();
+                }
+                headKey = key;
+            } else {
+                //Checked against the oldest remaining item, the head is the key of the removed one
+                while (size > 0 && (key - peekKey() > slotMask || size == items.length)) {
+                    poll();
+                    droppedItems++;
+                }
+                if (key - headKey > slotMask) {
+                    headKey = size > 0 ? peekKey() : key;
+                }
+            }
+        }
+
+        int node = free;
+        free = next[node];
+        items[node] = item;
+        keys[node] = key;
+        next[node] = NONE;
+
+        int slot = (int) key & slotMask;
+        if (slotFirst[slot] == NONE) {
+            slotFirst[slot] = node;
+            occupied[slot >>> 6] |= 1L << slot;
+        } else {
+            next[slotLast[slot]] = node;
+        }
+        slotLast[slot] = node;
+
+        if (size == 0 || key > lastKey) {
+            lastKey = key;
+        }
+        size++;
+        return RESULT_ADDED;
+    }
+
+    /**
+     * Returns the item with the smallest key without removing it.
+     * @return the item or null if the buffer is empty
+     */
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        int slot = firstSlot();
+        return slot == NONE ? null : (T) items[slotFirst[slot]];
+    }
+
+    /**
+     * Returns the smallest key in the buffer.
+     * @return the key or {@link Long#MIN_VALUE} if the buffer is empty
+     */
+
+    public long peekKey() {
+        int slot = firstSlot();
+        return slot == NONE ? Long.MIN_VALUE : keys[slotFirst[slot]];
+    }
+
+    /**
+     * Returns the greatest key in the buffer.
+     * @return the key or {@link Long#MIN_VALUE} if the buffer is empty
+     */
+
+    public long getLastKey() {
+        return size > 0 ? lastKey : Long.MIN_VALUE;
+    }
+
+    /**
+     * Removes the item with the smallest key. Items with smaller keys are late afterwards.
+     * @return the item or null if the buffer is empty
+     */
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int slot = firstSlot();
+        if (slot == NONE)
+            return null;
+
+        int node = slotFirst[slot];
+        T item = (T) items[node];
+        headKey = keys[node];
+        removed = true;
+        removedKey = headKey;
+
+        slotFirst[slot] = next[node];
+        if (slotFirst[slot] == NONE) {
+            occupied[slot >>> 6] &= ~(1L << slot);
+        }
+
+        items[node] = null;
+        next[node] = free;
+        free = node;
+        size--;
+        return item;
+    }
+
+    /**
+     * Removes all items. Any key can be put afterwards.
+     */
+
+    public void clear() {
+        while (size > 0) {
+            poll();
+        }
+        removed = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Returns number of keys the buffer spans.
+     * @return size of the window
+     */
+
+    public int getWindow() {
+        return slotMask + 1;
+    }
+
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns number of items dropped or rejected, because the buffer was full or their keys were beyond the window.
+     * @return number of items
+     */
+
+    public long getDroppedItems() {
+        return droppedItems;
+    }
+
+    /**
+     * Returns number of items rejected, because they came after an item with a greater key had been removed.
+     * @return number of items
+     */
+
+    public long getLateItems() {
+        return lateItems;
+    }
+
+    //Returns the first occupied slot from the head or NONE if the buffer is empty
+    private int firstSlot() {
+        if (size == 0)
+            return NONE;
+
+        int slots = slotMask + 1;
+        int start = (int) headKey & slotMask;
+        int word = start >>> 6;
+        long bits = occupied[word] & (-1L << start);
+        //All items are within one window from the head, so at most one full turn is scanned
+        for (int scanned = 0; scanned <= slots; scanned += 64) {
+            if (bits != 0)
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            word = (word + 1) & ((slots >>> 6) - 1);
+            bits = occupied[word];
+        }
+        return NONE;
+    }
+
+}
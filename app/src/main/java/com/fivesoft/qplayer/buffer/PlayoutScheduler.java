@@ -0,0 +1,155 @@
+package com.fivesoft.qplayer.buffer;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long-lived thread playing frames of {@link Buffer}s at their due times.<br>
+ * <p>
+ *     The thread plays the frames which are due, computes when the next frame of any buffer is due
+ *     (in nanoseconds) and parks till then, or indefinitely when all buffers are empty.
+ *     {@link Buffer#receive(Bufferable)} wakes it up early, a frame which has arrived may be due sooner.
+ *     There is no polling and no thread is created per stall or per stream.
+ * </p>
+ * <p>
+ *     One scheduler ({@link #getDefault()}) is shared by all buffers by default, so
+ *     {@link Buffer#onFrame(Bufferable)} must not block: a slow buffer delays the others.
+ *     Buffers needing isolation can be given a scheduler of their own.
+ * </p>
+ */
+
+public final class PlayoutScheduler {
+
+    private static final String TAG = "PlayoutScheduler";
+
+    private static volatile PlayoutScheduler defaultScheduler;
+
+    @NonNull
+    private final CopyOnWriteArrayList<Buffer<?>> buffers = new CopyOnWriteArrayList<>();
+    @NonNull
+    private final Worker worker;
+
+    //Set when a frame has arrived after the worker has computed its schedule
+    private volatile boolean signalled;
+
+    /**
+     * Creates scheduler and starts its thread.
+     * @param name name of the thread
+     */
+
+    public PlayoutScheduler(@NonNull String name) {
+        worker = new Worker(name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns scheduler shared by buffers which haven't been given one.
+     * @return the scheduler
+     */
+
+    @NonNull
+    public static PlayoutScheduler getDefault() {
+        PlayoutScheduler scheduler = defaultScheduler;
+        if (scheduler == null) {
+            synchronized (PlayoutScheduler.class) {
+                scheduler = defaultScheduler;
+                if (scheduler == null) {
+                    scheduler = new PlayoutScheduler("Playout");
+                    defaultScheduler = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Stops the thread. Buffers using the scheduler don't play anymore.
+     * The default scheduler can't be released.
+     */
+
+    public void release() {
+        if (this == defaultScheduler)
+            throw new IllegalStateException("Cannot release the default scheduler");
+        worker.interrupt();
+    }
+
+    /**
+     * Returns number of buffers played by the scheduler.
+     * @return number of buffers
+     */
+
+    public int getBufferCount() {
+        return buffers.size();
+    }
+
+    void register(@NonNull Buffer<?> buffer) {
+        buffers.addIfAbsent(buffer);
+    }
+
+    void unregister(@NonNull Buffer<?> buffer) {
+        buffers.remove(buffer);
+    }
+
+    //Makes the worker compute its schedule again, parks and unparks are paired by the flags
+    void wakeUp() {
+        signalled = true;
+        if (worker.waiting) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        //Set while the worker is parked or about to park
+        volatile boolean waiting;
+
+        Worker(@NonNull String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                signalled = false;
+
+                long now = System.nanoTime();
+                long waitNanos = Long.MAX_VALUE;
+                for (Buffer<?> buffer : buffers) {
+                    long due;
+                    try {
+                        due = buffer.play(now);
+                    } catch (RuntimeException e) {
+                        Log.println(Log.ASSERT, TAG, "Failed to play frame: " + e);
+                        due = now;
+                    }
+                    if (due != Buffer.NOT_DUE) {
+                        waitNanos = Math.min(waitNanos, due - now);
+                    }
+                }
+
+                if (waitNanos <= 0)
+                    continue;
+
+                waiting = true;
+                try {
+                    if (!signalled) {
+                        if (waitNanos == Long.MAX_VALUE) {
+                            LockSupport.park(this);
+                        } else {
+                            LockSupport.parkNanos(this, waitNanos);
+                        }
+                    }
+                } finally {
+                    waiting = false;
+                }
+            }
+        }
+
+    }
+
+}
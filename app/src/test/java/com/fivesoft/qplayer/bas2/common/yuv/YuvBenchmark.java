@@ -0,0 +1,68 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Throughput of {@link YuvConverter} and {@link YuvScaler} on 1080p and 4K pictures,
+ * on the calling thread and row-parallel on {@link ForkJoinPool#commonPool()}.<br>
+ * <p>
+ *     Not a unit test, run its {@link #main(String[])}: {@code YuvBenchmark [iterations]}.
+ *     Each case is warmed up first, then timed over the iterations.
+ * </p>
+ */
+
+public class YuvBenchmark {
+
+    private static final int[][] SIZES = {{1920, 1080}, {3840, 2160}};
+    private static final String[] FORMATS = {"I420", "NV12", "NV21"};
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        System.out.println("Threads of the common pool: " + ForkJoinPool.getCommonPoolParallelism());
+
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] yuv = new byte[YuvConverter.getSize(width, height)];
+            new Random(1).nextBytes(yuv);
+            int[] argb = new int[width * height];
+            byte[] half = new byte[YuvConverter.getSize(width / 2, height / 2)];
+            byte[] quarter = new byte[YuvConverter.getSize(width / 4, height / 4)];
+
+            for (int parallel = 0; parallel < 2; parallel++) {
+                ForkJoinPool pool = parallel == 1 ? ForkJoinPool.commonPool() : null;
+                String mode = pool != null ? "parallel" : "single";
+
+                for (int format = 0; format < FORMATS.length; format++) {
+                    YuvConverter converter = new YuvConverter(false, pool, YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+                    int f = format;
+                    report(width + "x" + height + " " + FORMATS[format] + " to ARGB, " + mode, iterations,
+                            () -> converter.toArgb(yuv, 0, f, width, height, argb, 0, width));
+                }
+
+                YuvScaler bilinear = new YuvScaler(YuvScaler.FILTER_BILINEAR, pool, YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+                report(width + "x" + height + " I420 bilinear to 1/2, " + mode, iterations,
+                        () -> bilinear.scale(yuv, 0, YuvConverter.FORMAT_I420, width, height,
+                                half, 0, width / 2, height / 2));
+                YuvScaler box = new YuvScaler(YuvScaler.FILTER_BOX, pool, YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+                report(width + "x" + height + " I420 box to 1/4, " + mode, iterations,
+                        () -> box.scale(yuv, 0, YuvConverter.FORMAT_I420, width, height,
+                                quarter, 0, width / 4, height / 4));
+            }
+        }
+    }
+
+    private static void report(String name, int iterations, Runnable task) {
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / iterations;
+        System.out.printf("%-40s %8.2f ms/frame %8.1f fps%n", name, ms, 1000 / ms);
+    }
+
+}
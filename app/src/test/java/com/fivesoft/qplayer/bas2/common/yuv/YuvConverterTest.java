@@ -0,0 +1,201 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests of {@link YuvConverter}: known colors, a double precision BT.601 reference for all formats
+ * and both ranges, crop, and parallel conversion against conversion on the calling thread.
+ */
+
+public class YuvConverterTest {
+
+    private static final int[] FORMATS = {YuvConverter.FORMAT_I420, YuvConverter.FORMAT_NV12, YuvConverter.FORMAT_NV21};
+    //Fixed point tables round twice, the reference once
+    private static final int TOLERANCE = 1;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void convertsKnownColors() {
+        //Black, white and the primaries of BT.601 in video range
+        assertColor(false, 16, 128, 128, 0xFF000000);
+        assertColor(false, 235, 128, 128, 0xFFFFFFFF);
+        assertColor(false, 126, 128, 128, 0xFF808080);
+        assertColor(false, 81, 90, 240, 0xFFFF0000);
+        assertColor(false, 145, 54, 34, 0xFF00FF00);
+        assertColor(false, 41, 240, 110, 0xFF0000FF);
+        //Values outside of video range are clamped
+        assertColor(false, 0, 128, 128, 0xFF000000);
+        assertColor(false, 255, 128, 128, 0xFFFFFFFF);
+
+        //Full range
+        assertColor(true, 0, 128, 128, 0xFF000000);
+        assertColor(true, 255, 128, 128, 0xFFFFFFFF);
+        assertColor(true, 128, 128, 128, 0xFF808080);
+        assertColor(true, 76, 85, 255, 0xFFFF0000);
+        assertColor(true, 150, 44, 21, 0xFF00FF00);
+        assertColor(true, 29, 255, 107, 0xFF0000FF);
+    }
+
+    @Test
+    public void matchesReferenceInAllFormatsAndRanges() {
+        //Odd size, the last chroma column and row cover a single pixel
+        YuvPicture picture = YuvPicture.random(37, 23, 1);
+        for (boolean fullRange : new boolean[]{false, true}) {
+            YuvConverter converter = new YuvConverter(fullRange, null, YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+            int[] expected = reference(picture, fullRange);
+            for (int format : FORMATS) {
+                int[] argb = new int[picture.width * picture.height];
+                converter.toArgb(picture.pack(format, 5), 5, format, picture.width, picture.height,
+                        argb, 0, picture.width);
+                assertClose("format " + format + ", full range " + fullRange, expected, argb);
+            }
+        }
+    }
+
+    @Test
+    public void formatsConvertIdentically() {
+        YuvPicture picture = YuvPicture.random(16, 10, 2);
+        YuvConverter converter = new YuvConverter(false, null, YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+        int[] i420 = convert(converter, picture, YuvConverter.FORMAT_I420);
+        assertArrayEquals(i420, convert(converter, picture, YuvConverter.FORMAT_NV12));
+        assertArrayEquals(i420, convert(converter, picture, YuvConverter.FORMAT_NV21));
+    }
+
+    @Test
+    public void cropsPicture() {
+        YuvPicture picture = YuvPicture.random(21, 15, 3);
+        YuvConverter converter = new YuvConverter(true, null, YuvConverter.DEFAULT_PARALLEL_THRESHOLD);
+        for (int format : FORMATS) {
+            int[] whole = convert(converter, picture, format);
+            byte[] data = picture.pack(format, 0);
+
+            //Odd position, the crop starts in the middle of a chroma sample; rows are padded in the output
+            int cropX = 3, cropY = 5, cropWidth = 10, cropHeight = 7, stride = 13, offset = 2;
+            int[] argb = new int[offset + cropHeight * stride];
+            converter.toArgb(data, 0, format, picture.width, picture.height,
+                    cropX, cropY, cropWidth, cropHeight, argb, offset, stride);
+
+            for (int row = 0; row < cropHeight; row++) {
+                for (int column = 0; column < stride; column++) {
+                    int actual = argb[offset + row * stride + column];
+                    int expected = column < cropWidth ? whole[(cropY + row) * picture.width + cropX + column] : 0;
+                    assertEquals("format " + format + ", " + column + ", " + row, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelConversionIsIdenticalToSerial() {
+        //Enough rows for several slices, a row count not divisible by the slice count
+        YuvPicture picture = YuvPicture.random(97, 131, 4);
+        for (boolean fullRange : new boolean[]{false, true}) {
+            YuvConverter serial = new YuvConverter(fullRange, null, 1);
+            YuvConverter parallel = new YuvConverter(fullRange, POOL, 1);
+            for (int format : FORMATS) {
+                assertArrayEquals(convert(serial, picture, format), convert(parallel, picture, format));
+
+                byte[] data = picture.pack(format, 0);
+                int[] expected = new int[60 * 100];
+                int[] actual = new int[60 * 100];
+                serial.toArgb(data, 0, format, picture.width, picture.height, 7, 9, 60, 100, expected, 0, 60);
+                parallel.toArgb(data, 0, format, picture.width, picture.height, 7, 9, 60, 100, actual, 0, 60);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidArguments() {
+        YuvConverter converter = new YuvConverter();
+        byte[] data = new byte[YuvConverter.getSize(8, 8)];
+        int[] argb = new int[64];
+        assertThrows(() -> converter.toArgb(data, 0, 3, 8, 8, argb, 0, 8));
+        assertThrows(() -> converter.toArgb(data, 1, YuvConverter.FORMAT_I420, 8, 8, argb, 0, 8));
+        assertThrows(() -> converter.toArgb(data, 0, YuvConverter.FORMAT_I420, 8, 8, 4, 0, 5, 8, argb, 0, 8));
+        assertThrows(() -> converter.toArgb(data, 0, YuvConverter.FORMAT_I420, 8, 8, argb, 1, 8));
+        assertThrows(() -> converter.toArgb(data, 0, YuvConverter.FORMAT_I420, 8, 8, argb, 0, 7));
+    }
+
+    private static void assertColor(boolean fullRange, int y, int u, int v, int expected) {
+        YuvPicture picture = new YuvPicture(2, 2);
+        Arrays.fill(picture.y, (byte) y);
+        picture.u[0] = (byte) u;
+        picture.v[0] = (byte) v;
+        for (int format : FORMATS) {
+            int[] argb = convert(new YuvConverter(fullRange, null, YuvConverter.DEFAULT_PARALLEL_THRESHOLD), picture, format);
+            for (int pixel : argb) {
+                //Primaries given with integer Y, U, V are off by up to 2
+                assertClose(String.format("%d, %d, %d", y, u, v), expected, pixel, 2);
+            }
+        }
+    }
+
+    private static int[] convert(YuvConverter converter, YuvPicture picture, int format) {
+        int[] argb = new int[picture.width * picture.height];
+        converter.toArgb(picture.pack(format, 0), 0, format, picture.width, picture.height, argb, 0, picture.width);
+        return argb;
+    }
+
+    //BT.601 in double precision
+    private static int[] reference(YuvPicture picture, boolean fullRange) {
+        int[] argb = new int[picture.width * picture.height];
+        for (int y = 0; y < picture.height; y++) {
+            for (int x = 0; x < picture.width; x++) {
+                double l = fullRange ? picture.y(x, y) : (picture.y(x, y) - 16) * 255.0 / 219.0;
+                double cb = (picture.u(x, y) - 128) * (fullRange ? 1.0 : 255.0 / 224.0);
+                double cr = (picture.v(x, y) - 128) * (fullRange ? 1.0 : 255.0 / 224.0);
+                int r = clamp(l + 1.402 * cr);
+                int g = clamp(l - 0.344136 * cb - 0.714136 * cr);
+                int b = clamp(l + 1.772 * cb);
+                argb[y * picture.width + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return argb;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void assertClose(String message, int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertClose(message + ", pixel " + i, expected[i], actual[i], TOLERANCE);
+        }
+    }
+
+    private static void assertClose(String message, int expected, int actual, int tolerance) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int e = (expected >>> shift) & 0xFF;
+            int a = (actual >>> shift) & 0xFF;
+            assertTrue(message + String.format(": expected %08X, was %08X", expected, actual),
+                    Math.abs(e - a) <= tolerance);
+        }
+    }
+
+    private static void assertThrows(Runnable conversion) {
+        try {
+            conversion.run();
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            //Expected
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import java.util.Random;
+
+/**
+ * YUV 4:2:0 test pictures made of separate Y, U and V planes, packed to the formats of {@link YuvConverter}.
+ */
+
+final class YuvPicture {
+
+    final int width, height;
+    final int chromaWidth, chromaHeight;
+    final byte[] y, u, v;
+
+    YuvPicture(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.chromaWidth = (width + 1) / 2;
+        this.chromaHeight = (height + 1) / 2;
+        this.y = new byte[width * height];
+        this.u = new byte[chromaWidth * chromaHeight];
+        this.v = new byte[chromaWidth * chromaHeight];
+    }
+
+    /**
+     * Creates picture of random samples.
+     * @param width width of the picture
+     * @param height height of the picture
+     * @param seed seed of the samples
+     * @return the picture
+     */
+
+    static YuvPicture random(int width, int height, long seed) {
+        YuvPicture picture = new YuvPicture(width, height);
+        Random random = new Random(seed);
+        random.nextBytes(picture.y);
+        random.nextBytes(picture.u);
+        random.nextBytes(picture.v);
+        return picture;
+    }
+
+    int y(int x, int y) {
+        return this.y[y * width + x] & 0xFF;
+    }
+
+    int u(int x, int y) {
+        return u[(y / 2) * chromaWidth + x / 2] & 0xFF;
+    }
+
+    int v(int x, int y) {
+        return v[(y / 2) * chromaWidth + x / 2] & 0xFF;
+    }
+
+    /**
+     * Packs the planes to a picture of the format, at the offset of a bigger array.
+     * @param format YuvConverter.FORMAT_* constant
+     * @param offset offset of the picture
+     * @return array with the picture, followed by a few spare bytes
+     */
+
+    byte[] pack(int format, int offset) {
+        byte[] data = new byte[offset + YuvConverter.getSize(width, height) + 7];
+        System.arraycopy(y, 0, data, offset, y.length);
+        int chroma = offset + y.length;
+        if (format == YuvConverter.FORMAT_I420) {
+            System.arraycopy(u, 0, data, chroma, u.length);
+            System.arraycopy(v, 0, data, chroma + u.length, v.length);
+        } else {
+            byte[] first = format == YuvConverter.FORMAT_NV12 ? u : v;
+            byte[] second = format == YuvConverter.FORMAT_NV12 ? v : u;
+            for (int i = 0; i < u.length; i++) {
+                data[chroma + 2 * i] = first[i];
+                data[chroma + 2 * i + 1] = second[i];
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Reads planes of a packed picture.
+     * @param data array with the picture
+     * @param offset offset of the picture
+     * @param format YuvConverter.FORMAT_* constant
+     * @param width width of the picture
+     * @param height height of the picture
+     * @return the picture
+     */
+
+    static YuvPicture unpack(byte[] data, int offset, int format, int width, int height) {
+        YuvPicture picture = new YuvPicture(width, height);
+        System.arraycopy(data, offset, picture.y, 0, picture.y.length);
+        int chroma = offset + picture.y.length;
+        if (format == YuvConverter.FORMAT_I420) {
+            System.arraycopy(data, chroma, picture.u, 0, picture.u.length);
+            System.arraycopy(data, chroma + picture.u.length, picture.v, 0, picture.v.length);
+        } else {
+            byte[] first = format == YuvConverter.FORMAT_NV12 ? picture.u : picture.v;
+            byte[] second = format == YuvConverter.FORMAT_NV12 ? picture.v : picture.u;
+            for (int i = 0; i < picture.u.length; i++) {
+                first[i] = data[chroma + 2 * i];
+                second[i] = data[chroma + 2 * i + 1];
+            }
+        }
+        return picture;
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.fivesoft.qplayer.bas2.common.yuv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests of {@link YuvScaler}: box and bilinear filters on small pictures with known results,
+ * a double precision bilinear reference, crop, all formats, and parallel scaling against scaling
+ * on the calling thread.
+ */
+
+public class YuvScalerTest {
+
+    private static final int[] FORMATS = {YuvConverter.FORMAT_I420, YuvConverter.FORMAT_NV12, YuvConverter.FORMAT_NV21};
+    private static final int[] FILTERS = {YuvScaler.FILTER_BILINEAR, YuvScaler.FILTER_BOX};
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void boxAveragesCoveredSamples() {
+        YuvPicture picture = picture(4, 4, new int[]{
+                0, 10, 20, 30,
+                40, 50, 60, 70,
+                100, 100, 200, 201,
+                100, 100, 200, 201
+        }, new int[]{10, 20, 30, 41}, new int[]{255, 255, 0, 0});
+
+        YuvPicture scaled = scale(YuvScaler.FILTER_BOX, picture, YuvConverter.FORMAT_I420, 2, 2);
+        //Rounded to the nearest value: (0 + 10 + 40 + 50) / 4 = 25, (200 + 201 + 200 + 201) / 4 = 200.5
+        assertSamples(new int[]{25, 45, 100, 201}, scaled.y);
+        assertSamples(new int[]{25}, scaled.u);
+        assertSamples(new int[]{128}, scaled.v);
+
+        //Thumbnail of a single pixel is the mean of the picture
+        YuvPicture pixel = scale(YuvScaler.FILTER_BOX, picture, YuvConverter.FORMAT_I420, 1, 1);
+        assertSamples(new int[]{93}, pixel.y);
+    }
+
+    @Test
+    public void boxRepeatsSamplesWhenUpscaling() {
+        YuvPicture picture = picture(2, 2, new int[]{1, 2, 3, 4}, new int[]{5}, new int[]{6});
+
+        YuvPicture scaled = scale(YuvScaler.FILTER_BOX, picture, YuvConverter.FORMAT_I420, 4, 4);
+        assertSamples(new int[]{
+                1, 1, 2, 2,
+                1, 1, 2, 2,
+                3, 3, 4, 4,
+                3, 3, 4, 4
+        }, scaled.y);
+        assertSamples(new int[]{5, 5, 5, 5}, scaled.u);
+        assertSamples(new int[]{6, 6, 6, 6}, scaled.v);
+    }
+
+    @Test
+    public void bilinearInterpolatesBetweenSampleCenters() {
+        YuvPicture picture = picture(2, 2, new int[]{0, 100, 200, 255}, new int[]{7}, new int[]{9});
+
+        YuvPicture scaled = scale(YuvScaler.FILTER_BILINEAR, picture, YuvConverter.FORMAT_I420, 4, 4);
+        //Edge samples are repeated, the inner ones are 1/4 and 3/4 of the way
+        assertSamples(new int[]{
+                0, 25, 75, 100,
+                50, 72, 117, 139,
+                150, 167, 200, 216,
+                200, 214, 241, 255
+        }, scaled.y);
+        assertSamples(new int[]{7, 7, 7, 7}, scaled.u);
+        assertSamples(new int[]{9, 9, 9, 9}, scaled.v);
+
+        //Half size takes the mean of each 2x2 block, its center is between them
+        YuvPicture half = scale(YuvScaler.FILTER_BILINEAR, picture, YuvConverter.FORMAT_I420, 1, 1);
+        assertSamples(new int[]{139}, half.y);
+    }
+
+    @Test
+    public void sameSizeIsCopy() {
+        YuvPicture picture = YuvPicture.random(13, 9, 1);
+        for (int filter : FILTERS) {
+            for (int format : FORMATS) {
+                YuvPicture scaled = scale(filter, picture, format, picture.width, picture.height);
+                assertArrayEquals(picture.y, scaled.y);
+                assertArrayEquals(picture.u, scaled.u);
+                assertArrayEquals(picture.v, scaled.v);
+            }
+        }
+    }
+
+    @Test
+    public void bilinearMatchesReference() {
+        YuvPicture picture = YuvPicture.random(31, 17, 2);
+        int[][] sizes = {{64, 40}, {17, 11}, {45, 17}, {16, 9}};
+        for (int[] size : sizes) {
+            YuvPicture scaled = scale(YuvScaler.FILTER_BILINEAR, picture, YuvConverter.FORMAT_I420, size[0], size[1]);
+            //8 bit weights are off by less than one from the exact ones
+            assertClose(bilinear(picture.y, picture.width, picture.height, size[0], size[1]), scaled.y, 1);
+            assertClose(bilinear(picture.u, picture.chromaWidth, picture.chromaHeight,
+                    scaled.chromaWidth, scaled.chromaHeight), scaled.u, 1);
+        }
+    }
+
+    @Test
+    public void formatsScaleIdentically() {
+        YuvPicture picture = YuvPicture.random(19, 14, 3);
+        for (int filter : FILTERS) {
+            YuvPicture i420 = scale(filter, picture, YuvConverter.FORMAT_I420, 11, 7);
+            for (int format : FORMATS) {
+                YuvPicture scaled = scale(filter, picture, format, 11, 7);
+                assertArrayEquals(i420.y, scaled.y);
+                assertArrayEquals(i420.u, scaled.u);
+                assertArrayEquals(i420.v, scaled.v);
+            }
+        }
+    }
+
+    @Test
+    public void cropsPicture() {
+        YuvPicture picture = YuvPicture.random(20, 16, 4);
+        int cropX = 6, cropY = 4, cropWidth = 8, cropHeight = 10;
+        for (int filter : FILTERS) {
+            for (int format : FORMATS) {
+                //Crop at even position scaled to its size is a copy of the part
+                YuvPicture copy = scale(filter, picture, format, cropX, cropY, cropWidth, cropHeight, cropWidth, cropHeight);
+                for (int y = 0; y < cropHeight; y++) {
+                    for (int x = 0; x < cropWidth; x++) {
+                        assertEquals(picture.y(cropX + x, cropY + y), copy.y(x, y));
+                        assertEquals(picture.u(cropX + x, cropY + y), copy.u(x, y));
+                        assertEquals(picture.v(cropX + x, cropY + y), copy.v(x, y));
+                    }
+                }
+
+                //Scaled crop equals the crop of a picture holding just the part
+                YuvPicture part = new YuvPicture(cropWidth, cropHeight);
+                for (int y = 0; y < cropHeight; y++) {
+                    for (int x = 0; x < cropWidth; x++) {
+                        part.y[y * cropWidth + x] = (byte) picture.y(cropX + x, cropY + y);
+                    }
+                }
+                for (int y = 0; y < part.chromaHeight; y++) {
+                    for (int x = 0; x < part.chromaWidth; x++) {
+                        part.u[y * part.chromaWidth + x] = (byte) picture.u(cropX + 2 * x, cropY + 2 * y);
+                        part.v[y * part.chromaWidth + x] = (byte) picture.v(cropX + 2 * x, cropY + 2 * y);
+                    }
+                }
+                YuvPicture scaled = scale(filter, picture, format, cropX, cropY, cropWidth, cropHeight, 5, 3);
+                YuvPicture expected = scale(filter, part, format, 5, 3);
+                assertArrayEquals(expected.y, scaled.y);
+                assertArrayEquals(expected.u, scaled.u);
+                assertArrayEquals(expected.v, scaled.v);
+            }
+        }
+    }
+
+    @Test
+    public void parallelScalingIsIdenticalToSerial() {
+        YuvPicture picture = YuvPicture.random(90, 150, 5);
+        //Output row counts not divisible by the slice count, odd ones have a chroma row for a single luma row
+        int[][] sizes = {{45, 75}, {181, 299}, {64, 133}};
+        for (int filter : FILTERS) {
+            YuvScaler serial = new YuvScaler(filter, null, 1);
+            YuvScaler parallel = new YuvScaler(filter, POOL, 1);
+            for (int format : FORMATS) {
+                byte[] data = picture.pack(format, 0);
+                for (int[] size : sizes) {
+                    byte[] expected = new byte[YuvConverter.getSize(size[0], size[1])];
+                    byte[] actual = new byte[expected.length];
+                    serial.scale(data, 0, format, picture.width, picture.height, expected, 0, size[0], size[1]);
+                    parallel.scale(data, 0, format, picture.width, picture.height, actual, 0, size[0], size[1]);
+                    assertArrayEquals(expected, actual);
+                }
+            }
+        }
+    }
+
+    private static YuvPicture picture(int width, int height, int[] y, int[] u, int[] v) {
+        YuvPicture picture = new YuvPicture(width, height);
+        copy(y, picture.y);
+        copy(u, picture.u);
+        copy(v, picture.v);
+        return picture;
+    }
+
+    private static void copy(int[] samples, byte[] plane) {
+        assertEquals(plane.length, samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            plane[i] = (byte) samples[i];
+        }
+    }
+
+    private static YuvPicture scale(int filter, YuvPicture picture, int format, int dstWidth, int dstHeight) {
+        return scale(filter, picture, format, 0, 0, picture.width, picture.height, dstWidth, dstHeight);
+    }
+
+    private static YuvPicture scale(int filter, YuvPicture picture, int format,
+                                    int cropX, int cropY, int cropWidth, int cropHeight, int dstWidth, int dstHeight) {
+        //Pictures at offsets, the scaler must not touch bytes around the output
+        byte[] dst = new byte[3 + YuvConverter.getSize(dstWidth, dstHeight) + 3];
+        new YuvScaler(filter, null, YuvConverter.DEFAULT_PARALLEL_THRESHOLD).scale(picture.pack(format, 2), 2, format,
+                picture.width, picture.height, cropX, cropY, cropWidth, cropHeight, dst, 3, dstWidth, dstHeight);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, dst[i]);
+            assertEquals(0, dst[dst.length - 1 - i]);
+        }
+        return YuvPicture.unpack(dst, 3, format, dstWidth, dstHeight);
+    }
+
+    //Bilinear interpolation between sample centers in double precision, edge samples repeated
+    private static int[] bilinear(byte[] plane, int width, int height, int dstWidth, int dstHeight) {
+        int[] result = new int[dstWidth * dstHeight];
+        for (int dy = 0; dy < dstHeight; dy++) {
+            double sy = Math.max(0, Math.min(height - 1, (dy + 0.5) * height / dstHeight - 0.5));
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            double fy = sy - y0;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                double sx = Math.max(0, Math.min(width - 1, (dx + 0.5) * width / dstWidth - 0.5));
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, width - 1);
+                double fx = sx - x0;
+                double top = (plane[y0 * width + x0] & 0xFF) * (1 - fx) + (plane[y0 * width + x1] & 0xFF) * fx;
+                double bottom = (plane[y1 * width + x0] & 0xFF) * (1 - fx) + (plane[y1 * width + x1] & 0xFF) * fx;
+                result[dy * dstWidth + dx] = (int) Math.round(top * (1 - fy) + bottom * fy);
+            }
+        }
+        return result;
+    }
+
+    private static void assertSamples(int[] expected, byte[] actual) {
+        int[] samples = new int[actual.length];
+        for (int i = 0; i < actual.length; i++) {
+            samples[i] = actual[i] & 0xFF;
+        }
+        assertArrayEquals(expected, samples);
+    }
+
+    private static void assertClose(int[] expected, byte[] actual, int tolerance) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            int sample = actual[i] & 0xFF;
+            assertTrue("sample " + i + ": expected " + expected[i] + ", was " + sample,
+                    Math.abs(expected[i] - sample) <= tolerance);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of {@link GopCache}: which frames make up the cached GOP, parameter sets preceding it
+ * and dropping of the GOP at the memory limit.
+ */
+
+public class GopCacheTest {
+
+    private static final int FRAME_SIZE = 100;
+
+    private final VideoTrack track = new VideoTrack("video", 96);
+    private final ByteArrayPool pool = new ByteArrayPool(4);
+
+    @Test
+    public void keepsFramesFromLastSyncFrame() {
+        GopCache cache = new GopCache(GopCache.DEFAULT_MAX_SIZE, pool);
+        cache.add(frame(0, Frame.NON_SYNC_FRAME, 0));
+        assertEquals(0, cache.getFrameCount());
+        assertTrue(cache.snapshot().isEmpty());
+
+        cache.add(frame(40, Frame.CONFIG_FRAME, Frame.FLAG_HAS_CONFIG));
+        cache.add(frame(40, Frame.SYNC_FRAME, 0));
+        cache.add(frame(80, Frame.NON_SYNC_FRAME, 0));
+        //Nothing refers to it, it's not needed to catch up
+        cache.add(frame(120, Frame.NON_SYNC_FRAME, Frame.FLAG_NON_REFERENCE));
+        cache.add(frame(160, Frame.NON_SYNC_FRAME, 0));
+        //Parameter sets preceding the sync frame are kept aside
+        assertEquals(3, cache.getFrameCount());
+
+        //The sync frame doesn't carry parameter sets, the cached ones come first
+        assertEquals(timestamps(Frame.CONFIG_FRAME, 40, Frame.SYNC_FRAME, 40,
+                Frame.NON_SYNC_FRAME, 80, Frame.NON_SYNC_FRAME, 160), snapshot(cache));
+
+        //The next GOP replaces it, parameter sets are kept for it
+        cache.add(frame(200, Frame.SYNC_FRAME, 0));
+        cache.add(frame(240, Frame.NON_SYNC_FRAME, 0));
+        assertEquals(timestamps(Frame.CONFIG_FRAME, 40, Frame.SYNC_FRAME, 200, Frame.NON_SYNC_FRAME, 240), snapshot(cache));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        cache.clear();
+    }
+
+    @Test
+    public void syncFrameWithParameterSetsStandsAlone() {
+        GopCache cache = new GopCache(GopCache.DEFAULT_MAX_SIZE, pool);
+        cache.add(frame(0, Frame.CONFIG_FRAME, Frame.FLAG_HAS_CONFIG));
+        cache.add(frame(40, Frame.SYNC_FRAME, Frame.FLAG_HAS_CONFIG));
+        cache.add(frame(80, Frame.NON_SYNC_FRAME, 0));
+
+        assertEquals(timestamps(Frame.SYNC_FRAME, 40, Frame.NON_SYNC_FRAME, 80), snapshot(cache));
+        cache.clear();
+    }
+
+    @Test
+    public void dropsGopExceedingLimit() {
+        long before = GopCache.getTotalSize();
+        int frameMemory = ByteArrayPool.getClassSize(FRAME_SIZE);
+        //Parameter sets, the sync frame and one more frame fit
+        GopCache cache = new GopCache(frameMemory * 3L, pool);
+        cache.add(frame(0, Frame.CONFIG_FRAME, Frame.FLAG_HAS_CONFIG));
+        cache.add(frame(0, Frame.SYNC_FRAME, 0));
+        cache.add(frame(40, Frame.NON_SYNC_FRAME, 0));
+        assertEquals(2, cache.getFrameCount());
+        assertEquals(frameMemory * 3L, cache.getSize());
+        assertEquals(before + frameMemory * 3L, GopCache.getTotalSize());
+
+        //Catching up from an incomplete GOP would show broken pictures, it waits for the next one
+        cache.add(frame(80, Frame.NON_SYNC_FRAME, 0));
+        assertEquals(0, cache.getFrameCount());
+        assertTrue(cache.snapshot().isEmpty());
+        cache.add(frame(120, Frame.NON_SYNC_FRAME, 0));
+        assertEquals(0, cache.getFrameCount());
+
+        cache.add(frame(160, Frame.SYNC_FRAME, 0));
+        assertEquals(timestamps(Frame.CONFIG_FRAME, 0, Frame.SYNC_FRAME, 160), snapshot(cache));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(before, GopCache.getTotalSize());
+    }
+
+    private Frame frame(long timestamp, byte frameType, int flags) {
+        return new Frame(new byte[FRAME_SIZE], 0, FRAME_SIZE, timestamp, track, frameType, flags);
+    }
+
+    //Frame types and timestamps of the snapshot, the snapshot is released
+    private static List<Long> snapshot(GopCache cache) {
+        List<Long> result = new ArrayList<>();
+        for (Frame frame : cache.snapshot()) {
+            result.add((long) frame.frameType);
+            result.add(frame.timestamp);
+            frame.release();
+        }
+        return result;
+    }
+
+    private static List<Long> timestamps(long... typesAndTimestamps) {
+        List<Long> result = new ArrayList<>();
+        for (long value : typesAndTimestamps) {
+            result.add(value);
+        }
+        return result;
+    }
+
+}
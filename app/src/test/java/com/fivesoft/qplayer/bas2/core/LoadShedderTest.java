@@ -0,0 +1,131 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link LoadShedder} driven by a policy returning a chosen level: which frames are dropped
+ * at each level, skipping to the next key frame and the discontinuity flag of the first frame after it.
+ */
+
+public class LoadShedderTest {
+
+    private final VideoTrack track = new VideoTrack("video", 96);
+
+    private int level = LoadSheddingPolicy.LEVEL_NONE;
+    private long policyLatencyUs;
+    private final LoadShedder shedder = new LoadShedder((queueDepth, queueCapacity, decodeLatencyUs) -> {
+        policyLatencyUs = decodeLatencyUs;
+        return level;
+    });
+
+    @Test
+    public void acceptsAllFramesWithoutPressure() {
+        assertTrue(accept(frame(Frame.SYNC_FRAME, 0)));
+        assertTrue(accept(frame(Frame.NON_SYNC_FRAME, Frame.FLAG_NON_REFERENCE)));
+        assertTrue(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+        assertEquals(3, shedder.getAcceptedFrames());
+        assertEquals(LoadSheddingPolicy.LEVEL_NONE, shedder.getLevel());
+    }
+
+    @Test
+    public void dropsNonReferenceFramesFirst() {
+        level = LoadSheddingPolicy.LEVEL_DROP_NON_REFERENCE;
+        assertTrue(accept(frame(Frame.SYNC_FRAME, 0)));
+        assertFalse(accept(frame(Frame.NON_SYNC_FRAME, Frame.FLAG_NON_REFERENCE)));
+        Frame reference = frame(Frame.NON_SYNC_FRAME, 0);
+        assertTrue(accept(reference));
+        //References are intact
+        assertFalse(reference.hasFlag(Frame.FLAG_DISCONTINUITY));
+        //Configuration is never dropped
+        assertTrue(accept(frame(Frame.NON_SYNC_FRAME, Frame.FLAG_NON_REFERENCE | Frame.FLAG_HAS_CONFIG)));
+
+        assertEquals(1, shedder.getDroppedNonReference());
+        assertEquals(0, shedder.getKeyFrameSkips());
+    }
+
+    @Test
+    public void skipsToNextKeyFrame() {
+        assertTrue(accept(frame(Frame.SYNC_FRAME, 0)));
+        level = LoadSheddingPolicy.LEVEL_SKIP_TO_KEY_FRAME;
+        assertFalse(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+
+        //Everything till the key frame is dropped, even without pressure
+        level = LoadSheddingPolicy.LEVEL_NONE;
+        assertFalse(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+        assertFalse(accept(frame(Frame.NON_SYNC_FRAME, Frame.FLAG_NON_REFERENCE)));
+        Frame config = frame(Frame.CONFIG_FRAME, Frame.FLAG_HAS_CONFIG);
+        assertTrue(accept(config));
+        assertTrue(config.hasFlag(Frame.FLAG_DISCONTINUITY));
+
+        assertTrue(accept(frame(Frame.SYNC_FRAME, 0)));
+        Frame next = frame(Frame.NON_SYNC_FRAME, 0);
+        assertTrue(accept(next));
+        assertFalse(next.hasFlag(Frame.FLAG_DISCONTINUITY));
+
+        assertEquals(1, shedder.getKeyFrameSkips());
+        assertEquals(3, shedder.getDroppedSkipping());
+    }
+
+    @Test
+    public void recoveryPointEndsSkipping() {
+        level = LoadSheddingPolicy.LEVEL_SKIP_TO_KEY_FRAME;
+        assertFalse(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+        level = LoadSheddingPolicy.LEVEL_NONE;
+
+        //References of the recovery point are missing
+        Frame recoveryPoint = frame(Frame.NON_SYNC_FRAME, Frame.FLAG_RECOVERY_POINT);
+        assertTrue(accept(recoveryPoint));
+        assertTrue(recoveryPoint.hasFlag(Frame.FLAG_DISCONTINUITY));
+        assertTrue(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+    }
+
+    @Test
+    public void rejectedReferenceFrameStartsSkipping() {
+        assertTrue(accept(frame(Frame.SYNC_FRAME, 0)));
+        //Lost non-reference frames don't matter
+        shedder.onRejected(frame(Frame.NON_SYNC_FRAME, Frame.FLAG_NON_REFERENCE));
+        assertTrue(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+
+        shedder.onRejected(frame(Frame.NON_SYNC_FRAME, 0));
+        assertFalse(accept(frame(Frame.NON_SYNC_FRAME, 0)));
+        Frame sync = frame(Frame.SYNC_FRAME, 0);
+        assertTrue(accept(sync));
+        assertTrue(sync.hasFlag(Frame.FLAG_DISCONTINUITY));
+
+        assertEquals(2, shedder.getRejectedFrames());
+        assertEquals(1, shedder.getKeyFrameSkips());
+    }
+
+    @Test
+    public void passesAverageDecodeLatencyToPolicy() {
+        accept(frame(Frame.SYNC_FRAME, 0));
+        assertEquals(0, policyLatencyUs);
+
+        shedder.onDecoded(TimeUnit.MILLISECONDS.toNanos(8));
+        assertEquals(8000, shedder.getDecodeLatencyUs());
+        shedder.onDecoded(TimeUnit.MILLISECONDS.toNanos(16));
+        //Moving average, 1/8 of the difference
+        assertEquals(9000, shedder.getDecodeLatencyUs());
+
+        accept(frame(Frame.NON_SYNC_FRAME, 0));
+        assertEquals(9000, policyLatencyUs);
+    }
+
+    private boolean accept(Frame frame) {
+        return shedder.accept(frame, 0, 16);
+    }
+
+    private Frame frame(byte frameType, int flags) {
+        return new Frame(new byte[1], 0, 1, 0, track, frameType, flags);
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Playout delay learned by {@link SyncClock} on simulated networks, compared with a fixed delay.<br>
+ * <p>
+ *     Not a unit test, run its {@link #main(String[])}: {@code PlayoutDelaySimulation [seconds per case]}.
+ *     A 25 fps camera is played on a virtual clock, frames are shown as soon as they arrive (no decoding time).
+ *     A LAN delivers frames within 2 - 6 ms, a 4G link within 40 ms with a normal deviation of 25 ms
+ *     and 3% of frames held up by 100 - 300 ms (retransmissions, handovers), delaying the following ones.
+ *     Frames shown later than {@link SyncClock#MAX_VIDEO_OFFSET_NANOS} are dropped and counted as stutter.
+ *     The last case is a 4G link which calms down half way through, the delay is printed every 10 seconds.
+ * </p>
+ */
+
+public class PlayoutDelaySimulation {
+
+    private static final int FPS = 25;
+    private static final long FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / FPS;
+    //Frames of the first 10 seconds, while the delay is learned, are not counted
+    private static final int WARM_UP_FRAMES = 10 * FPS;
+
+    private static long now;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+
+        run("LAN, adaptive 30 - 500 ms", seconds, PlayoutDelaySimulation::lan, 30, 500, false);
+        run("LAN, fixed 500 ms", seconds, PlayoutDelaySimulation::lan, 500, 500, false);
+        run("4G, adaptive 30 - 500 ms", seconds, PlayoutDelaySimulation::mobile, 30, 500, false);
+        run("4G, fixed 30 ms", seconds, PlayoutDelaySimulation::mobile, 30, 30, false);
+        run("4G, fixed 100 ms", seconds, PlayoutDelaySimulation::mobile, 100, 100, false);
+        run("4G calming down, adaptive", seconds,
+                (frame, random) -> frame < seconds * FPS / 2 ? mobile(frame, random) : lan(frame, random), 30, 500, true);
+    }
+
+    private interface Network {
+
+        //Transit time of the frame in milliseconds
+        long transitMs(int frame, Random random);
+
+    }
+
+    private static long lan(int frame, Random random) {
+        return 2 + random.nextInt(5);
+    }
+
+    private static long mobile(int frame, Random random) {
+        long transit = 40 + (long) Math.abs(random.nextGaussian() * 25);
+        if (random.nextInt(100) < 3) {
+            transit += 100 + random.nextInt(200);
+        }
+        return transit;
+    }
+
+    private static void run(String name, int seconds, Network network, long minMs, long maxMs, boolean trace) {
+        now = TimeUnit.SECONDS.toNanos(1);
+        SyncClock clock = new SyncClock(() -> now, TimeUnit.MILLISECONDS.toMicros(minMs));
+        clock.setPlayoutDelayLimits(TimeUnit.MILLISECONDS.toMicros(minMs), TimeUnit.MILLISECONDS.toMicros(maxMs));
+        VideoTrack track = new VideoTrack("video", 96);
+        PresentationClock presentation = clock.getPresentationClock(track);
+
+        Random random = new Random(1);
+        long start = now;
+        long lastArrival = start;
+        long delaySum = 0;
+        int counted = 0;
+        int late = 0;
+        for (int frame = 0; frame < seconds * FPS; frame++) {
+            //Frames of one connection arrive in order, a held up frame holds up the following ones
+            long arrival = start + frame * FRAME_INTERVAL_NANOS + TimeUnit.MILLISECONDS.toNanos(network.transitMs(frame, random));
+            lastArrival = Math.max(lastArrival, arrival);
+            now = lastArrival;
+
+            long timestampUs = TimeUnit.NANOSECONDS.toMicros(frame * FRAME_INTERVAL_NANOS);
+            clock.onSample(track, timestampUs);
+            long renderTime = presentation.getRenderTimeNanos(timestampUs);
+            if (frame >= WARM_UP_FRAMES) {
+                counted++;
+                delaySum += clock.getPlayoutDelayUs();
+                if (now - renderTime > presentation.getMaxLatenessNanos()) {
+                    late++;
+                }
+            }
+            if (trace && frame % (10 * FPS) == 0) {
+                System.out.printf("    %3d s: delay %3d ms, jitter %3d ms%n", frame / FPS,
+                        TimeUnit.MICROSECONDS.toMillis(clock.getPlayoutDelayUs()), TimeUnit.MICROSECONDS.toMillis(clock.getJitterUs(track)));
+            }
+        }
+        System.out.printf("%-30s mean delay %4d ms   dropped late %5.2f%% of frames%n",
+                name, TimeUnit.MICROSECONDS.toMillis(delaySum / Math.max(1, counted)), 100.0 * late / Math.max(1, counted));
+    }
+
+}
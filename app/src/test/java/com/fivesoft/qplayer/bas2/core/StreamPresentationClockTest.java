@@ -0,0 +1,113 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link StreamPresentationClock} on a virtual time source.
+ */
+
+public class StreamPresentationClockTest {
+
+    private static final long DELAY_US = TimeUnit.MILLISECONDS.toMicros(30);
+    private static final long DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(DELAY_US);
+
+    private long now = TimeUnit.SECONDS.toNanos(100);
+    private final StreamPresentationClock clock = new StreamPresentationClock(() -> now, DELAY_US);
+
+    @Test
+    public void firstFrameIsAnchoredAfterDelay() {
+        assertEquals(now, clock.nanoTime());
+        assertEquals(now + DELAY_NANOS, clock.getRenderTimeNanos(us(5000)));
+    }
+
+    @Test
+    public void framesArePacedByTimestamps() {
+        long anchor = now + DELAY_NANOS;
+        assertEquals(anchor, clock.getRenderTimeNanos(us(5000)));
+
+        //Arrival doesn't matter, frames decoded in a burst or with a delay are shown 40 ms apart
+        assertEquals(anchor + nanos(40), clock.getRenderTimeNanos(us(5040)));
+        now += nanos(5);
+        assertEquals(anchor + nanos(80), clock.getRenderTimeNanos(us(5080)));
+        now += nanos(100);
+        assertEquals(anchor + nanos(120), clock.getRenderTimeNanos(us(5120)));
+        assertEquals(anchor + nanos(200), clock.getRenderTimeNanos(us(5200)));
+    }
+
+    @Test
+    public void lateFrameKeepsItsTime() {
+        long anchor = now + DELAY_NANOS;
+        clock.getRenderTimeNanos(us(0));
+
+        //Late, but not stalled: the time is in the past, the frame is dropped or shown right away by the caller
+        now = anchor + nanos(240);
+        assertEquals(anchor + nanos(40), clock.getRenderTimeNanos(us(40)));
+        //Timing is kept, the following frame is not shifted
+        assertEquals(anchor + nanos(80), clock.getRenderTimeNanos(us(80)));
+    }
+
+    @Test
+    public void notIncreasingTimestampIsShownNow() {
+        clock.getRenderTimeNanos(us(1000));
+        now += nanos(10);
+        assertEquals(now, clock.getRenderTimeNanos(us(1000)));
+        assertEquals(now, clock.getRenderTimeNanos(us(960)));
+        //Pacing continues from the last increasing timestamp
+        assertEquals(now - nanos(10) + DELAY_NANOS + nanos(40), clock.getRenderTimeNanos(us(1040)));
+    }
+
+    @Test
+    public void reanchorsAfterStall() {
+        clock.getRenderTimeNanos(us(0));
+
+        //Network stalled for a second, the next frame is more than 500 ms late
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertEquals(now + DELAY_NANOS, clock.getRenderTimeNanos(us(40)));
+        assertEquals(now + DELAY_NANOS + nanos(40), clock.getRenderTimeNanos(us(80)));
+    }
+
+    @Test
+    public void reanchorsWhenFrameIsTooEarly() {
+        clock.getRenderTimeNanos(us(0));
+
+        //Stream runs faster than real time, a frame scheduled 2 s ahead is shown after the delay instead
+        now += nanos(40);
+        assertEquals(now + DELAY_NANOS, clock.getRenderTimeNanos(us(2000)));
+        assertEquals(now + DELAY_NANOS + nanos(40), clock.getRenderTimeNanos(us(2040)));
+    }
+
+    @Test
+    public void reanchorsOnTimestampJump() {
+        clock.getRenderTimeNanos(us(1000));
+
+        //Source restarted, timestamps jumped back (or ahead) by more than 5 s
+        now += nanos(40);
+        assertEquals(now + DELAY_NANOS, clock.getRenderTimeNanos(us(100_000)));
+        now += nanos(40);
+        assertEquals(now + DELAY_NANOS, clock.getRenderTimeNanos(us(10)));
+        assertEquals(now + DELAY_NANOS + nanos(40), clock.getRenderTimeNanos(us(50)));
+    }
+
+    @Test
+    public void resetReanchors() {
+        clock.getRenderTimeNanos(us(0));
+        clock.getRenderTimeNanos(us(40));
+
+        now += nanos(300);
+        clock.reset();
+        assertEquals(now + DELAY_NANOS, clock.getRenderTimeNanos(us(80)));
+    }
+
+    private static long us(long milliseconds) {
+        return TimeUnit.MILLISECONDS.toMicros(milliseconds);
+    }
+
+    private static long nanos(long milliseconds) {
+        return TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+}
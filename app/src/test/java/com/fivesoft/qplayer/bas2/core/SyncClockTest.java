@@ -0,0 +1,364 @@
+package com.fivesoft.qplayer.bas2.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+import com.fivesoft.qplayer.track.AudioTrack;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link SyncClock} on a virtual time source, with an audio sink whose playback position
+ * runs with the virtual time: alignment of tracks, video following audio, dropping and slipping of late video,
+ * and drift correction.
+ */
+
+public class SyncClockTest {
+
+    private static final long START_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DELAY_US = TimeUnit.MILLISECONDS.toMicros(30);
+    private static final long DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(DELAY_US);
+
+    //Audio packets of 20 ms, video at 30 fps, audio is heard 60 ms after arrival
+    private static final int AUDIO_INTERVAL_MS = 20;
+    private static final int VIDEO_INTERVAL_MS = 33;
+    private static final int AUDIO_LATENCY_MS = 60;
+    private static final long AUDIO_START_US = 1_000_000;
+    private static final long VIDEO_START_US = 50_000_000;
+
+    private final AudioTrack audioTrack = new AudioTrack("a", 0);
+    private final VideoTrack videoTrack = new VideoTrack("v", 96);
+
+    private long now = START_NANOS;
+    private final SyncClock clock = new SyncClock(() -> now, DELAY_US);
+    private final FakeSink sink = new FakeSink();
+
+    @Test
+    public void alignsByArrivalUntilSenderReports() {
+        //Timestamps of the tracks have unrelated origins, video arrives 300 ms after audio
+        clock.onSample(audioTrack, 1_000_000);
+        now += nanos(300);
+        clock.onSample(videoTrack, 50_000_000);
+        assertEquals(300_000, clock.toTimelineUs(videoTrack, 50_000_000) - clock.toTimelineUs(audioTrack, 1_000_000));
+
+        //Report of one track isn't enough
+        clock.onSenderReport(audioTrack, 9_000_000_000L, 1_100_000);
+        assertEquals(300_000, clock.toTimelineUs(videoTrack, 50_000_000) - clock.toTimelineUs(audioTrack, 1_000_000));
+
+        //Same sender time is the same time on the timeline, whenever the samples have arrived
+        clock.onSenderReport(videoTrack, 9_000_000_000L, 50_050_000);
+        assertEquals(clock.toTimelineUs(audioTrack, 1_100_000), clock.toTimelineUs(videoTrack, 50_050_000));
+        assertEquals(clock.toTimelineUs(audioTrack, 1_200_000), clock.toTimelineUs(videoTrack, 50_150_000));
+    }
+
+    @Test
+    public void videoFollowsAudio() {
+        clock.setAudioOutput(audioTrack, sink);
+        PresentationClock video = clock.getPresentationClock(videoTrack);
+        assertEquals(SyncClock.MAX_VIDEO_OFFSET_NANOS, video.getMaxLatenessNanos());
+
+        //Video is decoded 20 ms after arrival, it's shown with audio which arrived at the same time
+        int drops = 0;
+        for (int ms = 0; ms < 10_000; ms++) {
+            step(ms);
+            int frameMs = ms - 20;
+            if (frameMs >= 0 && frameMs % VIDEO_INTERVAL_MS == 0) {
+                long renderTime = video.getRenderTimeNanos(videoUs(frameMs));
+                if (ms > 100) {
+                    long heardWithAudio = START_NANOS + nanos(frameMs + AUDIO_LATENCY_MS);
+                    assertTrue("frame " + frameMs + " off by " + (renderTime - heardWithAudio) + " ns",
+                            Math.abs(renderTime - heardWithAudio) <= TimeUnit.MILLISECONDS.toNanos(1));
+                    if (isDropped(video, renderTime)) {
+                        drops++;
+                    }
+                }
+            }
+        }
+        assertTrue(clock.isAudioMaster());
+        assertEquals(0, drops);
+        assertEquals(0, clock.getVideoSlips());
+    }
+
+    @Test
+    public void lateVideoIsDroppedThenSlips() {
+        clock.setAudioOutput(audioTrack, sink);
+        PresentationClock video = clock.getPresentationClock(videoTrack);
+        Random random = new Random(1);
+
+        //In sync for 1 s, then decoding takes 45 - 55 ms longer than audio latency
+        long droppingSince = -1;
+        long slippedAt = -1;
+        int shownAfterSlip = 0;
+        int ms = 0;
+        for (int frameMs = 0; frameMs < 5000; frameMs += VIDEO_INTERVAL_MS) {
+            boolean late = frameMs > 1000;
+            int decodedMs = frameMs + (late ? AUDIO_LATENCY_MS + 45 + random.nextInt(11) : 20);
+            while (ms <= decodedMs) {
+                step(ms++);
+            }
+            long renderTime = video.getRenderTimeNanos(videoUs(frameMs));
+            boolean dropped = isDropped(video, renderTime);
+            if (!late) {
+                assertFalse(dropped);
+            } else if (slippedAt < 0) {
+                if (!dropped) {
+                    //Dropping everything for a second isn't worth being in sync
+                    slippedAt = now;
+                    assertTrue(droppingSince >= 0);
+                    long droppingNanos = slippedAt - droppingSince;
+                    assertTrue("slipped after " + droppingNanos + " ns", droppingNanos > TimeUnit.SECONDS.toNanos(1)
+                            && droppingNanos <= TimeUnit.SECONDS.toNanos(1) + nanos(2 * VIDEO_INTERVAL_MS));
+                } else if (droppingSince < 0) {
+                    droppingSince = now;
+                }
+            } else {
+                //The jitter of the decoder is within the allowed offset
+                assertFalse("frame " + frameMs + " dropped after slipping", dropped);
+                shownAfterSlip++;
+            }
+        }
+        assertTrue(slippedAt > 0);
+        assertTrue(shownAfterSlip > 50);
+        assertEquals(1, clock.getVideoSlips());
+    }
+
+    @Test
+    public void videoLaterThanAudioSlipsAtOnce() {
+        clock.setAudioOutput(audioTrack, sink);
+        PresentationClock video = clock.getPresentationClock(videoTrack);
+
+        //Video is decoded 150 ms after arrival, 90 ms later than audio is heard
+        int drops = 0;
+        int shown = 0;
+        for (int ms = 0; ms < 5000; ms++) {
+            step(ms);
+            int frameMs = ms - 150;
+            if (frameMs >= 0 && frameMs % VIDEO_INTERVAL_MS == 0) {
+                long renderTime = video.getRenderTimeNanos(videoUs(frameMs));
+                assertTrue("early by " + (renderTime - now) + " ns", renderTime - now <= SyncClock.MAX_VIDEO_OFFSET_NANOS);
+                if (isDropped(video, renderTime)) {
+                    drops++;
+                } else {
+                    shown++;
+                }
+            }
+        }
+        assertEquals(0, drops);
+        assertTrue(shown > 100);
+        assertEquals(1, clock.getVideoSlips());
+    }
+
+    @Test
+    public void correctsFasterSender() {
+        //The device plays 500 ppm slower than the sender sends
+        assertDriftCorrected(1 / 1.0005, 500);
+    }
+
+    @Test
+    public void correctsSlowerSender() {
+        assertDriftCorrected(1 / 0.9995, -500);
+    }
+
+    @Test
+    public void audioOutputBuffersPlayoutDelay() {
+        clock.setAudioOutput(audioTrack, sink);
+        assertEquals(DELAY_US, sink.playoutDelayUs);
+        for (int ms = 0; ms < 3000; ms++) {
+            step(ms);
+        }
+        long settledLatencyUs = getAudioLatencyUs();
+
+        //Small changes aren't passed
+        clock.setPlayoutDelayUs(DELAY_US + 5000);
+        assertEquals(DELAY_US, sink.playoutDelayUs);
+
+        //Longer delay is buffered up at once, drift correction keeps the new latency
+        clock.setPlayoutDelayLimits(us(200), us(200));
+        assertEquals(us(200), sink.playoutDelayUs);
+        for (int ms = 3000; ms < 6000; ms++) {
+            step(ms);
+        }
+        assertEquals(settledLatencyUs + us(170), getAudioLatencyUs(), 1000);
+        assertEquals(0, clock.getRateAdjustmentPpm());
+
+        //Shorter one is caught up with by playing faster, nothing is skipped
+        clock.setPlayoutDelayLimits(us(100), us(100));
+        assertEquals(us(100), sink.playoutDelayUs);
+        for (int ms = 6000; ms < 7000; ms++) {
+            step(ms);
+        }
+        assertEquals(SyncClock.MAX_RATE_ADJUSTMENT_PPM, clock.getRateAdjustmentPpm());
+        for (int ms = 7000; ms < 120_000; ms++) {
+            step(ms);
+        }
+        assertEquals(settledLatencyUs + us(70), getAudioLatencyUs(), 2000);
+    }
+
+    @Test
+    public void withoutAudioFollowsVideo() {
+        PresentationClock video = clock.getPresentationClock(videoTrack);
+        clock.onSample(videoTrack, 5_000_000);
+        assertFalse(clock.isAudioMaster());
+
+        //Like StreamPresentationClock: anchored to the first frame after the delay, paced by timestamps
+        long first = video.getRenderTimeNanos(5_000_000);
+        assertEquals(now + DELAY_NANOS, first);
+        now += nanos(10);
+        assertEquals(first + nanos(33), video.getRenderTimeNanos(5_033_000));
+
+        //Re-anchored after a stall
+        now += TimeUnit.SECONDS.toNanos(2);
+        assertEquals(now + DELAY_NANOS, video.getRenderTimeNanos(5_066_000));
+
+        //And after reset
+        video.reset();
+        now += 1000;
+        assertEquals(now + DELAY_NANOS, video.getRenderTimeNanos(1_000));
+    }
+
+    //Plays audio for 5 minutes, latency must stay where it has settled
+    private void assertDriftCorrected(double deviceSpeed, int expectedPpm) {
+        sink.deviceSpeed = deviceSpeed;
+        clock.setAudioOutput(audioTrack, sink);
+        Random random = new Random(1);
+
+        long settledLatencyUs = 0;
+        long maxErrorUs = 0;
+        int packets = (int) (TimeUnit.MINUTES.toMillis(5) / AUDIO_INTERVAL_MS);
+        for (int i = 0; i < packets; i++) {
+            //Arrival jitter of up to 5 ms
+            now = START_NANOS + nanos((long) i * AUDIO_INTERVAL_MS) + random.nextInt(5_000_000);
+            long timestampUs = AUDIO_START_US + TimeUnit.MILLISECONDS.toMicros((long) i * AUDIO_INTERVAL_MS);
+            clock.onSample(audioTrack, timestampUs);
+            if (i == 3) {
+                sink.start(AUDIO_START_US);
+            }
+            long latencyUs = timestampUs - sink.getPlaybackPositionUs();
+            if (i == 200) {
+                settledLatencyUs = latencyUs;
+            } else if (i > 200) {
+                maxErrorUs = Math.max(maxErrorUs, Math.abs(latencyUs - settledLatencyUs));
+            }
+        }
+        //Without correction latency would change by 150 ms
+        assertTrue("latency off by " + maxErrorUs + " us", maxErrorUs < TimeUnit.MILLISECONDS.toMicros(15));
+        int ppm = clock.getRateAdjustmentPpm();
+        assertTrue("rate adjusted by " + ppm + " ppm", Math.abs(ppm - expectedPpm) <= 100);
+    }
+
+    //Advances the virtual time to ms after start and delivers samples arrived at that time
+    private void step(int ms) {
+        now = START_NANOS + nanos(ms);
+        if (ms % AUDIO_INTERVAL_MS == 0) {
+            clock.onSample(audioTrack, AUDIO_START_US + TimeUnit.MILLISECONDS.toMicros(ms));
+        }
+        if (ms == AUDIO_LATENCY_MS) {
+            sink.start(AUDIO_START_US);
+        }
+        if (ms % VIDEO_INTERVAL_MS == 0) {
+            clock.onSample(videoTrack, videoUs(ms));
+        }
+    }
+
+    //Time from arrival of the last audio packet to playback
+    private long getAudioLatencyUs() {
+        int ms = (int) TimeUnit.NANOSECONDS.toMillis(now - START_NANOS);
+        long lastUs = AUDIO_START_US + TimeUnit.MILLISECONDS.toMicros(ms - ms % AUDIO_INTERVAL_MS);
+        return lastUs - sink.getPlaybackPositionUs();
+    }
+
+    private boolean isDropped(PresentationClock video, long renderTime) {
+        return now - renderTime > video.getMaxLatenessNanos();
+    }
+
+    private static long videoUs(int ms) {
+        return VIDEO_START_US + TimeUnit.MILLISECONDS.toMicros(ms);
+    }
+
+    private static long us(long milliseconds) {
+        return TimeUnit.MILLISECONDS.toMicros(milliseconds);
+    }
+
+    private static long nanos(long milliseconds) {
+        return TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+    /*
+     * Sink playing at the given speed relative to the virtual time, adjusted by the rate adjustment.
+     * It pauses to buffer a longer playout delay.
+     */
+
+    private final class FakeSink implements AudioSink {
+
+        double deviceSpeed = 1;
+        private long positionUs = UNKNOWN_POSITION;
+        private double exactPositionUs;
+        private long lastNanos;
+        private int ppm;
+        long playoutDelayUs;
+        //Paused to buffer a longer delay till this time
+        private long resumeNanos;
+
+        @Override
+        public void configure(int sampleRate, int channelCount) {
+            //Any format
+        }
+
+        @Override
+        public int write(@NonNull short[] pcm, int off, int len, long timestampUs) {
+            return len;
+        }
+
+        @Override
+        public void flush() {
+            //Position isn't affected
+        }
+
+        void start(long timestampUs) {
+            positionUs = timestampUs;
+            exactPositionUs = timestampUs;
+            lastNanos = now;
+        }
+
+        private void advance() {
+            if (positionUs == UNKNOWN_POSITION)
+                return;
+            long playedNanos = Math.max(0, now - Math.max(lastNanos, resumeNanos));
+            exactPositionUs += playedNanos / 1000.0 * deviceSpeed * (1 + ppm / 1e6);
+            lastNanos = now;
+            positionUs = (long) exactPositionUs;
+        }
+
+        @Override
+        public long getPlaybackPositionUs() {
+            advance();
+            return now < resumeNanos ? UNKNOWN_POSITION : positionUs;
+        }
+
+        @Override
+        public void setPlaybackRateAdjustment(int ppm) {
+            advance();
+            this.ppm = ppm;
+        }
+
+        @Override
+        public long setPlayoutDelayUs(long delayUs) {
+            advance();
+            if (delayUs > playoutDelayUs && positionUs != UNKNOWN_POSITION) {
+                resumeNanos = now + TimeUnit.MICROSECONDS.toNanos(delayUs - playoutDelayUs);
+            }
+            playoutDelayUs = delayUs;
+            return delayUs;
+        }
+
+    }
+
+}
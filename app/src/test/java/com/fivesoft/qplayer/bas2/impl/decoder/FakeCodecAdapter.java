@@ -0,0 +1,251 @@
+package com.fivesoft.qplayer.bas2.impl.decoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CodecAdapter} simulating a codec on a plain JVM, for unit tests of decoder logic.<br>
+ * <p>
+ *     The fake has a fixed number of input buffers. Queued input is "decoded" into an output buffer
+ *     after {@code latency} more input buffers have been queued (0 outputs it right away),
+ *     its input buffer is freed once the output is produced. Output buffer is the input buffer,
+ *     so "decoded" data equals the queued data (e.g. PCM passed through). Queued data, rendered presentation times
+ *     (and requested render times) and flushes are recorded for assertions.
+ *     Methods are synchronized, as input and output are handled by different threads.
+ * </p>
+ * <p>
+ *     Android classes are stubs on a JVM, {@link MediaCodec.BufferInfo} fields are therefore
+ *     assigned directly, without {@link MediaCodec.BufferInfo#set(int, int, long, int)}.
+ * </p>
+ */
+
+public class FakeCodecAdapter implements CodecAdapter {
+
+    public final List<byte[]> queuedData = new ArrayList<>();
+    public final List<Long> queuedTimes = new ArrayList<>();
+    public final List<Long> renderedTimes = new ArrayList<>();
+    public final List<Long> droppedTimes = new ArrayList<>();
+    public final List<Long> renderTimesNs = new ArrayList<>();
+    public int maxSupportedInstances;
+    public int flushCount;
+    public boolean started;
+    public boolean released;
+
+    private final ByteBuffer[] buffers;
+    private final int latency;
+
+    private final ArrayDeque<Integer> freeInputs = new ArrayDeque<>();
+    //Input buffers being decoded and presentation times of their data
+    private final ArrayDeque<Integer> decodingInputs = new ArrayDeque<>();
+    private final ArrayDeque<Long> decodingTimes = new ArrayDeque<>();
+    private final ArrayDeque<Integer> decodingSizes = new ArrayDeque<>();
+    //Decoded output: index (same as input buffer index) and presentation time
+    private final ArrayDeque<Integer> outputs = new ArrayDeque<>();
+    private final ArrayDeque<Long> outputTimes = new ArrayDeque<>();
+    private final ArrayDeque<Integer> outputSizes = new ArrayDeque<>();
+    //Outputs dequeued by the decoder, not released yet
+    private final ArrayList<Integer> dequeuedIndices = new ArrayList<>();
+    private final ArrayList<Long> dequeuedTimes = new ArrayList<>();
+
+    /**
+     * Creates fake codec.
+     * @param inputBufferCount number of input buffers
+     * @param inputBufferSize size of each input buffer
+     * @param latency number of input buffers queued after a buffer, before it's output
+     */
+
+    public FakeCodecAdapter(int inputBufferCount, int inputBufferSize, int latency) {
+        this.buffers = new ByteBuffer[inputBufferCount];
+        for (int i = 0; i < inputBufferCount; i++) {
+            buffers[i] = ByteBuffer.allocate(inputBufferSize);
+        }
+        this.latency = latency;
+    }
+
+    @Override
+    public synchronized void configure(@Nullable MediaFormat format, @Nullable Surface surface) {
+        //Nothing to configure
+    }
+
+    @Override
+    public synchronized void start() {
+        started = true;
+        resetBuffers();
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        checkRunning();
+        await(freeInputs, timeoutUs);
+        Integer index = freeInputs.poll();
+        return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Nullable
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        return index >= 0 && index < buffers.length ? buffers[index] : null;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkRunning();
+        byte[] data = new byte[size];
+        System.arraycopy(buffers[index].array(), offset, data, 0, size);
+        queuedData.add(data);
+        queuedTimes.add(presentationTimeUs);
+
+        decodingInputs.add(index);
+        decodingTimes.add(presentationTimeUs);
+        //Output data starts at offset 0 of the buffer
+        System.arraycopy(data, 0, buffers[index].array(), 0, size);
+        decodingSizes.add(size);
+        while (decodingInputs.size() > latency) {
+            outputs.add(decodingInputs.poll());
+            outputTimes.add(decodingTimes.poll());
+            outputSizes.add(decodingSizes.poll());
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        checkRunning();
+        await(outputs, timeoutUs);
+        Integer index = outputs.poll();
+        if (index == null)
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+
+        long time = outputTimes.poll();
+        info.offset = 0;
+        info.size = Math.max(1, outputSizes.poll());
+        info.presentationTimeUs = time;
+        info.flags = 0;
+
+        //Fake output buffer has the index of its input buffer
+        dequeuedIndices.add(index);
+        dequeuedTimes.add(time);
+        return index;
+    }
+
+    @Nullable
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return dequeuedIndices.contains(index) ? buffers[index] : null;
+    }
+
+    @Nullable
+    @Override
+    public synchronized MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    /**
+     * Checks whether there's decoded output not released by the decoder yet.
+     * @return true if output is waiting to be dequeued or released
+     */
+
+    public synchronized boolean hasPendingOutput() {
+        return !outputs.isEmpty() || !dequeuedIndices.isEmpty();
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        checkRunning();
+        int i = dequeuedIndices.indexOf(index);
+        if (i < 0)
+            throw new IllegalStateException("Output buffer " + index + " not dequeued");
+
+        dequeuedIndices.remove(i);
+        long time = dequeuedTimes.remove(i);
+        (render ? renderedTimes : droppedTimes).add(time);
+        freeInputs.add(index);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, long renderTimeNs) {
+        releaseOutputBuffer(index, true);
+        renderTimesNs.add(renderTimeNs);
+    }
+
+    @Override
+    public synchronized void setOutputSurface(@Nullable Surface surface) {
+        //Output is not rendered anywhere
+    }
+
+    @Override
+    public synchronized void setParameters(@NonNull Bundle params) {
+        //Parameters are ignored
+    }
+
+    @Nullable
+    @Override
+    public synchronized MediaCodecInfo.VideoCapabilities getVideoCapabilities(@NonNull String mime) {
+        return null;
+    }
+
+    @Override
+    public synchronized int getMaxSupportedInstances(@NonNull String mime) {
+        return maxSupportedInstances;
+    }
+
+    @Override
+    public synchronized void flush() {
+        checkRunning();
+        flushCount++;
+        resetBuffers();
+    }
+
+    @Override
+    public synchronized void release() {
+        released = true;
+        started = false;
+        notifyAll();
+    }
+
+    private void resetBuffers() {
+        freeInputs.clear();
+        decodingInputs.clear();
+        decodingTimes.clear();
+        decodingSizes.clear();
+        outputs.clear();
+        outputTimes.clear();
+        outputSizes.clear();
+        dequeuedIndices.clear();
+        dequeuedTimes.clear();
+        for (int i = 0; i < buffers.length; i++) {
+            freeInputs.add(i);
+        }
+    }
+
+    //Waits (once) for the queue to be filled by the other thread
+    private void await(ArrayDeque<?> queue, long timeoutUs) {
+        if (queue.isEmpty() && timeoutUs != 0) {
+            try {
+                wait(Math.max(1, TimeUnit.MICROSECONDS.toMillis(timeoutUs)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            checkRunning();
+        }
+    }
+
+    private void checkRunning() {
+        if (!started || released)
+            throw new IllegalStateException("Codec not running");
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.audio.g711;
+
+import androidx.annotation.NonNull;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.decoder.AudioSink;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
+import com.fivesoft.qplayer.track.AudioTrack;
+
+import java.util.Random;
+
+/**
+ * Throughput of {@link G711Decoder}: table lookup alone and whole packets decoded to 8, 16, 44.1 and 48 kHz.<br>
+ * <p>
+ *     Not a unit test, run its {@link #main(String[])}: {@code G711Benchmark [seconds of audio]}.
+ *     Packets are 20 ms (160 samples), as sent by most cameras. Each case is warmed up first,
+ *     results are in input samples decoded per second (8000 per second of audio in real time).
+ * </p>
+ */
+
+public class G711Benchmark {
+
+    private static final int PACKET_SIZE = 160;
+    private static final int[] OUTPUT_RATES = {8000, 16000, 44100, 48000};
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+        int packets = seconds * G711Decoder.SAMPLE_RATE / PACKET_SIZE;
+
+        byte[] data = new byte[PACKET_SIZE];
+        new Random(1).nextBytes(data);
+        short[] pcm = new short[PACKET_SIZE];
+
+        for (int encoding : new int[]{G711Decoder.ENCODING_MU_LAW, G711Decoder.ENCODING_A_LAW}) {
+            String name = encoding == G711Decoder.ENCODING_MU_LAW ? "PCMU" : "PCMA";
+            report(name + " table lookup", packets, () ->
+                    G711Decoder.decode(encoding, data, 0, PACKET_SIZE, pcm, 0));
+        }
+
+        AudioTrack track = new AudioTrack("audio", G711Decoder.PAYLOAD_TYPE_PCMU);
+        for (int rate : OUTPUT_RATES) {
+            G711Decoder decoder = new G711Decoder(track, MediaDecoder.FORMAT_RTP, PACKET_SIZE);
+            decoder.setOutputSampleRate(rate);
+            decoder.setOutput(new MediaDecoderOutput<>(new NullSink()));
+            Frame frame = new Frame(data, 0, PACKET_SIZE, 0, track, Frame.SYNC_FRAME);
+            report("PCMU decoder to " + rate + " Hz", packets, () -> {
+                try {
+                    decoder.decode(frame);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    private static void report(String name, int packets, Runnable task) {
+        for (int i = 0; i < packets; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            task.run();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double samples = (double) packets * PACKET_SIZE / seconds;
+        System.out.printf("%-32s %10.1f M samples/s %10.0f x real time%n",
+                name, samples / 1e6, samples / G711Decoder.SAMPLE_RATE);
+    }
+
+    /*
+     * Accepts and discards PCM.
+     */
+
+    private static final class NullSink implements AudioSink {
+
+        @Override
+        public void configure(int sampleRate, int channelCount) {
+            //Nothing to configure
+        }
+
+        @Override
+        public int write(@NonNull short[] pcm, int off, int len, long timestampUs) {
+            return len;
+        }
+
+        @Override
+        public void flush() {
+            //Nothing buffered
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fivesoft.qplayer.bas2.impl.decoder.FakeCodecAdapter;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link CodecPool} with {@link FakeCodecAdapter}s: codecs are reused only for the mime type
+ * and max size they have been configured for, least recently used idle codecs are released first.
+ */
+
+public class CodecPoolTest {
+
+    private static final String AVC = "video/avc";
+    private static final String HEVC = "video/hevc";
+
+    @Test
+    public void reusesCodecOfSameConfiguration() {
+        CodecPool pool = new CodecPool(2);
+        FakeCodecAdapter codec = codec();
+        pool.reserve(AVC);
+        pool.recycle(AVC, 1280, 736, codec);
+
+        assertNull(pool.acquire(HEVC, 1280, 736));
+        assertNull(pool.acquire(AVC, 1920, 1088));
+        assertSame(codec, pool.acquire(AVC, 1280, 736));
+        assertNull(pool.acquire(AVC, 1280, 736));
+
+        assertEquals(1, pool.getHits());
+        assertEquals(3, pool.getMisses());
+        assertEquals(0, pool.getIdleCount());
+        //Taken codec is still an instance
+        assertEquals(1, pool.getInstances(AVC));
+        assertFalse(codec.released);
+    }
+
+    @Test
+    public void acquiresMostRecentlyUsedCodecFirst() {
+        CodecPool pool = new CodecPool(2);
+        FakeCodecAdapter first = codec();
+        FakeCodecAdapter second = codec();
+        pool.recycle(AVC, 1280, 736, first);
+        pool.recycle(AVC, 1280, 736, second);
+
+        assertSame(second, pool.acquire(AVC, 1280, 736));
+        assertSame(first, pool.acquire(AVC, 1280, 736));
+    }
+
+    @Test
+    public void releasesLeastRecentlyUsedCodecWhenFull() {
+        CodecPool pool = new CodecPool(2);
+        FakeCodecAdapter[] codecs = {codec(), codec(), codec()};
+        for (FakeCodecAdapter codec : codecs) {
+            pool.reserve(AVC);
+        }
+        pool.recycle(AVC, 1280, 736, codecs[0]);
+        pool.recycle(HEVC, 1280, 736, codecs[1]);
+        pool.recycle(AVC, 1920, 1088, codecs[2]);
+
+        assertTrue(codecs[0].released);
+        assertFalse(codecs[1].released);
+        assertFalse(codecs[2].released);
+        assertEquals(2, pool.getIdleCount());
+        assertNull(pool.acquire(AVC, 1280, 736));
+        assertSame(codecs[2], pool.acquire(AVC, 1920, 1088));
+    }
+
+    @Test
+    public void releasesIdleCodecsOfTypeAtInstanceLimit() {
+        CodecPool pool = new CodecPool(2);
+        pool.setMaxInstances(AVC, 2);
+        FakeCodecAdapter avc = codec();
+        FakeCodecAdapter hevc = codec();
+        pool.reserve(AVC);
+        pool.reserve(AVC);
+        pool.reserve(HEVC);
+        pool.recycle(AVC, 1280, 736, avc);
+        pool.recycle(HEVC, 1280, 736, hevc);
+
+        //No room for another AVC codec, the idle one is released, the other type isn't affected
+        pool.reserve(AVC);
+        assertTrue(avc.released);
+        assertFalse(hevc.released);
+        assertEquals(2, pool.getInstances(AVC));
+        assertEquals(1, pool.getIdleCount());
+
+        pool.onReleased(AVC);
+        assertEquals(1, pool.getInstances(AVC));
+    }
+
+    @Test
+    public void releasesCodecsWithoutReuse() {
+        CodecPool pool = new CodecPool(0);
+        FakeCodecAdapter codec = codec();
+        pool.reserve(AVC);
+        pool.recycle(AVC, 1280, 736, codec);
+
+        assertTrue(codec.released);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getInstances(AVC));
+    }
+
+    @Test
+    public void clearReleasesIdleCodecs() {
+        CodecPool pool = new CodecPool(2);
+        FakeCodecAdapter first = codec();
+        FakeCodecAdapter second = codec();
+        pool.reserve(AVC);
+        pool.reserve(AVC);
+        pool.recycle(AVC, 1280, 736, first);
+        pool.recycle(AVC, 1920, 1088, second);
+
+        pool.clear();
+        assertTrue(first.released);
+        assertTrue(second.released);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getInstances(AVC));
+    }
+
+    private static FakeCodecAdapter codec() {
+        return new FakeCodecAdapter(1, 16, 0);
+    }
+
+}
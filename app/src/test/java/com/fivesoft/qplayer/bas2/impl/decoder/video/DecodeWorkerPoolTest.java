@@ -0,0 +1,109 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of {@link DecodeWorkerPool}: lanes process items in order, and closing a lane never hangs,
+ * neither from its own handler nor after the pool has been shut down.
+ */
+
+public class DecodeWorkerPoolTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void processesItemsOfLaneInOrder() throws InterruptedException {
+        DecodeWorkerPool pool = new DecodeWorkerPool(2);
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(5);
+        DecodeWorkerPool.Lane<Integer> lane = pool.newLane(8, item -> {
+            processed.add(item);
+            done.countDown();
+        }, item -> { });
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(lane.offer(i));
+        }
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), processed);
+        lane.close();
+        assertFalse(lane.offer(5));
+        pool.shutdown();
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void closeFromHandlerDoesNotWait() throws InterruptedException {
+        DecodeWorkerPool pool = new DecodeWorkerPool(1);
+        List<Integer> discarded = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch offered = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        AtomicReference<DecodeWorkerPool.Lane<Integer>> lane = new AtomicReference<>();
+        lane.set(pool.newLane(8, item -> {
+            try {
+                offered.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            //E.g. a decoder released by its frame listener
+            lane.get().close();
+            closed.countDown();
+        }, discarded::add));
+
+        assertTrue(lane.get().offer(1));
+        assertTrue(lane.get().offer(2));
+        offered.countDown();
+        closed.await();
+
+        //The waiting item is discarded, closing from another thread waits for the handler to return
+        lane.get().close();
+        assertEquals(Collections.singletonList(2), discarded);
+        pool.shutdown();
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void rejectsItemsAfterShutdown() throws InterruptedException {
+        DecodeWorkerPool pool = new DecodeWorkerPool(1);
+        List<Integer> discarded = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        DecodeWorkerPool.Lane<Integer> lane = pool.newLane(8, item -> {
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, discarded::add);
+
+        assertTrue(lane.offer(1));
+        started.await();
+        assertTrue(lane.offer(2));
+        assertTrue(lane.offer(3));
+        pool.shutdown();
+        proceed.countDown();
+
+        //Items which can't be scheduled anymore are discarded, the lane isn't left scheduled
+        lane.close();
+        assertEquals(Arrays.asList(2, 3), discarded);
+
+        //An item rejected by the shut down pool stays with the caller
+        DecodeWorkerPool.Lane<Integer> another = pool.newLane(8, item -> { }, discarded::add);
+        assertFalse(another.offer(4));
+        assertEquals(0, another.size());
+        another.close();
+        assertEquals(Arrays.asList(2, 3), discarded);
+    }
+
+}
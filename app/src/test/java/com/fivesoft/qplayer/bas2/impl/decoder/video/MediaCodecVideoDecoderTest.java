@@ -0,0 +1,489 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+
+import com.fivesoft.qplayer.bas2.Frame;
+import com.fivesoft.qplayer.bas2.core.StreamPresentationClock;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoder;
+import com.fivesoft.qplayer.bas2.decoder.MediaDecoderOutput;
+import com.fivesoft.qplayer.bas2.impl.decoder.CodecAdapter;
+import com.fivesoft.qplayer.bas2.impl.decoder.FakeCodecAdapter;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.h264.H264Decoder;
+import com.fivesoft.qplayer.track.VideoTrack;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Tests of {@link MediaCodecVideoDecoder} running on {@link FakeCodecAdapter}.<br>
+ * <p>
+ *     A baseline H.264 stream (parameter sets, an IDR picture and P pictures, one slice each)
+ *     is decoded by {@link H264Decoder}. The fake codec outputs a picture after {@code latency}
+ *     more pictures have been queued and frees its input buffer when the output thread of the decoder
+ *     has released the output, so busy input buffers are simulated by few buffers and a high latency.
+ * </p>
+ */
+
+public class MediaCodecVideoDecoderTest {
+
+    //Max time to wait for the output thread
+    private static final long TIMEOUT_MS = 2000;
+
+    private final VideoTrack track = new VideoTrack("video", 96);
+    private final List<FakeCodecAdapter> codecs = new ArrayList<>();
+    private H264Decoder decoder;
+
+    @After
+    public void tearDown() {
+        if (decoder != null) {
+            decoder.release();
+        }
+    }
+
+    @Test
+    public void referenceFramesWaitForBusyInputBuffers() throws Exception {
+        //Two buffers, a picture is output when the next one is queued: each frame finds its buffer busy
+        //till the output thread releases the previous picture
+        PatientCodecAdapter codec = new PatientCodecAdapter(2, 1);
+        decoder = createDecoder(() -> codec);
+        decoder.setOutput(new MediaDecoderOutput<>(createSurface()));
+
+        List<Frame> frames = createStream(0, 50);
+        for (Frame frame : frames) {
+            int action = decoder.decode(frame);
+            assertTrue("Frame " + frame.timestamp + " not queued: " + action,
+                    action != MediaDecoder.ACTION_WAITING_FOR_KEY_FRAME
+                            && action != MediaDecoder.ACTION_DROP_FRAME_NON_REFERENCE);
+        }
+
+        assertEquals(pictureTimesUs(frames), pictureTimes(snapshot(codec, codec.queuedTimes)));
+        assertTrue(codec.waits > 0);
+        //Only the first key frame has flushed the codec, decoding has never been suspended
+        assertEquals(1, codec.flushCount);
+    }
+
+    @Test
+    public void nextDecoderReusesCodecOfReleasedOne() throws Exception {
+        CodecPool pool = new CodecPool(2);
+        H264Decoder first = createDecoder(4, 0);
+        first.setCodecPool(pool);
+        first.setOutput(new MediaDecoderOutput<>(createSurface()));
+        for (Frame frame : createStream(0, 3)) {
+            first.decode(frame);
+        }
+        first.release();
+
+        FakeCodecAdapter codec = codecs.get(0);
+        assertFalse(codec.released);
+        assertEquals(1, pool.getIdleCount());
+
+        //Same stream configuration, the idle codec is bound to the new output instead of creating one
+        decoder = createDecoder(4, 0);
+        decoder.setCodecPool(pool);
+        decoder.setOutput(new MediaDecoderOutput<>(createSurface()));
+        List<Frame> frames = createStream(1000, 3);
+        for (Frame frame : frames) {
+            decoder.decode(frame);
+        }
+
+        assertEquals(1, codecs.size());
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(snapshot(codec, codec.queuedTimes).containsAll(pictureTimesUs(frames)));
+    }
+
+    @Test
+    public void allOutputsAreDrained() throws Exception {
+        PatientCodecAdapter codec = new PatientCodecAdapter(4, 0);
+        decoder = createDecoder(() -> codec);
+        decoder.setOutput(new MediaDecoderOutput<>(createSurface()));
+        //Time stands still, no frame is late however slow the output thread is
+        decoder.setPresentationClock(new StreamPresentationClock(() -> 0, 0));
+
+        List<Frame> frames = createStream(0, 30);
+        for (Frame frame : frames) {
+            decoder.decode(frame);
+        }
+
+        //All pictures are rendered in order, the output thread doesn't wait for the next decode() call
+        List<Long> expected = pictureTimesUs(frames);
+        waitFor(() -> pictureTimes(snapshot(codec, codec.renderedTimes)).equals(expected));
+        assertEquals(expected, pictureTimes(snapshot(codec, codec.renderedTimes)));
+        assertEquals(codec.renderedTimes.size(), decoder.getRenderedFrames());
+        assertEquals(0, decoder.getLateFrames());
+    }
+
+    @Test
+    public void lateFramesAreDropped() throws Exception {
+        AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+        long start = now.get();
+        PatientCodecAdapter codec = new PatientCodecAdapter(4, 0);
+        decoder = createDecoder(() -> codec);
+        decoder.setOutput(new MediaDecoderOutput<>(createSurface()));
+        decoder.setPresentationClock(new StreamPresentationClock(now::get, 0));
+
+        //Key frame anchors the clock, pictures are due every 40 ms from the start
+        List<Frame> frames = createStream(0, 5);
+        decoder.decode(frames.get(0));
+        decoder.decode(frames.get(1));
+        assertEquals(start, decodeAndRender(codec, frames.get(2)));
+
+        //60 ms late (more than PresentationClock.DEFAULT_MAX_LATENESS_NANOS), dropped
+        now.set(start + TimeUnit.MILLISECONDS.toNanos(100));
+        decodeAndDrop(codec, frames.get(3));
+        //20 ms late, shown right away
+        assertEquals(now.get(), decodeAndRender(codec, frames.get(4)));
+        //Early, shown at its time
+        assertEquals(start + TimeUnit.MILLISECONDS.toNanos(120), decodeAndRender(codec, frames.get(5)));
+
+        //240 ms late, the stream keeps its timing and the frame is dropped
+        now.set(start + TimeUnit.MILLISECONDS.toNanos(400));
+        decodeAndDrop(codec, frames.get(6));
+        //Stalled for more than 500 ms, the clock continues from this frame, shown right away
+        now.set(start + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(now.get(), decodeAndRender(codec, frames.get(7)));
+
+        assertEquals(Arrays.asList(TimeUnit.MILLISECONDS.toMicros(40), TimeUnit.MILLISECONDS.toMicros(160)),
+                snapshot(codec, codec.droppedTimes));
+        assertEquals(2, decoder.getLateFrames());
+    }
+
+    @Test
+    public void framesAreRenderedAfterTimestampsGoBackFollowingCatchUp() throws Exception {
+        PatientCodecAdapter codec = new PatientCodecAdapter(8, 0);
+        decoder = createDecoder(() -> codec);
+        decoder.setOutput(new MediaDecoderOutput<>(createSurface()));
+        decoder.setPresentationClock(new StreamPresentationClock(() -> 0, 0));
+
+        //Only the last picture of the GOP is shown
+        List<Frame> gop = createStream(10_000, 5);
+        long lastUs = TimeUnit.MILLISECONDS.toMicros(10_200);
+        decoder.catchUp(gop);
+        waitFor(() -> snapshot(codec, codec.renderedTimes).contains(lastUs));
+        assertEquals(Arrays.asList(lastUs), snapshot(codec, codec.renderedTimes));
+
+        //Timestamps start over (wrap-around, restart of the source) without a key frame
+        List<Frame> wrapped = createStream(0, 3).subList(3, 6);
+        for (Frame frame : wrapped) {
+            decodeAndRender(codec, frame);
+        }
+        List<Long> expected = new ArrayList<>();
+        expected.add(lastUs);
+        expected.addAll(pictureTimesUs(wrapped));
+        assertEquals(expected, snapshot(codec, codec.renderedTimes));
+    }
+
+    @Test
+    public void referenceFrameNotQueuedWaitsForKeyFrame() throws Exception {
+        //Nothing is output, input buffers are used up by the first pictures
+        decoder = createDecoder(4, 100);
+        AtomicInteger keyFrameRequests = new AtomicInteger();
+        decoder.setKeyFrameRequestListener(source -> keyFrameRequests.incrementAndGet());
+
+        List<Frame> frames = createStream(0, 6);
+        int[] actions = new int[frames.size()];
+        for (int i = 0; i < frames.size(); i++) {
+            actions[i] = decoder.decode(frames.get(i));
+        }
+
+        //Key frame flushes the parameter sets queued before (they are repeated in its buffer),
+        //IDR and three P pictures fill the buffers, the fourth one can't be queued
+        FakeCodecAdapter codec = getCodec();
+        assertEquals(6, codec.queuedTimes.size());
+        assertEquals(MediaDecoder.ACTION_WAITING_FOR_KEY_FRAME, actions[6]);
+        //Following pictures are not decoded, they would reference the lost one
+        for (int i = 7; i < actions.length; i++) {
+            assertEquals(MediaDecoder.ACTION_WAITING_FOR_KEY_FRAME, actions[i]);
+        }
+        assertEquals(6, codec.queuedTimes.size());
+        assertEquals(1, keyFrameRequests.get());
+
+        //Next key frame flushes the codec and decoding continues
+        int flushes = codec.flushCount;
+        List<Frame> next = createStream(1000, 3);
+        for (Frame frame : next) {
+            decoder.decode(frame);
+        }
+        assertEquals(flushes + 1, codec.flushCount);
+        assertEquals(pictureTimesUs(next), pictureTimes(codec.queuedTimes.subList(6, codec.queuedTimes.size())));
+    }
+
+    @Test
+    public void disposableFrameIsDroppedWhenBuffersAreBusy() throws Exception {
+        decoder = createDecoder(4, 100);
+        AtomicInteger keyFrameRequests = new AtomicInteger();
+        decoder.setKeyFrameRequestListener(source -> keyFrameRequests.incrementAndGet());
+
+        //IDR and three P pictures fill the buffers
+        List<Frame> frames = createStream(0, 3);
+        byte[] slice = slice(NAL_NON_REFERENCE_SLICE, SLICE_TYPE_P, 2);
+        frames.add(new Frame(slice, 0, slice.length, 1000, track, Frame.NON_SYNC_FRAME,
+                Frame.FLAG_NEW_PICTURE | Frame.FLAG_NON_REFERENCE));
+        frames.add(new Frame(slice, 0, slice.length, 1040, track, Frame.NON_SYNC_FRAME,
+                Frame.FLAG_NEW_PICTURE | Frame.FLAG_NON_REFERENCE));
+
+        int action = MediaDecoder.ACTION_NONE;
+        for (Frame frame : frames) {
+            action = decoder.decode(frame);
+        }
+
+        //Nothing references the dropped frames, no key frame is needed
+        assertEquals(MediaDecoder.ACTION_DROP_FRAME_NON_REFERENCE, action);
+        assertEquals(6, getCodec().queuedTimes.size());
+        assertEquals(0, keyFrameRequests.get());
+    }
+
+    private H264Decoder createDecoder(int inputBuffers, int latency) throws Exception {
+        return createDecoder(() -> new FakeCodecAdapter(inputBuffers, 4096, latency));
+    }
+
+    private H264Decoder createDecoder(Supplier<FakeCodecAdapter> codecFactory) throws Exception {
+        H264Decoder decoder = new H264Decoder(track, MediaDecoder.FORMAT_RAW) {
+            @Override
+            protected CodecAdapter createCodecAdapter() {
+                FakeCodecAdapter codec = codecFactory.get();
+                codecs.add(codec);
+                return codec;
+            }
+        };
+        //Codecs of other tests must not be taken from the default pool
+        decoder.setCodecPool(new CodecPool(0));
+        return decoder;
+    }
+
+    //Decodes a picture, waits till it's rendered and returns its render time
+    private long decodeAndRender(FakeCodecAdapter codec, Frame frame) throws Exception {
+        long timeUs = TimeUnit.MILLISECONDS.toMicros(frame.timestamp);
+        decoder.decode(frame);
+        //Config data is output with the key frame's time, wait for the picture as well
+        waitFor(() -> snapshot(codec, codec.renderedTimes).contains(timeUs) && !codec.hasPendingOutput());
+        synchronized (codec) {
+            assertTrue("Frame " + frame.timestamp + " not rendered", codec.renderedTimes.contains(timeUs));
+            return codec.renderTimesNs.get(codec.renderTimesNs.size() - 1);
+        }
+    }
+
+    private void decodeAndDrop(FakeCodecAdapter codec, Frame frame) throws Exception {
+        long timeUs = TimeUnit.MILLISECONDS.toMicros(frame.timestamp);
+        decoder.decode(frame);
+        waitFor(() -> snapshot(codec, codec.droppedTimes).contains(timeUs) && !codec.hasPendingOutput());
+        assertTrue("Frame " + frame.timestamp + " not dropped", snapshot(codec, codec.droppedTimes).contains(timeUs));
+    }
+
+    private FakeCodecAdapter getCodec() {
+        assertEquals(1, codecs.size());
+        return codecs.get(0);
+    }
+
+    //Surface rendering is visible to the decoder, stubs of Android classes return false by default
+    private static Surface createSurface() {
+        return new Surface((SurfaceTexture) null) {
+            @Override
+            public boolean isValid() {
+                return true;
+            }
+        };
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //Times of pictures, parameter sets are queued with the timestamp of the key frame
+    private static List<Long> pictureTimes(List<Long> times) {
+        List<Long> result = new ArrayList<>();
+        for (int i = 0; i < times.size(); i++) {
+            if (i == 0 || !times.get(i).equals(times.get(i - 1))) {
+                result.add(times.get(i));
+            }
+        }
+        return result;
+    }
+
+    //Copy of a list of the fake codec, which is filled by the output thread
+    private static List<Long> snapshot(FakeCodecAdapter codec, List<Long> times) {
+        synchronized (codec) {
+            return new ArrayList<>(times);
+        }
+    }
+
+    private static List<Long> pictureTimesUs(List<Frame> frames) {
+        List<Long> result = new ArrayList<>();
+        for (Frame frame : frames) {
+            if (frame.frameType != Frame.CONFIG_FRAME) {
+                result.add(TimeUnit.MILLISECONDS.toMicros(frame.timestamp));
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Codec giving the decoder as much time as the output thread needs, when it waits for an input buffer,
+     * so the result doesn't depend on scheduling of the threads.
+     */
+
+    private static final class PatientCodecAdapter extends FakeCodecAdapter {
+
+        int waits;
+
+        PatientCodecAdapter(int inputBufferCount, int latency) {
+            super(inputBufferCount, 4096, latency);
+        }
+
+        @Override
+        public synchronized int dequeueInputBuffer(long timeoutUs) {
+            if (timeoutUs == 0)
+                return super.dequeueInputBuffer(0);
+
+            waits++;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            int index = super.dequeueInputBuffer(timeoutUs);
+            while (index < 0 && System.nanoTime() < deadline) {
+                index = super.dequeueInputBuffer(timeoutUs);
+            }
+            return index;
+        }
+
+    }
+
+    /*
+     * H.264 stream
+     */
+
+    private static final int NAL_SPS = 0x67;
+    private static final int NAL_PPS = 0x68;
+    private static final int NAL_IDR_SLICE = 0x65;
+    private static final int NAL_SLICE = 0x41;
+    private static final int NAL_NON_REFERENCE_SLICE = 0x01;
+    private static final int SLICE_TYPE_P = 5;
+    private static final int SLICE_TYPE_I = 7;
+    //25 fps, timestamps are in milliseconds
+    private static final int FRAME_INTERVAL_MS = 40;
+
+    /**
+     * Creates frames of a GOP: SPS, PPS (with the timestamp of the IDR picture), IDR and P pictures.
+     * @param startMs timestamp of the IDR picture
+     * @param pictures number of P pictures
+     * @return frames in decoding order
+     */
+
+    List<Frame> createStream(long startMs, int pictures) {
+        List<Frame> frames = new ArrayList<>();
+        byte[] sps = sps();
+        byte[] pps = nal(NAL_PPS, new byte[]{(byte) 0xce, 0x38, (byte) 0x80});
+        frames.add(new Frame(sps, 0, sps.length, startMs, track, Frame.CONFIG_FRAME, Frame.FLAG_HAS_CONFIG));
+        frames.add(new Frame(pps, 0, pps.length, startMs, track, Frame.CONFIG_FRAME, Frame.FLAG_HAS_CONFIG));
+        byte[] idr = slice(NAL_IDR_SLICE, SLICE_TYPE_I, 0);
+        frames.add(new Frame(idr, 0, idr.length, startMs, track, Frame.SYNC_FRAME, Frame.FLAG_NEW_PICTURE));
+        for (int i = 1; i <= pictures; i++) {
+            byte[] p = slice(NAL_SLICE, SLICE_TYPE_P, i);
+            frames.add(new Frame(p, 0, p.length, startMs + (long) i * FRAME_INTERVAL_MS, track,
+                    Frame.NON_SYNC_FRAME, Frame.FLAG_NEW_PICTURE));
+        }
+        return frames;
+    }
+
+    //Baseline profile, level 3.0, 320x240, frame numbers of 4 bits, poc type 2
+    private static byte[] sps() {
+        BitWriter w = new BitWriter();
+        w.bits(66, 8);
+        w.bits(0, 8);
+        w.bits(30, 8);
+        w.ue(0); //seq_parameter_set_id
+        w.ue(0); //log2_max_frame_num_minus4
+        w.ue(2); //pic_order_cnt_type
+        w.ue(1); //max_num_ref_frames
+        w.bit(0); //gaps_in_frame_num_value_allowed_flag
+        w.ue(19); //pic_width_in_mbs_minus1
+        w.ue(14); //pic_height_in_map_units_minus1
+        w.bit(1); //frame_mbs_only_flag
+        w.bit(1); //direct_8x8_inference_flag
+        w.bit(0); //frame_cropping_flag
+        w.bit(0); //vui_parameters_present_flag
+        return nal(NAL_SPS, w.finish());
+    }
+
+    //Slice header and a payload of 40 bytes (not valid macroblocks, the fake codec doesn't parse them)
+    private static byte[] slice(int header, int sliceType, int frameNum) {
+        BitWriter w = new BitWriter();
+        w.ue(0); //first_mb_in_slice
+        w.ue(sliceType);
+        w.ue(0); //pic_parameter_set_id
+        w.bits(frameNum, 4);
+        for (int i = 0; i < 40; i++) {
+            w.bits(0x55, 8);
+        }
+        return nal(header, w.finish());
+    }
+
+    private static byte[] nal(int header, byte[] payload) {
+        byte[] nal = new byte[payload.length + 1];
+        nal[0] = (byte) header;
+        System.arraycopy(payload, 0, nal, 1, payload.length);
+        return nal;
+    }
+
+    private static final class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        void bit(int bit) {
+            current = (current << 1) | bit;
+            if (++count == 8) {
+                out.write(current);
+                current = 0;
+                count = 0;
+            }
+        }
+
+        void bits(int value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                bit((value >> i) & 1);
+            }
+        }
+
+        //Exp-Golomb code
+        void ue(int value) {
+            int x = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(x);
+            bits(0, length - 1);
+            bits(x, length);
+        }
+
+        //Adds the rbsp trailing bits
+        byte[] finish() {
+            bit(1);
+            while (count != 0) {
+                bit(0);
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+}
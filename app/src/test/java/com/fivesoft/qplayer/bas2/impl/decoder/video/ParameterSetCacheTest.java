@@ -0,0 +1,80 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests of {@link ParameterSetCache}: change detection, copying of the data and Annex B output
+ * of the selected slots.
+ */
+
+public class ParameterSetCacheTest {
+
+    private static final int SPS = 0;
+    private static final int PPS = 1;
+
+    @Test
+    public void detectsChangedParameterSets() {
+        ParameterSetCache cache = new ParameterSetCache(2);
+        byte[] data = {0x11, 0x67, 0x42, 0x00, 0x1f, 0x22};
+
+        assertTrue(cache.put(SPS, data, 1, 4));
+        assertFalse(cache.put(SPS, data.clone(), 1, 4));
+        //Empty data is ignored
+        assertFalse(cache.put(PPS, data, 0, 0));
+
+        //The cache has its own copy
+        data[2] = 0x64;
+        assertTrue(cache.put(SPS, data, 1, 4));
+        assertTrue(cache.put(SPS, data, 1, 3));
+        assertEquals(4 + 3, cache.getSize(1 << SPS));
+    }
+
+    @Test
+    public void tracksCachedKinds() {
+        ParameterSetCache cache = new ParameterSetCache(2);
+        assertEquals(0, cache.getMask());
+        assertFalse(cache.isComplete());
+
+        cache.put(PPS, new byte[]{0x68, (byte) 0xce}, 0, 2);
+        assertFalse(cache.has(SPS));
+        assertTrue(cache.has(PPS));
+        assertEquals(1 << PPS, cache.getMask());
+        assertFalse(cache.isComplete());
+
+        cache.put(SPS, new byte[]{0x67, 0x42}, 0, 2);
+        assertTrue(cache.isComplete());
+
+        cache.clear();
+        assertEquals(0, cache.getMask());
+        assertEquals(0, cache.getSize(0x03));
+    }
+
+    @Test
+    public void writesSelectedSetsInSlotOrder() {
+        ParameterSetCache cache = new ParameterSetCache(2);
+        cache.put(PPS, new byte[]{0x68, (byte) 0xce, 0x38}, 0, 3);
+        cache.put(SPS, new byte[]{0x67, 0x42}, 0, 2);
+
+        ByteBuffer buffer = ByteBuffer.allocate(cache.getSize(0x03));
+        cache.writeTo(buffer, 0x03);
+        assertEquals(0, buffer.remaining());
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, (byte) 0xce, 0x38}, buffer.array());
+
+        buffer = ByteBuffer.allocate(cache.getSize(1 << PPS));
+        cache.writeTo(buffer, 1 << PPS);
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x68, (byte) 0xce, 0x38}, buffer.array());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManySlots() {
+        new ParameterSetCache(32);
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link RbspBitReader}: skipping of emulation prevention bytes, Exp-Golomb codes
+ * at their edges and reading past the end of data.
+ */
+
+public class RbspBitReaderTest {
+
+    private final RbspBitReader reader = new RbspBitReader();
+
+    @Test
+    public void skipsEmulationPreventionBytes() {
+        //RBSP 00 00 00 00 01 03 00 03
+        reset(0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x01, 0x03, 0x00, 0x03);
+        assertEquals(0, reader.readBits(32));
+        assertEquals(0x01, reader.readBits(8));
+        //Not preceded by two zero bytes, so not escaped
+        assertEquals(0x03, reader.readBits(8));
+        assertEquals(0x00, reader.readBits(8));
+        assertEquals(0x03, reader.readBits(8));
+        assertFalse(reader.hasMoreBits());
+    }
+
+    @Test
+    public void skipsEmulationPreventionBytesWithinCodes() {
+        //ue(v) 65534: 15 zeros, 1 and 15 ones, spanning the escaped zero bytes
+        reset(0x00, 0x00, 0x03, 0x01, 0xFF, 0xFE);
+        assertEquals(0, reader.readBits(8));
+        assertEquals(65534, reader.readUE());
+        assertTrue(reader.hasMoreBits());
+        assertEquals(0, reader.readBit());
+        assertFalse(reader.hasMoreBits());
+    }
+
+    @Test
+    public void readsExpGolombCodes() {
+        //ue: 1, 010, 011, 00100, 0001000 and se: 010, 011, 00100, 00101, 1
+        reset(0xA6, 0x41, 0x09, 0x90, 0xB0);
+        assertEquals(0, reader.readUE());
+        assertEquals(1, reader.readUE());
+        assertEquals(2, reader.readUE());
+        assertEquals(3, reader.readUE());
+        assertEquals(7, reader.readUE());
+        assertEquals(1, reader.readSE());
+        assertEquals(-1, reader.readSE());
+        assertEquals(2, reader.readSE());
+        assertEquals(-2, reader.readSE());
+        assertEquals(0, reader.readSE());
+    }
+
+    @Test
+    public void readsLongestExpGolombCode() {
+        //31 zeros, 1 and 31 ones: 2^32 - 2, which doesn't fit in int
+        reset(0x00, 0x00, 0x00, 0x01, 0xFF, 0xFF, 0xFF, 0xFE);
+        assertEquals((int) ((1L << 32) - 2), reader.readUE());
+
+        //32 zeros can't start a valid code
+        reset(0x00, 0x00, 0x00, 0x00, 0x80);
+        try {
+            reader.readUE();
+            fail();
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void readsFixedLengthFields() {
+        reset(0xFF, 0xFF, 0xFF, 0xFF, 0xA5);
+        assertEquals(-1, reader.readBits(32));
+        assertEquals(0, reader.readBits(0));
+        assertTrue(reader.readFlag());
+        reader.skipBits(2);
+        assertEquals(0x05, reader.readBits(5));
+
+        reset(0xFF, 0xFF, 0xFF, 0xFF);
+        assertEquals(0xFFFFFFFFL, reader.readUnsignedInt());
+    }
+
+    @Test
+    public void throwsAtEndOfData() {
+        //Escaped zero bytes at the end, the emulation prevention byte isn't followed by data
+        reset(0x00, 0x00, 0x03);
+        assertEquals(0, reader.readBits(16));
+        try {
+            reader.readBit();
+            fail();
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    private void reset(int... values) {
+        byte[] data = new byte[values.length + 2];
+        for (int i = 0; i < values.length; i++) {
+            data[i + 1] = (byte) values[i];
+        }
+        reader.reset(data, 1, values.length);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fivesoft.qplayer.bas2.common.Constants;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link SPSParser} on known SPS NAL units: frame size with cropping, frame rate
+ * and the reordering limits from VUI bitstream restriction, which decide how soon pictures are output.
+ * The VUI vectors contain emulation prevention bytes within the timing info.
+ */
+
+public class SPSParserTest {
+
+    //Camera stream: baseline profile, level 3.1, 1280x720, no VUI
+    private static final byte[] BASELINE_NO_VUI = bytes("00 00 00 01 67 42 00 1f 95 a8 14 01 6e 40");
+
+    //Constrained baseline profile, level 3.0, 640x360 (368 cropped by 8), 30 fps,
+    //max_num_reorder_frames 0, max_dec_frame_buffering 1
+    private static final byte[] BASELINE_VUI = bytes(
+            "67 42 c0 1e da 02 80 bf e5 84 00 00 03 00 04 00 00 03 00 f2 3c 22 11 a8");
+
+    //High profile, level 4.0, 1920x1080 (1088 cropped by 8), SAR 1:1, 25 fps,
+    //max_num_reorder_frames 2, max_dec_frame_buffering 3
+    private static final byte[] HIGH_VUI = bytes(
+            "67 64 00 28 ac d9 40 78 02 27 e5 c0 44 00 00 03 00 04 00 00 03 00 ca 36 82 21 16 48");
+
+    private final SPSParser parser = new SPSParser();
+
+    @Test
+    public void parsesBaselineWithoutVui() {
+        assertTrue(parser.parse(BASELINE_NO_VUI, 0, BASELINE_NO_VUI.length));
+        assertEquals(66, parser.getProfileIdc());
+        assertEquals(31, parser.getLevelIdc());
+        assertEquals(1280, parser.getWidth());
+        assertEquals(720, parser.getHeight());
+        assertEquals(2, parser.getPicOrderCntType());
+        assertEquals(Constants.UNKNOWN_VALUE, parser.getFrameRate(), 0);
+        //Baseline profile has no B slices, so nothing is reordered
+        assertEquals(0, parser.getMaxNumReorderFrames());
+        assertEquals(Constants.UNKNOWN_VALUE, parser.getMaxDecFrameBuffering());
+    }
+
+    @Test
+    public void parsesBaselineBitstreamRestriction() {
+        assertTrue(parser.parse(BASELINE_VUI, 0, BASELINE_VUI.length));
+        assertEquals(66, parser.getProfileIdc());
+        assertEquals(30, parser.getLevelIdc());
+        assertEquals(640, parser.getWidth());
+        assertEquals(360, parser.getHeight());
+        assertEquals(8, parser.getCropBottom());
+        assertEquals(30, parser.getFrameRate(), 0.001);
+        assertTrue(parser.isFixedFrameRate());
+        assertEquals(0, parser.getMaxNumReorderFrames());
+        assertEquals(1, parser.getMaxDecFrameBuffering());
+    }
+
+    @Test
+    public void parsesHighProfileBitstreamRestriction() {
+        assertTrue(parser.parse(HIGH_VUI, 0, HIGH_VUI.length));
+        assertEquals(100, parser.getProfileIdc());
+        assertEquals(40, parser.getLevelIdc());
+        assertEquals(1, parser.getChromaFormatIdc());
+        assertEquals(0, parser.getPicOrderCntType());
+        assertEquals(6, parser.getLog2MaxPicOrderCntLsb());
+        assertEquals(4, parser.getMaxNumRefFrames());
+        assertEquals(1920, parser.getWidth());
+        assertEquals(1080, parser.getHeight());
+        assertEquals(25, parser.getFrameRate(), 0.001);
+        assertEquals(2, parser.getMaxNumReorderFrames());
+        assertEquals(3, parser.getMaxDecFrameBuffering());
+    }
+
+    @Test
+    public void parsesNalUnitWithinArray() {
+        byte[] data = new byte[HIGH_VUI.length + 10];
+        System.arraycopy(HIGH_VUI, 0, data, 7, HIGH_VUI.length);
+        assertTrue(parser.parse(data, 7, HIGH_VUI.length));
+        assertEquals(1920, parser.getWidth());
+        assertEquals(2, parser.getMaxNumReorderFrames());
+    }
+
+    @Test
+    public void rejectsTruncatedOrOtherNalUnits() {
+        assertFalse(parser.parse(HIGH_VUI, 0, 12));
+        byte[] pps = bytes("68 ce 38 80");
+        assertFalse(parser.parse(pps, 0, pps.length));
+
+        SPSParser.VideoParams params = SPSParser.parseSPSStatic(BASELINE_VUI, 0, BASELINE_VUI.length);
+        assertEquals(640, params.width);
+        assertEquals(360, params.height);
+    }
+
+    private static byte[] bytes(String hex) {
+        String[] values = hex.split(" ");
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) Integer.parseInt(values[i], 16);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.fivesoft.qplayer.bas2.impl.decoder.video.h264;
+
+import com.fivesoft.qplayer.bas2.common.mem.ByteArrayPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.DecodeWorkerPool;
+import com.fivesoft.qplayer.bas2.impl.decoder.video.I420Frame;
+
+import org.jcodec.codecs.h264.H264Encoder;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the software H.264 decode path, in frames per second per core.<br>
+ * <p>
+ *     Encodes a synthetic stream with the JCodec encoder, then decodes it from several streams at once
+ *     on a {@link DecodeWorkerPool}, the way {@link SoftwareH264Decoder} does, with I420 output into pooled buffers.
+ *     Each configuration is run in all frames, key frames only and every Nth frame mode.
+ * </p>
+ * <p>
+ *     Not a unit test, run its {@link #main(String[])}:
+ *     {@code SoftwareH264DecoderBenchmark [width height frames keyInterval streams threads]}.
+ * </p>
+ */
+
+public class SoftwareH264DecoderBenchmark {
+
+    private static final int ROUNDS = 3;
+    private static final int NTH_FRAME = 5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 640;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 360;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int keyInterval = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        int streams = args.length > 4 ? Integer.parseInt(args[4]) : threads * 2;
+
+        List<byte[]> accessUnits = encode(width, height, frames, keyInterval);
+        System.out.println("Stream: " + width + "x" + height + ", " + frames + " frames, key frame every "
+                + keyInterval + ", " + streams + " streams on " + threads + " threads");
+
+        DecodeWorkerPool pool = new DecodeWorkerPool(threads);
+        ByteArrayPool outputPool = new ByteArrayPool(ByteArrayPool.DEFAULT_MAX_ARRAYS_PER_CLASS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                run(pool, outputPool, accessUnits, keyInterval, streams, SoftwareH264Decoder.DECODE_ALL_FRAMES);
+                run(pool, outputPool, accessUnits, keyInterval, streams, SoftwareH264Decoder.DECODE_KEY_FRAMES);
+                run(pool, outputPool, accessUnits, keyInterval, streams, SoftwareH264Decoder.DECODE_EVERY_NTH_FRAME);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void run(DecodeWorkerPool pool, ByteArrayPool outputPool, List<byte[]> accessUnits,
+                            int keyInterval, int streams, int mode) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(streams);
+        AtomicLong outputFrames = new AtomicLong();
+        AtomicLong cpuNanos = new AtomicLong();
+
+        List<Integer> offered = new ArrayList<>();
+        for (int i = 0; i < accessUnits.size(); i++) {
+            if (mode != SoftwareH264Decoder.DECODE_KEY_FRAMES || i % keyInterval == 0) {
+                offered.add(i);
+            }
+        }
+        int last = offered.get(offered.size() - 1);
+
+        long start = System.nanoTime();
+        for (int s = 0; s < streams; s++) {
+            JCodecPictureDecoder decoder = new JCodecPictureDecoder();
+            DecodeWorkerPool.Lane<Integer> lane = pool.newLane(accessUnits.size(), index -> {
+                long t = System.nanoTime();
+                byte[] data = accessUnits.get(index);
+                if (index % keyInterval == 0) {
+                    decoder.readParameterSets(data, 0, data.length);
+                }
+                //Skipped frames are decoded without output in every Nth frame mode, like references needed by it
+                boolean output = mode == SoftwareH264Decoder.DECODE_ALL_FRAMES
+                        || mode == SoftwareH264Decoder.DECODE_KEY_FRAMES
+                        || index % NTH_FRAME == 0;
+                I420Frame frame = decoder.decode(data, 0, data.length, index, output ? outputPool : null);
+                if (frame != null) {
+                    outputFrames.incrementAndGet();
+                    frame.release();
+                }
+                cpuNanos.addAndGet(System.nanoTime() - t);
+                if (index == last) {
+                    done.countDown();
+                }
+            }, index -> done.countDown());
+
+            for (int index : offered) {
+                lane.offer(index);
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        double seconds = elapsed / 1e9;
+        double coreSeconds = cpuNanos.get() / 1e9;
+        System.out.printf("%-14s %6d frames in %6.2f s: %8.1f fps, %7.1f fps per core%n",
+                modeName(mode), outputFrames.get(), seconds,
+                outputFrames.get() / seconds, outputFrames.get() / coreSeconds);
+    }
+
+    private static List<byte[]> encode(int width, int height, int frames, int keyInterval) {
+        H264Encoder encoder = H264Encoder.createH264Encoder();
+        encoder.setKeyInterval(keyInterval);
+        Picture picture = Picture.create(width, height, ColorSpace.YUV420J);
+        //Flat chroma, JCodec 0.2.5 fails on some streams with textured chroma
+        Arrays.fill(picture.getPlaneData(1), (byte) -28);
+        Arrays.fill(picture.getPlaneData(2), (byte) 22);
+        List<byte[]> accessUnits = new ArrayList<>(frames);
+        for (int f = 0; f < frames; f++) {
+            //Moving gradient, so the predicted frames aren't empty
+            byte[] y = picture.getPlaneData(0);
+            for (int i = 0; i < y.length; i++) {
+                y[i] = (byte) ((i % width + i / width + f * 4) % 220 - 110);
+            }
+            ByteBuffer out = ByteBuffer.allocate(encoder.estimateBufferSize(picture));
+            ByteBuffer encoded = encoder.encodeFrame(picture, out).getData();
+            byte[] data = new byte[encoded.remaining()];
+            encoded.get(data);
+            accessUnits.add(data);
+        }
+        return accessUnits;
+    }
+
+    private static String modeName(int mode) {
+        switch (mode) {
+            case SoftwareH264Decoder.DECODE_KEY_FRAMES:
+                return "key frames";
+            case SoftwareH264Decoder.DECODE_EVERY_NTH_FRAME:
+                return "every " + NTH_FRAME + "th";
+            default:
+                return "all frames";
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.fivesoft.qplayer.buffer;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Cost of buffering one frame (insert and removal in timestamp order) in {@link JitterBuffer},
+ * compared with the sorted list {@link Buffer} used before.<br>
+ * <p>
+ *     Not a unit test, run its {@link #main(String[])}: {@code JitterBufferBenchmark [frames per case]}.
+ *     Streams of 30, 60 and 240 fps with millisecond timestamps are buffered 200 ms and 2 s deep.
+ *     Arrival order is realistic for RTP over a congested network: 5% of frames are late by 1 - 3 frames,
+ *     and every 10 seconds a burst of 10 frames arrives in reverse order (retransmission after a stall).
+ *     Both buffers are accessed under a lock, as {@link Buffer} does. Each case is warmed up first.
+ * </p>
+ */
+
+public class JitterBufferBenchmark {
+
+    private static final int[] FPS = {30, 60, 240};
+    private static final int[] DEPTHS_MS = {200, 2000};
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        for (int fps : FPS) {
+            long[] timestamps = createArrivalOrder(fps, frames);
+            for (int depthMs : DEPTHS_MS) {
+                int depth = Math.max(1, depthMs * fps / 1000);
+                String name = fps + " fps, " + depthMs + " ms (" + depth + " frames)";
+                double list = measure(timestamps, depth, new SortedListStorage());
+                double ring = measure(timestamps, depth, new JitterBufferStorage());
+                System.out.printf("%-30s sorted list %8.1f ns/frame   jitter buffer %8.1f ns/frame   %5.1fx%n",
+                        name, list, ring, list / ring);
+            }
+        }
+    }
+
+    //Timestamps of frames in the order they arrive
+    private static long[] createArrivalOrder(int fps, int frames) {
+        long[] timestamps = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            timestamps[i] = Math.round(i * 1000.0 / fps);
+        }
+
+        Random random = new Random(1);
+        for (int i = 0; i + 3 < frames; i++) {
+            if (random.nextInt(100) < 5) {
+                int j = i + 1 + random.nextInt(3);
+                long t = timestamps[i];
+                timestamps[i] = timestamps[j];
+                timestamps[j] = t;
+            }
+        }
+        for (int i = 0; i + 10 < frames; i += fps * 10) {
+            for (int a = i, b = i + 9; a < b; a++, b--) {
+                long t = timestamps[a];
+                timestamps[a] = timestamps[b];
+                timestamps[b] = t;
+            }
+        }
+        return timestamps;
+    }
+
+    //Returns nanoseconds per frame of the second (warmed up) run
+    private static double measure(long[] timestamps, int depth, Storage storage) {
+        double result = 0;
+        for (int run = 0; run < 2; run++) {
+            storage.clear();
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (long timestamp : timestamps) {
+                storage.put(timestamp);
+                if (storage.size() > depth) {
+                    checksum += storage.poll();
+                }
+            }
+            result = (double) (System.nanoTime() - start) / timestamps.length;
+            if (checksum == 42) {
+                System.out.println();
+            }
+        }
+        return result;
+    }
+
+    private interface Storage {
+
+        void put(long timestamp);
+
+        long poll();
+
+        int size();
+
+        void clear();
+
+    }
+
+    /*
+     * Insertion into sorted ArrayList and removal of its first element, as the former SortedSynchronizedList did.
+     */
+
+    private static final class SortedListStorage implements Storage {
+
+        private final ArrayList<Long> list = new ArrayList<>();
+
+        @Override
+        public synchronized void put(long timestamp) {
+            int s = list.size();
+            for (int i = 0; i < s; i++) {
+                if (timestamp < list.get(i)) {
+                    list.add(i, timestamp);
+                    return;
+                }
+            }
+            list.add(timestamp);
+        }
+
+        @Override
+        public synchronized long poll() {
+            return list.remove(0);
+        }
+
+        @Override
+        public synchronized int size() {
+            return list.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            list.clear();
+        }
+
+    }
+
+    private static final class JitterBufferStorage implements Storage {
+
+        private static final Object ITEM = new Object();
+
+        private final JitterBuffer<Object> buffer =
+                new JitterBuffer<>(Buffer.DEFAULT_CAPACITY, 8192, JitterBuffer.OVERFLOW_DROP_OLDEST);
+
+        @Override
+        public synchronized void put(long timestamp) {
+            buffer.put(timestamp, ITEM);
+        }
+
+        @Override
+        public synchronized long poll() {
+            long timestamp = buffer.peekKey();
+            buffer.poll();
+            return timestamp;
+        }
+
+        @Override
+        public synchronized int size() {
+            return buffer.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            buffer.clear();
+        }
+
+    }
+
+}
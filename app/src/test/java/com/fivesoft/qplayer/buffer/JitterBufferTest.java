@@ -0,0 +1,120 @@
+package com.fivesoft.qplayer.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link JitterBuffer}: ordering, late items, and both overflow policies at the edges
+ * of the window and the capacity.
+ */
+
+public class JitterBufferTest {
+
+    private static final int WINDOW = 64;
+
+    @Test
+    public void returnsItemsInKeyOrder() {
+        JitterBuffer<String> buffer = new JitterBuffer<>(16, WINDOW, JitterBuffer.OVERFLOW_DROP_OLDEST);
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(5, "5"));
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(3, "3"));
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(5, "5b"));
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(4, "4"));
+        assertEquals(3, buffer.peekKey());
+        assertEquals(5, buffer.getLastKey());
+
+        //Equal keys keep the order they have been put in
+        assertEquals("3", buffer.poll());
+        assertEquals("4", buffer.poll());
+        assertEquals("5", buffer.poll());
+        assertEquals("5b", buffer.poll());
+        assertNull(buffer.poll());
+        assertEquals(Long.MIN_VALUE, buffer.peekKey());
+    }
+
+    @Test
+    public void rejectsLateItems() {
+        JitterBuffer<String> buffer = new JitterBuffer<>(16, WINDOW, JitterBuffer.OVERFLOW_DROP_OLDEST);
+        buffer.put(10, "10");
+        buffer.put(20, "20");
+        assertEquals("10", buffer.poll());
+
+        assertEquals(JitterBuffer.RESULT_LATE, buffer.put(9, "9"));
+        assertEquals(1, buffer.getLateItems());
+        //Between the removed and the buffered items is still in time
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(15, "15"));
+        assertEquals("15", buffer.poll());
+        assertEquals("20", buffer.poll());
+    }
+
+    @Test
+    public void dropsOnlyItemsOutsideOfWindow() {
+        JitterBuffer<String> buffer = new JitterBuffer<>(16, WINDOW, JitterBuffer.OVERFLOW_DROP_OLDEST);
+        buffer.put(0, "0");
+        buffer.put(50, "50");
+
+        //70 doesn't fit with 0, but it does with 50, which is kept
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(70, "70"));
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getDroppedItems());
+        assertEquals(50, buffer.peekKey());
+
+        //At the end of the window of the oldest item
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(50 + WINDOW - 1, "113"));
+        assertEquals(3, buffer.size());
+        assertEquals(1, buffer.getDroppedItems());
+
+        assertEquals("50", buffer.poll());
+        assertEquals("70", buffer.poll());
+        assertEquals("113", buffer.poll());
+        //Items between the dropped and the kept ones are late now
+        assertEquals(JitterBuffer.RESULT_LATE, buffer.put(60, "60"));
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        JitterBuffer<String> buffer = new JitterBuffer<>(3, WINDOW, JitterBuffer.OVERFLOW_DROP_OLDEST);
+        buffer.put(1, "1");
+        buffer.put(2, "2");
+        buffer.put(3, "3");
+
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(4, "4"));
+        assertEquals(3, buffer.size());
+        assertEquals(1, buffer.getDroppedItems());
+        assertEquals("2", buffer.poll());
+        assertEquals("3", buffer.poll());
+        assertEquals("4", buffer.poll());
+    }
+
+    @Test
+    public void dropsNewestWhenFullOrBeyondWindow() {
+        JitterBuffer<String> buffer = new JitterBuffer<>(2, WINDOW, JitterBuffer.OVERFLOW_DROP_NEWEST);
+        buffer.put(0, "0");
+        assertEquals(JitterBuffer.RESULT_OVERFLOW, buffer.put(WINDOW, "64"));
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(WINDOW - 1, "63"));
+        assertEquals(JitterBuffer.RESULT_OVERFLOW, buffer.put(1, "1"));
+        assertEquals(2, buffer.getDroppedItems());
+        assertEquals("0", buffer.poll());
+        assertEquals("63", buffer.poll());
+    }
+
+    @Test
+    public void startsOverAfterJump() {
+        JitterBuffer<String> buffer = new JitterBuffer<>(16, WINDOW, JitterBuffer.OVERFLOW_DROP_OLDEST);
+        buffer.put(1000, "1000");
+        buffer.put(1001, "1001");
+
+        //Far ahead: everything buffered is dropped
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(5000, "5000"));
+        assertEquals(1, buffer.size());
+        assertEquals(2, buffer.getDroppedItems());
+        assertEquals("5000", buffer.poll());
+
+        //Far behind the removed item: the source has restarted
+        assertEquals(JitterBuffer.RESULT_ADDED, buffer.put(10, "10"));
+        assertEquals(0, buffer.getLateItems());
+        assertEquals("10", buffer.poll());
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.fivesoft.qplayer.buffer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CPU used by playout of mostly idle streams: {@link Buffer} played by {@link PlayoutScheduler},
+ * compared with the thread per playback the buffer used before.<br>
+ * <p>
+ *     Not a unit test, run its {@link #main(String[])}: {@code PlayoutBenchmark [seconds per case]}.
+ *     16 streams with 200 ms latency receive one frame per second (e.g. cameras watching a static scene,
+ *     or streams recovering from stalls). The former playout started a thread for every frame after a pause
+ *     and polled every millisecond for the latency before it exited. CPU time of the whole process
+ *     is measured, so it includes the cost of creating threads.
+ * </p>
+ */
+
+public class PlayoutBenchmark {
+
+    private static final int STREAMS = 16;
+    private static final long LATENCY_MS = 200;
+    private static final long FRAME_INTERVAL_MS = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        //Warm up both, then measure
+        run("legacy", 2, PlayoutBenchmark::createLegacy);
+        run("scheduler", 2, PlayoutBenchmark::createScheduled);
+        run("Thread per playback (before)", seconds, PlayoutBenchmark::createLegacy);
+        run("PlayoutScheduler (after)", seconds, PlayoutBenchmark::createScheduled);
+    }
+
+    private interface Stream {
+
+        void receive(Frame frame);
+
+        void destroy();
+
+    }
+
+    private interface StreamFactory {
+
+        Stream create(AtomicLong played, AtomicInteger threads);
+
+    }
+
+    private static void run(String name, int seconds, StreamFactory factory) throws InterruptedException {
+        AtomicLong played = new AtomicLong();
+        AtomicInteger threads = new AtomicInteger();
+        List<Stream> streams = new ArrayList<>();
+        for (int i = 0; i < STREAMS; i++) {
+            streams.add(factory.create(played, threads));
+        }
+
+        long cpuStart = getProcessCpuTime();
+        long start = System.nanoTime();
+        long frames = seconds * 1000L / FRAME_INTERVAL_MS;
+        for (long f = 0; f < frames; f++) {
+            //Streams are spread over the interval, as independent cameras are
+            for (int i = 0; i < STREAMS; i++) {
+                streams.get(i).receive(new Frame(f * FRAME_INTERVAL_MS));
+                Thread.sleep(FRAME_INTERVAL_MS / STREAMS);
+            }
+        }
+        Thread.sleep(2 * LATENCY_MS);
+        double wall = (System.nanoTime() - start) / 1e9;
+        double cpu = (getProcessCpuTime() - cpuStart) / 1e9;
+
+        for (Stream stream : streams) {
+            stream.destroy();
+        }
+        if (seconds > 2) {
+            System.out.printf("%-30s CPU %6.3f s in %5.1f s (%5.2f%% of a core), %d frames played, %d threads created%n",
+                    name, cpu, wall, cpu / wall * 100, played.get(), threads.get());
+        }
+    }
+
+    private static long getProcessCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private static Stream createScheduled(AtomicLong played, AtomicInteger threads) {
+        Buffer<Frame> buffer = new Buffer<Frame>() {
+            @Override
+            protected void onFrame(Frame frame) {
+                played.incrementAndGet();
+            }
+        };
+        buffer.setLatency(LATENCY_MS);
+        return new Stream() {
+            @Override
+            public void receive(Frame frame) {
+                buffer.receive(frame);
+            }
+
+            @Override
+            public void destroy() {
+                buffer.destroy();
+            }
+        };
+    }
+
+    private static Stream createLegacy(AtomicLong played, AtomicInteger threads) {
+        return new LegacyBuffer(played, threads);
+    }
+
+    private static final class Frame implements Bufferable {
+
+        private final long timestamp;
+
+        Frame(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+    }
+
+    /*
+     * Playout as Buffer did it before: a new thread whenever the previous one has exited,
+     * millisecond sleeps and polling for the latency while the buffer is empty.
+     */
+
+    private static final class LegacyBuffer implements Stream {
+
+        private final PriorityQueue<Frame> frames = new PriorityQueue<>((a, b) -> Long.compare(a.timestamp, b.timestamp));
+        private final Object ptLock = new Object();
+        private final AtomicLong played;
+        private final AtomicInteger threads;
+        private Thread playbackThread;
+
+        LegacyBuffer(AtomicLong played, AtomicInteger threads) {
+            this.played = played;
+            this.threads = threads;
+        }
+
+        @Override
+        public void receive(Frame frame) {
+            synchronized (frames) {
+                frames.add(frame);
+            }
+            synchronized (ptLock) {
+                if (playbackThread == null || playbackThread.isInterrupted() || !playbackThread.isAlive()) {
+                    playbackThread = new Thread(this::play);
+                    threads.incrementAndGet();
+                    playbackThread.start();
+                }
+            }
+        }
+
+        @Override
+        public void destroy() {
+            synchronized (ptLock) {
+                if (playbackThread != null) {
+                    playbackThread.interrupt();
+                }
+            }
+        }
+
+        private int size() {
+            synchronized (frames) {
+                return frames.size();
+            }
+        }
+
+        private void play() {
+            long prevTs = -99999999;
+            while (!Thread.currentThread().isInterrupted() && size() != 0) {
+                Frame frame;
+                synchronized (frames) {
+                    frame = frames.peek();
+                }
+                try {
+                    Thread.sleep(Math.max(0, Math.min(frame.timestamp - prevTs, LATENCY_MS)));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                prevTs = frame.timestamp;
+                synchronized (frames) {
+                    frames.poll();
+                }
+                played.incrementAndGet();
+
+                for (int i = 0; i < LATENCY_MS && size() == 0; i++) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+    }
+
+}